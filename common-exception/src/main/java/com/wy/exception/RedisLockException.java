@@ -13,6 +13,7 @@ public enum RedisLockException implements IErrorType {
     PLEASE_FILL_IN_VALID_KEY(6004, "请填写有效的key"),
     REQUEST_IS_REPEAT(5015,"请求重复"),
     REQUEST_IS_PROCESS(5016,"请求正在处理中"),
+    REQUEST_PARAM_MISMATCH(5017,"请求参数与首次请求不一致"),
     ;
 
     /**
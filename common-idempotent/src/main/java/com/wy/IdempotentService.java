@@ -4,6 +4,11 @@ package com.wy;
 import com.wy.context.IdempotentBodyContext;
 import com.wy.context.IdempotentContext;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * @author wangyong
  * @Classname IServiceIdempoemt
@@ -27,6 +32,53 @@ public interface IdempotentService {
      */
     void insertBody(IdempotentBodyContext model);
 
+    /**
+     * 批量插入数据 默认逐条插入，实现类可以覆写为批量sql
+     *
+     * @param models 实体类
+     * @return id 与入参顺序一致
+     */
+    default List<Long> insertBatch(List<IdempotentContext> models) {
+        List<Long> ids = new ArrayList<>(models.size());
+        for (IdempotentContext model : models) {
+            ids.add(insert(model));
+        }
+        return ids;
+    }
+
+    /**
+     * 批量插入出入参 默认逐条插入，实现类可以覆写为批量sql
+     *
+     * @param models 实体类
+     */
+    default void insertBodyBatch(List<IdempotentBodyContext> models) {
+        for (IdempotentBodyContext model : models) {
+            insertBody(model);
+        }
+    }
+
+    /**
+     * 原子抢占 插入一条进行中的记录，依赖 (request_id, app_code) 唯一约束
+     * 用于 DB_CLAIM 模式，不需要分布式锁
+     *
+     * @param model 实体类 状态为 {@link com.wy.enums.IdempotentStatusEnum#ING}
+     * @return 抢占成功返回id，记录已存在返回null
+     */
+    default Long claim(IdempotentContext model) {
+        throw new UnsupportedOperationException(getClass().getName() + " 不支持DB_CLAIM模式，请实现claim/reclaim");
+    }
+
+    /**
+     * 重新抢占失败的记录或超时未完成的进行中记录 条件更新为进行中
+     *
+     * @param id          幂等主键
+     * @param staleBefore 进行中的记录最后更新时间早于该时间戳(毫秒)时视为执行者已经崩溃
+     * @return 是否抢占成功
+     */
+    default boolean reclaim(Long id, long staleBefore) {
+        throw new UnsupportedOperationException(getClass().getName() + " 不支持DB_CLAIM模式，请实现claim/reclaim");
+    }
+
     /**
      * 更新幂等状态
      *
@@ -44,6 +96,24 @@ public interface IdempotentService {
      */
     IdempotentContext queryByReqId(String requestId, String appCode);
 
+    /**
+     * 批量查询 同一appCode下的多个请求id，默认逐条查询，实现类可以覆写为一次IN查询
+     *
+     * @param requestIds 请求id
+     * @param appCode    appCode
+     * @return 存在的记录 不保证顺序
+     */
+    default List<IdempotentContext> queryByReqIds(List<String> requestIds, String appCode) {
+        List<IdempotentContext> list = new ArrayList<>(requestIds.size());
+        for (String requestId : requestIds) {
+            IdempotentContext context = queryByReqId(requestId, appCode);
+            if (context != null) {
+                list.add(context);
+            }
+        }
+        return list;
+    }
+
 
     /**
      * 根据请求id和appCode查询最新的一条记录
@@ -52,4 +122,21 @@ public interface IdempotentService {
      * @return {@link IdempotentContext}
      */
     IdempotentBodyContext getLatestRecordByIdeKey(Long idempotentId);
+
+    /**
+     * 批量查询最新的参数记录，默认逐条查询
+     *
+     * @param idempotentIds 幂等主键
+     * @return key为幂等主键 没有记录的不返回
+     */
+    default Map<Long, IdempotentBodyContext> getLatestRecordByIdeKeys(List<Long> idempotentIds) {
+        Map<Long, IdempotentBodyContext> map = new HashMap<>(idempotentIds.size() * 2);
+        for (Long idempotentId : idempotentIds) {
+            IdempotentBodyContext body = getLatestRecordByIdeKey(idempotentId);
+            if (body != null) {
+                map.put(idempotentId, body);
+            }
+        }
+        return map;
+    }
 }
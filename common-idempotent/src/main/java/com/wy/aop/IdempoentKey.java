@@ -67,4 +67,21 @@ public @interface IdempoentKey {
      * 单位毫秒，默认 15 秒，不等待
      */
     long timeout() default 15 * 1000;
+
+    /**
+     * 成功结果在redis中的保存时间
+     * 单位毫秒，小于等于0时使用 common.idempotent.result-ttl
+     */
+    long resultTtl() default 0;
+
+    /**
+     * 请求参数的记录方式
+     * 默认完整记录json，参数较大时可以只记录指纹
+     */
+    RequestCapture capture() default RequestCapture.FULL;
+
+    /**
+     * {@link RequestCapture#SAMPLED} 时完整记录json的比例
+     */
+    double sampleRate() default 0.01;
 }
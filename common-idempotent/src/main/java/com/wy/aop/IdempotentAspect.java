@@ -1,18 +1,27 @@
 package com.wy.aop;
 
-import com.caucho.hessian.io.Hessian2Input;
-import com.caucho.hessian.io.Hessian2Output;
 import com.wy.IdempotentService;
+import com.wy.bloom.IdempotentBloomFilter;
+import com.wy.cache.IdempotentHotKeys;
+import com.wy.cache.IdempotentNearCache;
+import com.wy.codec.IdempotentResultCodec;
+import com.wy.config.IdempotentConfiguration;
+import com.wy.config.IdempotentProperties;
 import com.wy.context.AbstractIdRequest;
 import com.wy.context.IdempotentBodyContext;
 import com.wy.context.IdempotentContext;
+import com.wy.context.IdempotentFailure;
 import com.wy.enums.IdempotentStatusEnum;
 import com.wy.exception.AssertEx;
 import com.wy.exception.BaseException;
+import com.wy.guard.IdempotentClaim;
+import com.wy.guard.IdempotentGuard;
+import com.wy.guard.IdempotentSingleFlight;
 import com.wy.json.JsonUtil;
-import com.wy.redis.lock.RedisLockUtil;
+import com.wy.metrics.IdempotentMetrics;
+import com.wy.persist.IdempotentFailureWriter;
+import com.wy.persist.IdempotentWriteBehindQueue;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang.CharEncoding;
 import org.apache.commons.lang.StringUtils;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
@@ -20,28 +29,28 @@ import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
 import org.aspectj.lang.reflect.MethodSignature;
 import org.redisson.Redisson;
-import org.redisson.api.RLock;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.expression.EvaluationContext;
-import org.springframework.expression.Expression;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
-import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.session.data.redis.config.ConfigureRedisAction;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.wy.exception.RedisLockException.REQUEST_IS_PROCESS;
 import static com.wy.exception.RedisLockException.REQUEST_IS_REPEAT;
+import static com.wy.exception.RedisLockException.REQUEST_PARAM_MISMATCH;
 
 
 /**
@@ -57,19 +66,69 @@ import static com.wy.exception.RedisLockException.REQUEST_IS_REPEAT;
 @Aspect
 public class IdempotentAspect {
 
-    /**
-     * spring el表达式开始字符
-     */
-    private static final String EL_START_CHAR = "#";
+    @Autowired
+    private IdempotentGuard idempotentGuard;
+
+    @Autowired
+    private IdempotentService idempotentService;
 
     @Autowired
-    private RedisTemplate redisTemplate;
+    private IdempotentResultCodec idempotentResultCodec;
+
+    @Autowired(required = false)
+    private IdempotentWriteBehindQueue idempotentWriteBehindQueue;
+
+    @Autowired(required = false)
+    private IdempotentNearCache idempotentNearCache;
+
+    @Autowired(required = false)
+    private IdempotentSingleFlight idempotentSingleFlight;
+
+    @Autowired(required = false)
+    private IdempotentBloomFilter idempotentBloomFilter;
+
+    @Autowired(required = false)
+    private IdempotentHotKeys idempotentHotKeys;
+
+    @Autowired(required = false)
+    private IdempotentFailureWriter idempotentFailureWriter;
 
     @Autowired
-    private RedisLockUtil redisLockUtil;
+    private IdempotentProperties idempotentProperties;
 
+    /**
+     * 异步方法的抢占、查询和落库 不使用公共线程池
+     */
     @Autowired
-    private IdempotentService idempotentService;
+    @Qualifier(IdempotentConfiguration.EXECUTOR)
+    private Executor idempotentExecutor;
+
+    @Autowired
+    private IdempotentMetrics idempotentMetrics;
+
+    /**
+     * 注解解析计划缓存
+     */
+    private final IdempotentKeyRegistry idempotentKeyRegistry = new IdempotentKeyRegistry();
+
+    /**
+     * DB_CLAIM模式依赖 {@link IdempotentService#claim}/{@link IdempotentService#reclaim}，启动时检查而不是在第一个请求时失败
+     */
+    @PostConstruct
+    public void init() {
+        if(idempotentProperties.getMode() == IdempotentProperties.GuardMode.DB_CLAIM){
+            AssertEx.isTrue(overrides(idempotentService,"claim",IdempotentContext.class) && overrides(idempotentService,"reclaim",Long.class,long.class),
+                    BaseException.definedException(1099,idempotentService.getClass().getName() + " 不支持DB_CLAIM模式，请实现claim/reclaim"));
+        }
+    }
+
+    private static boolean overrides(IdempotentService service, String name, Class<?>... parameterTypes) {
+        try {
+            return service.getClass().getMethod(name,parameterTypes).getDeclaringClass() != IdempotentService.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
 
     /**
      * AOP切入点
@@ -90,178 +149,701 @@ public class IdempotentAspect {
         MethodSignature methodSignature = (MethodSignature) point.getSignature();
         Method method = methodSignature.getMethod();
         Object[] args = point.getArgs();
-        IdempoentKey idempoentKey = method.getAnnotation(IdempoentKey.class);
-        RLock rLock = null;
+        IdempotentKeyMetadata metadata = idempotentKeyRegistry.get(methodSignature);
+        IdempoentKey idempoentKey = metadata.getIdempoentKey();
         //开始解析 相关值
-        String[] parameterNames = methodSignature.getParameterNames();
-        EvaluationContext context = new StandardEvaluationContext();
-        ExpressionParser parser = new SpelExpressionParser();
-        for (int i = 0; i < parameterNames.length; i++) {
-            context.setVariable(parameterNames[i], args[i]);
-        }
+        IdempotentKeyMetadata.Evaluation evaluation = metadata.evaluate(args);
         AssertEx.isTrue(args.length - 1 == 0, BaseException.definedException(1008,"幂等请求参数为多个，请将参数放进继承AbstractIdRequest的POJO中")) ;
         AssertEx.isTrue(args[0] instanceof AbstractIdRequest,BaseException.definedException(1008,"参数请继承AbstractIdRequest抽象类")) ;
         if (idempotentService == null) {
             log.warn("method [{}] 没有实现 IdempotentService 无法执行幂等操作", method.getName());
             return point.proceed();
         }
-        String requestId = this.getElValue(point, idempoentKey.requestId(), parser, context);
+        String requestId = evaluation.requestId();
         if (StringUtils.isBlank(requestId)) {
             log.warn("method [{}] requestId is null,无法执行幂等操作", method.getName());
             return point.proceed();
         }
-        String appCode = this.getElValue(point, idempoentKey.appCode(), parser, context);
+        String appCode = evaluation.appCode();
         if (StringUtils.isBlank(appCode)) {
             log.warn("method [{}] appCode is null,无法执行幂等操作", method.getName());
             return point.proceed();
         }
-        Hessian2Output output = null;
-        IdempotentContext idempotentContext = null;
         String key = requestId + ":" + appCode;
-        //开始加锁
-        rLock = redisLockUtil.tryLock(key, idempoentKey.timeout(), idempoentKey.keeps(), TimeUnit.SECONDS, REQUEST_IS_REPEAT);
+        IdempotentAsyncType asyncType = metadata.getAsyncType();
+        boolean hot = idempotentHotKeys != null && idempotentHotKeys.record(key);
+        if(hot){
+            idempotentMetrics.count(IdempotentMetrics.Event.HOT_KEY, appCode);
+        }
+        //本地缓存命中的成功结果直接返回 不再加锁
+        IdempotentNearCache nearCache = this.nearCache(key);
+        if(nearCache != null){
+            byte[] cached = nearCache.get(key);
+            if(cached != null){
+                idempotentMetrics.count(IdempotentMetrics.Event.NEAR_CACHE_HIT, appCode);
+                Object result = this.decodeStored(evaluation,cached);
+                return asyncType == null ? result : asyncType.fromFuture(() -> CompletableFuture.completedFuture(result));
+            }
+        }
+        //异步方法在future完成后才记录结果和释放锁
+        if(asyncType != null){
+            return asyncType.fromFuture(() -> this.executeAsync(point,evaluation,key,asyncType,hot));
+        }
+        IdempotentSingleFlight singleFlight = this.singleFlight(hot);
+        if(singleFlight == null){
+            return this.execute(point,evaluation,key,null);
+        }
+        //同一jvm内的重复请求等待第一个请求的结果
+        IdempotentSingleFlight.Flight flight = singleFlight.join(key);
+        if(!flight.isLeader()){
+            idempotentMetrics.count(IdempotentMetrics.Event.COALESCED, appCode);
+            return this.follow(flight,evaluation);
+        }
+        try {
+            return this.execute(point,evaluation,key,flight);
+        } catch (Throwable e) {
+            singleFlight.crash(flight,e);
+            throw e;
+        }
+    }
+
+    /**
+     * 加锁并执行
+     *
+     * @param point      切入点
+     * @param evaluation 注解值
+     * @param key        requestId:appCode
+     * @param flight     合并请求的执行者 未开启时为空
+     * @return
+     * @throws Throwable
+     */
+    private Object execute(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, String key, IdempotentSingleFlight.Flight flight) throws Throwable {
+        if(idempotentProperties.getMode() == IdempotentProperties.GuardMode.DB_CLAIM){
+            return this.executeByDbClaim(point,evaluation,key,flight);
+        }
+        IdempoentKey idempoentKey = evaluation.getIdempoentKey();
+        IdempotentContext idempotentContext = null;
+        //开始加锁 已有成功结果时一并返回
+        long start = System.nanoTime();
+        IdempotentClaim claim = idempotentGuard.claim(key, idempoentKey);
+        this.recordClaim(evaluation.appCode(),claim,start);
+        if(claim.getStatus() == IdempotentClaim.Status.BUSY){
+            throw REQUEST_IS_REPEAT.get();
+        }
         try {
-            //序列化所用
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            output = new Hessian2Output(os);
             //只有处理正确的结果才会进行redis的存储
-            if(redisTemplate.hasKey(key)){
-                byte[] bytes = (byte[]) redisTemplate.opsForValue().get(key);
-                ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-                Hessian2Input input = new Hessian2Input(bis);
-                return input.readObject();
+            if(claim.getStatus() == IdempotentClaim.Status.RESULT){
+                return this.replayClaim(evaluation,key,claim,flight);
             }
-            idempotentContext = idempotentService.queryByReqId(requestId, appCode);
+            idempotentContext = this.queryByReqId(evaluation.requestId(), evaluation.appCode());
             AssertEx.isTrue(idempotentContext == null || idempotentContext.getId() != null,BaseException.definedException(1098,"幂等主键未返回"));
             //状态为空或者失败则执行方法 然后存储结果5分钟
             if(idempotentContext == null || idempotentContext.getStatus().equals(IdempotentStatusEnum.FAIL)){
-                Object proceed = point.proceed();
-                //写入object对象中
-                output.writeObject(proceed);
-                output.close();
-                //写入序列化后的数组
-                byte[] bytes = os.toByteArray();
-                redisTemplate.opsForValue().set(key,bytes, Duration.ofMinutes(60L));
-                Long id = null;
-                //开始插入表 插入两张表皮
-                if(idempotentContext != null){
-                    idempotentContext.setStatus(IdempotentStatusEnum.SUCCESS);
-                    //更新状态
-                    idempotentService.updateInfo(idempotentContext);
-                    id = idempotentContext.getId();
-                }else{
-                    id = this.insertIde(point,idempoentKey,parser,context,IdempotentStatusEnum.SUCCESS);
-                }
-                //插入参数记录
-                this.insertBody(point,bytes,id);
+                this.beforeProceed(evaluation,idempotentContext);
+                Object proceed = this.proceed(point,evaluation.appCode());
+                this.recordSuccess(point,evaluation,key,claim,flight,idempotentContext,proceed);
                 return proceed;
             }
             //剩下的只有处理成功或者处理中的了
             IdempotentStatusEnum status = idempotentContext.getStatus();
             //如果正在处理中
             if(status.equals(IdempotentStatusEnum.ING)){
+                idempotentMetrics.count(IdempotentMetrics.Event.IN_PROCESS, evaluation.appCode());
                 throw REQUEST_IS_PROCESS.get();
             }
             //开始处理结果，如果是成功的状态则将结果直接返回，而不用重新请求
-            IdempotentBodyContext contexts = idempotentService.getLatestRecordByIdeKey(idempotentContext.getId());
-            if(contexts == null){
-                log.warn("查询返回结果为空,requestId [{}],appCode [{}]",requestId,appCode);
-                return null;
+            return this.replay(evaluation,key,idempotentContext,flight);
+        } catch (Exception e) {
+            //发生异常记录失败
+            this.recordFailure(point,evaluation,idempotentContext,e);
+            throw e;
+        }finally {
+            idempotentGuard.release(claim);
+        }
+    }
+
+    /**
+     * DB_CLAIM模式 通过唯一约束插入进行中的记录抢占，不使用分布式锁
+     *
+     * @param point      切入点
+     * @param evaluation 注解值
+     * @param key        requestId:appCode
+     * @param flight     合并请求的执行者 未开启时为空
+     * @return
+     * @throws Throwable
+     */
+    private Object executeByDbClaim(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, String key, IdempotentSingleFlight.Flight flight) throws Throwable {
+        IdempotentContext record = this.claimRecord(evaluation);
+        if(record.getStatus() == IdempotentStatusEnum.SUCCESS){
+            return this.replay(evaluation,key,record,flight);
+        }
+        Object proceed;
+        try {
+            proceed = this.proceed(point,evaluation.appCode());
+        } catch (Exception e) {
+            this.recordClaimFailure(point,evaluation,record,e);
+            throw e;
+        }
+        this.recordClaimSuccess(point,evaluation,key,flight,record,proceed);
+        return proceed;
+    }
+
+    /**
+     * 异步方法的处理 抢占、执行和记录结果都挂在future上，调用线程不会等锁也不会等业务执行完成
+     *
+     * @param point      切入点
+     * @param evaluation 注解值
+     * @param key        requestId:appCode
+     * @param asyncType  返回值类型
+     * @param hot        是否为热点key
+     * @return 完成后的业务结果
+     */
+    private CompletableFuture<Object> executeAsync(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, String key, IdempotentAsyncType asyncType, boolean hot) {
+        IdempotentSingleFlight singleFlight = this.singleFlight(hot);
+        if(singleFlight == null){
+            return this.claimAsync(point,evaluation,key,null,asyncType);
+        }
+        IdempotentSingleFlight.Flight flight = singleFlight.join(key);
+        if(!flight.isLeader()){
+            idempotentMetrics.count(IdempotentMetrics.Event.COALESCED, evaluation.appCode());
+            return flight.getFuture().thenApply(bytes -> this.decodeStoredQuietly(evaluation,bytes));
+        }
+        return this.claimAsync(point,evaluation,key,flight,asyncType).whenComplete((result, e) -> {
+            if(e != null){
+                singleFlight.crash(flight,unwrap(e));
             }
-            //取最新的一条
-            String responseBody = contexts.getResponseBody();
-            if(StringUtils.isBlank(responseBody)){
-                log.warn("查询返回结果为空,requestId [{}],appCode [{}],context [{}]",requestId,appCode, JsonUtil.toJson(context));
-                return null;
+        });
+    }
+
+    private CompletableFuture<Object> claimAsync(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, String key, IdempotentSingleFlight.Flight flight, IdempotentAsyncType asyncType) {
+        if(idempotentProperties.getMode() == IdempotentProperties.GuardMode.DB_CLAIM){
+            return CompletableFuture.supplyAsync(() -> this.claimRecord(evaluation),idempotentExecutor).thenCompose(record -> {
+                if(record.getStatus() == IdempotentStatusEnum.SUCCESS){
+                    return CompletableFuture.completedFuture(this.replayQuietly(evaluation,key,record,flight));
+                }
+                return this.proceedAsync(point,evaluation.appCode(),asyncType).handleAsync((result, error) -> {
+                    if(error != null){
+                        this.recordClaimFailure(point,evaluation,record,unwrap(error));
+                        throw rethrow(error);
+                    }
+                    try {
+                        this.recordClaimSuccess(point,evaluation,key,flight,record,result);
+                    } catch (IOException e) {
+                        throw rethrow(e);
+                    }
+                    return result;
+                },idempotentExecutor);
+            });
+        }
+        long start = System.nanoTime();
+        //抢占之后的查询和落库都是阻塞调用 切到幂等线程池执行
+        return idempotentGuard.claimAsync(key,evaluation.getIdempoentKey(),idempotentExecutor).thenComposeAsync(claim -> {
+            this.recordClaim(evaluation.appCode(),claim,start);
+            if(claim.getStatus() == IdempotentClaim.Status.BUSY){
+                return failed(REQUEST_IS_REPEAT.get());
             }
-            ByteArrayInputStream bis = new ByteArrayInputStream(contexts.getResponseBody().getBytes(CharEncoding.ISO_8859_1));
-            Hessian2Input input = new Hessian2Input(bis);
-            return input.readObject();
+            return this.proceedClaimedAsync(point,evaluation,key,flight,claim,asyncType)
+                    .whenComplete((result, e) -> idempotentGuard.releaseAsync(claim));
+        },idempotentExecutor);
+    }
+
+    /**
+     * 已获得执行权后的异步处理 与 {@link #execute} 的加锁后逻辑一致，同步抛出的异常同样记录失败
+     */
+    private CompletableFuture<Object> proceedClaimedAsync(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, String key, IdempotentSingleFlight.Flight flight, IdempotentClaim claim, IdempotentAsyncType asyncType) {
+        IdempotentContext idempotentContext = null;
+        try {
+            if(claim.getStatus() == IdempotentClaim.Status.RESULT){
+                return CompletableFuture.completedFuture(this.replayClaim(evaluation,key,claim,flight));
+            }
+            idempotentContext = this.queryByReqId(evaluation.requestId(), evaluation.appCode());
+            AssertEx.isTrue(idempotentContext == null || idempotentContext.getId() != null,BaseException.definedException(1098,"幂等主键未返回"));
+            if(idempotentContext != null && idempotentContext.getStatus().equals(IdempotentStatusEnum.ING)){
+                idempotentMetrics.count(IdempotentMetrics.Event.IN_PROCESS, evaluation.appCode());
+                throw REQUEST_IS_PROCESS.get();
+            }
+            if(idempotentContext != null && idempotentContext.getStatus().equals(IdempotentStatusEnum.SUCCESS)){
+                return CompletableFuture.completedFuture(this.replay(evaluation,key,idempotentContext,flight));
+            }
+            this.beforeProceed(evaluation,idempotentContext);
         } catch (Exception e) {
-            //发生异常记录失败
-            //开始插入表 插入两张表皮
-            Hessian2Output outputE = null;
+            this.recordFailure(point,evaluation,idempotentContext,e);
+            return failed(e);
+        }
+        IdempotentContext existing = idempotentContext;
+        //业务future可能在io线程上完成 落库切回幂等线程池
+        return this.proceedAsync(point,evaluation.appCode(),asyncType).handleAsync((result, error) -> {
             try {
-                //序列化所用
-                ByteArrayOutputStream ose = new ByteArrayOutputStream();
-                outputE = new Hessian2Output(ose);
-                //写入object对象中
-                outputE.writeObject(e);
-                outputE.close();
-                Long id = null;
-                if(idempotentContext == null){
-                    idempotentContext = idempotentService.queryByReqId(requestId,appCode);
-                    if(idempotentContext == null){
-                        //试图插入
-                        id = this.insertIde(point,idempoentKey,parser,context,IdempotentStatusEnum.FAIL);
-                    }
-                }else{
-                    id = idempotentContext.getId();
-                }
-                if(id == null){
-                    log.error("幂等主键未返回，无法插入参数表");
-                }else{
-                    //插入参数记录表
-                    this.insertBody(point,ose.toByteArray(),id);
-                }
-            }catch (Exception e1){
-                log.error("插入失败数据异常",e1);
-            }finally {
-                try {
-                    outputE.close();
-                }catch (Exception ioE){
-                    log.error("关闭流异常",ioE);
+                if(error != null){
+                    throw unwrap(error);
                 }
+                this.recordSuccess(point,evaluation,key,claim,flight,existing,result);
+                return result;
+            } catch (Throwable e) {
+                this.recordFailure(point,evaluation,existing,e);
+                throw rethrow(e);
+            }
+        },idempotentExecutor);
+    }
+
+    private CompletableFuture<Object> proceedAsync(ProceedingJoinPoint point, String appCode, IdempotentAsyncType asyncType) {
+        idempotentMetrics.count(IdempotentMetrics.Event.EXECUTED, appCode);
+        long start = System.nanoTime();
+        CompletableFuture<Object> future;
+        try {
+            future = asyncType.adapt(point.proceed());
+        } catch (Throwable e) {
+            future = failed(e);
+        }
+        return future.whenComplete((result, e) -> {
+            idempotentMetrics.record(IdempotentMetrics.Phase.PROCEED, appCode, System.nanoTime() - start);
+            if(e != null){
+                idempotentMetrics.count(IdempotentMetrics.Event.FAILED, appCode);
             }
+        });
+    }
+
+    private Object proceed(ProceedingJoinPoint point, String appCode) throws Throwable {
+        idempotentMetrics.count(IdempotentMetrics.Event.EXECUTED, appCode);
+        long start = System.nanoTime();
+        try {
+            return point.proceed();
+        } catch (Throwable e) {
+            idempotentMetrics.count(IdempotentMetrics.Event.FAILED, appCode);
             throw e;
-        }finally {
-            redisLockUtil.tryUnLock(rLock);
-            if(output != null){
-                try {
-                    output.close();
-                }catch (Exception e){
-                    log.error("关闭流异常",e);
+        } finally {
+            idempotentMetrics.record(IdempotentMetrics.Phase.PROCEED, appCode, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 抢占耗时拆分为等锁和读取结果两段
+     */
+    private void recordClaim(String appCode, IdempotentClaim claim, long start) {
+        long total = System.nanoTime() - start;
+        idempotentMetrics.record(IdempotentMetrics.Phase.LOCK_WAIT, appCode, claim.getWaitNanos());
+        if(claim.getStatus() == IdempotentClaim.Status.BUSY){
+            idempotentMetrics.count(IdempotentMetrics.Event.REPEATED, appCode);
+            return;
+        }
+        idempotentMetrics.record(IdempotentMetrics.Phase.RESULT_GET, appCode, total - claim.getWaitNanos());
+    }
+
+    /**
+     * 执行之前先记入布隆过滤器 保证落库的requestId一定能被查到
+     */
+    private void beforeProceed(IdempotentKeyMetadata.Evaluation evaluation, IdempotentContext idempotentContext) {
+        if(idempotentContext == null && idempotentBloomFilter != null){
+            idempotentBloomFilter.put(evaluation.appCode(), evaluation.requestId());
+        }
+    }
+
+    /**
+     * 保存成功结果 redis、本地缓存、合并请求和数据库
+     */
+    private void recordSuccess(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, String key, IdempotentClaim claim, IdempotentSingleFlight.Flight flight, IdempotentContext idempotentContext, Object proceed) throws IOException {
+        //写入序列化后的数组
+        String appCode = evaluation.appCode();
+        byte[] bytes = this.encode(appCode,proceed);
+        Duration resultTtl = this.resultTtl(evaluation);
+        //redis、本地缓存和合并请求中的结果带有参数指纹 落库的不带
+        byte[] stored = this.seal(evaluation,bytes);
+        idempotentGuard.complete(claim,stored,resultTtl);
+        long start = System.nanoTime();
+        try {
+            this.persistSuccess(point,evaluation,idempotentContext,bytes);
+        } finally {
+            idempotentMetrics.record(IdempotentMetrics.Phase.PERSIST, appCode, System.nanoTime() - start);
+        }
+        //落库成功后才交给本地缓存和合并的请求 落库失败时异常由调用方crash合并的请求
+        IdempotentNearCache nearCache = this.nearCache(key);
+        if(nearCache != null){
+            nearCache.putWritten(key,stored,resultTtl);
+        }
+        this.land(flight,stored);
+    }
+
+    private void persistSuccess(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, IdempotentContext idempotentContext, byte[] bytes) {
+        //开启异步落库时 redis中的结果在落库完成前保证幂等
+        if(idempotentWriteBehindQueue != null){
+            IdempotentContext record = idempotentContext != null ? idempotentContext : this.buildIde(evaluation,IdempotentStatusEnum.SUCCESS);
+            record.setStatus(IdempotentStatusEnum.SUCCESS);
+            idempotentWriteBehindQueue.submit(record,this.buildBody(point,evaluation,bytes,null));
+            return;
+        }
+        Long id = null;
+        //开始插入表 插入两张表皮
+        if(idempotentContext != null){
+            idempotentContext.setStatus(IdempotentStatusEnum.SUCCESS);
+            //更新状态
+            idempotentService.updateInfo(idempotentContext);
+            id = idempotentContext.getId();
+        }else{
+            id = this.insertIde(evaluation,IdempotentStatusEnum.SUCCESS);
+        }
+        //插入参数记录
+        this.insertBody(point,evaluation,bytes,id);
+    }
+
+    /**
+     * 记录失败 异常不再向外抛出
+     * 幂等记录在持有执行权时同步写入，重试请求不会与排队中的插入在唯一约束上冲突
+     * 开启异步写入时只有失败的参数记录交给 {@link IdempotentFailureWriter}
+     */
+    private void recordFailure(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, IdempotentContext idempotentContext, Throwable e) {
+        if(e instanceof BaseException && ((BaseException) e).getErrorType() == REQUEST_PARAM_MISMATCH){
+            //参数不一致的请求没有执行 不能在首次请求的记录下追加失败结果，否则参数表最新一条的指纹被替换
+            return;
+        }
+        Long id;
+        try {
+            id = this.failureRecordId(evaluation,idempotentContext);
+        }catch (Exception e1){
+            log.error("插入失败数据异常",e1);
+            return;
+        }
+        if(id == null){
+            log.error("幂等主键未返回，无法插入参数表");
+            return;
+        }
+        if(idempotentFailureWriter != null){
+            idempotentFailureWriter.submit(() -> this.writeFailureBody(point,evaluation,id,e));
+            return;
+        }
+        this.writeFailureBody(point,evaluation,id,e);
+    }
+
+    /**
+     * 查询或插入失败状态的幂等记录
+     *
+     * @return 幂等主键
+     */
+    private Long failureRecordId(IdempotentKeyMetadata.Evaluation evaluation, IdempotentContext idempotentContext) {
+        if(idempotentContext != null){
+            return idempotentContext.getId();
+        }
+        IdempotentContext existing = this.queryByReqId(evaluation.requestId(),evaluation.appCode());
+        if(existing != null){
+            return existing.getId();
+        }
+        if(idempotentBloomFilter != null){
+            idempotentBloomFilter.put(evaluation.appCode(), evaluation.requestId());
+        }
+        //试图插入
+        return this.insertIde(evaluation,IdempotentStatusEnum.FAIL);
+    }
+
+    private void writeFailureBody(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, Long id, Throwable e) {
+        try {
+            //异步写入时重试请求可能已经成功 此时不再追加失败记录，避免覆盖最新的成功结果
+            if(idempotentFailureWriter != null){
+                IdempotentContext current = idempotentService.queryByReqId(evaluation.requestId(),evaluation.appCode());
+                if(current != null && current.getStatus() == IdempotentStatusEnum.SUCCESS){
+                    return;
                 }
             }
+            //插入参数记录表
+            this.insertBody(point,evaluation,this.encodeFailure(e),id);
+        }catch (Exception e1){
+            log.error("插入失败数据异常",e1);
         }
     }
 
-    private void insertBody(ProceedingJoinPoint point, byte[] bytes,Long id) {
+    /**
+     * DB_CLAIM模式抢占记录
+     *
+     * @param evaluation 注解值
+     * @return 获得执行权时为进行中的记录，已有成功记录时返回该记录
+     */
+    private IdempotentContext claimRecord(IdempotentKeyMetadata.Evaluation evaluation) {
+        IdempotentContext record = this.buildIde(evaluation,IdempotentStatusEnum.ING);
+        long start = System.nanoTime();
+        Long id = idempotentService.claim(record);
+        idempotentMetrics.record(IdempotentMetrics.Phase.LOCK_WAIT, evaluation.appCode(), System.nanoTime() - start);
+        if(id == null){
+            IdempotentContext existing = idempotentService.queryByReqId(record.getRequestId(), record.getAppCode());
+            AssertEx.isTrue(existing != null && existing.getId() != null,BaseException.definedException(1098,"幂等主键未返回"));
+            if(existing.getStatus() == IdempotentStatusEnum.SUCCESS){
+                return existing;
+            }
+            //失败的记录或执行者超过持锁时间仍未完成的记录可以重新抢占
+            if(!idempotentService.reclaim(existing.getId(), System.currentTimeMillis() - evaluation.getIdempoentKey().keeps())){
+                idempotentMetrics.count(IdempotentMetrics.Event.IN_PROCESS, evaluation.appCode());
+                throw REQUEST_IS_PROCESS.get();
+            }
+            id = existing.getId();
+        }
+        record.setId(id);
+        return record;
+    }
+
+    private void recordClaimSuccess(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, String key, IdempotentSingleFlight.Flight flight, IdempotentContext record, Object proceed) throws IOException {
+        byte[] bytes = this.encode(record.getAppCode(),proceed);
+        record.setStatus(IdempotentStatusEnum.SUCCESS);
+        long start = System.nanoTime();
+        //先写结果再更新状态 状态为成功时结果一定可以回放
+        this.insertBody(point,evaluation,bytes,record.getId());
+        idempotentService.updateInfo(record);
+        idempotentMetrics.record(IdempotentMetrics.Phase.PERSIST, record.getAppCode(), System.nanoTime() - start);
+        byte[] stored = this.seal(evaluation,bytes);
+        IdempotentNearCache nearCache = this.nearCache(key);
+        if(nearCache != null){
+            nearCache.putWritten(key,stored,this.resultTtl(evaluation));
+        }
+        this.land(flight,stored);
+    }
+
+    /**
+     * 注解指定的结果保存时间 未指定时使用全局配置
+     */
+    private Duration resultTtl(IdempotentKeyMetadata.Evaluation evaluation) {
+        long resultTtl = evaluation.getIdempoentKey().resultTtl();
+        return resultTtl > 0 ? Duration.ofMillis(resultTtl) : idempotentProperties.getResultTtl();
+    }
+
+    /**
+     * 先写失败记录再更新状态 都在持有执行权时同步完成
+     * 状态变为失败后重试请求即可重新抢占，之后不会再有本次的失败记录写入，最新的参数记录始终属于最后一次执行
+     */
+    private void recordClaimFailure(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, IdempotentContext record, Throwable e) {
         try {
-            idempotentService.insertBody(IdempotentBodyContext.builder()
-                    .responseBody(new String(bytes,CharEncoding.ISO_8859_1))
-                    .requestParam(JsonUtil.toJson(point.getArgs()))
-                    .idempotentId(id)
-                    .build());
-        } catch (IOException ioException) {
-            log.error("序列化失败无法插入",ioException);
-        }
-    }
-
-    private Long insertIde(ProceedingJoinPoint point, IdempoentKey idempoentKey, ExpressionParser parser, EvaluationContext context,IdempotentStatusEnum statusEnum) {
-        return idempotentService.insert(IdempotentContext.builder()
-                .appCode(getElValue(point,idempoentKey.appCode(),parser,context))
-                .businessDesc(getElValue(point,idempoentKey.businessDesc(),parser,context))
-                .businessNo(getElValue(point,idempoentKey.businessNo(),parser,context))
-                .businessType(getElValue(point,idempoentKey.businessType(),parser,context))
-                .requestDesc(getElValue(point,idempoentKey.requestDesc(),parser,context))
-                .requestId(getElValue(point,idempoentKey.requestId(),parser,context))
-                .status(statusEnum)
-                .build());
+            this.insertBody(point,evaluation,this.encodeFailure(e),record.getId());
+        }catch (Exception e1){
+            log.error("插入失败数据异常",e1);
+        }
+        try {
+            record.setStatus(IdempotentStatusEnum.FAIL);
+            idempotentService.updateInfo(record);
+        }catch (Exception e1){
+            log.error("更新失败状态异常",e1);
+        }
     }
 
+    /**
+     * 默认只记录错误码、信息和异常类型 关闭compact时序列化完整的异常
+     */
+    private byte[] encodeFailure(Throwable e) throws IOException {
+        IdempotentProperties.Failure failure = idempotentProperties.getFailure();
+        if(!failure.isCompact()){
+            return idempotentResultCodec.encode(e);
+        }
+        boolean withStackTrace = ThreadLocalRandom.current().nextDouble() < failure.getStackTraceSampleRate();
+        return idempotentResultCodec.encode(IdempotentFailure.of(e,failure.getMaxMessageLength(),withStackTrace));
+    }
 
-    private String getElValue(ProceedingJoinPoint point, String value, ExpressionParser parser, EvaluationContext context) {
-        if (!value.startsWith(EL_START_CHAR)) {
-            return value;
+    /**
+     * 回放redis中的成功结果
+     */
+    private Object replayClaim(IdempotentKeyMetadata.Evaluation evaluation, String key, IdempotentClaim claim, IdempotentSingleFlight.Flight flight) throws IOException {
+        idempotentMetrics.count(IdempotentMetrics.Event.REPLAYED, evaluation.appCode());
+        byte[] bytes = claim.getResult();
+        Object result = this.decodeStored(evaluation,bytes);
+        IdempotentNearCache nearCache = this.nearCache(key);
+        if(nearCache != null){
+            nearCache.putLoaded(key,bytes,this.resultTtl(evaluation));
         }
-        Object[] args = point.getArgs();
-        if (args != null && args.length > 0) {
-            Expression expression = parser.parseExpression(value);
-            String s = expression.getValue(context, String.class);
-            return s;
+        this.land(flight,bytes);
+        return result;
+    }
+
+    private Object replayQuietly(IdempotentKeyMetadata.Evaluation evaluation, String key, IdempotentContext idempotentContext, IdempotentSingleFlight.Flight flight) {
+        try {
+            return this.replay(evaluation,key,idempotentContext,flight);
+        } catch (IOException e) {
+            throw rethrow(e);
         }
-        return "";
+    }
+
+    private Object decodeStoredQuietly(IdempotentKeyMetadata.Evaluation evaluation, byte[] stored) {
+        try {
+            return stored == null ? null : this.decodeStored(evaluation,stored);
+        } catch (IOException e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * 解码缓存中的结果 记录指纹时先校验本次请求的参数与首次请求一致
+     */
+    private Object decodeStored(IdempotentKeyMetadata.Evaluation evaluation, byte[] stored) throws IOException {
+        byte[] fingerprint = evaluation.fingerprint();
+        if(fingerprint == null){
+            return this.decode(evaluation.appCode(),stored,0,stored.length);
+        }
+        if(!RequestFingerprint.matches(stored,fingerprint)){
+            idempotentMetrics.count(IdempotentMetrics.Event.MISMATCHED, evaluation.appCode());
+            throw REQUEST_PARAM_MISMATCH.get();
+        }
+        return this.decode(evaluation.appCode(),stored,RequestFingerprint.LENGTH,stored.length - RequestFingerprint.LENGTH);
+    }
+
+    private byte[] seal(IdempotentKeyMetadata.Evaluation evaluation, byte[] bytes) {
+        byte[] fingerprint = evaluation.fingerprint();
+        return fingerprint == null ? bytes : RequestFingerprint.seal(fingerprint,bytes);
+    }
+
+    private Object decode(String appCode, byte[] bytes, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return idempotentResultCodec.decode(bytes,offset,length);
+        } finally {
+            idempotentMetrics.record(IdempotentMetrics.Phase.DECODE, appCode, System.nanoTime() - start);
+        }
+    }
+
+    private byte[] encode(String appCode, Object value) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return idempotentResultCodec.encode(value);
+        } finally {
+            idempotentMetrics.record(IdempotentMetrics.Phase.ENCODE, appCode, System.nanoTime() - start);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static CompletionException rethrow(Throwable e) {
+        return e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+    }
+
+    /**
+     * 从参数表回放成功的结果
+     *
+     * @param key               requestId:appCode
+     * @param idempotentContext 成功状态的幂等记录
+     * @param flight            合并请求的执行者 未开启时为空
+     * @return 反序列化后的结果
+     * @throws IOException 反序列化失败
+     */
+    private Object replay(IdempotentKeyMetadata.Evaluation evaluation, String key, IdempotentContext idempotentContext, IdempotentSingleFlight.Flight flight) throws IOException {
+        idempotentMetrics.count(IdempotentMetrics.Event.REPLAYED, idempotentContext.getAppCode());
+        IdempotentBodyContext contexts = idempotentService.getLatestRecordByIdeKey(idempotentContext.getId());
+        if(contexts == null){
+            log.warn("查询返回结果为空,requestId [{}],appCode [{}]",idempotentContext.getRequestId(),idempotentContext.getAppCode());
+            this.land(flight,null);
+            return null;
+        }
+        //取最新的一条
+        byte[] responseBody = contexts.getResponseBody();
+        if(responseBody == null || responseBody.length == 0){
+            log.warn("查询返回结果为空,requestId [{}],appCode [{}],idempotentId [{}]",idempotentContext.getRequestId(),idempotentContext.getAppCode(), contexts.getIdempotentId());
+            this.land(flight,null);
+            return null;
+        }
+        byte[] fingerprint = evaluation.fingerprint();
+        if(fingerprint != null && RequestFingerprint.conflicts(contexts.getRequestParam(),fingerprint)){
+            idempotentMetrics.count(IdempotentMetrics.Event.MISMATCHED, evaluation.appCode());
+            throw REQUEST_PARAM_MISMATCH.get();
+        }
+        Object result = this.decode(evaluation.appCode(),responseBody,0,responseBody.length);
+        byte[] stored = this.seal(evaluation,responseBody);
+        IdempotentNearCache nearCache = this.nearCache(key);
+        if(nearCache != null){
+            nearCache.putLoaded(key,stored,this.resultTtl(evaluation));
+        }
+        this.land(flight,stored);
+        return result;
+    }
+
+    /**
+     * 等待同一jvm内第一个请求的结果
+     */
+    private Object follow(IdempotentSingleFlight.Flight flight, IdempotentKeyMetadata.Evaluation evaluation) throws Throwable {
+        String appCode = evaluation.appCode();
+        byte[] bytes;
+        try {
+            bytes = flight.getFuture().get(evaluation.getIdempoentKey().timeout(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            idempotentMetrics.count(IdempotentMetrics.Event.REPEATED, appCode);
+            throw REQUEST_IS_REPEAT.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+        return bytes == null ? null : this.decodeStored(evaluation,bytes);
+    }
+
+    /**
+     * 查询幂等记录 布隆过滤器判断一定没有出现过时直接返回空
+     */
+    private IdempotentContext queryByReqId(String requestId, String appCode) {
+        IdempotentBloomFilter.Verdict verdict = idempotentBloomFilter == null
+                ? IdempotentBloomFilter.Verdict.UNKNOWN : idempotentBloomFilter.check(appCode, requestId);
+        if(verdict == IdempotentBloomFilter.Verdict.ABSENT){
+            return null;
+        }
+        long start = System.nanoTime();
+        IdempotentContext idempotentContext = idempotentService.queryByReqId(requestId, appCode);
+        idempotentMetrics.record(IdempotentMetrics.Phase.QUERY, appCode, System.nanoTime() - start);
+        if(idempotentContext == null && verdict == IdempotentBloomFilter.Verdict.MIGHT_CONTAIN){
+            idempotentBloomFilter.falsePositive();
+        }
+        return idempotentContext;
+    }
+
+    private void land(IdempotentSingleFlight.Flight flight, byte[] bytes) {
+        if(flight != null){
+            //flight只会来自其中一个 全局开启时热点key也使用全局的
+            IdempotentSingleFlight singleFlight = idempotentSingleFlight != null ? idempotentSingleFlight : idempotentHotKeys.getSingleFlight();
+            singleFlight.land(flight,bytes);
+        }
+    }
+
+    /**
+     * 全局开启的近端缓存 未开启时热点key使用短过期时间的本地缓存
+     */
+    private IdempotentNearCache nearCache(String key) {
+        if(idempotentNearCache != null){
+            return idempotentNearCache;
+        }
+        return idempotentHotKeys != null && idempotentHotKeys.isHot(key) ? idempotentHotKeys.getNearCache() : null;
+    }
+
+    /**
+     * 全局开启的请求合并 未开启时只合并热点key的请求
+     */
+    private IdempotentSingleFlight singleFlight(boolean hot) {
+        if(idempotentSingleFlight != null){
+            return idempotentSingleFlight;
+        }
+        return hot ? idempotentHotKeys.getSingleFlight() : null;
+    }
+
+    private void insertBody(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, byte[] bytes,Long id) {
+        idempotentService.insertBody(this.buildBody(point,evaluation,bytes,id));
+    }
+
+    private IdempotentBodyContext buildBody(ProceedingJoinPoint point, IdempotentKeyMetadata.Evaluation evaluation, byte[] bytes,Long id) {
+        //只记录指纹时不再把参数转为json
+        String requestParam = evaluation.captureFull() ? JsonUtil.toJson(point.getArgs()) : RequestFingerprint.toParam(evaluation.fingerprint());
+        return IdempotentBodyContext.builder()
+                .responseBody(bytes)
+                .requestParam(requestParam)
+                .idempotentId(id)
+                .build();
+    }
+
+    private Long insertIde(IdempotentKeyMetadata.Evaluation evaluation,IdempotentStatusEnum statusEnum) {
+        return idempotentService.insert(this.buildIde(evaluation,statusEnum));
+    }
+
+    private IdempotentContext buildIde(IdempotentKeyMetadata.Evaluation evaluation,IdempotentStatusEnum statusEnum) {
+        return IdempotentContext.builder()
+                .appCode(evaluation.appCode())
+                .businessDesc(evaluation.businessDesc())
+                .businessNo(evaluation.businessNo())
+                .businessType(evaluation.businessType())
+                .requestDesc(evaluation.requestDesc())
+                .requestId(evaluation.requestId())
+                .status(statusEnum)
+                .build();
     }
 
     public static void main(String[] args) {
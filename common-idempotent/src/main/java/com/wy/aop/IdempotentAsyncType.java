@@ -0,0 +1,85 @@
+package com.wy.aop;
+
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentAsyncType
+ * @Description 异步返回值类型，切面对这类方法记录的是完成后的值而不是返回的future本身
+ * @Date 2021/6/21 14:10
+ */
+public enum IdempotentAsyncType {
+
+    /**
+     * CompletableFuture / CompletionStage
+     */
+    FUTURE {
+        @Override
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Object> toFuture(Object value) {
+            return ((CompletionStage<Object>) value).toCompletableFuture();
+        }
+
+        @Override
+        Object fromFuture(Supplier<CompletableFuture<Object>> future) {
+            return future.get();
+        }
+    },
+
+    /**
+     * reactor Mono 订阅时才开始抢占和执行
+     */
+    MONO {
+        @Override
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Object> toFuture(Object value) {
+            return ((Mono<Object>) value).toFuture();
+        }
+
+        @Override
+        Object fromFuture(Supplier<CompletableFuture<Object>> future) {
+            return Mono.defer(() -> Mono.fromFuture(future.get()));
+        }
+    },
+    ;
+
+    /**
+     * 方法返回值转为future 返回空时视为结果为空
+     *
+     * @param value 方法返回值
+     * @return future
+     */
+    CompletableFuture<Object> adapt(Object value) {
+        return value == null ? CompletableFuture.completedFuture(null) : this.toFuture(value);
+    }
+
+    abstract CompletableFuture<Object> toFuture(Object value);
+
+    /**
+     * future转为方法声明的返回值类型
+     *
+     * @param future 切面处理的future
+     * @return 方法声明的返回值
+     */
+    abstract Object fromFuture(Supplier<CompletableFuture<Object>> future);
+
+    /**
+     * 按方法返回值类型判断
+     *
+     * @param returnType 方法返回值类型
+     * @return 同步方法返回空
+     */
+    public static IdempotentAsyncType of(Class<?> returnType) {
+        if (CompletionStage.class.isAssignableFrom(returnType) && returnType.isAssignableFrom(CompletableFuture.class)) {
+            return FUTURE;
+        }
+        if (Mono.class == returnType) {
+            return MONO;
+        }
+        return null;
+    }
+}
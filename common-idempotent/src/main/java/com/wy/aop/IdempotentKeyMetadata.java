@@ -0,0 +1,289 @@
+package com.wy.aop;
+
+import org.springframework.core.convert.TypeDescriptor;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.PropertyAccessor;
+import org.springframework.expression.TypeConverter;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.ReflectivePropertyAccessor;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.expression.spel.support.StandardTypeConverter;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentKeyMetadata
+ * @Description 单个 {@link IdempoentKey} 方法的解析计划，方法首次调用时构建，之后每次调用只做求值
+ * @Date 2021/6/2 10:15
+ */
+public class IdempotentKeyMetadata {
+
+    /**
+     * spring el表达式开始字符
+     */
+    private static final String EL_START_CHAR = "#";
+
+    /**
+     * 共享的解析器 MIXED模式下表达式多次执行后会被编译为字节码
+     */
+    private static final ExpressionParser PARSER = new SpelExpressionParser(
+            new SpelParserConfiguration(SpelCompilerMode.MIXED, IdempotentKeyMetadata.class.getClassLoader()));
+
+    /**
+     * 共享的属性访问器 ReflectivePropertyAccessor内部缓存了getter，每次new上下文都会丢失这份缓存
+     */
+    private static final List<PropertyAccessor> PROPERTY_ACCESSORS =
+            Collections.singletonList(new ReflectivePropertyAccessor());
+
+    /**
+     * 与 {@link StandardEvaluationContext} 默认的类型转换一致 使用共享的DefaultConversionService
+     */
+    private static final TypeConverter TYPE_CONVERTER = new StandardTypeConverter();
+
+    private static final TypeDescriptor STRING_TYPE = TypeDescriptor.valueOf(String.class);
+
+    private final Method method;
+
+    private final IdempoentKey idempoentKey;
+
+    private final String[] parameterNames;
+
+    private final ValueResolver requestId;
+
+    private final ValueResolver appCode;
+
+    private final ValueResolver requestDesc;
+
+    private final ValueResolver businessNo;
+
+    private final ValueResolver businessType;
+
+    private final ValueResolver businessDesc;
+
+    private final IdempotentAsyncType asyncType;
+
+    public IdempotentKeyMetadata(Method method, IdempoentKey idempoentKey, String[] parameterNames) {
+        this.method = method;
+        this.idempoentKey = idempoentKey;
+        this.parameterNames = parameterNames == null ? new String[0] : parameterNames;
+        this.requestId = this.compile(idempoentKey.requestId());
+        this.appCode = this.compile(idempoentKey.appCode());
+        this.requestDesc = this.compile(idempoentKey.requestDesc());
+        this.businessNo = this.compile(idempoentKey.businessNo());
+        this.businessType = this.compile(idempoentKey.businessType());
+        this.businessDesc = this.compile(idempoentKey.businessDesc());
+        this.asyncType = IdempotentAsyncType.of(method.getReturnType());
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public IdempoentKey getIdempoentKey() {
+        return idempoentKey;
+    }
+
+    /**
+     * @return 异步返回值类型 同步方法为空
+     */
+    public IdempotentAsyncType getAsyncType() {
+        return asyncType;
+    }
+
+    /**
+     * 开始一次调用的求值
+     *
+     * @param args 方法参数
+     * @return {@link Evaluation}
+     */
+    public Evaluation evaluate(Object[] args) {
+        return new Evaluation(args);
+    }
+
+    /**
+     * 预编译注解上的值
+     * 非#开头的直接作为常量，#参数名 直接按下标取参数，其余的编译为spring el表达式
+     *
+     * @param value 注解值
+     * @return {@link ValueResolver}
+     */
+    private ValueResolver compile(String value) {
+        if (!value.startsWith(EL_START_CHAR)) {
+            return new LiteralResolver(value);
+        }
+        String variableName = value.substring(EL_START_CHAR.length());
+        for (int i = 0; i < parameterNames.length; i++) {
+            if (parameterNames[i].equals(variableName)) {
+                return new ParameterResolver(i);
+            }
+        }
+        return new ExpressionResolver(PARSER.parseExpression(value));
+    }
+
+    /**
+     * 单次调用的求值状态，上下文懒加载，同一次调用内的结果只计算一次
+     */
+    public class Evaluation {
+
+        private final Object[] args;
+
+        private EvaluationContext context;
+
+        private String requestIdValue;
+
+        private String appCodeValue;
+
+        private Boolean captureFull;
+
+        private byte[] fingerprint;
+
+        private Evaluation(Object[] args) {
+            this.args = args;
+        }
+
+        /**
+         * @return 本次调用是否完整记录参数json
+         */
+        public boolean captureFull() {
+            if (captureFull == null) {
+                RequestCapture capture = idempoentKey.capture();
+                captureFull = capture == RequestCapture.FULL
+                        || (capture == RequestCapture.SAMPLED && ThreadLocalRandom.current().nextDouble() < idempoentKey.sampleRate());
+            }
+            return captureFull;
+        }
+
+        /**
+         * 抽样记录的调用同样计算指纹 保证缓存中的结果格式一致
+         *
+         * @return 参数指纹 {@link RequestCapture#FULL} 时为空
+         */
+        public byte[] fingerprint() {
+            if (fingerprint == null && idempoentKey.capture() != RequestCapture.FULL) {
+                fingerprint = RequestFingerprint.of(args);
+            }
+            return fingerprint;
+        }
+
+        public IdempoentKey getIdempoentKey() {
+            return idempoentKey;
+        }
+
+        public String requestId() {
+            if (requestIdValue == null) {
+                requestIdValue = requestId.resolve(this);
+            }
+            return requestIdValue;
+        }
+
+        public String appCode() {
+            if (appCodeValue == null) {
+                appCodeValue = appCode.resolve(this);
+            }
+            return appCodeValue;
+        }
+
+        public String requestDesc() {
+            return requestDesc.resolve(this);
+        }
+
+        public String businessNo() {
+            return businessNo.resolve(this);
+        }
+
+        public String businessType() {
+            return businessType.resolve(this);
+        }
+
+        public String businessDesc() {
+            return businessDesc.resolve(this);
+        }
+
+        private EvaluationContext context() {
+            if (context == null) {
+                StandardEvaluationContext standardContext = new StandardEvaluationContext();
+                standardContext.setPropertyAccessors(PROPERTY_ACCESSORS);
+                for (int i = 0; i < parameterNames.length && i < args.length; i++) {
+                    standardContext.setVariable(parameterNames[i], args[i]);
+                }
+                context = standardContext;
+            }
+            return context;
+        }
+    }
+
+    /**
+     * 注解值解析器
+     */
+    private interface ValueResolver {
+
+        /**
+         * 解析值
+         *
+         * @param evaluation 本次调用
+         * @return 值
+         */
+        String resolve(Evaluation evaluation);
+    }
+
+    private static class LiteralResolver implements ValueResolver {
+
+        private final String value;
+
+        private LiteralResolver(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String resolve(Evaluation evaluation) {
+            return value;
+        }
+    }
+
+    private static class ParameterResolver implements ValueResolver {
+
+        private final int index;
+
+        private ParameterResolver(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String resolve(Evaluation evaluation) {
+            if (evaluation.args == null || evaluation.args.length == 0) {
+                return "";
+            }
+            Object arg = evaluation.args[index];
+            if (arg == null || arg instanceof String) {
+                return (String) arg;
+            }
+            //与 getValue(context, String.class) 的转换一致 数组和集合按逗号拼接，没有转换器的类型抛出SpelEvaluationException
+            return (String) TYPE_CONVERTER.convertValue(arg, TypeDescriptor.forObject(arg), STRING_TYPE);
+        }
+    }
+
+    private static class ExpressionResolver implements ValueResolver {
+
+        private final Expression expression;
+
+        private ExpressionResolver(Expression expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        public String resolve(Evaluation evaluation) {
+            if (evaluation.args == null || evaluation.args.length == 0) {
+                return "";
+            }
+            return expression.getValue(evaluation.context(), String.class);
+        }
+    }
+}
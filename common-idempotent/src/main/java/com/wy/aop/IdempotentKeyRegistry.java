@@ -0,0 +1,34 @@
+package com.wy.aop;
+
+import org.aspectj.lang.reflect.MethodSignature;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentKeyRegistry
+ * @Description 按方法缓存 {@link IdempotentKeyMetadata}，每个方法只解析一次注解和el表达式
+ * @Date 2021/6/2 10:40
+ */
+public class IdempotentKeyRegistry {
+
+    private final ConcurrentMap<Method, IdempotentKeyMetadata> metadataCache = new ConcurrentHashMap<>(64);
+
+    /**
+     * 获取方法对应的解析计划
+     *
+     * @param methodSignature 方法签名
+     * @return {@link IdempotentKeyMetadata}
+     */
+    public IdempotentKeyMetadata get(MethodSignature methodSignature) {
+        Method method = methodSignature.getMethod();
+        IdempotentKeyMetadata metadata = metadataCache.get(method);
+        if (metadata != null) {
+            return metadata;
+        }
+        return metadataCache.computeIfAbsent(method, m -> new IdempotentKeyMetadata(m,
+                m.getAnnotation(IdempoentKey.class), methodSignature.getParameterNames()));
+    }
+}
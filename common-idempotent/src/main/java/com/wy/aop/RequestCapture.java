@@ -0,0 +1,26 @@
+package com.wy.aop;
+
+/**
+ * @author wangyong
+ * @Classname RequestCapture
+ * @Description 请求参数的记录方式
+ * @Date 2021/6/23 11:20
+ */
+public enum RequestCapture {
+
+    /**
+     * 参数完整转为json落库
+     */
+    FULL,
+
+    /**
+     * 按 {@link IdempoentKey#sampleRate()} 抽样记录完整json，其余只记录指纹
+     */
+    SAMPLED,
+
+    /**
+     * 只记录128位指纹 相同requestId参数不同的重复请求会被拒绝
+     */
+    HASH,
+    ;
+}
@@ -0,0 +1,111 @@
+package com.wy.aop;
+
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * @author wangyong
+ * @Classname RequestFingerprint
+ * @Description 请求参数的128位指纹
+ * 参数按属性名、map的key排序后流式写入murmur3_128，不生成中间的json字符串
+ * @Date 2021/6/23 11:35
+ */
+public final class RequestFingerprint {
+
+    /**
+     * 指纹长度 单位字节
+     */
+    public static final int LENGTH = 16;
+
+    /**
+     * 参数表中指纹的前缀 用来区分完整的json
+     */
+    private static final String PARAM_PREFIX = "murmur3:";
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private static final ObjectMapper CANONICAL_MAPPER = new ObjectMapper()
+            .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+            .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+
+    private RequestFingerprint() {
+    }
+
+    /**
+     * 计算参数指纹
+     *
+     * @param args 方法参数
+     * @return 16字节指纹
+     */
+    public static byte[] of(Object[] args) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        try {
+            CANONICAL_MAPPER.writeValue(Funnels.asOutputStream(hasher), args);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return hasher.hash().asBytes();
+    }
+
+    /**
+     * @param fingerprint 指纹
+     * @return 参数表中记录的值
+     */
+    public static String toParam(byte[] fingerprint) {
+        return PARAM_PREFIX + HEX.encode(fingerprint);
+    }
+
+    /**
+     * 参数表中的值是否为与当前指纹不同的指纹 记录的是完整json时不做判断
+     *
+     * @param param       参数表中记录的值
+     * @param fingerprint 当前请求的指纹
+     * @return 不一致返回true
+     */
+    public static boolean conflicts(String param, byte[] fingerprint) {
+        return param != null && param.startsWith(PARAM_PREFIX) && !param.equals(toParam(fingerprint));
+    }
+
+    /**
+     * redis等缓存中的值以指纹开头
+     *
+     * @param fingerprint 指纹
+     * @param bytes       编码后的结果
+     * @return 指纹 + 结果
+     */
+    public static byte[] seal(byte[] fingerprint, byte[] bytes) {
+        byte[] sealed = new byte[LENGTH + bytes.length];
+        System.arraycopy(fingerprint, 0, sealed, 0, LENGTH);
+        System.arraycopy(bytes, 0, sealed, LENGTH, bytes.length);
+        return sealed;
+    }
+
+    /**
+     * @param sealed      {@link #seal} 的结果
+     * @param fingerprint 当前请求的指纹
+     * @return 指纹一致返回true
+     */
+    public static boolean matches(byte[] sealed, byte[] fingerprint) {
+        if (sealed.length < LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < LENGTH; i++) {
+            if (sealed[i] != fingerprint[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
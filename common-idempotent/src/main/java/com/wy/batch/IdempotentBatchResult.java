@@ -0,0 +1,61 @@
+package com.wy.batch;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentBatchResult
+ * @Description 批量幂等中单个请求的处理结果
+ * @Date 2021/6/24 15:10
+ */
+public class IdempotentBatchResult<R> {
+
+    public enum Status {
+
+        /**
+         * 本次执行
+         */
+        EXECUTED,
+
+        /**
+         * 回放了已有的成功结果
+         */
+        REPLAYED,
+
+        /**
+         * 其他请求持有锁 对应 {@code REQUEST_IS_REPEAT}
+         */
+        REPEAT,
+
+        /**
+         * 记录处理中 对应 {@code REQUEST_IS_PROCESS}
+         */
+        PROCESSING,
+        ;
+    }
+
+    private final String requestId;
+
+    private final Status status;
+
+    private final R result;
+
+    public IdempotentBatchResult(String requestId, Status status, R result) {
+        this.requestId = requestId;
+        this.status = status;
+        this.result = result;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return 执行或回放的结果 {@link Status#REPEAT}、{@link Status#PROCESSING} 时为空
+     */
+    public R getResult() {
+        return result;
+    }
+}
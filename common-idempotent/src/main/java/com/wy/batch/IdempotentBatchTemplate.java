@@ -0,0 +1,419 @@
+package com.wy.batch;
+
+import com.wy.IdempotentService;
+import com.wy.aop.IdempoentKey;
+import com.wy.bloom.IdempotentBloomFilter;
+import com.wy.cache.IdempotentNearCache;
+import com.wy.codec.IdempotentResultCodec;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.AbstractIdRequest;
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.context.IdempotentFailure;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.exception.AssertEx;
+import com.wy.exception.BaseException;
+import com.wy.guard.IdempotentClaim;
+import com.wy.guard.IdempotentGuard;
+import com.wy.json.JsonUtil;
+import com.wy.metrics.IdempotentMetrics;
+import com.wy.persist.IdempotentFailureWriter;
+import com.wy.persist.IdempotentWriteBehindQueue;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.core.annotation.AnnotationUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentBatchTemplate
+ * @Description 批量幂等
+ * 一批请求只做一次MGET、一次并发抢占、一次IN查询，只执行没有处理过的请求，结果批量落库
+ * 批内重复的requestId只执行一次
+ * @Date 2021/6/24 15:30
+ */
+@Slf4j
+public class IdempotentBatchTemplate {
+
+    private final IdempotentGuard idempotentGuard;
+
+    private final IdempotentService idempotentService;
+
+    private final IdempotentResultCodec idempotentResultCodec;
+
+    private final IdempotentProperties idempotentProperties;
+
+    private final IdempotentMetrics idempotentMetrics;
+
+    private final IdempoentKey batchKey;
+
+    private IdempotentWriteBehindQueue idempotentWriteBehindQueue;
+
+    private IdempotentNearCache idempotentNearCache;
+
+    private IdempotentBloomFilter idempotentBloomFilter;
+
+    private IdempotentFailureWriter idempotentFailureWriter;
+
+    /**
+     * 不支持异步加锁的guard在该线程池中批量抢占
+     */
+    private Executor idempotentExecutor;
+
+    public IdempotentBatchTemplate(IdempotentGuard idempotentGuard, IdempotentService idempotentService,
+                                   IdempotentResultCodec idempotentResultCodec, IdempotentProperties idempotentProperties,
+                                   IdempotentMetrics idempotentMetrics) {
+        this.idempotentGuard = idempotentGuard;
+        this.idempotentService = idempotentService;
+        this.idempotentResultCodec = idempotentResultCodec;
+        this.idempotentProperties = idempotentProperties;
+        this.idempotentMetrics = idempotentMetrics;
+        //guard按注解取持锁和等锁时间 批量的取自配置
+        Map<String, Object> attributes = new HashMap<>(8);
+        attributes.put("requestId", "");
+        attributes.put("appCode", "");
+        attributes.put("keeps", idempotentProperties.getBatch().getKeeps());
+        attributes.put("timeout", idempotentProperties.getBatch().getTimeout());
+        this.batchKey = AnnotationUtils.synthesizeAnnotation(attributes, IdempoentKey.class, null);
+    }
+
+    public void setIdempotentWriteBehindQueue(IdempotentWriteBehindQueue idempotentWriteBehindQueue) {
+        this.idempotentWriteBehindQueue = idempotentWriteBehindQueue;
+    }
+
+    public void setIdempotentNearCache(IdempotentNearCache idempotentNearCache) {
+        this.idempotentNearCache = idempotentNearCache;
+    }
+
+    public void setIdempotentBloomFilter(IdempotentBloomFilter idempotentBloomFilter) {
+        this.idempotentBloomFilter = idempotentBloomFilter;
+    }
+
+    public void setIdempotentFailureWriter(IdempotentFailureWriter idempotentFailureWriter) {
+        this.idempotentFailureWriter = idempotentFailureWriter;
+    }
+
+    public void setIdempotentExecutor(Executor idempotentExecutor) {
+        this.idempotentExecutor = idempotentExecutor;
+    }
+
+    /**
+     * 批量执行
+     *
+     * @param appCode  appCode
+     * @param requests 请求 requestId不能为空
+     * @param action   处理没有执行过的请求，返回与入参顺序一致、数量相同的结果
+     * @return 与requests顺序一致的处理结果
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends AbstractIdRequest, R> List<IdempotentBatchResult<R>> execute(String appCode, List<T> requests, Function<List<T>, List<R>> action) {
+        AssertEx.isTrue(idempotentProperties.getMode() != IdempotentProperties.GuardMode.DB_CLAIM,
+                BaseException.definedException(1099, "批量幂等不支持DB_CLAIM模式"));
+        AssertEx.isTrue(StringUtils.isNotBlank(appCode), BaseException.definedException(1008, "appCode不能为空"));
+        //key -> 请求在入参中的位置
+        Map<String, List<Integer>> positions = new LinkedHashMap<>(requests.size() * 2);
+        for (int i = 0; i < requests.size(); i++) {
+            String requestId = requests.get(i).getRequestId();
+            AssertEx.isTrue(StringUtils.isNotBlank(requestId), BaseException.definedException(1008, "requestId不能为空"));
+            positions.computeIfAbsent(requestId + ":" + appCode, k -> new ArrayList<>(1)).add(i);
+        }
+        Object[] results = new Object[requests.size()];
+        IdempotentBatchResult.Status[] statuses = new IdempotentBatchResult.Status[requests.size()];
+        //1. 本地缓存和一次MGET
+        Map<String, byte[]> found = new HashMap<>(positions.size() * 2);
+        List<String> pending = new ArrayList<>(positions.size());
+        for (String key : positions.keySet()) {
+            byte[] cached = idempotentNearCache == null ? null : idempotentNearCache.get(key);
+            if (cached != null) {
+                found.put(key, cached);
+            } else {
+                pending.add(key);
+            }
+        }
+        if (!pending.isEmpty()) {
+            Map<String, byte[]> stored = idempotentGuard.getAll(pending, batchKey);
+            if (!stored.isEmpty()) {
+                found.putAll(stored);
+                pending.removeIf(stored::containsKey);
+            }
+        }
+        //2. 剩下的同时抢占
+        List<IdempotentClaim> claims = pending.isEmpty() ? Collections.emptyList() : idempotentGuard.claimAll(pending, batchKey, idempotentExecutor);
+        try {
+            Map<String, IdempotentClaim> acquired = new LinkedHashMap<>(claims.size() * 2);
+            for (IdempotentClaim claim : claims) {
+                if (claim.getStatus() == IdempotentClaim.Status.BUSY) {
+                    idempotentMetrics.count(IdempotentMetrics.Event.REPEATED, appCode);
+                    this.fill(positions.get(claim.getKey()), statuses, IdempotentBatchResult.Status.REPEAT);
+                } else if (claim.getStatus() == IdempotentClaim.Status.RESULT) {
+                    found.put(claim.getKey(), claim.getResult());
+                } else {
+                    acquired.put(claim.getKey(), claim);
+                }
+            }
+            //3. 一次IN查询
+            List<T> executing = new ArrayList<>(acquired.size());
+            List<IdempotentContext> executingContexts = new ArrayList<>(acquired.size());
+            if (!acquired.isEmpty()) {
+                List<String> requestIds = new ArrayList<>(acquired.size());
+                for (String key : acquired.keySet()) {
+                    requestIds.add(requests.get(positions.get(key).get(0)).getRequestId());
+                }
+                Map<String, IdempotentContext> contexts = new HashMap<>(acquired.size() * 2);
+                for (IdempotentContext context : idempotentService.queryByReqIds(requestIds, appCode)) {
+                    contexts.put(context.getRequestId(), context);
+                }
+                Map<Long, String> succeeded = new HashMap<>(contexts.size() * 2);
+                for (String key : acquired.keySet()) {
+                    T request = requests.get(positions.get(key).get(0));
+                    IdempotentContext context = contexts.get(request.getRequestId());
+                    if (context != null && context.getStatus() == IdempotentStatusEnum.SUCCESS) {
+                        succeeded.put(context.getId(), key);
+                    } else if (context != null && context.getStatus() == IdempotentStatusEnum.ING) {
+                        idempotentMetrics.count(IdempotentMetrics.Event.IN_PROCESS, appCode);
+                        this.fill(positions.get(key), statuses, IdempotentBatchResult.Status.PROCESSING);
+                    } else {
+                        executing.add(request);
+                        executingContexts.add(context);
+                    }
+                }
+                if (!succeeded.isEmpty()) {
+                    Map<Long, IdempotentBodyContext> bodies = idempotentService.getLatestRecordByIdeKeys(new ArrayList<>(succeeded.keySet()));
+                    for (Map.Entry<Long, String> entry : succeeded.entrySet()) {
+                        IdempotentBodyContext body = bodies.get(entry.getKey());
+                        byte[] bytes = body == null ? null : body.getResponseBody();
+                        if (bytes == null || bytes.length == 0) {
+                            log.warn("查询返回结果为空,appCode [{}],idempotentId [{}]", appCode, entry.getKey());
+                            this.fill(positions.get(entry.getValue()), statuses, IdempotentBatchResult.Status.REPLAYED);
+                            continue;
+                        }
+                        found.put(entry.getValue(), bytes);
+                        if (idempotentNearCache != null) {
+                            idempotentNearCache.putLoaded(entry.getValue(), bytes, idempotentProperties.getResultTtl());
+                        }
+                    }
+                }
+            }
+            //4. 只执行没有处理过的
+            if (!executing.isEmpty()) {
+                List<R> outputs = this.proceed(appCode, executing, executingContexts, action);
+                Map<IdempotentClaim, byte[]> written = new IdentityHashMap<>(executing.size() * 2);
+                List<byte[]> encoded = new ArrayList<>(executing.size());
+                for (int i = 0; i < executing.size(); i++) {
+                    String key = executing.get(i).getRequestId() + ":" + appCode;
+                    byte[] bytes = this.encode(outputs.get(i));
+                    encoded.add(bytes);
+                    written.put(acquired.get(key), bytes);
+                    List<Integer> indexes = positions.get(key);
+                    this.fill(indexes, statuses, IdempotentBatchResult.Status.EXECUTED);
+                    for (Integer index : indexes) {
+                        results[index] = outputs.get(i);
+                    }
+                }
+                idempotentGuard.completeAll(written, idempotentProperties.getResultTtl());
+                if (idempotentNearCache != null) {
+                    for (Map.Entry<IdempotentClaim, byte[]> entry : written.entrySet()) {
+                        idempotentNearCache.putWritten(entry.getKey().getKey(), entry.getValue(), idempotentProperties.getResultTtl());
+                    }
+                }
+                this.persist(appCode, executing, executingContexts, encoded, IdempotentStatusEnum.SUCCESS);
+            }
+            //5. 回放
+            for (Map.Entry<String, byte[]> entry : found.entrySet()) {
+                idempotentMetrics.count(IdempotentMetrics.Event.REPLAYED, appCode);
+                Object result = this.decode(entry.getValue());
+                List<Integer> indexes = positions.get(entry.getKey());
+                this.fill(indexes, statuses, IdempotentBatchResult.Status.REPLAYED);
+                for (Integer index : indexes) {
+                    results[index] = result;
+                }
+            }
+        } finally {
+            claims.forEach(idempotentGuard::releaseAsync);
+        }
+        List<IdempotentBatchResult<R>> list = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            list.add(new IdempotentBatchResult<>(requests.get(i).getRequestId(), statuses[i], (R) results[i]));
+        }
+        return list;
+    }
+
+    private <T extends AbstractIdRequest, R> List<R> proceed(String appCode, List<T> executing, List<IdempotentContext> contexts, Function<List<T>, List<R>> action) {
+        if (idempotentBloomFilter != null) {
+            for (int i = 0; i < executing.size(); i++) {
+                if (contexts.get(i) == null) {
+                    idempotentBloomFilter.put(appCode, executing.get(i).getRequestId());
+                }
+            }
+        }
+        long start = System.nanoTime();
+        List<R> outputs;
+        try {
+            outputs = action.apply(Collections.unmodifiableList(executing));
+            AssertEx.isTrue(outputs != null && outputs.size() == executing.size(),
+                    BaseException.definedException(1099, "批量幂等的返回结果数量与请求数量不一致"));
+        } catch (RuntimeException e) {
+            idempotentMetrics.count(IdempotentMetrics.Event.FAILED, appCode);
+            this.recordFailure(appCode, executing, contexts, e);
+            throw e;
+        } finally {
+            idempotentMetrics.record(IdempotentMetrics.Phase.PROCEED, appCode, System.nanoTime() - start);
+        }
+        idempotentMetrics.count(IdempotentMetrics.Event.EXECUTED, appCode);
+        return outputs;
+    }
+
+    /**
+     * 整批记录失败 异常不再向外抛出
+     * 幂等记录在持有执行权时同步写入，开启异步写入时只有失败的参数记录交给 {@link IdempotentFailureWriter}
+     */
+    private <T extends AbstractIdRequest> void recordFailure(String appCode, List<T> executing, List<IdempotentContext> contexts, RuntimeException e) {
+        if (idempotentFailureWriter == null || idempotentWriteBehindQueue != null) {
+            this.writeFailure(appCode, executing, contexts, e);
+            return;
+        }
+        List<IdempotentContext> records;
+        try {
+            records = this.saveRecords(appCode, executing, contexts, IdempotentStatusEnum.FAIL);
+        } catch (Exception e1) {
+            log.error("插入失败数据异常", e1);
+            return;
+        }
+        idempotentFailureWriter.submit(() -> {
+            try {
+                byte[] bytes = this.encodeFailure(e);
+                idempotentService.insertBodyBatch(this.buildBodies(appCode, executing, records, Collections.nCopies(executing.size(), bytes)));
+            } catch (Exception e1) {
+                log.error("插入失败数据异常", e1);
+            }
+        });
+    }
+
+    private <T extends AbstractIdRequest> void writeFailure(String appCode, List<T> executing, List<IdempotentContext> contexts, RuntimeException e) {
+        try {
+            byte[] bytes = this.encodeFailure(e);
+            this.persist(appCode, executing, contexts, Collections.nCopies(executing.size(), bytes), IdempotentStatusEnum.FAIL);
+        } catch (Exception e1) {
+            log.error("插入失败数据异常", e1);
+        }
+    }
+
+    private byte[] encodeFailure(RuntimeException e) {
+        IdempotentProperties.Failure failure = idempotentProperties.getFailure();
+        boolean withStackTrace = ThreadLocalRandom.current().nextDouble() < failure.getStackTraceSampleRate();
+        return this.encode(failure.isCompact() ? IdempotentFailure.of(e, failure.getMaxMessageLength(), withStackTrace) : e);
+    }
+
+    /**
+     * 新记录批量插入 已有的失败记录逐条更新 参数记录批量插入
+     */
+    private <T extends AbstractIdRequest> void persist(String appCode, List<T> executing, List<IdempotentContext> contexts,
+                                                       List<byte[]> encoded, IdempotentStatusEnum status) {
+        long start = System.nanoTime();
+        if (idempotentWriteBehindQueue != null) {
+            for (int i = 0; i < executing.size(); i++) {
+                IdempotentContext context = contexts.get(i);
+                if (context == null) {
+                    context = IdempotentContext.builder()
+                            .requestId(executing.get(i).getRequestId())
+                            .appCode(appCode)
+                            .build();
+                }
+                context.setStatus(status);
+                idempotentWriteBehindQueue.submit(context, this.buildBody(executing.get(i), encoded.get(i), null));
+            }
+        } else {
+            List<IdempotentContext> records = this.saveRecords(appCode, executing, contexts, status);
+            idempotentService.insertBodyBatch(this.buildBodies(appCode, executing, records, encoded));
+        }
+        idempotentMetrics.record(IdempotentMetrics.Phase.PERSIST, appCode, System.nanoTime() - start);
+    }
+
+    /**
+     * 新记录批量插入 已有的记录逐条更新状态
+     *
+     * @return 与executing顺序一致的幂等记录
+     */
+    private <T extends AbstractIdRequest> List<IdempotentContext> saveRecords(String appCode, List<T> executing, List<IdempotentContext> contexts,
+                                                                              IdempotentStatusEnum status) {
+        List<IdempotentContext> records = new ArrayList<>(executing.size());
+        List<IdempotentContext> inserts = new ArrayList<>(executing.size());
+        for (int i = 0; i < executing.size(); i++) {
+            IdempotentContext context = contexts.get(i);
+            if (context == null) {
+                context = IdempotentContext.builder()
+                        .requestId(executing.get(i).getRequestId())
+                        .appCode(appCode)
+                        .status(status)
+                        .build();
+                inserts.add(context);
+            } else {
+                context.setStatus(status);
+                idempotentService.updateInfo(context);
+            }
+            records.add(context);
+        }
+        if (!inserts.isEmpty()) {
+            List<Long> ids = idempotentService.insertBatch(inserts);
+            for (int i = 0; i < inserts.size(); i++) {
+                inserts.get(i).setId(ids.get(i));
+            }
+        }
+        return records;
+    }
+
+    private <T extends AbstractIdRequest> List<IdempotentBodyContext> buildBodies(String appCode, List<T> executing, List<IdempotentContext> records, List<byte[]> encoded) {
+        List<IdempotentBodyContext> bodies = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            IdempotentContext record = records.get(i);
+            if (record.getId() == null) {
+                log.error("幂等主键未返回，无法插入参数表,requestId [{}],appCode [{}]", record.getRequestId(), appCode);
+                continue;
+            }
+            bodies.add(this.buildBody(executing.get(i), encoded.get(i), record.getId()));
+        }
+        return bodies;
+    }
+
+    private IdempotentBodyContext buildBody(AbstractIdRequest request, byte[] bytes, Long id) {
+        return IdempotentBodyContext.builder()
+                .responseBody(bytes)
+                .requestParam(JsonUtil.toJson(request))
+                .idempotentId(id)
+                .build();
+    }
+
+    private void fill(List<Integer> indexes, IdempotentBatchResult.Status[] statuses, IdempotentBatchResult.Status status) {
+        for (Integer index : indexes) {
+            statuses[index] = status;
+        }
+    }
+
+    private byte[] encode(Object value) {
+        try {
+            return idempotentResultCodec.encode(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Object decode(byte[] bytes) {
+        try {
+            return idempotentResultCodec.decode(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
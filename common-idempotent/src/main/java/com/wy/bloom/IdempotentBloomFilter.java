@@ -0,0 +1,287 @@
+package com.wy.bloom;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBucket;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentBloomFilter
+ * @Description 按appCode划分的redis位图布隆过滤器，判断requestId一定没有出现过时跳过queryByReqId
+ * 过滤器按时间窗口轮换，查询时检查最近的windows个窗口，覆盖的时长为 窗口长度 * (windows - 1)
+ * 覆盖时长需要不小于幂等记录的保留时长，否则更早的requestId会被判断为不存在而重复执行，配置中在启动时校验
+ * 只有过滤器已经完整覆盖上述时长后才会跳过查询，判断可能存在的误判率随窗口数累加
+ * 同一appCode的位图在同一个hash tag下，redis集群中会集中在一个slot，shards大于1时按requestId加盐拆分到多个slot
+ * 窗口长度、窗口数或分片数变化后使用新的key，重新开始覆盖
+ * @Date 2021/6/17 15:10
+ */
+@Slf4j
+public class IdempotentBloomFilter {
+
+    /**
+     * 任意一个窗口的位全部为1则可能存在
+     */
+    private static final String CONTAINS_SCRIPT =
+            "for _, key in ipairs(KEYS) do " +
+            "local hit = 1; " +
+            "for i = 1, #ARGV do if redis.call('getbit', key, ARGV[i]) == 0 then hit = 0; break; end; end; " +
+            "if hit == 1 then return 1; end; " +
+            "end; " +
+            "return 0;";
+
+    /**
+     * ARGV[1] 过期时间 其余为位下标
+     */
+    private static final String ADD_SCRIPT =
+            "for i = 2, #ARGV do redis.call('setbit', KEYS[1], ARGV[i], 1); end; " +
+            "redis.call('pexpire', KEYS[1], ARGV[1]); " +
+            "return 1;";
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    /**
+     * 分片使用与位下标不同的种子 避免分片与位下标相关
+     */
+    private static final HashFunction SHARD_HASH_FUNCTION = Hashing.murmur3_32(0x5bd1e995);
+
+    private final RedissonClient redisson;
+
+    private final String keyPrefix;
+
+    private final long windowMillis;
+
+    /**
+     * 查询的窗口数 包含当前窗口
+     */
+    private final int windows;
+
+    /**
+     * 每个appCode的分片数
+     */
+    private final int shards;
+
+    /**
+     * 窗口长度和分片数 不同布局的key互不影响
+     */
+    private final String layout;
+
+    /**
+     * 每个分片的位数组大小
+     */
+    private final long bitSize;
+
+    /**
+     * 哈希次数
+     */
+    private final int hashIterations;
+
+    /**
+     * appCode 对应的过滤器启用时间
+     */
+    private final ConcurrentMap<String, Long> since = new ConcurrentHashMap<>();
+
+    /**
+     * 判断一定不存在从而跳过查询的次数
+     */
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * 判断可能存在的次数
+     */
+    private final LongAdder mightContain = new LongAdder();
+
+    /**
+     * 判断可能存在但查询结果为空的次数
+     */
+    private final LongAdder falsePositive = new LongAdder();
+
+    /**
+     * 覆盖时间不足 无法跳过的次数
+     */
+    private final LongAdder warmingUp = new LongAdder();
+
+    /**
+     * @param redisson           redisson
+     * @param keyPrefix          key前缀
+     * @param expectedInsertions 单个appCode单个窗口的预估条数
+     * @param falseProbability   单个窗口的误判率
+     * @param window             窗口长度
+     * @param windows            查询的窗口数 不小于2
+     * @param shards             每个appCode的分片数
+     */
+    public IdempotentBloomFilter(RedissonClient redisson, String keyPrefix, long expectedInsertions,
+                                 double falseProbability, Duration window, int windows, int shards) {
+        this.redisson = redisson;
+        this.keyPrefix = keyPrefix;
+        this.windowMillis = window.toMillis();
+        this.windows = Math.max(2, windows);
+        this.shards = Math.max(1, shards);
+        this.layout = windowMillis + ":" + this.shards;
+        long perShard = Math.max(1L, expectedInsertions / this.shards);
+        this.bitSize = Math.max(64L, (long) (-perShard * Math.log(falseProbability) / (Math.log(2) * Math.log(2))));
+        this.hashIterations = Math.max(1, (int) Math.round((double) bitSize / perShard * Math.log(2)));
+    }
+
+    /**
+     * 过滤器能够覆盖的时长 超过该时长的requestId会被判断为不存在
+     */
+    public Duration coverage() {
+        return Duration.ofMillis(windowMillis * (windows - 1));
+    }
+
+    /**
+     * 判断结果
+     */
+    public enum Verdict {
+
+        /**
+         * 一定没有出现过 可以跳过查询
+         */
+        ABSENT,
+
+        /**
+         * 可能出现过
+         */
+        MIGHT_CONTAIN,
+
+        /**
+         * 覆盖时间不足或查询失败 无法判断
+         */
+        UNKNOWN,
+        ;
+    }
+
+    /**
+     * 判断requestId是否出现过
+     *
+     * @param appCode   appCode
+     * @param requestId requestId
+     * @return {@link Verdict}
+     */
+    public Verdict check(String appCode, String requestId) {
+        long now = System.currentTimeMillis();
+        long window = now / windowMillis;
+        if (this.since(appCode) > (window - windows + 1) * windowMillis) {
+            warmingUp.increment();
+            return Verdict.UNKNOWN;
+        }
+        int shard = this.shard(requestId);
+        List<Object> keys = new ArrayList<>(windows);
+        for (int i = 0; i < windows; i++) {
+            keys.add(this.key(appCode, shard, window - i));
+        }
+        Long hit;
+        try {
+            hit = redisson.getScript(StringCodec.INSTANCE).eval(RScript.Mode.READ_ONLY, CONTAINS_SCRIPT,
+                    RScript.ReturnType.INTEGER, keys, this.positions(requestId, 0).toArray());
+        } catch (Exception e) {
+            log.warn("布隆过滤器查询失败 appCode [{}]", appCode, e);
+            return Verdict.UNKNOWN;
+        }
+        if (hit != null && hit == 0L) {
+            skipped.increment();
+            return Verdict.ABSENT;
+        }
+        mightContain.increment();
+        return Verdict.MIGHT_CONTAIN;
+    }
+
+    /**
+     * 记录requestId 在执行业务之前调用，失败时宁可多查询也不能漏记
+     *
+     * @param appCode   appCode
+     * @param requestId requestId
+     */
+    public void put(String appCode, String requestId) {
+        long window = System.currentTimeMillis() / windowMillis;
+        List<Object> args = this.positions(requestId, 1);
+        //窗口内任意时刻写入 都能保留到之后第windows-1个窗口结束
+        args.set(0, String.valueOf(windowMillis * windows));
+        redisson.getScript(StringCodec.INSTANCE).eval(RScript.Mode.READ_WRITE, ADD_SCRIPT,
+                RScript.ReturnType.INTEGER, Arrays.asList(this.key(appCode, this.shard(requestId), window)), args.toArray());
+    }
+
+    /**
+     * 可能存在但查询结果为空
+     */
+    public void falsePositive() {
+        falsePositive.increment();
+    }
+
+    private long since(String appCode) {
+        Long value = since.get(appCode);
+        if (value != null) {
+            return value;
+        }
+        //所有节点共用第一次写入的启用时间 写入后不再变化，布局变化后重新开始
+        RBucket<String> bucket = redisson.getBucket(keyPrefix + "{" + appCode + "}:since:" + layout + ":" + windows, StringCodec.INSTANCE);
+        bucket.trySet(String.valueOf(System.currentTimeMillis()));
+        long start = Long.parseLong(bucket.get());
+        since.put(appCode, start);
+        return start;
+    }
+
+    private String key(String appCode, int shard, long window) {
+        return keyPrefix + "{" + appCode + ":" + shard + "}:" + layout + ":" + window;
+    }
+
+    private int shard(String requestId) {
+        return shards == 1 ? 0 : Hashing.consistentHash(SHARD_HASH_FUNCTION.hashString(requestId, StandardCharsets.UTF_8), shards);
+    }
+
+    /**
+     * 双重哈希计算位下标
+     *
+     * @param requestId requestId
+     * @param reserved  列表头部预留的位置
+     * @return 位下标
+     */
+    private List<Object> positions(String requestId, int reserved) {
+        HashCode hashCode = HASH_FUNCTION.hashString(requestId, StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(hashCode.asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        long hash1 = buffer.getLong();
+        long hash2 = buffer.getLong();
+        List<Object> positions = new ArrayList<>(hashIterations + reserved);
+        for (int i = 0; i < reserved; i++) {
+            positions.add(null);
+        }
+        long combined = hash1;
+        for (int i = 0; i < hashIterations; i++) {
+            positions.add(String.valueOf((combined & Long.MAX_VALUE) % bitSize));
+            combined += hash2;
+        }
+        return positions;
+    }
+
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    public long getMightContain() {
+        return mightContain.sum();
+    }
+
+    public long getFalsePositive() {
+        return falsePositive.sum();
+    }
+
+    public long getWarmingUp() {
+        return warmingUp.sum();
+    }
+}
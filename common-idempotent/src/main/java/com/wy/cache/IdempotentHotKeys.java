@@ -0,0 +1,64 @@
+package com.wy.cache;
+
+import com.wy.guard.IdempotentSingleFlight;
+import com.wy.redis.hotkey.HotKey;
+import com.wy.redis.hotkey.HotKeyDetector;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentHotKeys
+ * @Description 热点幂等key的本地提升 第三方反复重试的回调等会把压力集中在redis的一个分片上
+ * 没有全局开启近端缓存或请求合并时，成为热点的key单独使用短过期时间的本地缓存和请求合并
+ * @Date 2021/7/2 14:10
+ */
+public class IdempotentHotKeys {
+
+    private final HotKeyDetector hotKeyDetector;
+
+    private final IdempotentNearCache nearCache;
+
+    private final IdempotentSingleFlight singleFlight = new IdempotentSingleFlight();
+
+    /**
+     * @param hotKeyDetector 与锁共用的热点探测
+     * @param maximumSize    本地缓存最大条数
+     * @param ttl            本地缓存过期时间
+     * @param resultTtl      redis结果过期时间
+     */
+    public IdempotentHotKeys(HotKeyDetector hotKeyDetector, long maximumSize, Duration ttl, Duration resultTtl) {
+        this.hotKeyDetector = hotKeyDetector;
+        this.nearCache = new IdempotentNearCache(maximumSize, ttl, resultTtl);
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @param key requestId:appCode
+     * @return 是否为热点
+     */
+    public boolean record(String key) {
+        return hotKeyDetector.record(HotKeyDetector.SCOPE_IDEMPOTENT, key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeyDetector.isHot(HotKeyDetector.SCOPE_IDEMPOTENT, key);
+    }
+
+    /**
+     * @return 当前的热点key 包含锁的
+     */
+    public List<HotKey> hotKeys() {
+        return hotKeyDetector.hotKeys();
+    }
+
+    public IdempotentNearCache getNearCache() {
+        return nearCache;
+    }
+
+    public IdempotentSingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+}
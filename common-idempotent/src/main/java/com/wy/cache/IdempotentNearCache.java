@@ -0,0 +1,113 @@
+package com.wy.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentNearCache
+ * @Description 已成功请求的本地近端缓存，在加锁前检查，命中后不再访问redis
+ * 缓存的是编码后的字节，每次命中各自解码，避免调用方之间共享可变对象
+ * @Date 2021/6/9 14:05
+ */
+public class IdempotentNearCache {
+
+    private final Cache<String, Entry> cache;
+
+    private final long ttlMillis;
+
+    /**
+     * @param maximumSize 最大条数
+     * @param ttl         本地过期时间，超过redis结果过期时间时取redis过期时间
+     * @param resultTtl   redis结果过期时间
+     */
+    public IdempotentNearCache(long maximumSize, Duration ttl, Duration resultTtl) {
+        this.ttlMillis = Math.min(ttl.toMillis(), resultTtl.toMillis());
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 获取缓存
+     *
+     * @param key requestId:appCode
+     * @return 编码后的结果 不存在或已过期返回null
+     */
+    public byte[] get(String key) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt <= System.currentTimeMillis()) {
+            cache.invalidate(key);
+            return null;
+        }
+        return entry.bytes;
+    }
+
+    /**
+     * 写入刚写进redis的结果 过期时间不会晚于redis中的结果
+     *
+     * @param key       requestId:appCode
+     * @param bytes     编码后的结果
+     * @param resultTtl 本次写入redis的过期时间
+     */
+    public void putWritten(String key, byte[] bytes, Duration resultTtl) {
+        this.put(key, bytes, resultTtl);
+    }
+
+    /**
+     * 写入从redis或库表中读到的结果 redis中剩余的过期时间未知，按注解的结果过期时间截断
+     * 注解的resultTtl短于本地过期时间时，本地不会比redis多保留一个完整的本地过期时间
+     *
+     * @param key       requestId:appCode
+     * @param bytes     编码后的结果
+     * @param resultTtl 注解指定或全局配置的结果过期时间
+     */
+    public void putLoaded(String key, byte[] bytes, Duration resultTtl) {
+        this.put(key, bytes, resultTtl);
+    }
+
+    private void put(String key, byte[] bytes, Duration resultTtl) {
+        cache.put(key, new Entry(bytes, System.currentTimeMillis() + Math.min(ttlMillis, resultTtl.toMillis())));
+    }
+
+    public void invalidate(String key) {
+        cache.invalidate(key);
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    private static class Entry {
+
+        private final byte[] bytes;
+
+        private final long expireAt;
+
+        private Entry(byte[] bytes, long expireAt) {
+            this.bytes = bytes;
+            this.expireAt = expireAt;
+        }
+    }
+}
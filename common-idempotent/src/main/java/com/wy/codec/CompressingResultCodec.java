@@ -0,0 +1,109 @@
+package com.wy.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author wangyong
+ * @Classname CompressingResultCodec
+ * @Description 压缩装饰器，编码结果超过阈值时deflate压缩
+ * 首字节为标记位 0 未压缩 1 已压缩，开启后与未开启时写入的数据不兼容，缺少或无法识别标记位时解码抛出 {@link IOException}
+ * @Date 2021/6/3 15:02
+ */
+public class CompressingResultCodec implements IdempotentResultCodec {
+
+    private static final byte RAW = 0;
+
+    private static final byte DEFLATED = 1;
+
+    private static final ThreadLocal<Deflater> DEFLATER_POOL = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    private static final ThreadLocal<Inflater> INFLATER_POOL = ThreadLocal.withInitial(Inflater::new);
+
+    private final IdempotentResultCodec delegate;
+
+    private final int threshold;
+
+    /**
+     * @param delegate  实际的编解码
+     * @param threshold 压缩阈值 单位字节
+     */
+    public CompressingResultCodec(IdempotentResultCodec delegate, int threshold) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] encode(Object result) throws IOException {
+        byte[] bytes = delegate.encode(result);
+        if (bytes.length < threshold) {
+            return mark(RAW, bytes, bytes.length);
+        }
+        Deflater deflater = DEFLATER_POOL.get();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, bytes.length / 2)];
+            ByteArrayOutputStream os = new ByteArrayOutputStream(buffer.length + 1);
+            os.write(DEFLATED);
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                os.write(buffer, 0, length);
+            }
+            //压缩后反而变大的直接存原文
+            if (os.size() > bytes.length) {
+                return mark(RAW, bytes, bytes.length);
+            }
+            return os.toByteArray();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public Object decode(byte[] bytes) throws IOException {
+        return this.decode(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public Object decode(byte[] bytes, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("缺少压缩标记位");
+        }
+        byte flag = bytes[offset];
+        if (flag == RAW) {
+            return delegate.decode(bytes, offset + 1, length - 1);
+        }
+        if (flag != DEFLATED) {
+            throw new IOException("未知的压缩标记位 " + flag);
+        }
+        Inflater inflater = INFLATER_POOL.get();
+        try {
+            inflater.setInput(bytes, offset + 1, length - 1);
+            byte[] buffer = new byte[Math.max(64, length * 2)];
+            ByteArrayOutputStream os = new ByteArrayOutputStream(buffer.length);
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("压缩数据不完整");
+                }
+                os.write(buffer, 0, inflated);
+            }
+            return delegate.decode(os.toByteArray());
+        } catch (DataFormatException e) {
+            throw new IOException("解压失败", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private static byte[] mark(byte flag, byte[] bytes, int length) {
+        byte[] marked = new byte[length + 1];
+        marked[0] = flag;
+        System.arraycopy(bytes, 0, marked, 1, length);
+        return marked;
+    }
+}
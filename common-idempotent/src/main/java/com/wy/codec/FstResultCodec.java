@@ -0,0 +1,27 @@
+package com.wy.codec;
+
+import org.nustaq.serialization.FSTConfiguration;
+
+/**
+ * @author wangyong
+ * @Classname FstResultCodec
+ * @Description fst编解码，比hessian更快更紧凑，要求结果对象实现Serializable
+ * @Date 2021/6/3 14:40
+ */
+public class FstResultCodec implements IdempotentResultCodec {
+
+    /**
+     * FSTConfiguration 线程安全，创建成本高，全局共享一份
+     */
+    private static final FSTConfiguration CONFIGURATION = FSTConfiguration.createDefaultConfiguration();
+
+    @Override
+    public byte[] encode(Object result) {
+        return CONFIGURATION.asByteArray(result);
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        return CONFIGURATION.asObject(bytes);
+    }
+}
@@ -0,0 +1,64 @@
+package com.wy.codec;
+
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.Hessian2Output;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * @author wangyong
+ * @Classname HessianResultCodec
+ * @Description 默认的hessian编解码，输出流和缓冲区按线程复用
+ * @Date 2021/6/3 14:26
+ */
+public class HessianResultCodec implements IdempotentResultCodec {
+
+    /**
+     * 超过该大小的缓冲区用完即丢弃，避免个别大结果长期占用线程内存
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<PooledOutput> OUTPUT_POOL = ThreadLocal.withInitial(PooledOutput::new);
+
+    @Override
+    public byte[] encode(Object result) throws IOException {
+        PooledOutput pooled = OUTPUT_POOL.get();
+        try {
+            pooled.output.init(pooled.buffer);
+            pooled.output.writeObject(result);
+            pooled.output.flush();
+            return pooled.buffer.toByteArray();
+        } finally {
+            pooled.output.resetReferences();
+            if (pooled.buffer.size() > MAX_POOLED_BUFFER_SIZE) {
+                OUTPUT_POOL.remove();
+            } else {
+                pooled.buffer.reset();
+            }
+        }
+    }
+
+    @Override
+    public Object decode(byte[] bytes) throws IOException {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public Object decode(byte[] bytes, int offset, int length) throws IOException {
+        Hessian2Input input = new Hessian2Input(new ByteArrayInputStream(bytes, offset, length));
+        try {
+            return input.readObject();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static class PooledOutput {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+
+        private final Hessian2Output output = new Hessian2Output(buffer);
+    }
+}
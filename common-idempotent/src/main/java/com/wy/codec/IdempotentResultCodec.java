@@ -0,0 +1,47 @@
+package com.wy.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentResultCodec
+ * @Description 幂等结果编解码，redis和参数表中存储的都是编码后的字节
+ * @Date 2021/6/3 14:20
+ */
+public interface IdempotentResultCodec {
+
+    /**
+     * 编码
+     *
+     * @param result 方法返回值或异常
+     * @return 编码后的字节
+     * @throws IOException 序列化失败
+     */
+    byte[] encode(Object result) throws IOException;
+
+    /**
+     * 解码
+     *
+     * @param bytes 编码后的字节
+     * @return 原对象
+     * @throws IOException 反序列化失败
+     */
+    Object decode(byte[] bytes) throws IOException;
+
+    /**
+     * 从数组的一段解码，默认拷贝后解码，实现类可以覆写避免拷贝
+     *
+     * @param bytes  编码后的字节
+     * @param offset 起始位置
+     * @param length 长度
+     * @return 原对象
+     * @throws IOException 反序列化失败
+     */
+    default Object decode(byte[] bytes, int offset, int length) throws IOException {
+        if (offset == 0 && length == bytes.length) {
+            return decode(bytes);
+        }
+        return decode(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+}
@@ -0,0 +1,231 @@
+package com.wy.config;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.wy.IdempotentService;
+import com.wy.batch.IdempotentBatchTemplate;
+import com.wy.bloom.IdempotentBloomFilter;
+import com.wy.cache.IdempotentHotKeys;
+import com.wy.cache.IdempotentNearCache;
+import com.wy.codec.CompressingResultCodec;
+import com.wy.codec.FstResultCodec;
+import com.wy.codec.HessianResultCodec;
+import com.wy.codec.IdempotentResultCodec;
+import com.wy.embedded.MappedLogIdempotentService;
+import com.wy.exception.AssertEx;
+import com.wy.exception.BaseException;
+import com.wy.guard.IdempotentCompletionNotifier;
+import com.wy.guard.IdempotentGuard;
+import com.wy.guard.IdempotentSingleFlight;
+import com.wy.guard.InMemoryGuard;
+import com.wy.guard.LuaScriptGuard;
+import com.wy.guard.RedissonLockGuard;
+import com.wy.metrics.IdempotentMetrics;
+import com.wy.metrics.MicrometerIdempotentMetrics;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.persist.IdempotentFailureWriter;
+import com.wy.persist.IdempotentWriteBehindQueue;
+import com.wy.redis.hotkey.HotKeyDetector;
+import com.wy.redis.hotkey.HotKeyProperties;
+import com.wy.retention.IdempotentPurgeJob;
+import com.wy.retention.ReplicationLagProbe;
+import com.wy.store.HashBucketResultStore;
+import com.wy.store.IdempotentResultStore;
+import com.wy.store.StringResultStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentConfiguration
+ * @Description 幂等组件配置 业务方可以声明同类型的bean进行替换
+ * @Date 2021/6/3 15:36
+ */
+@Configuration
+@EnableConfigurationProperties(IdempotentProperties.class)
+public class IdempotentConfiguration {
+
+    /**
+     * 幂等线程池的bean名称
+     */
+    public static final String EXECUTOR = "idempotentExecutor";
+
+    @Bean
+    @ConditionalOnMissingBean
+    public IdempotentResultCodec idempotentResultCodec(IdempotentProperties properties) {
+        IdempotentResultCodec codec = properties.getCodec() == IdempotentProperties.CodecType.FST
+                ? new FstResultCodec() : new HessianResultCodec();
+        if (properties.getCompressThreshold() > 0) {
+            return new CompressingResultCodec(codec, properties.getCompressThreshold());
+        }
+        return codec;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public IdempotentGuard idempotentGuard(IdempotentProperties properties, ObjectProvider<RedissonClient> redisson,
+                                           ObjectProvider<RedisConnectionFactory> redisConnectionFactory,
+                                           ObjectProvider<IdempotentService> idempotentService) {
+        //lua脚本、库表抢占和进程内模式有各自的结果存储 开启分桶存储不会生效
+        AssertEx.isTrue(!properties.getHashBucket().isEnabled() || properties.getMode() == IdempotentProperties.GuardMode.REDIS_LOCK,
+                BaseException.definedException(1099, "hash-bucket只支持REDIS_LOCK模式，当前模式 " + properties.getMode()));
+        if (properties.getMode() == IdempotentProperties.GuardMode.IN_MEMORY) {
+            IdempotentProperties.InMemory inMemory = properties.getInMemory();
+            //内嵌日志存储同时作为结果存储 结果在重启后仍然可用
+            IdempotentService service = idempotentService.getIfUnique();
+            IdempotentResultStore resultStore = service instanceof IdempotentResultStore ? (IdempotentResultStore) service : null;
+            return new InMemoryGuard(inMemory.getInitialCapacity(), inMemory.getTickMillis(), inMemory.getWheelSize(),
+                    resultStore, properties.getResultTtl());
+        }
+        if (properties.getMode() == IdempotentProperties.GuardMode.DB_CLAIM) {
+            //不依赖redis 没有redisson时也可以启动
+            return IdempotentGuard.NONE;
+        }
+        RedissonClient redissonClient = redisson.getObject();
+        if (properties.getMode() == IdempotentProperties.GuardMode.LUA) {
+            //redisson锁在释放时已经通过pub/sub唤醒等待者，只有LUA模式需要额外的完成通知
+            IdempotentCompletionNotifier notifier = properties.getSingleFlight().isEnabled()
+                    ? new IdempotentCompletionNotifier(redissonClient, properties.getSingleFlight().getChannel()) : null;
+            return new LuaScriptGuard(redissonClient, notifier);
+        }
+        if (properties.getHashBucket().isEnabled()) {
+            IdempotentProperties.HashBucket hashBucket = properties.getHashBucket();
+            int buckets = hashBucket.getBuckets() > 0 ? hashBucket.getBuckets()
+                    : HashBucketResultStore.bucketsFor(hashBucket.getExpectedEntries(), hashBucket.getMaxZiplistEntries());
+            return new RedissonLockGuard(redissonClient, new HashBucketResultStore(redissonClient, hashBucket.getKeyPrefix(),
+                    buckets, hashBucket.getMaxZiplistValue()), properties.getResultTtl());
+        }
+        return new RedissonLockGuard(redissonClient, new StringResultStore(StringResultStore.template(redisConnectionFactory.getObject())), properties.getResultTtl());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = IdempotentProperties.PREFIX + ".embedded", name = "enabled", havingValue = "true")
+    public IdempotentService embeddedIdempotentService(IdempotentProperties properties) throws IOException {
+        return new MappedLogIdempotentService(properties.getEmbedded());
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = IdempotentProperties.PREFIX + ".write-behind", name = "enabled", havingValue = "true")
+    public IdempotentWriteBehindQueue idempotentWriteBehindQueue(IdempotentService idempotentService, IdempotentProperties properties,
+                                                                 ObjectProvider<PlatformTransactionManager> transactionManager,
+                                                                 IdempotentMetrics idempotentMetrics) {
+        PlatformTransactionManager manager = transactionManager.getIfUnique();
+        return new IdempotentWriteBehindQueue(idempotentService, properties.getWriteBehind(),
+                manager == null ? null : new TransactionTemplate(manager), idempotentMetrics);
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = IdempotentProperties.PREFIX + ".failure", name = "async", havingValue = "true")
+    public IdempotentFailureWriter idempotentFailureWriter(IdempotentProperties properties) {
+        return new IdempotentFailureWriter(properties.getFailure());
+    }
+
+    @Bean(name = EXECUTOR, destroyMethod = "shutdown")
+    @ConditionalOnMissingBean(name = EXECUTOR)
+    public ExecutorService idempotentExecutor(IdempotentProperties properties) {
+        IdempotentProperties.AsyncExecutor executor = properties.getAsyncExecutor();
+        //队列满时由提交的线程执行 成功的结果不会因为线程池满而丢失
+        return new ThreadPoolExecutor(executor.getThreads(), executor.getThreads(), 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(executor.getQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("idempotent-async-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = IdempotentProperties.PREFIX + ".near-cache", name = "enabled", havingValue = "true")
+    public IdempotentNearCache idempotentNearCache(IdempotentProperties properties) {
+        IdempotentProperties.NearCache nearCache = properties.getNearCache();
+        return new IdempotentNearCache(nearCache.getMaximumSize(), nearCache.getTtl(), properties.getResultTtl());
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = IdempotentProperties.PREFIX + ".single-flight", name = "enabled", havingValue = "true")
+    public IdempotentSingleFlight idempotentSingleFlight() {
+        return new IdempotentSingleFlight();
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = HotKeyProperties.PREFIX, name = "enabled", havingValue = "true")
+    public IdempotentHotKeys idempotentHotKeys(HotKeyDetector hotKeyDetector, IdempotentProperties properties) {
+        IdempotentProperties.HotKey hotKey = properties.getHotKey();
+        return new IdempotentHotKeys(hotKeyDetector, hotKey.getMaximumSize(), hotKey.getTtl(), properties.getResultTtl());
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = IdempotentProperties.PREFIX + ".bloom", name = "enabled", havingValue = "true")
+    public IdempotentBloomFilter idempotentBloomFilter(IdempotentProperties properties, RedissonClient redissonClient) {
+        IdempotentProperties.Bloom bloom = properties.getBloom();
+        IdempotentBloomFilter filter = new IdempotentBloomFilter(redissonClient, bloom.getKeyPrefix(), bloom.getExpectedInsertions(),
+                bloom.getFalseProbability(), bloom.getWindow(), bloom.getWindows(), bloom.getShards());
+        //超过覆盖时长的requestId会被判断为不存在而跳过查询 记录必须在此之前被清理
+        IdempotentProperties.Retention retention = properties.getRetention();
+        AssertEx.isTrue(retention.isEnabled(), BaseException.definedException(1099, "开启布隆过滤器需要同时开启retention，保证记录的保留时长有上限"));
+        Duration maxTtl = retention.getDefaultTtl();
+        for (Duration ttl : retention.getTtl().values()) {
+            maxTtl = ttl.compareTo(maxTtl) > 0 ? ttl : maxTtl;
+        }
+        AssertEx.isTrue(filter.coverage().compareTo(maxTtl) >= 0, BaseException.definedException(1099,
+                "布隆过滤器的覆盖时长 " + filter.coverage() + " 小于记录的保留时长 " + maxTtl + "，请调大bloom.window或bloom.windows"));
+        return filter;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public IdempotentMetrics idempotentMetrics(IdempotentProperties properties, ObjectProvider<MeterRegistry> meterRegistry) {
+        MeterRegistry registry = meterRegistry.getIfAvailable();
+        if (!properties.getMetrics().isEnabled() || registry == null) {
+            return IdempotentMetrics.NOOP;
+        }
+        return new MicrometerIdempotentMetrics(registry, properties.getMetrics());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public IdempotentBatchTemplate idempotentBatchTemplate(IdempotentGuard idempotentGuard, IdempotentService idempotentService,
+                                                           IdempotentResultCodec idempotentResultCodec, IdempotentProperties properties,
+                                                           IdempotentMetrics idempotentMetrics,
+                                                           ObjectProvider<IdempotentWriteBehindQueue> writeBehindQueue,
+                                                           ObjectProvider<IdempotentNearCache> nearCache,
+                                                           ObjectProvider<IdempotentBloomFilter> bloomFilter,
+                                                           ObjectProvider<IdempotentFailureWriter> failureWriter,
+                                                           @Qualifier(EXECUTOR) Executor idempotentExecutor) {
+        IdempotentBatchTemplate template = new IdempotentBatchTemplate(idempotentGuard, idempotentService, idempotentResultCodec, properties, idempotentMetrics);
+        template.setIdempotentExecutor(idempotentExecutor);
+        template.setIdempotentWriteBehindQueue(writeBehindQueue.getIfAvailable());
+        template.setIdempotentNearCache(nearCache.getIfAvailable());
+        template.setIdempotentBloomFilter(bloomFilter.getIfAvailable());
+        template.setIdempotentFailureWriter(failureWriter.getIfAvailable());
+        return template;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = IdempotentProperties.PREFIX + ".retention", name = "enabled", havingValue = "true")
+    public IdempotentPurgeJob idempotentPurgeJob(IdempotentService idempotentService, IdempotentProperties properties,
+                                                 ObjectProvider<ReplicationLagProbe> replicationLagProbe,
+                                                 IdempotentMetrics idempotentMetrics, RedissonClient redissonClient) {
+        AssertEx.isTrue(idempotentService instanceof JdbcIdempotentService,
+                BaseException.definedException(1099, "过期数据清理需要使用JdbcIdempotentService"));
+        JdbcIdempotentService jdbcService = (JdbcIdempotentService) idempotentService;
+        return new IdempotentPurgeJob(jdbcService.getJdbcTemplate(), jdbcService.getTable(), jdbcService.getBodyTable(),
+                properties.getRetention(), replicationLagProbe.getIfAvailable(() -> ReplicationLagProbe.NONE),
+                idempotentMetrics, redissonClient);
+    }
+}
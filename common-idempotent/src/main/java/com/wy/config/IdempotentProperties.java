@@ -0,0 +1,520 @@
+package com.wy.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentProperties
+ * @Description 幂等相关配置 前缀 common.idempotent
+ * @Date 2021/6/3 15:30
+ */
+@Data
+@ConfigurationProperties(prefix = IdempotentProperties.PREFIX)
+public class IdempotentProperties {
+
+    public static final String PREFIX = "common.idempotent";
+
+    /**
+     * 抢占与结果存储方式
+     */
+    private GuardMode mode = GuardMode.REDIS_LOCK;
+
+    /**
+     * 结果编解码方式
+     */
+    private CodecType codec = CodecType.HESSIAN;
+
+    /**
+     * 结果压缩阈值 单位字节，小于等于0不压缩
+     * 开启后写入的数据带有标记位，与未开启时写入的数据不兼容
+     */
+    private int compressThreshold = 0;
+
+    /**
+     * 成功结果在redis中的保存时间
+     */
+    private Duration resultTtl = Duration.ofMinutes(60L);
+
+    /**
+     * 结果分桶hash存储配置 只在 {@link GuardMode#REDIS_LOCK} 模式下生效
+     */
+    private HashBucket hashBucket = new HashBucket();
+
+    /**
+     * 异步批量落库配置
+     */
+    private WriteBehind writeBehind = new WriteBehind();
+
+    /**
+     * 本地近端缓存配置
+     */
+    private NearCache nearCache = new NearCache();
+
+    /**
+     * 重复请求合并配置
+     */
+    private SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 布隆过滤器配置
+     */
+    private Bloom bloom = new Bloom();
+
+    /**
+     * 分阶段耗时统计配置
+     */
+    private Metrics metrics = new Metrics();
+
+    /**
+     * 批量幂等配置
+     */
+    private Batch batch = new Batch();
+
+    /**
+     * 过期数据清理配置
+     */
+    private Retention retention = new Retention();
+
+    /**
+     * 内嵌日志存储配置
+     */
+    private Embedded embedded = new Embedded();
+
+    /**
+     * {@link GuardMode#IN_MEMORY} 模式配置
+     */
+    private InMemory inMemory = new InMemory();
+
+    /**
+     * 失败记录配置
+     */
+    private Failure failure = new Failure();
+
+    /**
+     * 热点key本地提升配置 需要开启 common.redis.hot-key.enabled
+     */
+    private HotKey hotKey = new HotKey();
+
+    /**
+     * 异步方法和批量抢占使用的线程池配置
+     */
+    private AsyncExecutor asyncExecutor = new AsyncExecutor();
+
+    @Data
+    public static class HashBucket {
+
+        /**
+         * 是否开启 开启前后写入的结果互相不可见
+         * 只用于 {@link GuardMode#REDIS_LOCK}，其他模式下开启会在启动时报错
+         * 桶按窗口过期，结果实际保存 1~2 倍的结果保存时间，抵消了一部分紧凑编码省下的内存
+         * 本地redis 10万条实测每条占用(字符串/分桶)：48字节结果 230B/130B，256字节 488B/338B，900字节 1190B/983B，
+         * 按平均1.5倍保存时间折算分桶分别为字符串的 0.85、1.04、1.24 倍，只有结果较小时开启才省内存，开启前用 HashBucketMemoryBenchmark 按实际结果大小对比
+         */
+        private boolean enabled = false;
+
+        /**
+         * key前缀
+         */
+        private String keyPrefix = "common:idempotent:result:";
+
+        /**
+         * 每个时间窗口的桶数 为0时按 expectedEntries / maxZiplistEntries 计算
+         */
+        private int buckets = 0;
+
+        /**
+         * 单个时间窗口 即一个结果保存时间内 预估的结果条数
+         */
+        private long expectedEntries = 131072L;
+
+        /**
+         * 与redis的 hash-max-ziplist-entries 一致 默认128，单个桶超过该条数后转为hashtable编码
+         */
+        private int maxZiplistEntries = 128;
+
+        /**
+         * 与redis的 hash-max-ziplist-value 一致 默认64字节，任意一个结果超过该长度整个桶转为hashtable编码
+         * hessian编码的结果通常超过64字节，开启前需要在redis中调大，例如 hash-max-ziplist-value 1024，并同步修改该值
+         */
+        private int maxZiplistValue = 64;
+    }
+
+    @Data
+    public static class WriteBehind {
+
+        /**
+         * 是否开启 开启后成功结果先写redis，库表由后台线程批量写入
+         */
+        private boolean enabled = false;
+
+        /**
+         * 队列容量
+         */
+        private int queueCapacity = 10000;
+
+        /**
+         * 单批最大条数
+         */
+        private int batchSize = 200;
+
+        /**
+         * 攒批的最长等待时间 单位毫秒
+         */
+        private long flushInterval = 50;
+
+        /**
+         * 队列满时入队的等待时间 单位毫秒，超时后由调用线程同步落库
+         */
+        private long enqueueTimeout = 10;
+
+        /**
+         * 关闭时等待队列写完的最长时间 单位毫秒
+         */
+        private long shutdownTimeout = 10000;
+    }
+
+    @Data
+    public static class NearCache {
+
+        /**
+         * 是否开启
+         */
+        private boolean enabled = false;
+
+        /**
+         * 最大条数
+         */
+        private long maximumSize = 10000;
+
+        /**
+         * 本地过期时间 不会超过 {@link IdempotentProperties#resultTtl}
+         */
+        private Duration ttl = Duration.ofSeconds(60L);
+    }
+
+    @Data
+    public static class HotKey {
+
+        /**
+         * 热点key本地缓存的最大条数
+         */
+        private long maximumSize = 1000;
+
+        /**
+         * 热点key本地缓存的过期时间 应远小于 {@link IdempotentProperties#resultTtl}
+         */
+        private Duration ttl = Duration.ofSeconds(3L);
+    }
+
+    @Data
+    public static class SingleFlight {
+
+        /**
+         * 是否开启 开启后同一jvm内的重复请求等待第一个请求的结果，而不是各自抢锁
+         */
+        private boolean enabled = false;
+
+        /**
+         * 跨节点完成通知的channel LUA模式下其他节点的等待者由该通知唤醒
+         */
+        private String channel = "common:idempotent:completed";
+    }
+
+    @Data
+    public static class Bloom {
+
+        /**
+         * 是否开启 开启后requestId一定没有出现过时不再调用queryByReqId
+         */
+        private boolean enabled = false;
+
+        /**
+         * key前缀
+         */
+        private String keyPrefix = "common:idempotent:bloom:";
+
+        /**
+         * 单个appCode单个窗口的预估条数
+         */
+        private long expectedInsertions = 1000000L;
+
+        /**
+         * 单个窗口的误判率
+         */
+        private double falseProbability = 0.01;
+
+        /**
+         * 窗口长度
+         */
+        private Duration window = Duration.ofDays(1L);
+
+        /**
+         * 查询的窗口数 覆盖时长为 window * (windows - 1)，需要不小于retention中最长的保留时长
+         */
+        private int windows = 32;
+
+        /**
+         * 每个appCode的分片数 大于1时同一appCode的位图分散到redis集群的多个slot
+         */
+        private int shards = 1;
+    }
+
+    @Data
+    public static class Batch {
+
+        /**
+         * 持锁时间 单位毫秒，需要覆盖整批的执行时间
+         */
+        private long keeps = 60 * 1000;
+
+        /**
+         * 等锁时间 单位毫秒，默认不等待，被占用的请求返回 REPEAT
+         */
+        private long timeout = 0;
+    }
+
+    @Data
+    public static class Retention {
+
+        /**
+         * 是否开启 需要使用 {@link com.wy.jdbc.JdbcIdempotentService}
+         */
+        private boolean enabled = false;
+
+        /**
+         * 默认保留时长
+         */
+        private Duration defaultTtl = Duration.ofDays(30L);
+
+        /**
+         * 按appCode单独配置的保留时长
+         */
+        private Map<String, Duration> ttl = new HashMap<>();
+
+        /**
+         * 两次清理的间隔
+         */
+        private Duration interval = Duration.ofMinutes(10L);
+
+        /**
+         * 单次清理的最长执行时间
+         */
+        private Duration maxRunTime = Duration.ofMinutes(30L);
+
+        /**
+         * 每批扫描的行数
+         */
+        private int batchSize = 500;
+
+        /**
+         * 批次之间的暂停时间
+         */
+        private Duration pause = Duration.ofMillis(200L);
+
+        /**
+         * 允许的最大从库复制延迟 超过时暂停删除
+         */
+        private Duration maxReplicationLag = Duration.ofSeconds(5L);
+
+        /**
+         * 复制延迟超过阈值时的等待时间
+         */
+        private Duration lagBackoff = Duration.ofSeconds(1L);
+
+        /**
+         * 删除前是否归档 归档表结构与原表相同
+         */
+        private boolean archive = false;
+
+        private String archiveTable = "t_idempotent_archive";
+
+        private String archiveBodyTable = "t_idempotent_body_archive";
+
+        /**
+         * 多实例部署时的互斥锁
+         */
+        private String lockName = "common:idempotent:purge";
+    }
+
+    @Data
+    public static class Embedded {
+
+        /**
+         * 是否开启 开启后容器中没有 {@link com.wy.IdempotentService} 时使用本地日志存储
+         * 与 {@link GuardMode#IN_MEMORY} 一起使用时同时作为成功结果的存储，整个幂等不依赖mysql和redis
+         */
+        private boolean enabled = false;
+
+        /**
+         * 日志目录
+         */
+        private String directory = "idempotent-log";
+
+        /**
+         * 单个日志段大小 单位字节
+         */
+        private int segmentSize = 64 * 1024 * 1024;
+
+        /**
+         * 记录保存时间 段内最新的记录超过该时间后整段删除
+         */
+        private Duration ttl = Duration.ofDays(1L);
+
+        /**
+         * 段内有效记录比例低于该值时压缩
+         */
+        private double compactThreshold = 0.5;
+
+        /**
+         * 刷盘、过期和压缩的执行间隔 进程崩溃不丢数据，机器掉电最多丢失一个间隔内的写入
+         */
+        private Duration maintenanceInterval = Duration.ofSeconds(10L);
+
+        /**
+         * 索引初始槽数
+         */
+        private int initialIndexCapacity = 1 << 16;
+    }
+
+    @Data
+    public static class InMemory {
+
+        /**
+         * map初始容量
+         */
+        private int initialCapacity = 1 << 16;
+
+        /**
+         * 时间轮最底层一个槽的跨度 单位毫秒，过期时间的精度
+         */
+        private long tickMillis = 10L;
+
+        /**
+         * 时间轮每层的槽数
+         */
+        private int wheelSize = 512;
+    }
+
+    @Data
+    public static class AsyncExecutor {
+
+        /**
+         * 线程数 线程中执行的是jdbc和redis的阻塞调用
+         */
+        private int threads = 16;
+
+        /**
+         * 队列容量 队列满时由提交任务的线程执行
+         */
+        private int queueCapacity = 1024;
+    }
+
+    @Data
+    public static class Failure {
+
+        /**
+         * 只记录错误码、信息和异常类型 关闭后序列化完整的异常
+         */
+        private boolean compact = true;
+
+        /**
+         * 记录完整堆栈的比例
+         */
+        private double stackTraceSampleRate = 0.01;
+
+        /**
+         * 异常信息的最大长度
+         */
+        private int maxMessageLength = 512;
+
+        /**
+         * 是否异步写入失败的参数记录 默认在业务线程中同步写入
+         * 幂等记录始终在持有执行权时同步写入，异步写入的失败参数可能晚于重试成功的结果落库
+         */
+        private boolean async = false;
+
+        /**
+         * 写入线程数
+         */
+        private int writerThreads = 1;
+
+        /**
+         * 队列容量 队列满时丢弃
+         */
+        private int queueCapacity = 1000;
+
+        /**
+         * 关闭时等待剩余记录写入的时间 单位毫秒
+         */
+        private long shutdownTimeout = 5000;
+    }
+
+    @Data
+    public static class Metrics {
+
+        /**
+         * 是否开启 需要容器中有MeterRegistry
+         */
+        private boolean enabled = true;
+
+        /**
+         * 百分位的统计区间 同一次采集内的多个gauge共用一个区间
+         */
+        private Duration refreshInterval = Duration.ofSeconds(1L);
+
+        /**
+         * 可记录的最大耗时 超过的按最大值记录
+         */
+        private Duration highestTrackableLatency = Duration.ofMinutes(1L);
+
+        /**
+         * 直方图精度 有效数字位数
+         */
+        private int significantDigits = 2;
+    }
+
+    public enum GuardMode {
+
+        /**
+         * redisson锁 + redis字符串存储结果 可以开启分桶hash存储
+         */
+        REDIS_LOCK,
+
+        /**
+         * lua脚本 查询与抢占一次往返
+         */
+        LUA,
+
+        /**
+         * 库表唯一约束抢占 不使用redis和分布式锁，结果从参数表回放
+         * 需要 {@link com.wy.IdempotentService} 实现claim/reclaim
+         */
+        DB_CLAIM,
+
+        /**
+         * 进程内map + 时间轮过期 不使用redis，只适用于单实例部署
+         * 开启 common.idempotent.embedded.enabled 时成功结果同时写入本地日志，重启后不丢失
+         */
+        IN_MEMORY,
+        ;
+    }
+
+    public enum CodecType {
+
+        /**
+         * hessian
+         */
+        HESSIAN,
+
+        /**
+         * fst
+         */
+        FST,
+        ;
+    }
+}
@@ -39,9 +39,9 @@ public class IdempotentBodyContext implements Serializable {
     private String requestParam;
 
     /**
-     * 请求body体
+     * 请求body体 {@link com.wy.codec.IdempotentResultCodec} 编码后的字节
      */
-    private String responseBody;
+    private byte[] responseBody;
 
     /**
      * 创建时间
@@ -0,0 +1,64 @@
+package com.wy.context;
+
+import com.google.common.base.Throwables;
+import com.wy.exception.BaseException;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentFailure
+ * @Description 失败记录 只保存错误码、信息和异常类型，堆栈按比例采样
+ * 代替序列化完整的异常对象，下游故障时大量失败不会产生大字段和序列化开销
+ * @Date 2021/7/1 10:20
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class IdempotentFailure implements Serializable {
+
+    /**
+     * {@link com.wy.exception.IErrorType#getCode()} 非 {@link BaseException} 时为空
+     */
+    private Integer code;
+
+    /**
+     * 异常信息
+     */
+    private String message;
+
+    /**
+     * 异常类型
+     */
+    private String exceptionClass;
+
+    /**
+     * 完整堆栈 未采样时为空
+     */
+    private String stackTrace;
+
+    /**
+     * @param e                异常
+     * @param maxMessageLength 信息的最大长度
+     * @param withStackTrace   是否记录堆栈
+     * @return {@link IdempotentFailure}
+     */
+    public static IdempotentFailure of(Throwable e, int maxMessageLength, boolean withStackTrace) {
+        String message = e.getMessage();
+        if (message != null && message.length() > maxMessageLength) {
+            message = message.substring(0, maxMessageLength);
+        }
+        return IdempotentFailure.builder()
+                .code(e instanceof BaseException && ((BaseException) e).getErrorType() != null
+                        ? ((BaseException) e).getErrorType().getCode() : null)
+                .message(message)
+                .exceptionClass(e.getClass().getName())
+                .stackTrace(withStackTrace ? Throwables.getStackTraceAsString(e) : null)
+                .build();
+    }
+}
@@ -0,0 +1,44 @@
+package com.wy.embedded;
+
+/**
+ * @author wangyong
+ * @Classname LogRecord
+ * @Description 日志中的一条记录
+ * @Date 2021/6/29 10:35
+ */
+public class LogRecord {
+
+    /**
+     * 段编号 << 32 | 段内偏移量
+     */
+    private final long address;
+
+    private final byte type;
+
+    private final long timestamp;
+
+    private final byte[] payload;
+
+    public LogRecord(long address, byte type, long timestamp, byte[] payload) {
+        this.address = address;
+        this.type = type;
+        this.timestamp = timestamp;
+        this.payload = payload;
+    }
+
+    public long getAddress() {
+        return address;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
@@ -0,0 +1,285 @@
+package com.wy.embedded;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * @author wangyong
+ * @Classname LogSegment
+ * @Description 内存映射的日志段 固定大小，只追加
+ * 记录格式 [int 内容长度][int crc32][byte 类型][long 写入时间][内容]，crc覆盖类型、时间和内容
+ * 文件预先填充为0，长度为0或crc不匹配的位置即为有效数据的末尾
+ * @Date 2021/6/29 10:40
+ */
+@Slf4j
+public class LogSegment {
+
+    public static final int HEADER_SIZE = 17;
+
+    private final long id;
+
+    private final File file;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    /**
+     * 下一条记录的写入位置
+     */
+    private int position;
+
+    /**
+     * 段内最新记录的写入时间
+     */
+    private long maxTimestamp;
+
+    /**
+     * 段内记录被索引引用的次数 覆盖或过期后减少
+     */
+    private int live;
+
+    /**
+     * 段内记录写入索引的总次数
+     */
+    private int total;
+
+    private LogSegment(long id, File file, MappedByteBuffer buffer, int capacity) {
+        this.id = id;
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 打开或创建日志段
+     *
+     * @param directory 目录
+     * @param id        段编号
+     * @param capacity  段大小 已存在的文件以文件大小为准
+     * @return {@link LogSegment}
+     * @throws IOException 映射失败
+     */
+    public static LogSegment open(File directory, long id, int capacity) throws IOException {
+        File file = new File(directory, fileName(id));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() == 0) {
+                raf.setLength(capacity);
+            }
+            int size = (int) raf.length();
+            //映射建立后关闭channel不影响映射
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new LogSegment(id, file, buffer, size);
+        }
+    }
+
+    public static String fileName(long id) {
+        return String.format("segment-%020d.log", id);
+    }
+
+    /**
+     * 从文件名解析段编号 不是日志段时返回-1
+     */
+    public static long parseId(String fileName) {
+        if (!fileName.startsWith("segment-") || !fileName.endsWith(".log")) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(fileName.substring("segment-".length(), fileName.length() - ".log".length()));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @param type      类型
+     * @param timestamp 写入时间
+     * @param payload   内容
+     * @return 记录的偏移量 空间不足返回-1
+     */
+    public int append(byte type, long timestamp, byte[] payload) {
+        int length = HEADER_SIZE + payload.length;
+        //末尾保留4个字节的0作为结束标记
+        if (position + length + 4 > capacity) {
+            return -1;
+        }
+        int offset = position;
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset + 8);
+        target.put(type);
+        target.putLong(timestamp);
+        target.put(payload);
+        buffer.putInt(offset + 4, crc(type, timestamp, payload));
+        //长度最后写入 进程在写入中途崩溃时恢复会停在这条记录之前
+        buffer.putInt(offset, payload.length);
+        position += length;
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        return offset;
+    }
+
+    /**
+     * 读取一条记录
+     *
+     * @param offset 偏移量
+     * @return 记录 位置无效时返回null
+     */
+    public LogRecord read(int offset) {
+        if (offset < 0 || offset + HEADER_SIZE > capacity) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER_SIZE + length > capacity) {
+            return null;
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + 8);
+        byte type = source.get();
+        long timestamp = source.getLong();
+        byte[] payload = new byte[length];
+        source.get(payload);
+        return new LogRecord(address(id, offset), type, timestamp, payload);
+    }
+
+    /**
+     * 按顺序读取全部有效记录 遇到长度为0或crc不匹配时停止并把写入位置设为该处
+     *
+     * @param consumer 记录
+     */
+    public void recover(Consumer<LogRecord> consumer) {
+        int offset = 0;
+        while (true) {
+            LogRecord record = this.read(offset);
+            if (record == null || buffer.getInt(offset + 4) != crc(record.getType(), record.getTimestamp(), record.getPayload())) {
+                break;
+            }
+            consumer.accept(record);
+            maxTimestamp = Math.max(maxTimestamp, record.getTimestamp());
+            offset += HEADER_SIZE + record.getPayload().length;
+        }
+        position = offset;
+        //写入中途崩溃留下的半条记录清零 避免之后的追加与残留数据拼成有效记录
+        if (offset + 4 <= capacity && buffer.getInt(offset) != 0) {
+            log.warn("日志段 [{}] 在偏移量 [{}] 处存在不完整的记录，已截断", file.getName(), offset);
+            for (int i = offset; i < capacity; i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * 按顺序读取已写入的记录 用于压缩
+     *
+     * @param consumer 记录
+     */
+    public void forEach(Consumer<LogRecord> consumer) {
+        int offset = 0;
+        while (offset < position) {
+            LogRecord record = this.read(offset);
+            if (record == null) {
+                break;
+            }
+            consumer.accept(record);
+            offset += HEADER_SIZE + record.getPayload().length;
+        }
+    }
+
+    /**
+     * 刷盘
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * 解除映射并删除文件
+     */
+    public void delete() {
+        unmap(buffer);
+        if (!file.delete()) {
+            log.warn("日志段 [{}] 删除失败", file.getName());
+        }
+    }
+
+    public void close() {
+        buffer.force();
+        unmap(buffer);
+    }
+
+    public static long address(long segmentId, int offset) {
+        return segmentId << 32 | (offset & 0xFFFFFFFFL);
+    }
+
+    public static long segmentOf(long address) {
+        return address >>> 32;
+    }
+
+    public static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private static int crc(byte type, long timestamp, byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(type);
+        for (int i = 56; i >= 0; i -= 8) {
+            crc32.update((int) (timestamp >>> i));
+        }
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * java8 没有公开的解除映射接口 失败时等待gc回收
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            log.debug("解除映射失败 等待gc回收", e);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    public int getLive() {
+        return live;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public void referenced() {
+        live++;
+        total++;
+    }
+
+    public void released() {
+        live--;
+    }
+}
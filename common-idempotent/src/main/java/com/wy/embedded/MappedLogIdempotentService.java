@@ -0,0 +1,601 @@
+package com.wy.embedded;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.wy.IdempotentService;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.exception.BaseException;
+import com.wy.store.IdempotentResultStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author wangyong
+ * @Classname MappedLogIdempotentService
+ * @Description 单机内嵌的 {@link IdempotentService} 与 {@link IdempotentResultStore}，不依赖mysql和redis
+ * 所有写入以记录的形式追加到内存映射的日志段中，堆外hash索引保存每个key最新记录的地址
+ * 启动时按顺序重放日志段重建索引，进程崩溃后最后一条不完整的记录会被截断
+ * 后台任务定期刷盘、删除整段过期的日志段，并把有效记录比例低于阈值的日志段压缩到当前段
+ * 只适用于单实例部署，多实例之间不共享数据
+ * @Date 2021/6/29 11:10
+ */
+@Slf4j
+public class MappedLogIdempotentService implements IdempotentService, IdempotentResultStore, DisposableBean {
+
+    private static final byte CONTEXT = 1;
+
+    private static final byte BODY = 2;
+
+    private static final byte RESULT = 3;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final File directory;
+
+    private final IdempotentProperties.Embedded properties;
+
+    /**
+     * 段编号 -> 日志段 读取时不加锁
+     */
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+
+    private final OffHeapHashIndex index;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicLong contextIds = new AtomicLong();
+
+    private final AtomicLong bodyIds = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler;
+
+    private LogSegment active;
+
+    public MappedLogIdempotentService(IdempotentProperties.Embedded properties) throws IOException {
+        this.properties = properties;
+        this.directory = new File(properties.getDirectory());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建幂等日志目录 " + directory.getAbsolutePath());
+        }
+        this.index = new OffHeapHashIndex(properties.getInitialIndexCapacity());
+        this.recover();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("idempotent-log").setDaemon(true).build());
+        long interval = properties.getMaintenanceInterval().toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::maintainQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Long insert(IdempotentContext model) {
+        lock.writeLock().lock();
+        try {
+            if (this.find(contextKey(model.getRequestId(), model.getAppCode())) != null) {
+                throw new DuplicateKeyException("幂等记录已存在 requestId [" + model.getRequestId() + "] appCode [" + model.getAppCode() + "]");
+            }
+            IdempotentContext stored = copy(model, contextIds.incrementAndGet(), model.getStatus());
+            this.append(CONTEXT, System.currentTimeMillis(), encodeContext(stored));
+            return stored.getId();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void insertBody(IdempotentBodyContext model) {
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            IdempotentBodyContext stored = IdempotentBodyContext.builder()
+                    .id(bodyIds.incrementAndGet())
+                    .idempotentId(model.getIdempotentId())
+                    .requestParam(model.getRequestParam())
+                    .responseBody(model.getResponseBody())
+                    .createTime(now)
+                    .build();
+            this.append(BODY, now, encodeBody(stored));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Long claim(IdempotentContext model) {
+        try {
+            return this.insert(model);
+        } catch (DuplicateKeyException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 失败的记录或最后写入时间早于staleBefore的进行中记录可以重新抢占
+     */
+    @Override
+    public boolean reclaim(Long id, long staleBefore) {
+        lock.writeLock().lock();
+        try {
+            LogRecord record = this.find(idKey(id));
+            if (record == null) {
+                return false;
+            }
+            IdempotentContext context = decodeContext(record.getPayload());
+            boolean stale = context.getStatus() == IdempotentStatusEnum.ING && record.getTimestamp() < staleBefore;
+            if (context.getStatus() != IdempotentStatusEnum.FAIL && !stale) {
+                return false;
+            }
+            this.append(CONTEXT, System.currentTimeMillis(), encodeContext(copy(context, id, IdempotentStatusEnum.ING)));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateInfo(IdempotentContext model) {
+        lock.writeLock().lock();
+        try {
+            LogRecord record = this.find(idKey(model.getId()));
+            if (record == null) {
+                log.warn("幂等记录不存在或已过期 id [{}]", model.getId());
+                return;
+            }
+            IdempotentContext context = decodeContext(record.getPayload());
+            this.append(CONTEXT, System.currentTimeMillis(), encodeContext(copy(context, context.getId(), model.getStatus())));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public IdempotentContext queryByReqId(String requestId, String appCode) {
+        lock.readLock().lock();
+        try {
+            LogRecord record = this.find(contextKey(requestId, appCode));
+            return record == null ? null : decodeContext(record.getPayload());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public IdempotentBodyContext getLatestRecordByIdeKey(Long idempotentId) {
+        lock.readLock().lock();
+        try {
+            LogRecord record = this.find(bodyKey(idempotentId));
+            return record == null ? null : decodeBody(record.getPayload());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] get(String key, Duration ttl) {
+        lock.readLock().lock();
+        try {
+            LogRecord record = this.find(resultKey(key));
+            if (record == null) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(record.getPayload());
+            readString(buffer);
+            long expireAt = buffer.getLong();
+            return expireAt > System.currentTimeMillis() ? readBytes(buffer) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] result, Duration ttl) {
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            this.append(RESULT, now, encodeResult(key, now + ttl.toMillis(), result));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 执行一次维护 刷盘、删除过期段、压缩
+     */
+    public void maintain() {
+        lock.writeLock().lock();
+        try {
+            active.force();
+            this.expire();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        //每次只持有写锁压缩一个段 避免长时间阻塞写入
+        for (Long segmentId : this.compactionCandidates()) {
+            lock.writeLock().lock();
+            try {
+                LogSegment segment = segments.get(segmentId);
+                if (segment != null && segment != active) {
+                    this.compact(segment);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void maintainQuietly() {
+        try {
+            this.maintain();
+        } catch (Exception e) {
+            log.error("幂等日志维护异常", e);
+        }
+    }
+
+    /**
+     * 删除最新记录也已经超过保存时间的段
+     */
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - properties.getTtl().toMillis();
+        boolean removed = false;
+        for (LogSegment segment : new ArrayList<>(segments.values())) {
+            if (segment != active && segment.getMaxTimestamp() < cutoff) {
+                segments.remove(segment.getId());
+                segment.delete();
+                removed = true;
+                log.info("幂等日志段 [{}] 已过期删除", segment.getId());
+            }
+        }
+        if (removed) {
+            index.retain(address -> segments.containsKey(LogSegment.segmentOf(address)));
+        }
+    }
+
+    private List<Long> compactionCandidates() {
+        lock.readLock().lock();
+        try {
+            List<Long> candidates = new ArrayList<>();
+            for (LogSegment segment : segments.values()) {
+                if (segment != active && segment.getTotal() > 0
+                        && segment.getLive() < segment.getTotal() * properties.getCompactThreshold()) {
+                    candidates.add(segment.getId());
+                }
+            }
+            return candidates;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把段内仍被索引引用且未过期的记录按原写入时间追加到当前段 然后删除该段
+     */
+    private void compact(LogSegment segment) {
+        long now = System.currentTimeMillis();
+        int[] moved = new int[1];
+        segment.forEach(record -> {
+            if (record.getType() == RESULT && isExpiredResult(record, now)) {
+                return;
+            }
+            for (String key : keysOf(record)) {
+                LogRecord current = this.find(key);
+                if (current != null && current.getAddress() == record.getAddress()) {
+                    this.append(record.getType(), record.getTimestamp(), record.getPayload());
+                    moved[0]++;
+                    return;
+                }
+            }
+        });
+        segments.remove(segment.getId());
+        segment.delete();
+        index.retain(address -> segments.containsKey(LogSegment.segmentOf(address)));
+        log.info("幂等日志段 [{}] 压缩完成，迁移 [{}] 条记录", segment.getId(), moved[0]);
+    }
+
+    /**
+     * 按段编号顺序重放 后写入的记录覆盖先写入的
+     */
+    private void recover() throws IOException {
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] listed = directory.listFiles();
+        for (File file : listed == null ? new File[0] : listed) {
+            long id = LogSegment.parseId(file.getName());
+            if (id >= 0) {
+                files.put(id, file);
+            }
+        }
+        int records = 0;
+        for (Long id : files.keySet()) {
+            LogSegment segment = LogSegment.open(directory, id, properties.getSegmentSize());
+            segments.put(id, segment);
+            int[] count = new int[1];
+            segment.recover(record -> {
+                this.index(record);
+                count[0]++;
+            });
+            records += count[0];
+        }
+        active = segments.isEmpty() ? this.roll(0L) : segments.lastEntry().getValue();
+        if (records > 0) {
+            log.info("幂等日志重放完成，[{}] 个段，[{}] 条记录", segments.size(), records);
+        }
+    }
+
+    private LogSegment roll(long id) throws IOException {
+        LogSegment segment = LogSegment.open(directory, id, properties.getSegmentSize());
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * 追加记录并更新索引 需要持有写锁
+     */
+    private void append(byte type, long timestamp, byte[] payload) {
+        int offset = active.append(type, timestamp, payload);
+        if (offset < 0) {
+            if (LogSegment.HEADER_SIZE + payload.length + 4 > properties.getSegmentSize()) {
+                throw BaseException.definedException(1099, "幂等记录大小超过日志段大小 " + payload.length);
+            }
+            active.force();
+            try {
+                active = this.roll(active.getId() + 1);
+            } catch (IOException e) {
+                log.error("幂等日志段创建失败", e);
+                throw BaseException.definedException(1099, "幂等日志段创建失败 " + e.getMessage());
+            }
+            offset = active.append(type, timestamp, payload);
+        }
+        this.index(new LogRecord(LogSegment.address(active.getId(), offset), type, timestamp, payload));
+    }
+
+    /**
+     * 记录的每个key指向该记录 被覆盖的旧地址所在段的有效计数减一
+     */
+    private void index(LogRecord record) {
+        LogSegment segment = segments.get(LogSegment.segmentOf(record.getAddress()));
+        if (record.getType() == CONTEXT) {
+            contextIds.accumulateAndGet(ByteBuffer.wrap(record.getPayload()).getLong(), Math::max);
+        } else if (record.getType() == BODY) {
+            bodyIds.accumulateAndGet(ByteBuffer.wrap(record.getPayload()).getLong(), Math::max);
+        }
+        for (String key : keysOf(record)) {
+            long old = index.put(hash(key), record.getAddress(), address -> this.matches(address, key));
+            if (old != OffHeapHashIndex.ABSENT) {
+                LogSegment oldSegment = segments.get(LogSegment.segmentOf(old));
+                if (oldSegment != null) {
+                    oldSegment.released();
+                }
+            }
+            segment.referenced();
+        }
+    }
+
+    private LogRecord find(String key) {
+        long address = index.get(hash(key), a -> this.matches(a, key));
+        return address == OffHeapHashIndex.ABSENT ? null : this.read(address);
+    }
+
+    private boolean matches(long address, String key) {
+        LogRecord record = this.read(address);
+        return record != null && keysOf(record).contains(key);
+    }
+
+    private LogRecord read(long address) {
+        LogSegment segment = segments.get(LogSegment.segmentOf(address));
+        return segment == null ? null : segment.read(LogSegment.offsetOf(address));
+    }
+
+    private static long hash(String key) {
+        return HASH_FUNCTION.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static List<String> keysOf(LogRecord record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record.getPayload());
+        switch (record.getType()) {
+            case CONTEXT:
+                long id = buffer.getLong();
+                buffer.get();
+                String requestId = readString(buffer);
+                String appCode = readString(buffer);
+                return Arrays.asList(idKey(id), contextKey(requestId, appCode));
+            case BODY:
+                buffer.getLong();
+                return Collections.singletonList(bodyKey(buffer.getLong()));
+            case RESULT:
+                return Collections.singletonList(resultKey(readString(buffer)));
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+    private static boolean isExpiredResult(LogRecord record, long now) {
+        ByteBuffer buffer = ByteBuffer.wrap(record.getPayload());
+        readString(buffer);
+        return buffer.getLong() <= now;
+    }
+
+    private static String contextKey(String requestId, String appCode) {
+        return "c" + appCode + '\u0000' + requestId;
+    }
+
+    private static String idKey(Long id) {
+        return "i" + id;
+    }
+
+    private static String bodyKey(Long idempotentId) {
+        return "b" + idempotentId;
+    }
+
+    private static String resultKey(String key) {
+        return "r" + key;
+    }
+
+    private static IdempotentContext copy(IdempotentContext context, Long id, IdempotentStatusEnum status) {
+        return IdempotentContext.builder()
+                .id(id)
+                .requestId(context.getRequestId())
+                .appCode(context.getAppCode())
+                .requestDesc(context.getRequestDesc())
+                .businessNo(context.getBusinessNo())
+                .businessType(context.getBusinessType())
+                .businessDesc(context.getBusinessDesc())
+                .status(status)
+                .build();
+    }
+
+    private static byte[] encodeContext(IdempotentContext context) {
+        return encode(out -> {
+            out.writeLong(context.getId());
+            out.writeByte(context.getStatus() == null ? -1 : context.getStatus().getCode());
+            writeString(out, context.getRequestId());
+            writeString(out, context.getAppCode());
+            writeString(out, context.getRequestDesc());
+            writeString(out, context.getBusinessNo());
+            writeString(out, context.getBusinessType());
+            writeString(out, context.getBusinessDesc());
+        });
+    }
+
+    private static IdempotentContext decodeContext(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        return IdempotentContext.builder()
+                .id(buffer.getLong())
+                .status(IdempotentStatusEnum.getByCode((int) buffer.get()))
+                .requestId(readString(buffer))
+                .appCode(readString(buffer))
+                .requestDesc(readString(buffer))
+                .businessNo(readString(buffer))
+                .businessType(readString(buffer))
+                .businessDesc(readString(buffer))
+                .build();
+    }
+
+    private static byte[] encodeBody(IdempotentBodyContext body) {
+        return encode(out -> {
+            out.writeLong(body.getId());
+            out.writeLong(body.getIdempotentId());
+            out.writeLong(body.getCreateTime());
+            writeString(out, body.getRequestParam());
+            writeBytes(out, body.getResponseBody());
+        });
+    }
+
+    private static IdempotentBodyContext decodeBody(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        return IdempotentBodyContext.builder()
+                .id(buffer.getLong())
+                .idempotentId(buffer.getLong())
+                .createTime(buffer.getLong())
+                .requestParam(readString(buffer))
+                .responseBody(readBytes(buffer))
+                .build();
+    }
+
+    private static byte[] encodeResult(String key, long expireAt, byte[] result) {
+        return encode(out -> {
+            writeString(out, key);
+            out.writeLong(expireAt);
+            writeBytes(out, result);
+        });
+    }
+
+    private static byte[] encode(PayloadWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            //内存流不会抛出IOException
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = readBytes(buffer);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<Long, LogSegment> entry : segments.entrySet()) {
+                entry.getValue().close();
+            }
+            segments.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 当前的段数
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * 索引中的key数
+     */
+    public int getIndexSize() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @FunctionalInterface
+    private interface PayloadWriter {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+}
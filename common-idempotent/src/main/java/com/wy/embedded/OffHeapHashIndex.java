@@ -0,0 +1,142 @@
+package com.wy.embedded;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongPredicate;
+
+/**
+ * @author wangyong
+ * @Classname OffHeapHashIndex
+ * @Description 堆外开放寻址hash索引 每个槽16字节 (key的64位hash, 日志地址)
+ * 索引只保存hash，不同key的hash相同时由调用方读取日志中的记录确认，索引本身不占用堆内存
+ * 非线程安全 由 {@link MappedLogIdempotentService} 的读写锁保护
+ * @Date 2021/6/29 10:20
+ */
+public class OffHeapHashIndex {
+
+    private static final int SLOT_SIZE = 16;
+
+    /**
+     * 0 表示空槽
+     */
+    private static final long EMPTY = 0L;
+
+    public static final long ABSENT = -1L;
+
+    private ByteBuffer table;
+
+    private int capacity;
+
+    private int size;
+
+    /**
+     * @param initialCapacity 初始槽数 向上取2的幂
+     */
+    public OffHeapHashIndex(int initialCapacity) {
+        this.capacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1) << 1);
+        this.table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+    }
+
+    /**
+     * 查找地址
+     *
+     * @param hash    key的hash
+     * @param matches 判断地址上的记录是否为要找的key
+     * @return 日志地址 不存在返回 {@link #ABSENT}
+     */
+    public long get(long hash, LongPredicate matches) {
+        long stored = normalize(hash);
+        int mask = capacity - 1;
+        for (int slot = spread(stored) & mask; ; slot = (slot + 1) & mask) {
+            long slotHash = table.getLong(slot * SLOT_SIZE);
+            if (slotHash == EMPTY) {
+                return ABSENT;
+            }
+            long address = table.getLong(slot * SLOT_SIZE + 8);
+            if (slotHash == stored && matches.test(address)) {
+                return address;
+            }
+        }
+    }
+
+    /**
+     * 写入地址 相同key覆盖
+     *
+     * @param hash    key的hash
+     * @param address 日志地址
+     * @param sameKey 判断已有地址上的记录是否为同一个key
+     * @return 被覆盖的地址 没有返回 {@link #ABSENT}
+     */
+    public long put(long hash, long address, LongPredicate sameKey) {
+        long stored = normalize(hash);
+        int mask = capacity - 1;
+        int slot = spread(stored) & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            long slotHash = table.getLong(slot * SLOT_SIZE);
+            if (slotHash == EMPTY) {
+                break;
+            }
+            long existing = table.getLong(slot * SLOT_SIZE + 8);
+            if (slotHash == stored && sameKey.test(existing)) {
+                table.putLong(slot * SLOT_SIZE + 8, address);
+                return existing;
+            }
+        }
+        table.putLong(slot * SLOT_SIZE, stored);
+        table.putLong(slot * SLOT_SIZE + 8, address);
+        if (++size * 2 > capacity) {
+            this.rebuild(capacity * 2, a -> true);
+        }
+        return ABSENT;
+    }
+
+    /**
+     * 只保留仍然有效的地址 段过期或压缩后调用
+     *
+     * @param alive 地址是否有效
+     */
+    public void retain(LongPredicate alive) {
+        this.rebuild(capacity, alive);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 堆外占用 单位字节
+     */
+    public long memoryUsage() {
+        return (long) capacity * SLOT_SIZE;
+    }
+
+    private void rebuild(int newCapacity, LongPredicate alive) {
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        table = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+        size = 0;
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            long slotHash = old.getLong(i * SLOT_SIZE);
+            long address = old.getLong(i * SLOT_SIZE + 8);
+            if (slotHash == EMPTY || !alive.test(address)) {
+                continue;
+            }
+            int slot = spread(slotHash) & mask;
+            while (table.getLong(slot * SLOT_SIZE) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table.putLong(slot * SLOT_SIZE, slotHash);
+            table.putLong(slot * SLOT_SIZE + 8, address);
+            size++;
+        }
+    }
+
+    private static long normalize(long hash) {
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    private static int spread(long hash) {
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
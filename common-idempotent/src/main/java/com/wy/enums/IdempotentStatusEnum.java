@@ -1,7 +1,5 @@
 package com.wy.enums;
 
-import com.google.common.collect.Lists;
-
 /**
  * @author wangyong
  * @Classname IdempotentStatusEnum
@@ -28,6 +26,17 @@ public enum IdempotentStatusEnum {
 
     private Integer code;
 
+    /**
+     * 按code下标索引 库表每行都会调用getByCode
+     */
+    private static final IdempotentStatusEnum[] BY_CODE = new IdempotentStatusEnum[3];
+
+    static {
+        for (IdempotentStatusEnum value : values()) {
+            BY_CODE[value.code] = value;
+        }
+    }
+
     IdempotentStatusEnum(Integer code){
         this.code = code;
     }
@@ -37,10 +46,9 @@ public enum IdempotentStatusEnum {
     }
 
     public static IdempotentStatusEnum getByCode(Integer code){
-        return Lists.newArrayList(IdempotentStatusEnum.values())
-                .stream()
-                .filter(l -> l.getCode().equals(code))
-                .findFirst()
-                .orElse(null);
+        if(code == null || code < 0 || code >= BY_CODE.length){
+            return null;
+        }
+        return BY_CODE[code];
     }
 }
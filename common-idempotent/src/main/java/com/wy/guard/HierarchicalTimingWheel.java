@@ -0,0 +1,283 @@
+package com.wy.guard;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * @author wangyong
+ * @Classname HierarchicalTimingWheel
+ * @Description 分层时间轮 添加和取消都是O(1)
+ * 每层有wheelSize个槽，上一层一个槽的跨度等于下一层一整圈，超出当前层范围的任务放进上一层，时间推进时降级到下一层
+ * DelayQueue中只放有任务的槽而不是任务本身，空转时工作线程阻塞在最近的槽上
+ * 到期任务在工作线程中执行，添加时已经到期的任务在添加线程中直接执行，任务需要足够轻量
+ * @Date 2021/6/30 10:20
+ */
+@Slf4j
+public class HierarchicalTimingWheel {
+
+    private final DelayQueue<Bucket> queue = new DelayQueue<>();
+
+    /**
+     * 添加任务时加读锁，推进时间时加写锁
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final Level root;
+
+    private final Thread worker;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param tickMillis 最底层一个槽的跨度
+     * @param wheelSize  每层的槽数
+     * @param name       工作线程名
+     */
+    public HierarchicalTimingWheel(long tickMillis, int wheelSize, String name) {
+        this.root = new Level(tickMillis, wheelSize, System.currentTimeMillis());
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat(name).setDaemon(true).build();
+        this.worker = threadFactory.newThread(this::work);
+        this.worker.start();
+    }
+
+    /**
+     * 添加任务
+     *
+     * @param delayMillis 延迟
+     * @param task        到期执行的任务
+     * @return 可以取消的 {@link Timeout}
+     */
+    public Timeout schedule(long delayMillis, Runnable task) {
+        Timeout timeout = new Timeout(System.currentTimeMillis() + Math.max(0L, delayMillis), task);
+        if (delayMillis <= 0) {
+            //空闲时时间轮的当前时间不推进 已经到期的任务不能依赖按槽判断
+            pending.incrementAndGet();
+            this.run(timeout);
+            return timeout;
+        }
+        lock.readLock().lock();
+        try {
+            pending.incrementAndGet();
+            this.addOrRun(timeout);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return timeout;
+    }
+
+    /**
+     * 等待执行的任务数 包含已取消但还未到期的
+     */
+    public int pending() {
+        return pending.get();
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void addOrRun(Timeout timeout) {
+        if (!root.add(timeout)) {
+            this.run(timeout);
+        }
+    }
+
+    private void run(Timeout timeout) {
+        pending.decrementAndGet();
+        Runnable task = timeout.task;
+        if (timeout.cancelled || task == null) {
+            return;
+        }
+        try {
+            task.run();
+        } catch (Exception e) {
+            log.error("时间轮任务执行异常", e);
+        }
+    }
+
+    private void work() {
+        while (running) {
+            try {
+                Bucket bucket = queue.poll(200L, TimeUnit.MILLISECONDS);
+                if (bucket == null) {
+                    continue;
+                }
+                lock.writeLock().lock();
+                try {
+                    while (bucket != null) {
+                        root.advance(bucket.expiration.get());
+                        //到期的槽中 最底层的任务直接执行，上层的任务重新加入后落到下层
+                        bucket.flush(this::addOrRun);
+                        bucket = queue.poll();
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 时间轮中的一层
+     */
+    private class Level {
+
+        private final long tickMillis;
+
+        private final int wheelSize;
+
+        private final long intervalMillis;
+
+        private final Bucket[] buckets;
+
+        /**
+         * 当前时间 按tickMillis取整
+         */
+        private volatile long currentTime;
+
+        private volatile Level overflow;
+
+        private Level(long tickMillis, int wheelSize, long startMillis) {
+            this.tickMillis = tickMillis;
+            this.wheelSize = wheelSize;
+            this.intervalMillis = tickMillis * wheelSize;
+            this.currentTime = startMillis - startMillis % tickMillis;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket();
+            }
+        }
+
+        /**
+         * @return 已经到期时返回false 由调用方执行
+         */
+        private boolean add(Timeout timeout) {
+            long expiration = timeout.expiration;
+            if (timeout.cancelled) {
+                return false;
+            }
+            if (expiration < currentTime + tickMillis) {
+                return false;
+            }
+            if (expiration < currentTime + intervalMillis) {
+                long virtualId = expiration / tickMillis;
+                Bucket bucket = buckets[(int) (virtualId % wheelSize)];
+                bucket.add(timeout);
+                //槽的到期时间变化说明是新一轮 重新放入队列
+                if (bucket.setExpiration(virtualId * tickMillis)) {
+                    queue.offer(bucket);
+                }
+                return true;
+            }
+            return this.overflow().add(timeout);
+        }
+
+        private Level overflow() {
+            if (overflow == null) {
+                synchronized (this) {
+                    if (overflow == null) {
+                        overflow = new Level(intervalMillis, wheelSize, currentTime);
+                    }
+                }
+            }
+            return overflow;
+        }
+
+        private void advance(long timeMillis) {
+            if (timeMillis >= currentTime + tickMillis) {
+                currentTime = timeMillis - timeMillis % tickMillis;
+                if (overflow != null) {
+                    overflow.advance(currentTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个槽 同一轮内的任务共用一个到期时间
+     */
+    private static class Bucket implements Delayed {
+
+        private final ConcurrentLinkedQueue<Timeout> timeouts = new ConcurrentLinkedQueue<>();
+
+        private final AtomicLong expiration = new AtomicLong(-1L);
+
+        private void add(Timeout timeout) {
+            timeouts.add(timeout);
+        }
+
+        private boolean setExpiration(long expirationMillis) {
+            return expiration.getAndSet(expirationMillis) != expirationMillis;
+        }
+
+        /**
+         * 先取出全部任务并重置到期时间 重新加入的任务可能落回本槽的下一轮
+         */
+        private void flush(Consumer<Timeout> consumer) {
+            List<Timeout> drained = new ArrayList<>();
+            Timeout timeout;
+            while ((timeout = timeouts.poll()) != null) {
+                drained.add(timeout);
+            }
+            expiration.set(-1L);
+            drained.forEach(consumer);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(Math.max(0L, expiration.get() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(expiration.get(), ((Bucket) other).expiration.get());
+        }
+    }
+
+    /**
+     * 已添加的任务
+     */
+    public static class Timeout {
+
+        private final long expiration;
+
+        /**
+         * 取消时置空 已取消的任务在槽到期前不再引用任务捕获的对象
+         */
+        private volatile Runnable task;
+
+        private volatile boolean cancelled;
+
+        private Timeout(long expiration, Runnable task) {
+            this.expiration = expiration;
+            this.task = task;
+        }
+
+        /**
+         * 取消 只剩下不带任务的空壳留在槽中直到槽到期，到期时跳过
+         * 任务捕获的结果等对象在取消后即可回收，不会被保留到原来的到期时间
+         */
+        public void cancel() {
+            cancelled = true;
+            task = null;
+        }
+    }
+}
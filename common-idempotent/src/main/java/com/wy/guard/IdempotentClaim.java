@@ -0,0 +1,93 @@
+package com.wy.guard;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentClaim
+ * @Description 一次抢占的结果
+ * @Date 2021/6/11 10:12
+ */
+public class IdempotentClaim {
+
+    /**
+     * 抢占状态
+     */
+    public enum Status {
+
+        /**
+         * 已有成功结果，直接返回
+         */
+        RESULT,
+
+        /**
+         * 获得执行权
+         */
+        ACQUIRED,
+
+        /**
+         * 其他请求正在执行
+         */
+        BUSY,
+        ;
+    }
+
+    private final String key;
+
+    private final Status status;
+
+    private final byte[] result;
+
+    /**
+     * 持有的锁或租约 由具体的 {@link IdempotentGuard} 解释
+     */
+    private final Object handle;
+
+    private boolean released;
+
+    /**
+     * 等锁耗时 单位纳秒 不包含读取结果的耗时
+     */
+    private long waitNanos;
+
+    public IdempotentClaim(String key, Status status, byte[] result, Object handle) {
+        this.key = key;
+        this.status = status;
+        this.result = result;
+        this.handle = handle;
+    }
+
+    public static IdempotentClaim busy(String key) {
+        return new IdempotentClaim(key, Status.BUSY, null, null);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public byte[] getResult() {
+        return result;
+    }
+
+    public Object getHandle() {
+        return handle;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    public void setReleased(boolean released) {
+        this.released = released;
+    }
+
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    public void setWaitNanos(long waitNanos) {
+        this.waitNanos = waitNanos;
+    }
+}
@@ -0,0 +1,100 @@
+package com.wy.guard;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentCompletionNotifier
+ * @Description 跨节点的完成通知 key执行完成或放弃时由lua脚本publish，其他节点的等待者被唤醒后重新抢占
+ * @Date 2021/6/15 16:40
+ */
+@Slf4j
+public class IdempotentCompletionNotifier implements DisposableBean {
+
+    private final String channel;
+
+    private final RTopic topic;
+
+    private final int listenerId;
+
+    private final ConcurrentMap<String, CompletableFuture<Void>> waiters = new ConcurrentHashMap<>(256);
+
+    public IdempotentCompletionNotifier(RedissonClient redisson, String channel) {
+        this.channel = channel;
+        this.topic = redisson.getTopic(channel, StringCodec.INSTANCE);
+        this.listenerId = topic.addListener(String.class, (ch, key) -> {
+            CompletableFuture<Void> signal = waiters.remove(key);
+            if (signal != null) {
+                signal.complete(null);
+            }
+        });
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * 在检查key状态之前登记 避免检查与等待之间的通知丢失
+     *
+     * @param key requestId:appCode
+     * @return 信号
+     */
+    public CompletableFuture<Void> register(String key) {
+        return waiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+    }
+
+    /**
+     * 不再等待信号 异步等待超时后调用
+     *
+     * @param key    requestId:appCode
+     * @param signal {@link #register} 返回的信号
+     */
+    public void unregister(String key, CompletableFuture<Void> signal) {
+        waiters.remove(key, signal);
+    }
+
+    /**
+     * 等待信号
+     *
+     * @param key         requestId:appCode
+     * @param signal      {@link #register} 返回的信号
+     * @param waitMillis  最长等待时间
+     * @return 是否收到通知
+     */
+    public boolean await(String key, CompletableFuture<Void> signal, long waitMillis) {
+        try {
+            signal.get(waitMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            waiters.remove(key, signal);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            waiters.remove(key, signal);
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            topic.removeListener(listenerId);
+        } catch (Exception e) {
+            log.warn("移除完成通知监听失败 channel [{}]", channel, e);
+        }
+    }
+}
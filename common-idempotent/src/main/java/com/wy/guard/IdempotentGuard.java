@@ -0,0 +1,141 @@
+package com.wy.guard;
+
+import com.wy.aop.IdempoentKey;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentGuard
+ * @Description 幂等key的抢占与结果存储
+ * @Date 2021/6/11 10:05
+ */
+public interface IdempotentGuard {
+
+    /**
+     * {@link com.wy.config.IdempotentProperties.GuardMode#DB_CLAIM} 模式使用 抢占由库表唯一约束完成，切面不会调用guard
+     */
+    IdempotentGuard NONE = new IdempotentGuard() {
+        @Override
+        public IdempotentClaim claim(String key, IdempoentKey idempoentKey) {
+            throw new IllegalStateException("DB_CLAIM模式不使用IdempotentGuard");
+        }
+
+        @Override
+        public void complete(IdempotentClaim claim, byte[] result, Duration ttl) {
+        }
+
+        @Override
+        public void release(IdempotentClaim claim) {
+        }
+    };
+
+    /**
+     * 抢占key 已有成功结果时返回结果，否则在 {@link IdempoentKey#timeout()} 内尝试获得执行权
+     *
+     * @param key          requestId:appCode
+     * @param idempoentKey 注解
+     * @return {@link IdempotentClaim}
+     */
+    IdempotentClaim claim(String key, IdempoentKey idempoentKey);
+
+    /**
+     * 保存成功结果
+     *
+     * @param claim  {@link IdempotentClaim.Status#ACQUIRED} 状态的抢占
+     * @param result 编码后的结果
+     * @param ttl    结果保存时间
+     */
+    void complete(IdempotentClaim claim, byte[] result, Duration ttl);
+
+    /**
+     * 释放执行权 已释放的不再处理
+     *
+     * @param claim 抢占
+     */
+    void release(IdempotentClaim claim);
+
+    /**
+     * 异步抢占 等待期间不占用调用线程
+     * 默认在executor中执行 {@link #claim}，支持异步加锁的实现应当覆盖
+     *
+     * @param key          requestId:appCode
+     * @param idempoentKey 注解
+     * @param executor     执行阻塞调用的线程池 不使用公共线程池
+     * @return {@link IdempotentClaim}
+     */
+    default CompletableFuture<IdempotentClaim> claimAsync(String key, IdempoentKey idempoentKey, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> this.claim(key, idempoentKey), executor);
+    }
+
+    /**
+     * 异步释放执行权 完成回调可能在任意线程执行，不能依赖当前线程持有锁
+     *
+     * @param claim {@link #claimAsync} 返回的抢占
+     */
+    default void releaseAsync(IdempotentClaim claim) {
+        this.release(claim);
+    }
+
+    /**
+     * 批量读取成功结果 不加锁，用于批量请求在抢占前过滤已完成的key
+     * 默认返回空，由 {@link #claimAll} 读取
+     *
+     * @param keys         requestId:appCode
+     * @param idempoentKey 注解 与 {@link #claimAll} 相同，按其结果保存时间定位结果
+     * @return 有结果的key
+     */
+    default Map<String, byte[]> getAll(List<String> keys, IdempoentKey idempoentKey) {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * 批量抢占 所有key同时等锁，默认对每个key调用 {@link #claimAsync}
+     * 返回的抢占需要通过 {@link #releaseAsync} 释放
+     *
+     * @param keys         requestId:appCode
+     * @param idempoentKey 注解
+     * @param executor     执行阻塞调用的线程池
+     * @return 与keys顺序一致的抢占结果
+     */
+    default List<IdempotentClaim> claimAll(List<String> keys, IdempoentKey idempoentKey, Executor executor) {
+        List<CompletableFuture<IdempotentClaim>> futures = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            futures.add(this.claimAsync(key, idempoentKey, executor));
+        }
+        List<IdempotentClaim> claims = new ArrayList<>(keys.size());
+        RuntimeException failure = null;
+        for (CompletableFuture<IdempotentClaim> future : futures) {
+            try {
+                claims.add(future.join());
+            } catch (CompletionException e) {
+                failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        if (failure != null) {
+            //部分失败时释放已经获得的执行权
+            claims.forEach(this::releaseAsync);
+            throw failure;
+        }
+        return claims;
+    }
+
+    /**
+     * 批量保存成功结果 默认逐条调用 {@link #complete}
+     *
+     * @param results 抢占与编码后的结果
+     * @param ttl     结果保存时间
+     */
+    default void completeAll(Map<IdempotentClaim, byte[]> results, Duration ttl) {
+        for (Map.Entry<IdempotentClaim, byte[]> entry : results.entrySet()) {
+            this.complete(entry.getKey(), entry.getValue(), ttl);
+        }
+    }
+}
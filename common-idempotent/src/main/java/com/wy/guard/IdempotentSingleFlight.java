@@ -0,0 +1,85 @@
+package com.wy.guard;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentSingleFlight
+ * @Description 同一jvm内相同key的并发请求合并，只有第一个请求真正执行，其余请求等待它的结果
+ * 传递的是编码后的结果，每个等待者各自解码
+ * @Date 2021/6/15 16:10
+ */
+public class IdempotentSingleFlight {
+
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<>(256);
+
+    /**
+     * 加入key对应的执行
+     *
+     * @param key requestId:appCode
+     * @return {@link Flight#isLeader()} 为true时由调用方执行并通过 {@link #land} 结束
+     */
+    public Flight join(String key) {
+        Flight flight = new Flight(key, true);
+        Flight existing = inFlight.putIfAbsent(key, flight);
+        if (existing == null) {
+            return flight;
+        }
+        return new Flight(key, false, existing.future);
+    }
+
+    /**
+     * 正常结束 通知等待者
+     *
+     * @param flight 执行者
+     * @param bytes  编码后的结果，可以为null
+     */
+    public void land(Flight flight, byte[] bytes) {
+        inFlight.remove(flight.key, flight);
+        flight.future.complete(bytes);
+    }
+
+    /**
+     * 异常结束 等待者收到同样的异常
+     *
+     * @param flight    执行者
+     * @param throwable 异常
+     */
+    public void crash(Flight flight, Throwable throwable) {
+        inFlight.remove(flight.key, flight);
+        flight.future.completeExceptionally(throwable);
+    }
+
+    public int size() {
+        return inFlight.size();
+    }
+
+    public static class Flight {
+
+        private final String key;
+
+        private final boolean leader;
+
+        private final CompletableFuture<byte[]> future;
+
+        private Flight(String key, boolean leader) {
+            this(key, leader, new CompletableFuture<>());
+        }
+
+        private Flight(String key, boolean leader, CompletableFuture<byte[]> future) {
+            this.key = key;
+            this.leader = leader;
+            this.future = future;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        public CompletableFuture<byte[]> getFuture() {
+            return future;
+        }
+    }
+}
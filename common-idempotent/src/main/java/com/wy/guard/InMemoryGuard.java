@@ -0,0 +1,299 @@
+package com.wy.guard;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.store.IdempotentResultStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.wy.exception.RedisLockException.REQUEST_IS_REPEAT;
+
+/**
+ * @author wangyong
+ * @Classname InMemoryGuard
+ * @Description 单实例的进程内实现 不依赖redis
+ * key对应一个租约或一个成功结果，读取结果只有一次ConcurrentHashMap的get，抢占为一次CAS
+ * 租约和结果的过期由 {@link HierarchicalTimingWheel} 驱动，不为每个key创建定时任务
+ * 等待中的请求挂在租约的完成信号上，租约完成、释放或过期时唤醒
+ * 指定 {@link IdempotentResultStore} 时成功结果同时写入该存储，内存中没有的key从存储中读取，重启后已完成的请求仍然幂等
+ * @Date 2021/6/30 11:00
+ */
+@Slf4j
+public class InMemoryGuard implements IdempotentGuard, DisposableBean {
+
+    private final ConcurrentHashMap<String, Slot> slots;
+
+    private final HierarchicalTimingWheel timingWheel;
+
+    /**
+     * 持久化的结果存储 为空时结果只保存在内存中
+     */
+    private final IdempotentResultStore resultStore;
+
+    /**
+     * 注解没有指定 {@link IdempoentKey#resultTtl()} 时的结果保存时间 只用于从resultStore读取
+     */
+    private final Duration defaultResultTtl;
+
+    /**
+     * @param initialCapacity 初始容量
+     * @param tickMillis      时间轮最底层一个槽的跨度
+     * @param wheelSize       时间轮每层的槽数
+     */
+    public InMemoryGuard(int initialCapacity, long tickMillis, int wheelSize) {
+        this(initialCapacity, tickMillis, wheelSize, null, Duration.ofMinutes(60L));
+    }
+
+    /**
+     * @param initialCapacity  初始容量
+     * @param tickMillis       时间轮最底层一个槽的跨度
+     * @param wheelSize        时间轮每层的槽数
+     * @param resultStore      持久化的结果存储 可以为空
+     * @param defaultResultTtl 默认的结果保存时间
+     */
+    public InMemoryGuard(int initialCapacity, long tickMillis, int wheelSize, IdempotentResultStore resultStore, Duration defaultResultTtl) {
+        this.slots = new ConcurrentHashMap<>(initialCapacity);
+        this.timingWheel = new HierarchicalTimingWheel(tickMillis, wheelSize, "idempotent-timing-wheel");
+        this.resultStore = resultStore;
+        this.defaultResultTtl = defaultResultTtl;
+    }
+
+    @Override
+    public IdempotentClaim claim(String key, IdempoentKey idempoentKey) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(idempoentKey.timeout());
+        while (true) {
+            IdempotentClaim claim = this.tryClaim(key, idempoentKey);
+            if (claim != null) {
+                claim.setWaitNanos(System.nanoTime() - start);
+                return claim;
+            }
+            Slot slot = slots.get(key);
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                IdempotentClaim busy = IdempotentClaim.busy(key);
+                busy.setWaitNanos(System.nanoTime() - start);
+                return busy;
+            }
+            if (slot instanceof Lease) {
+                try {
+                    ((Lease) slot).done.get(remaining, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException | ExecutionException e) {
+                    //超时后回到循环 再尝试一次
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw REQUEST_IS_REPEAT.get();
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待挂在租约的完成信号上 不占用线程，超时由时间轮触发
+     * 与 {@link #claim} 一样至少尝试一次，timeout为0时时间轮会立即执行超时任务，需要在尝试之后再登记
+     */
+    @Override
+    public CompletableFuture<IdempotentClaim> claimAsync(String key, IdempoentKey idempoentKey, Executor executor) {
+        CompletableFuture<IdempotentClaim> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        this.attemptAsync(key, idempoentKey, start, future, executor);
+        if (future.isDone()) {
+            return future;
+        }
+        HierarchicalTimingWheel.Timeout timeout = timingWheel.schedule(idempoentKey.timeout(), () -> {
+            IdempotentClaim busy = IdempotentClaim.busy(key);
+            busy.setWaitNanos(System.nanoTime() - start);
+            //不在时间轮线程中执行后续逻辑
+            executor.execute(() -> future.complete(busy));
+        });
+        future.whenComplete((claim, e) -> timeout.cancel());
+        return future;
+    }
+
+    private void attemptAsync(String key, IdempoentKey idempoentKey, long start, CompletableFuture<IdempotentClaim> future, Executor executor) {
+        while (!future.isDone()) {
+            IdempotentClaim claim = this.tryClaim(key, idempoentKey);
+            if (claim != null) {
+                claim.setWaitNanos(System.nanoTime() - start);
+                //等待已经超时 放弃刚获得的执行权
+                if (!future.complete(claim)) {
+                    this.release(claim);
+                }
+                return;
+            }
+            Slot slot = slots.get(key);
+            if (slot instanceof Lease) {
+                ((Lease) slot).done.whenCompleteAsync((v, e) -> this.attemptAsync(key, idempoentKey, start, future, executor), executor);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 一次尝试 有结果或获得租约时返回，被占用返回null
+     */
+    private IdempotentClaim tryClaim(String key, IdempoentKey idempoentKey) {
+        Slot slot = slots.get(key);
+        if (slot instanceof Result && !slot.isExpired()) {
+            return new IdempotentClaim(key, IdempotentClaim.Status.RESULT, ((Result) slot).bytes, null);
+        }
+        if (slot instanceof Lease && !slot.isExpired()) {
+            return null;
+        }
+        if (resultStore != null) {
+            byte[] stored = resultStore.get(key, this.resultTtl(idempoentKey));
+            if (stored != null) {
+                return new IdempotentClaim(key, IdempotentClaim.Status.RESULT, stored, null);
+            }
+        }
+        Lease lease = new Lease(System.currentTimeMillis() + idempoentKey.keeps());
+        boolean acquired = slot == null ? slots.putIfAbsent(key, lease) == null : slots.replace(key, slot, lease);
+        if (!acquired) {
+            return null;
+        }
+        if (slot instanceof Lease) {
+            ((Lease) slot).done.complete(null);
+        }
+        lease.expiry = timingWheel.schedule(idempoentKey.keeps(), () -> this.expireLease(key, lease));
+        return new IdempotentClaim(key, IdempotentClaim.Status.ACQUIRED, null, lease);
+    }
+
+    private void expireLease(String key, Lease lease) {
+        if (slots.remove(key, lease)) {
+            log.warn("幂等key [{}] 持有时间超过keeps 租约过期", key);
+        }
+        lease.done.complete(null);
+    }
+
+    @Override
+    public Map<String, byte[]> getAll(List<String> keys, IdempoentKey idempoentKey) {
+        Map<String, byte[]> found = new HashMap<>(keys.size() * 2);
+        for (String key : keys) {
+            Slot slot = slots.get(key);
+            if (slot instanceof Result && !slot.isExpired()) {
+                found.put(key, ((Result) slot).bytes);
+            }
+        }
+        if (resultStore != null && found.size() < keys.size()) {
+            List<String> missing = new ArrayList<>(keys.size() - found.size());
+            for (String key : keys) {
+                if (!found.containsKey(key)) {
+                    missing.add(key);
+                }
+            }
+            found.putAll(resultStore.getAll(missing, this.resultTtl(idempoentKey)));
+        }
+        return found;
+    }
+
+    private Duration resultTtl(IdempoentKey idempoentKey) {
+        return idempoentKey.resultTtl() > 0 ? Duration.ofMillis(idempoentKey.resultTtl()) : defaultResultTtl;
+    }
+
+    /**
+     * 与redis的set一致 租约已经过期时同样写入结果
+     */
+    @Override
+    public void complete(IdempotentClaim claim, byte[] result, Duration ttl) {
+        String key = claim.getKey();
+        Lease lease = (Lease) claim.getHandle();
+        if (resultStore != null) {
+            //先落盘再唤醒等待者
+            resultStore.put(key, result, ttl);
+        }
+        Result stored = new Result(result, System.currentTimeMillis() + ttl.toMillis());
+        if (!slots.replace(key, lease, stored)) {
+            Slot displaced = slots.put(key, stored);
+            if (displaced instanceof Lease) {
+                ((Lease) displaced).done.complete(null);
+            } else if (displaced != null && displaced.expiry != null) {
+                displaced.expiry.cancel();
+            }
+        }
+        stored.expiry = timingWheel.schedule(ttl.toMillis(), () -> slots.remove(key, stored));
+        if (lease.expiry != null) {
+            lease.expiry.cancel();
+        }
+        lease.done.complete(null);
+        claim.setReleased(true);
+    }
+
+    @Override
+    public void release(IdempotentClaim claim) {
+        if (claim.isReleased() || claim.getHandle() == null) {
+            return;
+        }
+        claim.setReleased(true);
+        Lease lease = (Lease) claim.getHandle();
+        if (slots.remove(claim.getKey(), lease) && lease.expiry != null) {
+            lease.expiry.cancel();
+        }
+        lease.done.complete(null);
+    }
+
+    /**
+     * 当前的key数 包含租约
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    @Override
+    public void destroy() {
+        timingWheel.stop();
+    }
+
+    private abstract static class Slot {
+
+        private final long expireAt;
+
+        /**
+         * 时间轮中的过期任务
+         */
+        volatile HierarchicalTimingWheel.Timeout expiry;
+
+        private Slot(long expireAt) {
+            this.expireAt = expireAt;
+        }
+
+        /**
+         * 时间轮按槽的精度触发 读取时再按时间判断一次
+         */
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expireAt;
+        }
+    }
+
+    private static class Lease extends Slot {
+
+        /**
+         * 完成、释放或过期时完成
+         */
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Lease(long expireAt) {
+            super(expireAt);
+        }
+    }
+
+    private static class Result extends Slot {
+
+        private final byte[] bytes;
+
+        private Result(byte[] bytes, long expireAt) {
+            super(expireAt);
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.wy.guard;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.wy.aop.IdempoentKey;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.wy.exception.RedisLockException.REQUEST_IS_REPEAT;
+
+/**
+ * @author wangyong
+ * @Classname LuaScriptGuard
+ * @Description lua脚本实现 查询结果与抢占租约在一次调用内完成，保存结果与释放租约在一次调用内完成
+ * key使用hash tag {requestId:appCode} 保证结果与租约在redis集群的同一个slot
+ * @Date 2021/6/11 11:20
+ */
+@Slf4j
+public class LuaScriptGuard implements IdempotentGuard, DisposableBean {
+
+    /**
+     * 有结果返回 {1, result}，抢到租约返回 {0}，被占用返回 {2, 租约剩余毫秒}
+     */
+    private static final String CLAIM_SCRIPT =
+            "local v = redis.call('get', KEYS[1]); " +
+            "if v then return {1, v}; end; " +
+            "if redis.call('set', KEYS[2], ARGV[1], 'NX', 'PX', ARGV[2]) then return {0}; end; " +
+            "return {2, redis.call('pttl', KEYS[2])};";
+
+    /**
+     * 只有仍然持有租约时才写入结果 租约已过期或被其他请求抢占时返回0
+     * ARGV[4] 不为空时向该channel发布完成通知 内容为ARGV[5]
+     */
+    private static final String COMPLETE_SCRIPT =
+            "if redis.call('get', KEYS[2]) ~= ARGV[1] then return 0; end; " +
+            "redis.call('set', KEYS[1], ARGV[2], 'PX', ARGV[3]); " +
+            "redis.call('del', KEYS[2]); " +
+            "if ARGV[4] ~= '' then redis.call('publish', ARGV[4], ARGV[5]); end; " +
+            "return 1;";
+
+    /**
+     * ARGV[2] 不为空时向该channel发布放弃通知 内容为ARGV[3]
+     */
+    private static final String RELEASE_SCRIPT =
+            "if redis.call('get', KEYS[2]) == ARGV[1] then " +
+            "redis.call('del', KEYS[2]); " +
+            "if ARGV[2] ~= '' then redis.call('publish', ARGV[2], ARGV[3]); end; " +
+            "return 1; end; " +
+            "return 0;";
+
+    private static final byte[] NO_CHANNEL = new byte[0];
+
+    private static final long CLAIM_RESULT = 1L;
+
+    private static final long CLAIM_ACQUIRED = 0L;
+
+    /**
+     * 租约被占用时的重试间隔
+     */
+    private static final long RETRY_INTERVAL_MILLIS = 50L;
+
+    private final RedissonClient redisson;
+
+    /**
+     * 跨节点完成通知 为空时被占用的请求按固定间隔重试
+     */
+    private final IdempotentCompletionNotifier notifier;
+
+    private final byte[] channel;
+
+    /**
+     * 异步抢占的重试与等待超时定时器 只负责发起下一次evalAsync
+     */
+    private final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("idempotent-lua-retry-%d").setDaemon(true).build());
+
+    public LuaScriptGuard(RedissonClient redisson) {
+        this(redisson, null);
+    }
+
+    public LuaScriptGuard(RedissonClient redisson, IdempotentCompletionNotifier notifier) {
+        this.redisson = redisson;
+        this.notifier = notifier;
+        this.channel = notifier == null ? NO_CHANNEL : notifier.getChannel().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 结果key
+     */
+    public static String resultKey(String key) {
+        return "{" + key + "}:result";
+    }
+
+    /**
+     * 租约key
+     */
+    public static String leaseKey(String key) {
+        return "{" + key + "}:lease";
+    }
+
+    @Override
+    public IdempotentClaim claim(String key, IdempoentKey idempoentKey) {
+        List<Object> keys = Arrays.asList(resultKey(key), leaseKey(key));
+        byte[] token = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+        byte[] leaseMillis = String.valueOf(idempoentKey.keeps()).getBytes(StandardCharsets.UTF_8);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(idempoentKey.timeout());
+        CompletableFuture<Void> signal = null;
+        long start = System.nanoTime();
+        while (true) {
+            List<Object> reply;
+            //lua脚本一次往返同时抢占和读取结果 最后一次尝试之前的时间都算作等锁
+            long waitNanos = System.nanoTime() - start;
+            //被中断时park和await都会立即返回 保留中断标记按未获得执行权返回，不再重试
+            if (Thread.currentThread().isInterrupted()) {
+                IdempotentClaim busy = IdempotentClaim.busy(key);
+                busy.setWaitNanos(waitNanos);
+                return busy;
+            }
+            try {
+                reply = this.script().eval(RScript.Mode.READ_WRITE, CLAIM_SCRIPT, RScript.ReturnType.MULTI, keys, token, leaseMillis);
+            } catch (Exception e) {
+                log.error("lock fail ", e);
+                throw REQUEST_IS_REPEAT.get();
+            }
+            long status = (Long) reply.get(0);
+            IdempotentClaim claim = null;
+            if (status == CLAIM_RESULT) {
+                claim = new IdempotentClaim(key, IdempotentClaim.Status.RESULT, (byte[]) reply.get(1), null);
+            } else if (status == CLAIM_ACQUIRED) {
+                claim = new IdempotentClaim(key, IdempotentClaim.Status.ACQUIRED, null, token);
+            } else if (deadline - System.nanoTime() <= 0) {
+                claim = IdempotentClaim.busy(key);
+            }
+            if (claim != null) {
+                claim.setWaitNanos(waitNanos);
+                return claim;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (notifier == null) {
+                LockSupport.parkNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL_MILLIS)));
+                continue;
+            }
+            //先登记再重试一次 之后等待其他节点的完成通知
+            if (signal == null) {
+                signal = notifier.register(key);
+                continue;
+            }
+            //持有者崩溃时不会有通知 最多等到租约过期再重试
+            notifier.await(key, signal, awaitMillis(reply, remaining));
+            signal = null;
+        }
+    }
+
+    /**
+     * evalAsync抢占 被占用时挂在完成通知或重试定时器上，等待期间不占用任何线程
+     */
+    @Override
+    public CompletableFuture<IdempotentClaim> claimAsync(String key, IdempoentKey idempoentKey, Executor executor) {
+        AsyncAttempt attempt = new AsyncAttempt(key, idempoentKey);
+        attempt.run();
+        return attempt.future;
+    }
+
+    /**
+     * 一次MGET 集群模式下redisson按slot拆分
+     */
+    @Override
+    public Map<String, byte[]> getAll(List<String> keys, IdempoentKey idempoentKey) {
+        String[] resultKeys = new String[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            resultKeys[i] = resultKey(keys.get(i));
+        }
+        Map<String, byte[]> values = redisson.getBuckets(ByteArrayCodec.INSTANCE).get(resultKeys);
+        Map<String, byte[]> found = new HashMap<>(values.size() * 2);
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] bytes = values.get(resultKeys[i]);
+            if (bytes != null) {
+                found.put(keys.get(i), bytes);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void complete(IdempotentClaim claim, byte[] result, Duration ttl) {
+        byte[] ttlMillis = String.valueOf(ttl.toMillis()).getBytes(StandardCharsets.UTF_8);
+        Long written = this.script().eval(RScript.Mode.READ_WRITE, COMPLETE_SCRIPT, RScript.ReturnType.INTEGER,
+                Arrays.asList(resultKey(claim.getKey()), leaseKey(claim.getKey())), claim.getHandle(), result, ttlMillis,
+                channel, claim.getKey().getBytes(StandardCharsets.UTF_8));
+        claim.setReleased(true);
+        if (written == null || written == 0L) {
+            //执行时间超过了租约 结果以落库的为准
+            log.warn("租约已失效，结果未写入redis key [{}]", claim.getKey());
+        }
+    }
+
+    @Override
+    public void release(IdempotentClaim claim) {
+        if (claim.isReleased() || claim.getHandle() == null) {
+            return;
+        }
+        claim.setReleased(true);
+        try {
+            this.script().eval(RScript.Mode.READ_WRITE, RELEASE_SCRIPT, RScript.ReturnType.INTEGER,
+                    Arrays.asList(resultKey(claim.getKey()), leaseKey(claim.getKey())), claim.getHandle(),
+                    channel, claim.getKey().getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            log.error("释放租约失败 key [{}]", claim.getKey(), e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        retryTimer.shutdownNow();
+        if (notifier != null) {
+            notifier.destroy();
+        }
+    }
+
+    private RScript script() {
+        return redisson.getScript(ByteArrayCodec.INSTANCE);
+    }
+
+    /**
+     * 等待完成通知的时间 不超过剩余等待时间和租约的剩余时间
+     */
+    private static long awaitMillis(List<Object> reply, long remainingNanos) {
+        long remaining = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+        if (reply.size() < 2 || !(reply.get(1) instanceof Long)) {
+            return Math.min(remaining, RETRY_INTERVAL_MILLIS);
+        }
+        //pttl为-1时租约没有过期时间 按重试间隔轮询
+        long pttl = (Long) reply.get(1);
+        return Math.min(remaining, pttl < 0 ? RETRY_INTERVAL_MILLIS : Math.max(1L, pttl));
+    }
+
+    /**
+     * 一次异步抢占 每轮evalAsync的回调决定完成、定时重试或等待完成通知
+     */
+    private class AsyncAttempt implements Runnable {
+
+        private final String key;
+
+        private final List<Object> keys;
+
+        private final byte[] token = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+
+        private final byte[] leaseMillis;
+
+        private final long start = System.nanoTime();
+
+        private final long deadline;
+
+        private final CompletableFuture<IdempotentClaim> future = new CompletableFuture<>();
+
+        private volatile CompletableFuture<Void> signal;
+
+        private volatile long waitNanos;
+
+        private AsyncAttempt(String key, IdempoentKey idempoentKey) {
+            this.key = key;
+            this.keys = Arrays.asList(resultKey(key), leaseKey(key));
+            this.leaseMillis = String.valueOf(idempoentKey.keeps()).getBytes(StandardCharsets.UTF_8);
+            this.deadline = start + TimeUnit.MILLISECONDS.toNanos(idempoentKey.timeout());
+        }
+
+        @Override
+        public void run() {
+            waitNanos = System.nanoTime() - start;
+            try {
+                script().<List<Object>>evalAsync(RScript.Mode.READ_WRITE, CLAIM_SCRIPT, RScript.ReturnType.MULTI, keys, token, leaseMillis)
+                        .whenComplete(this::onReply);
+            } catch (Exception e) {
+                this.onReply(null, e);
+            }
+        }
+
+        private void onReply(List<Object> reply, Throwable e) {
+            if (e != null) {
+                log.error("lock fail ", e);
+                future.completeExceptionally(REQUEST_IS_REPEAT.get());
+                return;
+            }
+            long status = (Long) reply.get(0);
+            IdempotentClaim claim = null;
+            if (status == CLAIM_RESULT) {
+                claim = new IdempotentClaim(key, IdempotentClaim.Status.RESULT, (byte[]) reply.get(1), null);
+            } else if (status == CLAIM_ACQUIRED) {
+                claim = new IdempotentClaim(key, IdempotentClaim.Status.ACQUIRED, null, token);
+            } else if (deadline - System.nanoTime() <= 0) {
+                claim = IdempotentClaim.busy(key);
+            }
+            if (claim != null) {
+                claim.setWaitNanos(waitNanos);
+                future.complete(claim);
+                return;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (notifier == null) {
+                this.schedule(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL_MILLIS)));
+                return;
+            }
+            //先登记再重试一次 之后等待其他节点的完成通知
+            CompletableFuture<Void> current = signal;
+            if (current == null) {
+                signal = notifier.register(key);
+                this.run();
+                return;
+            }
+            AtomicBoolean woken = new AtomicBoolean();
+            ScheduledFuture<?> timer = this.schedule(() -> {
+                if (woken.compareAndSet(false, true)) {
+                    notifier.unregister(key, current);
+                    signal = null;
+                    this.run();
+                }
+            }, TimeUnit.MILLISECONDS.toNanos(awaitMillis(reply, remaining)));
+            if (timer == null) {
+                return;
+            }
+            current.whenComplete((v, error) -> {
+                if (woken.compareAndSet(false, true)) {
+                    timer.cancel(false);
+                    signal = null;
+                    this.run();
+                }
+            });
+        }
+
+        /**
+         * @return 定时器已关闭时返回null 抢占以失败结束
+         */
+        private ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+            try {
+                return retryTimer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(REQUEST_IS_REPEAT.get());
+                return null;
+            }
+        }
+    }
+}
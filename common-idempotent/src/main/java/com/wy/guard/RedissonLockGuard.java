@@ -0,0 +1,253 @@
+package com.wy.guard;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.store.IdempotentResultStore;
+import com.wy.store.StringResultStore;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.wy.exception.RedisLockException.REQUEST_IS_REPEAT;
+
+/**
+ * @author wangyong
+ * @Classname RedissonLockGuard
+ * @Description 默认实现 redisson分布式锁 + {@link IdempotentResultStore} 存储结果 默认为redis字符串
+ * @Date 2021/6/11 10:30
+ */
+@Slf4j
+public class RedissonLockGuard implements IdempotentGuard {
+
+    private final RedissonClient redisson;
+
+    private final IdempotentResultStore resultStore;
+
+    /**
+     * 注解没有指定 {@link IdempoentKey#resultTtl()} 时的结果保存时间
+     */
+    private final Duration defaultResultTtl;
+
+    /**
+     * 异步加锁使用的持有者id 取负数避免与真实线程id冲突
+     */
+    private final AtomicLong asyncOwner = new AtomicLong();
+
+    public RedissonLockGuard(RedissonClient redisson, RedisTemplate<String, byte[]> redisTemplate) {
+        this(redisson, new StringResultStore(redisTemplate), Duration.ofMinutes(60L));
+    }
+
+    public RedissonLockGuard(RedissonClient redisson, IdempotentResultStore resultStore, Duration defaultResultTtl) {
+        this.redisson = redisson;
+        this.resultStore = resultStore;
+        this.defaultResultTtl = defaultResultTtl;
+    }
+
+    /**
+     * 锁的key 与结果的key分开，结果为字符串时不能与锁的hash共用一个key
+     */
+    public static String lockKey(String key) {
+        return key + ":lock";
+    }
+
+    @Override
+    public IdempotentClaim claim(String key, IdempoentKey idempoentKey) {
+        RLock lock = redisson.getLock(lockKey(key));
+        boolean locked;
+        long start = System.nanoTime();
+        try {
+            locked = lock.tryLock(idempoentKey.timeout(), idempoentKey.keeps(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.error("lock fail ", e);
+            throw REQUEST_IS_REPEAT.get();
+        }
+        long waitNanos = System.nanoTime() - start;
+        if (!locked) {
+            IdempotentClaim busy = IdempotentClaim.busy(key);
+            busy.setWaitNanos(waitNanos);
+            return busy;
+        }
+        try {
+            //只有处理正确的结果才会进行redis的存储
+            byte[] bytes = resultStore.get(key, this.resultTtl(idempoentKey));
+            IdempotentClaim claim = new IdempotentClaim(key, bytes != null ? IdempotentClaim.Status.RESULT : IdempotentClaim.Status.ACQUIRED, bytes, lock);
+            claim.setWaitNanos(waitNanos);
+            return claim;
+        } catch (RuntimeException e) {
+            this.unlock(lock);
+            throw e;
+        }
+    }
+
+    /**
+     * tryLockAsync 等锁期间不占用线程，锁的持有者是生成的id而不是当前线程，完成回调在任意线程都能解锁
+     */
+    @Override
+    public CompletableFuture<IdempotentClaim> claimAsync(String key, IdempoentKey idempoentKey, Executor executor) {
+        RLock lock = redisson.getLock(lockKey(key));
+        long owner = -asyncOwner.incrementAndGet();
+        AsyncHandle handle = new AsyncHandle(lock, owner);
+        long start = System.nanoTime();
+        return lock.tryLockAsync(idempoentKey.timeout(), idempoentKey.keeps(), TimeUnit.MILLISECONDS, owner)
+                .toCompletableFuture()
+                //结果读取是同步调用 不在redisson的io线程和公共线程池中执行
+                .thenApplyAsync(locked -> {
+                    long waitNanos = System.nanoTime() - start;
+                    if (!Boolean.TRUE.equals(locked)) {
+                        IdempotentClaim busy = IdempotentClaim.busy(key);
+                        busy.setWaitNanos(waitNanos);
+                        return busy;
+                    }
+                    try {
+                        byte[] bytes = resultStore.get(key, this.resultTtl(idempoentKey));
+                        IdempotentClaim claim = new IdempotentClaim(key, bytes != null ? IdempotentClaim.Status.RESULT : IdempotentClaim.Status.ACQUIRED, bytes, handle);
+                        claim.setWaitNanos(waitNanos);
+                        return claim;
+                    } catch (RuntimeException e) {
+                        this.unlockAsync(handle);
+                        throw e;
+                    }
+                }, executor);
+    }
+
+    @Override
+    public void releaseAsync(IdempotentClaim claim) {
+        if (claim.isReleased() || claim.getHandle() == null) {
+            return;
+        }
+        claim.setReleased(true);
+        this.unlockAsync((AsyncHandle) claim.getHandle());
+    }
+
+    /**
+     * 一次批量读取 与 {@link #claimAll} 一样按注解的结果保存时间定位结果
+     */
+    @Override
+    public Map<String, byte[]> getAll(List<String> keys, IdempoentKey idempoentKey) {
+        return resultStore.getAll(keys, this.resultTtl(idempoentKey));
+    }
+
+    /**
+     * 所有key同时tryLockAsync，全部返回后对获得锁的key做一次批量读取
+     */
+    @Override
+    public List<IdempotentClaim> claimAll(List<String> keys, IdempoentKey idempoentKey, Executor executor) {
+        long owner = -asyncOwner.incrementAndGet();
+        List<AsyncHandle> handles = new ArrayList<>(keys.size());
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(keys.size());
+        long start = System.nanoTime();
+        for (String key : keys) {
+            RLock lock = redisson.getLock(lockKey(key));
+            handles.add(new AsyncHandle(lock, owner));
+            futures.add(lock.tryLockAsync(idempoentKey.timeout(), idempoentKey.keeps(), TimeUnit.MILLISECONDS, owner).toCompletableFuture());
+        }
+        List<String> lockedKeys = new ArrayList<>(keys.size());
+        boolean[] locked = new boolean[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            try {
+                locked[i] = Boolean.TRUE.equals(futures.get(i).join());
+            } catch (Exception e) {
+                log.error("lock fail ", e);
+            }
+            if (locked[i]) {
+                lockedKeys.add(keys.get(i));
+            }
+        }
+        long waitNanos = System.nanoTime() - start;
+        Map<String, byte[]> found;
+        try {
+            found = lockedKeys.isEmpty() ? new HashMap<>(0) : resultStore.getAll(lockedKeys, this.resultTtl(idempoentKey));
+        } catch (RuntimeException e) {
+            for (int i = 0; i < keys.size(); i++) {
+                if (locked[i]) {
+                    this.unlockAsync(handles.get(i));
+                }
+            }
+            throw e;
+        }
+        List<IdempotentClaim> claims = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            IdempotentClaim claim;
+            if (!locked[i]) {
+                claim = IdempotentClaim.busy(key);
+            } else {
+                byte[] bytes = found.get(key);
+                claim = new IdempotentClaim(key, bytes != null ? IdempotentClaim.Status.RESULT : IdempotentClaim.Status.ACQUIRED, bytes, handles.get(i));
+            }
+            claim.setWaitNanos(waitNanos);
+            claims.add(claim);
+        }
+        return claims;
+    }
+
+    /**
+     * 一次批量写入
+     */
+    @Override
+    public void completeAll(Map<IdempotentClaim, byte[]> results, Duration ttl) {
+        Map<String, byte[]> values = new LinkedHashMap<>(results.size() * 2);
+        for (Map.Entry<IdempotentClaim, byte[]> entry : results.entrySet()) {
+            values.put(entry.getKey().getKey(), entry.getValue());
+        }
+        resultStore.putAll(values, ttl);
+    }
+
+    @Override
+    public void complete(IdempotentClaim claim, byte[] result, Duration ttl) {
+        resultStore.put(claim.getKey(), result, ttl);
+    }
+
+    @Override
+    public void release(IdempotentClaim claim) {
+        if (claim.isReleased() || claim.getHandle() == null) {
+            return;
+        }
+        claim.setReleased(true);
+        this.unlock((RLock) claim.getHandle());
+    }
+
+    private Duration resultTtl(IdempoentKey idempoentKey) {
+        return idempoentKey.resultTtl() > 0 ? Duration.ofMillis(idempoentKey.resultTtl()) : defaultResultTtl;
+    }
+
+    private void unlock(RLock lock) {
+        try {
+            lock.unlock();
+        } catch (Exception e) {
+            String message = String.format("un lock fail and lock key %s . error detail message  ", lock.getName());
+            log.error(message, e);
+        }
+    }
+
+    private void unlockAsync(AsyncHandle handle) {
+        handle.lock.unlockAsync(handle.owner).whenComplete((v, e) -> {
+            if (e != null) {
+                log.error(String.format("un lock fail and lock key %s . error detail message  ", handle.lock.getName()), e);
+            }
+        });
+    }
+
+    private static class AsyncHandle {
+
+        private final RLock lock;
+
+        private final long owner;
+
+        private AsyncHandle(RLock lock, long owner) {
+            this.lock = lock;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.wy.jdbc;
+
+import com.wy.IdempotentService;
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.enums.IdempotentStatusEnum;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author wangyong
+ * @Classname JdbcIdempotentService
+ * @Description 基于jdbc的 {@link IdempotentService} 参考实现，表结构见 sql/idempotent.sql
+ * sql均为常量，配合驱动参数 cachePrepStmts=true&useServerPrepStmts=true&rewriteBatchedStatements=true
+ * 可以复用预编译语句并把批量插入改写为多值insert
+ * @Date 2021/6/21 10:30
+ */
+public class JdbcIdempotentService implements IdempotentService {
+
+    public static final String DEFAULT_TABLE = "t_idempotent";
+
+    public static final String DEFAULT_BODY_TABLE = "t_idempotent_body";
+
+    /**
+     * IN查询单次最多的参数个数
+     */
+    private static final int IN_CHUNK_SIZE = 500;
+
+    /**
+     * 只返回主键 RETURN_GENERATED_KEYS 在部分数据库上会带回created等有默认值的列
+     */
+    private static final String[] GENERATED_COLUMNS = {"id"};
+
+    private static final RowMapper<IdempotentContext> CONTEXT_ROW_MAPPER = (rs, rowNum) -> IdempotentContext.builder()
+            .id(rs.getLong("id"))
+            .requestId(rs.getString("request_id"))
+            .appCode(rs.getString("app_code"))
+            .requestDesc(rs.getString("request_desc"))
+            .businessNo(rs.getString("business_no"))
+            .businessType(rs.getString("business_type"))
+            .businessDesc(rs.getString("business_desc"))
+            .status(IdempotentStatusEnum.getByCode(rs.getInt("status")))
+            .build();
+
+    private static final RowMapper<IdempotentBodyContext> BODY_ROW_MAPPER = (rs, rowNum) -> {
+        Timestamp created = rs.getTimestamp("created");
+        return IdempotentBodyContext.builder()
+                .id(rs.getLong("id"))
+                .idempotentId(rs.getLong("idempotent_id"))
+                .requestParam(rs.getString("request_param"))
+                .responseBody(rs.getBytes("response_body"))
+                .createTime(created == null ? null : created.getTime())
+                .build();
+    };
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final String table;
+
+    private final String bodyTable;
+
+    private final String insertSql;
+
+    private final String insertBodySql;
+
+    private final String updateSql;
+
+    private final String reclaimSql;
+
+    private final String queryByReqIdSql;
+
+    private final String latestBodySql;
+
+    private final String queryByReqIdsSql;
+
+    private final String latestBodyIdsSql;
+
+    private final String bodyByIdsSql;
+
+    public JdbcIdempotentService(DataSource dataSource) {
+        this(new JdbcTemplate(dataSource), DEFAULT_TABLE, DEFAULT_BODY_TABLE);
+    }
+
+    /**
+     * @param jdbcTemplate jdbcTemplate
+     * @param table        幂等表名
+     * @param bodyTable    幂等参数表名
+     */
+    public JdbcIdempotentService(JdbcTemplate jdbcTemplate, String table, String bodyTable) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.table = table;
+        this.bodyTable = bodyTable;
+        this.insertSql = "insert into " + table
+                + " (request_id, app_code, request_desc, business_no, business_type, business_desc, status, modified)"
+                + " values (?, ?, ?, ?, ?, ?, ?, ?)";
+        this.insertBodySql = "insert into " + bodyTable
+                + " (idempotent_id, request_param, response_body) values (?, ?, ?)";
+        this.updateSql = "update " + table + " set status = ?, modified = ? where id = ?";
+        this.reclaimSql = "update " + table + " set status = ?, modified = ? where id = ?"
+                + " and (status = ? or (status = ? and (modified is null or modified < ?)))";
+        this.queryByReqIdSql = "select id, request_id, app_code, request_desc, business_no, business_type, business_desc, status"
+                + " from " + table + " where request_id = ? and app_code = ? and yn = 1";
+        //子查询只走 idx_idempotent_id 覆盖索引，外层按主键取一行
+        this.latestBodySql = "select id, idempotent_id, request_param, response_body, created from " + bodyTable
+                + " where id = (select max(id) from " + bodyTable + " where idempotent_id = ?)";
+        this.queryByReqIdsSql = "select id, request_id, app_code, request_desc, business_no, business_type, business_desc, status"
+                + " from " + table + " where app_code = ? and yn = 1 and request_id in (";
+        //批量时分两步 先走覆盖索引取每个幂等主键的最大id，再按主键取行
+        this.latestBodyIdsSql = "select max(id) from " + bodyTable + " where idempotent_id in (";
+        this.bodyByIdsSql = "select id, idempotent_id, request_param, response_body, created from " + bodyTable + " where id in (";
+    }
+
+    public JdbcTemplate getJdbcTemplate() {
+        return jdbcTemplate;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String getBodyTable() {
+        return bodyTable;
+    }
+
+    @Override
+    public Long insert(IdempotentContext model) {
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.update(con -> {
+            PreparedStatement ps = con.prepareStatement(insertSql, GENERATED_COLUMNS);
+            this.setContext(ps, model);
+            return ps;
+        }, keyHolder);
+        Number key = keyHolder.getKey();
+        return key == null ? null : key.longValue();
+    }
+
+    @Override
+    public void insertBody(IdempotentBodyContext model) {
+        jdbcTemplate.update(insertBodySql, model.getIdempotentId(), model.getRequestParam(), model.getResponseBody());
+    }
+
+    @Override
+    public List<Long> insertBatch(List<IdempotentContext> models) {
+        if (models.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return jdbcTemplate.execute((ConnectionCallback<List<Long>>) con -> {
+            try (PreparedStatement ps = con.prepareStatement(insertSql, GENERATED_COLUMNS)) {
+                for (IdempotentContext model : models) {
+                    this.setContext(ps, model);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                List<Long> ids = new ArrayList<>(models.size());
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    while (keys.next()) {
+                        ids.add(keys.getLong(1));
+                    }
+                }
+                //驱动未返回全部主键时按条数补空，由调用方处理
+                while (ids.size() < models.size()) {
+                    ids.add(null);
+                }
+                return ids;
+            }
+        });
+    }
+
+    @Override
+    public void insertBodyBatch(List<IdempotentBodyContext> models) {
+        if (models.isEmpty()) {
+            return;
+        }
+        List<Object[]> args = new ArrayList<>(models.size());
+        for (IdempotentBodyContext model : models) {
+            args.add(new Object[]{model.getIdempotentId(), model.getRequestParam(), model.getResponseBody()});
+        }
+        jdbcTemplate.batchUpdate(insertBodySql, args);
+    }
+
+    @Override
+    public Long claim(IdempotentContext model) {
+        try {
+            return this.insert(model);
+        } catch (DuplicateKeyException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean reclaim(Long id, long staleBefore) {
+        int rows = jdbcTemplate.update(reclaimSql, IdempotentStatusEnum.ING.getCode(), new Timestamp(System.currentTimeMillis()), id,
+                IdempotentStatusEnum.FAIL.getCode(), IdempotentStatusEnum.ING.getCode(), new Timestamp(staleBefore));
+        return rows == 1;
+    }
+
+    @Override
+    public void updateInfo(IdempotentContext model) {
+        jdbcTemplate.update(updateSql, model.getStatus().getCode(), new Timestamp(System.currentTimeMillis()), model.getId());
+    }
+
+    @Override
+    public IdempotentContext queryByReqId(String requestId, String appCode) {
+        List<IdempotentContext> list = jdbcTemplate.query(queryByReqIdSql, CONTEXT_ROW_MAPPER, requestId, appCode);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    @Override
+    public IdempotentBodyContext getLatestRecordByIdeKey(Long idempotentId) {
+        List<IdempotentBodyContext> list = jdbcTemplate.query(latestBodySql, BODY_ROW_MAPPER, idempotentId);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    @Override
+    public List<IdempotentContext> queryByReqIds(List<String> requestIds, String appCode) {
+        List<IdempotentContext> list = new ArrayList<>(requestIds.size());
+        for (int from = 0; from < requestIds.size(); from += IN_CHUNK_SIZE) {
+            List<String> chunk = requestIds.subList(from, Math.min(from + IN_CHUNK_SIZE, requestIds.size()));
+            Object[] args = new Object[chunk.size() + 1];
+            args[0] = appCode;
+            for (int i = 0; i < chunk.size(); i++) {
+                args[i + 1] = chunk.get(i);
+            }
+            list.addAll(jdbcTemplate.query(queryByReqIdsSql + placeholders(chunk.size()) + ")", CONTEXT_ROW_MAPPER, args));
+        }
+        return list;
+    }
+
+    @Override
+    public Map<Long, IdempotentBodyContext> getLatestRecordByIdeKeys(List<Long> idempotentIds) {
+        Map<Long, IdempotentBodyContext> map = new HashMap<>(idempotentIds.size() * 2);
+        for (int from = 0; from < idempotentIds.size(); from += IN_CHUNK_SIZE) {
+            List<Long> chunk = idempotentIds.subList(from, Math.min(from + IN_CHUNK_SIZE, idempotentIds.size()));
+            List<Long> bodyIds = jdbcTemplate.queryForList(latestBodyIdsSql + placeholders(chunk.size()) + ") group by idempotent_id",
+                    Long.class, chunk.toArray());
+            if (bodyIds.isEmpty()) {
+                continue;
+            }
+            for (IdempotentBodyContext body : jdbcTemplate.query(bodyByIdsSql + placeholders(bodyIds.size()) + ")", BODY_ROW_MAPPER, bodyIds.toArray())) {
+                map.put(body.getIdempotentId(), body);
+            }
+        }
+        return map;
+    }
+
+    private static String placeholders(int size) {
+        StringBuilder builder = new StringBuilder(size * 2);
+        for (int i = 0; i < size; i++) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        return builder.toString();
+    }
+
+    private void setContext(PreparedStatement ps, IdempotentContext model) throws SQLException {
+        ps.setString(1, model.getRequestId());
+        ps.setString(2, model.getAppCode());
+        ps.setString(3, model.getRequestDesc());
+        ps.setString(4, model.getBusinessNo());
+        ps.setString(5, model.getBusinessType());
+        ps.setString(6, model.getBusinessDesc());
+        ps.setInt(7, model.getStatus().getCode());
+        ps.setTimestamp(8, new Timestamp(System.currentTimeMillis()));
+    }
+}
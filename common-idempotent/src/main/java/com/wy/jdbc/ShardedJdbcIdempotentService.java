@@ -0,0 +1,332 @@
+package com.wy.jdbc;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.wy.IdempotentService;
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.exception.AssertEx;
+import com.wy.exception.BaseException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author wangyong
+ * @Classname ShardedJdbcIdempotentService
+ * @Description 分表/分库的 {@link IdempotentService}
+ * 按requestId的hash或appCode把记录路由到N个 {@link JdbcIdempotentService}，参数记录与幂等记录在同一个分片
+ * 对外的主键为 分片内主键 << 10 | 分片下标，分片位数固定为 {@link #MAX_SHARDS} 对应的10位，
+ * 扩容后已经返回的主键仍然指向原来的分片
+ * 扩容时jump hash会把约 1/N 的requestId路由到新分片，迁移完成前需要传入扩容前的分片数，
+ * 按requestId查询在新分片未命中时再查询原分片，抢占前先确认原分片没有记录，新记录只写入新分片
+ * @Date 2021/6/28 10:30
+ */
+public class ShardedJdbcIdempotentService implements IdempotentService {
+
+    /**
+     * 分片数上限
+     */
+    private static final int MAX_SHARDS = 1024;
+
+    /**
+     * 主键中分片下标的位数 固定不随分片数变化
+     */
+    private static final int SHARD_BITS = 10;
+
+    private static final long SHARD_MASK = MAX_SHARDS - 1;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    public enum Routing {
+
+        /**
+         * 按requestId的hash 写入均匀分布
+         */
+        REQUEST_ID,
+
+        /**
+         * 按appCode的hash 同一业务的记录在同一个分片
+         */
+        APP_CODE,
+        ;
+    }
+
+    private final List<JdbcIdempotentService> shards;
+
+    private final Routing routing;
+
+    /**
+     * 扩容前的分片数 为0时没有迁移中的数据
+     */
+    private final int previousShardCount;
+
+    /**
+     * @param shards  分片 顺序决定分片下标，扩容只能在末尾追加
+     * @param routing 路由方式
+     */
+    public ShardedJdbcIdempotentService(List<JdbcIdempotentService> shards, Routing routing) {
+        this(shards, routing, 0);
+    }
+
+    /**
+     * @param shards             分片 顺序决定分片下标，扩容只能在末尾追加
+     * @param routing            路由方式
+     * @param previousShardCount 扩容前的分片数 迁移完成后传0
+     */
+    public ShardedJdbcIdempotentService(List<JdbcIdempotentService> shards, Routing routing, int previousShardCount) {
+        AssertEx.isTrue(!shards.isEmpty() && shards.size() <= MAX_SHARDS,
+                BaseException.definedException(1099, "分片数需要在1到" + MAX_SHARDS + "之间"));
+        AssertEx.isTrue(previousShardCount >= 0 && previousShardCount <= shards.size(),
+                BaseException.definedException(1099, "扩容前的分片数不能大于当前分片数"));
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.routing = routing;
+        this.previousShardCount = previousShardCount == shards.size() ? 0 : previousShardCount;
+    }
+
+    /**
+     * 同一个库中的N张表 表名为 t_idempotent_0 ... t_idempotent_{N-1}
+     *
+     * @param jdbcTemplate jdbcTemplate
+     * @param shardCount   分表数
+     * @param routing      路由方式
+     * @return {@link ShardedJdbcIdempotentService}
+     */
+    public static ShardedJdbcIdempotentService ofTables(JdbcTemplate jdbcTemplate, int shardCount, Routing routing) {
+        return ofTables(jdbcTemplate, shardCount, routing, 0);
+    }
+
+    /**
+     * 同一个库中的N张表 扩容迁移期间使用
+     *
+     * @param jdbcTemplate       jdbcTemplate
+     * @param shardCount         分表数
+     * @param routing            路由方式
+     * @param previousShardCount 扩容前的分表数
+     * @return {@link ShardedJdbcIdempotentService}
+     */
+    public static ShardedJdbcIdempotentService ofTables(JdbcTemplate jdbcTemplate, int shardCount, Routing routing, int previousShardCount) {
+        List<JdbcIdempotentService> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new JdbcIdempotentService(jdbcTemplate, JdbcIdempotentService.DEFAULT_TABLE + "_" + i,
+                    JdbcIdempotentService.DEFAULT_BODY_TABLE + "_" + i));
+        }
+        return new ShardedJdbcIdempotentService(shards, routing, previousShardCount);
+    }
+
+    public List<JdbcIdempotentService> getShards() {
+        return shards;
+    }
+
+    @Override
+    public Long insert(IdempotentContext model) {
+        int shard = this.route(model.getRequestId(), model.getAppCode());
+        return this.toGlobal(shards.get(shard).insert(model), shard);
+    }
+
+    @Override
+    public void insertBody(IdempotentBodyContext model) {
+        int shard = this.shardOf(model.getIdempotentId());
+        shards.get(shard).insertBody(this.toLocal(model));
+    }
+
+    @Override
+    public List<Long> insertBatch(List<IdempotentContext> models) {
+        Map<Integer, List<Integer>> positions = new HashMap<>(shards.size() * 2);
+        for (int i = 0; i < models.size(); i++) {
+            IdempotentContext model = models.get(i);
+            positions.computeIfAbsent(this.route(model.getRequestId(), model.getAppCode()), k -> new ArrayList<>()).add(i);
+        }
+        Long[] ids = new Long[models.size()];
+        for (Map.Entry<Integer, List<Integer>> entry : positions.entrySet()) {
+            int shard = entry.getKey();
+            List<IdempotentContext> group = new ArrayList<>(entry.getValue().size());
+            for (Integer index : entry.getValue()) {
+                group.add(models.get(index));
+            }
+            List<Long> localIds = shards.get(shard).insertBatch(group);
+            for (int i = 0; i < localIds.size(); i++) {
+                ids[entry.getValue().get(i)] = this.toGlobal(localIds.get(i), shard);
+            }
+        }
+        List<Long> list = new ArrayList<>(ids.length);
+        Collections.addAll(list, ids);
+        return list;
+    }
+
+    @Override
+    public void insertBodyBatch(List<IdempotentBodyContext> models) {
+        Map<Integer, List<IdempotentBodyContext>> groups = new HashMap<>(shards.size() * 2);
+        for (IdempotentBodyContext model : models) {
+            groups.computeIfAbsent(this.shardOf(model.getIdempotentId()), k -> new ArrayList<>()).add(this.toLocal(model));
+        }
+        for (Map.Entry<Integer, List<IdempotentBodyContext>> entry : groups.entrySet()) {
+            shards.get(entry.getKey()).insertBodyBatch(entry.getValue());
+        }
+    }
+
+    /**
+     * 原分片已有记录时视为抢占失败 调用方按requestId查询到原分片的记录后再重新抢占
+     */
+    @Override
+    public Long claim(IdempotentContext model) {
+        int previous = this.previousRoute(model.getRequestId(), model.getAppCode());
+        if (previous >= 0 && shards.get(previous).queryByReqId(model.getRequestId(), model.getAppCode()) != null) {
+            return null;
+        }
+        int shard = this.route(model.getRequestId(), model.getAppCode());
+        return this.toGlobal(shards.get(shard).claim(model), shard);
+    }
+
+    @Override
+    public boolean reclaim(Long id, long staleBefore) {
+        return shards.get(this.shardOf(id)).reclaim(this.localId(id), staleBefore);
+    }
+
+    @Override
+    public void updateInfo(IdempotentContext model) {
+        IdempotentContext local = IdempotentContext.builder()
+                .id(this.localId(model.getId()))
+                .status(model.getStatus())
+                .build();
+        shards.get(this.shardOf(model.getId())).updateInfo(local);
+    }
+
+    @Override
+    public IdempotentContext queryByReqId(String requestId, String appCode) {
+        int shard = this.route(requestId, appCode);
+        IdempotentContext context = shards.get(shard).queryByReqId(requestId, appCode);
+        if (context != null) {
+            return this.toGlobal(context, shard);
+        }
+        int previous = this.previousRoute(requestId, appCode);
+        return previous < 0 ? null : this.toGlobal(shards.get(previous).queryByReqId(requestId, appCode), previous);
+    }
+
+    @Override
+    public List<IdempotentContext> queryByReqIds(List<String> requestIds, String appCode) {
+        Map<Integer, List<String>> groups = new HashMap<>(shards.size() * 2);
+        for (String requestId : requestIds) {
+            groups.computeIfAbsent(this.route(requestId, appCode), k -> new ArrayList<>()).add(requestId);
+        }
+        List<IdempotentContext> list = new ArrayList<>(requestIds.size());
+        this.queryGroups(groups, appCode, list);
+        if (previousShardCount == 0) {
+            return list;
+        }
+        //新分片未命中的再按扩容前的路由查询
+        Set<String> found = new HashSet<>(list.size() * 2);
+        for (IdempotentContext context : list) {
+            found.add(context.getRequestId());
+        }
+        Map<Integer, List<String>> previousGroups = new HashMap<>(shards.size() * 2);
+        for (String requestId : requestIds) {
+            int previous = this.previousRoute(requestId, appCode);
+            if (previous >= 0 && !found.contains(requestId)) {
+                previousGroups.computeIfAbsent(previous, k -> new ArrayList<>()).add(requestId);
+            }
+        }
+        this.queryGroups(previousGroups, appCode, list);
+        return list;
+    }
+
+    private void queryGroups(Map<Integer, List<String>> groups, String appCode, List<IdempotentContext> list) {
+        for (Map.Entry<Integer, List<String>> entry : groups.entrySet()) {
+            for (IdempotentContext context : shards.get(entry.getKey()).queryByReqIds(entry.getValue(), appCode)) {
+                list.add(this.toGlobal(context, entry.getKey()));
+            }
+        }
+    }
+
+    @Override
+    public IdempotentBodyContext getLatestRecordByIdeKey(Long idempotentId) {
+        int shard = this.shardOf(idempotentId);
+        return this.toGlobal(shards.get(shard).getLatestRecordByIdeKey(this.localId(idempotentId)), shard);
+    }
+
+    @Override
+    public Map<Long, IdempotentBodyContext> getLatestRecordByIdeKeys(List<Long> idempotentIds) {
+        Map<Integer, List<Long>> groups = new HashMap<>(shards.size() * 2);
+        for (Long idempotentId : idempotentIds) {
+            groups.computeIfAbsent(this.shardOf(idempotentId), k -> new ArrayList<>()).add(this.localId(idempotentId));
+        }
+        Map<Long, IdempotentBodyContext> map = new HashMap<>(idempotentIds.size() * 2);
+        for (Map.Entry<Integer, List<Long>> entry : groups.entrySet()) {
+            for (IdempotentBodyContext body : shards.get(entry.getKey()).getLatestRecordByIdeKeys(entry.getValue()).values()) {
+                IdempotentBodyContext global = this.toGlobal(body, entry.getKey());
+                map.put(global.getIdempotentId(), global);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * 计算分片下标 jump consistent hash，分片数增加时只有约 1/N 的key需要迁移
+     */
+    private int route(String requestId, String appCode) {
+        return this.route(requestId, appCode, shards.size());
+    }
+
+    /**
+     * 扩容前的分片下标 没有迁移中的数据或与当前分片相同时返回-1
+     */
+    private int previousRoute(String requestId, String appCode) {
+        if (previousShardCount == 0) {
+            return -1;
+        }
+        int previous = this.route(requestId, appCode, previousShardCount);
+        return previous == this.route(requestId, appCode) ? -1 : previous;
+    }
+
+    private int route(String requestId, String appCode, int shardCount) {
+        String value = routing == Routing.APP_CODE ? appCode : requestId;
+        return Hashing.consistentHash(HASH_FUNCTION.hashString(value, StandardCharsets.UTF_8), shardCount);
+    }
+
+    private int shardOf(Long id) {
+        AssertEx.isTrue(id != null, BaseException.definedException(1098, "幂等主键未返回"));
+        return (int) (id & SHARD_MASK);
+    }
+
+    private long localId(Long id) {
+        return id >>> SHARD_BITS;
+    }
+
+    private Long toGlobal(Long localId, int shard) {
+        return localId == null ? null : localId << SHARD_BITS | shard;
+    }
+
+    private IdempotentContext toGlobal(IdempotentContext context, int shard) {
+        if (context != null) {
+            context.setId(this.toGlobal(context.getId(), shard));
+        }
+        return context;
+    }
+
+    private IdempotentBodyContext toGlobal(IdempotentBodyContext body, int shard) {
+        if (body != null) {
+            body.setId(this.toGlobal(body.getId(), shard));
+            body.setIdempotentId(this.toGlobal(body.getIdempotentId(), shard));
+        }
+        return body;
+    }
+
+    /**
+     * 参数记录按分片内的幂等主键写入 不修改调用方的对象
+     */
+    private IdempotentBodyContext toLocal(IdempotentBodyContext model) {
+        return IdempotentBodyContext.builder()
+                .idempotentId(this.localId(model.getIdempotentId()))
+                .requestParam(model.getRequestParam())
+                .responseBody(model.getResponseBody())
+                .createTime(model.getCreateTime())
+                .build();
+    }
+}
@@ -0,0 +1,171 @@
+package com.wy.metrics;
+
+import com.wy.persist.IdempotentWriteBehindQueue;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentMetrics
+ * @Description 幂等切面的分阶段耗时和事件统计 业务方可以声明同类型的bean替换默认的micrometer实现
+ * @Date 2021/6/22 10:05
+ */
+public interface IdempotentMetrics {
+
+    /**
+     * 不做任何统计
+     */
+    IdempotentMetrics NOOP = new IdempotentMetrics() {
+        @Override
+        public void record(Phase phase, String appCode, long nanos) {
+        }
+
+        @Override
+        public void count(Event event, String appCode) {
+        }
+    };
+
+    /**
+     * 记录一个阶段的耗时
+     *
+     * @param phase   阶段
+     * @param appCode 应用编码
+     * @param nanos   耗时 单位纳秒
+     */
+    void record(Phase phase, String appCode, long nanos);
+
+    /**
+     * 记录一次事件
+     *
+     * @param event   事件
+     * @param appCode 应用编码
+     */
+    void count(Event event, String appCode);
+
+    /**
+     * 记录过期清理删除的行数
+     *
+     * @param table 表名
+     * @param rows  行数
+     */
+    default void purged(String table, long rows) {
+    }
+
+    /**
+     * 记录清理任务探测到的从库复制延迟
+     *
+     * @param millis 延迟 单位毫秒
+     */
+    default void replicationLag(long millis) {
+    }
+
+    /**
+     * 注册异步落库队列的积压和条数 队列创建时调用一次
+     *
+     * @param queue 异步落库队列
+     */
+    default void writeBehind(IdempotentWriteBehindQueue queue) {
+    }
+
+    /**
+     * 记录一批异步落库
+     *
+     * @param records    条数
+     * @param flushNanos 落库耗时 单位纳秒
+     * @param lagNanos   批内最早一条从入队到落库完成的延迟 单位纳秒
+     */
+    default void writeBehindFlushed(int records, long flushNanos, long lagNanos) {
+    }
+
+    /**
+     * 切面的处理阶段
+     */
+    enum Phase {
+
+        /**
+         * 等待分布式锁
+         */
+        LOCK_WAIT,
+
+        /**
+         * 获得锁后从redis读取成功结果
+         */
+        RESULT_GET,
+
+        /**
+         * queryByReqId 查询幂等记录
+         */
+        QUERY,
+
+        /**
+         * 执行业务方法 异步方法为future完成的时间
+         */
+        PROCEED,
+
+        /**
+         * 结果序列化
+         */
+        ENCODE,
+
+        /**
+         * 结果反序列化
+         */
+        DECODE,
+
+        /**
+         * 幂等记录和参数落库 开启异步落库时为入队耗时
+         */
+        PERSIST,
+        ;
+    }
+
+    /**
+     * 切面的处理结果
+     */
+    enum Event {
+
+        /**
+         * 执行了业务方法
+         */
+        EXECUTED,
+
+        /**
+         * 回放了redis或数据库中的成功结果
+         */
+        REPLAYED,
+
+        /**
+         * 本地缓存命中
+         */
+        NEAR_CACHE_HIT,
+
+        /**
+         * 等待同一jvm内第一个请求的结果
+         */
+        COALESCED,
+
+        /**
+         * 等锁超时 {@code REQUEST_IS_REPEAT}
+         */
+        REPEATED,
+
+        /**
+         * 记录处理中 {@code REQUEST_IS_PROCESS}
+         */
+        IN_PROCESS,
+
+        /**
+         * 相同requestId的参数指纹不一致 {@code REQUEST_PARAM_MISMATCH}
+         */
+        MISMATCHED,
+
+        /**
+         * 业务方法执行失败
+         */
+        FAILED,
+
+        /**
+         * 访问了热点key
+         */
+        HOT_KEY,
+        ;
+    }
+}
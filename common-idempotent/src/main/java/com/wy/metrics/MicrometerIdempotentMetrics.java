@@ -0,0 +1,214 @@
+package com.wy.metrics;
+
+import com.wy.config.IdempotentProperties;
+import com.wy.persist.IdempotentWriteBehindQueue;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.HdrHistogram.Histogram;
+import org.LatencyUtils.LatencyStats;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author wangyong
+ * @Classname MicrometerIdempotentMetrics
+ * @Description 默认的统计实现
+ * 耗时记录在 {@link LatencyStats} 中，暂停检测器会对gc等停顿补齐被遗漏的样本(coordinated omission)
+ * 百分位以gauge的形式注册到micrometer，每个刷新周期从LatencyStats取一次区间直方图
+ * @Date 2021/6/22 10:40
+ */
+public class MicrometerIdempotentMetrics implements IdempotentMetrics, DisposableBean {
+
+    private static final String LATENCY = "common.idempotent.latency";
+
+    private static final String EVENTS = "common.idempotent.events";
+
+    private static final String PURGED = "common.idempotent.purge.rows";
+
+    private static final String REPLICATION_LAG = "common.idempotent.replication.lag";
+
+    private static final String WRITE_BEHIND = "common.idempotent.writebehind";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final MeterRegistry registry;
+
+    private final IdempotentProperties.Metrics properties;
+
+    private final long highestTrackableNanos;
+
+    private final Map<Phase, ConcurrentMap<String, PhaseLatency>> latencies = new EnumMap<>(Phase.class);
+
+    private final Map<Event, ConcurrentMap<String, Counter>> counters = new EnumMap<>(Event.class);
+
+    private final ConcurrentMap<String, Counter> purged = new ConcurrentHashMap<>(4);
+
+    private final AtomicLong replicationLagMillis = new AtomicLong();
+
+    /**
+     * 单批落库耗时
+     */
+    private final Timer writeBehindFlush;
+
+    /**
+     * 批内最早一条从入队到落库完成的延迟
+     */
+    private final Timer writeBehindLag;
+
+    public MicrometerIdempotentMetrics(MeterRegistry registry, IdempotentProperties.Metrics properties) {
+        this.registry = registry;
+        this.properties = properties;
+        this.highestTrackableNanos = properties.getHighestTrackableLatency().toNanos();
+        for (Phase phase : Phase.values()) {
+            latencies.put(phase, new ConcurrentHashMap<>(16));
+        }
+        for (Event event : Event.values()) {
+            counters.put(event, new ConcurrentHashMap<>(16));
+        }
+        Gauge.builder(REPLICATION_LAG, replicationLagMillis, l -> l.get() / (double) TimeUnit.SECONDS.toMillis(1))
+                .baseUnit("seconds")
+                .register(registry);
+        this.writeBehindFlush = Timer.builder(WRITE_BEHIND + ".flush").register(registry);
+        this.writeBehindLag = Timer.builder(WRITE_BEHIND + ".lag").register(registry);
+    }
+
+    @Override
+    public void record(Phase phase, String appCode, long nanos) {
+        ConcurrentMap<String, PhaseLatency> byApp = latencies.get(phase);
+        PhaseLatency latency = byApp.get(appCode);
+        if (latency == null) {
+            latency = byApp.computeIfAbsent(appCode, a -> new PhaseLatency(phase, a));
+        }
+        latency.stats.recordLatency(Math.min(Math.max(nanos, 0L), highestTrackableNanos));
+    }
+
+    @Override
+    public void count(Event event, String appCode) {
+        ConcurrentMap<String, Counter> byApp = counters.get(event);
+        Counter counter = byApp.get(appCode);
+        if (counter == null) {
+            counter = byApp.computeIfAbsent(appCode, a -> Counter.builder(EVENTS)
+                    .tags(Tags.of("event", event.name().toLowerCase(), "appCode", a))
+                    .register(registry));
+        }
+        counter.increment();
+    }
+
+    @Override
+    public void purged(String table, long rows) {
+        purged.computeIfAbsent(table, t -> Counter.builder(PURGED).tags(Tags.of("table", t)).register(registry)).increment(rows);
+    }
+
+    @Override
+    public void replicationLag(long millis) {
+        replicationLagMillis.set(millis);
+    }
+
+    @Override
+    public void writeBehind(IdempotentWriteBehindQueue queue) {
+        Gauge.builder(WRITE_BEHIND + ".queue", queue, IdempotentWriteBehindQueue::getQueueSize).register(registry);
+        FunctionCounter.builder(WRITE_BEHIND + ".records", queue, IdempotentWriteBehindQueue::getEnqueued)
+                .tags(Tags.of("result", "enqueued")).register(registry);
+        FunctionCounter.builder(WRITE_BEHIND + ".records", queue, IdempotentWriteBehindQueue::getFlushed)
+                .tags(Tags.of("result", "flushed")).register(registry);
+        FunctionCounter.builder(WRITE_BEHIND + ".records", queue, IdempotentWriteBehindQueue::getFailed)
+                .tags(Tags.of("result", "failed")).register(registry);
+        FunctionCounter.builder(WRITE_BEHIND + ".records", queue, IdempotentWriteBehindQueue::getRejected)
+                .tags(Tags.of("result", "rejected")).register(registry);
+    }
+
+    @Override
+    public void writeBehindFlushed(int records, long flushNanos, long lagNanos) {
+        writeBehindFlush.record(flushNanos, TimeUnit.NANOSECONDS);
+        writeBehindLag.record(lagNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        for (ConcurrentMap<String, PhaseLatency> byApp : latencies.values()) {
+            for (PhaseLatency latency : byApp.values()) {
+                latency.stats.stop();
+            }
+        }
+    }
+
+    /**
+     * 单个阶段 单个appCode的耗时
+     */
+    private class PhaseLatency {
+
+        private final LatencyStats stats;
+
+        private final Histogram interval;
+
+        private long totalCount;
+
+        private long lastRefreshNanos;
+
+        private PhaseLatency(Phase phase, String appCode) {
+            this.stats = LatencyStats.Builder.create()
+                    .lowestTrackableLatency(TimeUnit.MICROSECONDS.toNanos(1))
+                    .highestTrackableLatency(highestTrackableNanos)
+                    .numberOfSignificantValueDigits(properties.getSignificantDigits())
+                    .build();
+            this.interval = stats.getIntervalHistogram();
+            this.lastRefreshNanos = System.nanoTime();
+            Tags tags = Tags.of("phase", phase.name().toLowerCase(), "appCode", appCode);
+            for (double quantile : QUANTILES) {
+                Gauge.builder(LATENCY, this, l -> l.valueAt(quantile))
+                        .tags(tags.and("quantile", String.valueOf(quantile)))
+                        .baseUnit("seconds")
+                        .register(registry);
+            }
+            Gauge.builder(LATENCY + ".max", this, l -> l.max())
+                    .tags(tags)
+                    .baseUnit("seconds")
+                    .register(registry);
+            FunctionCounter.builder(LATENCY + ".count", this, l -> l.count())
+                    .tags(tags)
+                    .register(registry);
+        }
+
+        /**
+         * 同一次采集的多个gauge共用一个区间直方图
+         */
+        private synchronized void refresh() {
+            long now = System.nanoTime();
+            if (now - lastRefreshNanos < properties.getRefreshInterval().toNanos()) {
+                return;
+            }
+            stats.getIntervalHistogramInto(interval);
+            totalCount += interval.getTotalCount();
+            lastRefreshNanos = now;
+        }
+
+        private synchronized double valueAt(double quantile) {
+            this.refresh();
+            return toSeconds(interval.getValueAtPercentile(quantile * 100));
+        }
+
+        private synchronized double max() {
+            this.refresh();
+            return toSeconds(interval.getMaxValue());
+        }
+
+        private synchronized double count() {
+            this.refresh();
+            return totalCount;
+        }
+
+        private double toSeconds(long nanos) {
+            return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.wy.persist;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.wy.config.IdempotentProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentFailureWriter
+ * @Description 失败记录异步落库
+ * 固定的写入线程数限制了失败记录占用的连接数，队列满时直接丢弃
+ * 失败记录只用于排查，丢弃后重试请求仍然可以正常执行
+ * @Date 2021/7/1 10:40
+ */
+@Slf4j
+public class IdempotentFailureWriter implements DisposableBean {
+
+    private final ThreadPoolExecutor executor;
+
+    private final IdempotentProperties.Failure properties;
+
+    /**
+     * 提交条数
+     */
+    private final LongAdder submitted = new LongAdder();
+
+    /**
+     * 队列满丢弃的条数
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    public IdempotentFailureWriter(IdempotentProperties.Failure properties) {
+        this.properties = properties;
+        this.executor = new ThreadPoolExecutor(properties.getWriterThreads(), properties.getWriterThreads(),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(properties.getQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("idempotent-failure-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 提交一次失败记录的写入
+     *
+     * @param write 写入逻辑 需要自行处理异常
+     */
+    public void submit(Runnable write) {
+        try {
+            executor.execute(write);
+            submitted.increment();
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+            //丢弃时按条数间隔打印 避免日志本身成为压力
+            if (dropped.sum() % properties.getQueueCapacity() == 1) {
+                log.warn("失败记录写入队列已满，累计丢弃 [{}] 条", dropped.sum());
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(properties.getShutdownTimeout(), TimeUnit.MILLISECONDS)) {
+            log.warn("失败记录写入未在 [{}]ms 内完成，剩余 [{}] 条", properties.getShutdownTimeout(), executor.getQueue().size());
+            executor.shutdownNow();
+        }
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+}
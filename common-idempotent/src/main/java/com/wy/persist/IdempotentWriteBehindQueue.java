@@ -0,0 +1,331 @@
+package com.wy.persist;
+
+import com.wy.IdempotentService;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.metrics.IdempotentMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentWriteBehindQueue
+ * @Description 幂等记录异步批量落库
+ * 切面写完redis后入队即返回，后台线程攒批调用 {@link IdempotentService#insertBatch} / {@link IdempotentService#insertBodyBatch}
+ * 落库完成前由redis中的结果保证幂等
+ * 有事务管理器时整批在一个事务中写入，失败回滚后逐条重写；没有事务时逐条重写遇到唯一约束冲突则按requestId取回已写入的主键
+ * @Date 2021/6/7 10:20
+ */
+@Slf4j
+public class IdempotentWriteBehindQueue implements DisposableBean {
+
+    private final IdempotentService idempotentService;
+
+    private final IdempotentProperties.WriteBehind properties;
+
+    /**
+     * 为空时批量写入不在事务中
+     */
+    private final TransactionTemplate transactionTemplate;
+
+    private final IdempotentMetrics idempotentMetrics;
+
+    private final BlockingQueue<PendingRecord> queue;
+
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+
+    /**
+     * 入队条数
+     */
+    private final LongAdder enqueued = new LongAdder();
+
+    /**
+     * 落库成功条数
+     */
+    private final LongAdder flushed = new LongAdder();
+
+    /**
+     * 落库失败条数
+     */
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * 队列满或已关闭 由调用线程同步落库的条数
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * 最近一批的落库耗时 单位纳秒
+     */
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+
+    /**
+     * 单批落库耗时最大值 单位纳秒
+     */
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+
+    /**
+     * 入队到落库完成的最大延迟 单位纳秒
+     */
+    private final AtomicLong maxLagNanos = new AtomicLong();
+
+    public IdempotentWriteBehindQueue(IdempotentService idempotentService, IdempotentProperties.WriteBehind properties) {
+        this(idempotentService, properties, null);
+    }
+
+    public IdempotentWriteBehindQueue(IdempotentService idempotentService, IdempotentProperties.WriteBehind properties,
+                                      TransactionTemplate transactionTemplate) {
+        this(idempotentService, properties, transactionTemplate, IdempotentMetrics.NOOP);
+    }
+
+    /**
+     * @param idempotentService   落库服务
+     * @param properties          配置
+     * @param transactionTemplate 整批写入使用的事务 为空时不使用事务
+     * @param idempotentMetrics   统计 注册队列积压并记录每批的落库耗时和延迟
+     */
+    public IdempotentWriteBehindQueue(IdempotentService idempotentService, IdempotentProperties.WriteBehind properties,
+                                      TransactionTemplate transactionTemplate, IdempotentMetrics idempotentMetrics) {
+        this.idempotentService = idempotentService;
+        this.properties = properties;
+        this.transactionTemplate = transactionTemplate;
+        this.idempotentMetrics = idempotentMetrics;
+        this.queue = new ArrayBlockingQueue<>(properties.getQueueCapacity());
+        this.flusher = new Thread(this::flushLoop, "idempotent-write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+        idempotentMetrics.writeBehind(this);
+    }
+
+    /**
+     * 提交一条记录
+     * context的id为空时新增，否则更新状态；body的幂等主键在新增后回填
+     * 队列满时等待 {@link IdempotentProperties.WriteBehind#getEnqueueTimeout()}，仍然失败则同步落库
+     *
+     * @param context 幂等记录
+     * @param body    出入参记录
+     */
+    public void submit(IdempotentContext context, IdempotentBodyContext body) {
+        PendingRecord record = new PendingRecord(context, body, System.nanoTime());
+        boolean offered = false;
+        if (running) {
+            try {
+                offered = queue.offer(record, properties.getEnqueueTimeout(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (offered) {
+            enqueued.increment();
+            return;
+        }
+        rejected.increment();
+        List<PendingRecord> single = new ArrayList<>(1);
+        single.add(record);
+        this.writeOneByOne(single);
+    }
+
+    private void flushLoop() {
+        List<PendingRecord> batch = new ArrayList<>(properties.getBatchSize());
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRecord first = queue.poll(properties.getFlushInterval(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, properties.getBatchSize() - 1);
+                this.flush(batch);
+            } catch (InterruptedException e) {
+                //关闭时被中断 继续把剩余的写完
+                running = false;
+            } catch (Exception e) {
+                log.error("幂等记录批量落库异常", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingRecord> batch) {
+        long start = System.nanoTime();
+        List<PendingRecord> inserts = new ArrayList<>(batch.size());
+        for (PendingRecord record : batch) {
+            if (record.context.getId() == null) {
+                inserts.add(record);
+            }
+        }
+        try {
+            if (transactionTemplate == null) {
+                this.writeBatch(batch);
+            } else {
+                transactionTemplate.execute(status -> {
+                    this.writeBatch(batch);
+                    return null;
+                });
+            }
+            flushed.add(batch.size());
+        } catch (Exception e) {
+            log.error("幂等记录批量落库失败，改为逐条写入，size [{}]", batch.size(), e);
+            if (transactionTemplate != null) {
+                //已回滚 回填的主键不再有效
+                inserts.forEach(record -> record.context.setId(null));
+            }
+            this.writeOneByOne(batch);
+        }
+        long end = System.nanoTime();
+        long cost = end - start;
+        long lag = end - batch.get(0).enqueueNanos;
+        lastFlushNanos.set(cost);
+        maxFlushNanos.accumulateAndGet(cost, Math::max);
+        maxLagNanos.accumulateAndGet(lag, Math::max);
+        idempotentMetrics.writeBehindFlushed(batch.size(), cost, lag);
+    }
+
+    private void writeBatch(List<PendingRecord> batch) {
+        List<PendingRecord> inserts = new ArrayList<>(batch.size());
+        List<IdempotentContext> insertContexts = new ArrayList<>(batch.size());
+        for (PendingRecord record : batch) {
+            if (record.context.getId() == null) {
+                inserts.add(record);
+                insertContexts.add(record.context);
+            } else {
+                idempotentService.updateInfo(record.context);
+            }
+        }
+        if (!insertContexts.isEmpty()) {
+            List<Long> ids = idempotentService.insertBatch(insertContexts);
+            for (int i = 0; i < inserts.size(); i++) {
+                PendingRecord record = inserts.get(i);
+                record.context.setId(ids.get(i));
+            }
+        }
+        List<IdempotentBodyContext> bodies = new ArrayList<>(batch.size());
+        for (PendingRecord record : batch) {
+            if (record.context.getId() == null) {
+                log.error("幂等主键未返回，无法插入参数表,requestId [{}],appCode [{}]",
+                        record.context.getRequestId(), record.context.getAppCode());
+                continue;
+            }
+            record.body.setIdempotentId(record.context.getId());
+            bodies.add(record.body);
+        }
+        if (!bodies.isEmpty()) {
+            idempotentService.insertBodyBatch(bodies);
+        }
+    }
+
+    private void writeOneByOne(List<PendingRecord> records) {
+        for (PendingRecord record : records) {
+            try {
+                if (record.context.getId() == null) {
+                    this.insertOrUpdate(record.context);
+                } else {
+                    idempotentService.updateInfo(record.context);
+                }
+                if (record.context.getId() == null) {
+                    log.error("幂等主键未返回，无法插入参数表,requestId [{}],appCode [{}]",
+                            record.context.getRequestId(), record.context.getAppCode());
+                    failed.increment();
+                    continue;
+                }
+                record.body.setIdempotentId(record.context.getId());
+                idempotentService.insertBody(record.body);
+                flushed.increment();
+            } catch (Exception e) {
+                failed.increment();
+                log.error("幂等记录落库失败,requestId [{}],appCode [{}]",
+                        record.context.getRequestId(), record.context.getAppCode(), e);
+            }
+        }
+    }
+
+    /**
+     * 没有事务时批量写入可能已经插入了部分记录 冲突时取回已有的主键并更新状态
+     */
+    private void insertOrUpdate(IdempotentContext context) {
+        try {
+            context.setId(idempotentService.insert(context));
+        } catch (DuplicateKeyException e) {
+            IdempotentContext existing = idempotentService.queryByReqId(context.getRequestId(), context.getAppCode());
+            if (existing == null) {
+                throw e;
+            }
+            context.setId(existing.getId());
+            idempotentService.updateInfo(context);
+        }
+    }
+
+    /**
+     * 停止接收新记录并等待队列写完
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        flusher.join(properties.getShutdownTimeout());
+        if (flusher.isAlive()) {
+            log.warn("幂等记录队列未在 [{}]ms 内写完，剩余 [{}] 条", properties.getShutdownTimeout(), queue.size());
+            flusher.interrupt();
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getFlushed() {
+        return flushed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getLastFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastFlushNanos.get());
+    }
+
+    public long getMaxFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get());
+    }
+
+    public long getMaxLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get());
+    }
+
+    private static class PendingRecord {
+
+        private final IdempotentContext context;
+
+        private final IdempotentBodyContext body;
+
+        private final long enqueueNanos;
+
+        private PendingRecord(IdempotentContext context, IdempotentBodyContext body, long enqueueNanos) {
+            this.context = context;
+            this.body = body;
+            this.enqueueNanos = enqueueNanos;
+        }
+    }
+}
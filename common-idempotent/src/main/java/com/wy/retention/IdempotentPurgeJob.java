@@ -0,0 +1,290 @@
+package com.wy.retention;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.wy.config.IdempotentProperties;
+import com.wy.metrics.IdempotentMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentPurgeJob
+ * @Description 幂等表过期数据清理
+ * 按主键顺序分批扫描，每批只按主键删除，单条语句锁定的行数受batchSize限制
+ * 每个保留时长单独维护扫描游标，遇到未过期的记录即停止，不会重复扫描已经清理过的区间
+ * 批次之间按配置暂停，从库延迟超过阈值时等待
+ * @Date 2021/6/25 10:40
+ */
+@Slf4j
+public class IdempotentPurgeJob implements DisposableBean {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final IdempotentProperties.Retention properties;
+
+    private final ReplicationLagProbe replicationLagProbe;
+
+    private final IdempotentMetrics idempotentMetrics;
+
+    private final RedissonClient redisson;
+
+    private final String table;
+
+    private final String bodyTable;
+
+    private final String scanSql;
+
+    private final String minIdSql;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * 保留时长 -> 已扫描到的主键
+     */
+    private final Map<Duration, Long> cursors = new HashMap<>(8);
+
+    private volatile boolean running = true;
+
+    /**
+     * 删除的幂等记录条数
+     */
+    private final LongAdder purged = new LongAdder();
+
+    /**
+     * 删除的参数记录条数
+     */
+    private final LongAdder purgedBodies = new LongAdder();
+
+    /**
+     * 最近一次执行的删除速率 条/秒
+     */
+    private volatile double lastRowsPerSecond;
+
+    /**
+     * 最近一次探测到的复制延迟 单位毫秒
+     */
+    private volatile long lastLagMillis;
+
+    /**
+     * @param jdbcTemplate        主库
+     * @param table               幂等表名
+     * @param bodyTable           幂等参数表名
+     * @param properties          清理配置
+     * @param replicationLagProbe 从库延迟探测
+     * @param idempotentMetrics   统计
+     * @param redisson            多实例部署时只有获得锁的实例执行，为空时不加锁
+     */
+    public IdempotentPurgeJob(JdbcTemplate jdbcTemplate, String table, String bodyTable, IdempotentProperties.Retention properties,
+                              ReplicationLagProbe replicationLagProbe, IdempotentMetrics idempotentMetrics, RedissonClient redisson) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.table = table;
+        this.bodyTable = bodyTable;
+        this.properties = properties;
+        this.replicationLagProbe = replicationLagProbe;
+        this.idempotentMetrics = idempotentMetrics;
+        this.redisson = redisson;
+        this.scanSql = "select id, app_code, created from " + table + " where id > ? order by id limit ?";
+        this.minIdSql = "select min(id) from " + table;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("idempotent-purge").setDaemon(true).build());
+        long interval = properties.getInterval().toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::runQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void runQuietly() {
+        try {
+            this.runOnce();
+        } catch (Exception e) {
+            log.error("幂等表过期数据清理异常", e);
+        }
+    }
+
+    /**
+     * 执行一次清理 单次最长执行 {@link IdempotentProperties.Retention#getMaxRunTime()}
+     *
+     * @return 删除的幂等记录条数
+     */
+    public synchronized long runOnce() {
+        RLock lock = redisson == null ? null : redisson.getLock(properties.getLockName());
+        if (lock != null && !lock.tryLock()) {
+            return 0L;
+        }
+        long start = System.nanoTime();
+        long deadline = start + properties.getMaxRunTime().toNanos();
+        long rows = 0L;
+        try {
+            //按保留时长从短到长清理
+            TreeSet<Duration> ttls = new TreeSet<>(properties.getTtl().values());
+            ttls.add(properties.getDefaultTtl());
+            for (Duration ttl : ttls) {
+                if (!running || System.nanoTime() > deadline) {
+                    break;
+                }
+                rows += this.purge(ttl, deadline);
+            }
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastRowsPerSecond = seconds > 0 ? rows / seconds : 0;
+        if (rows > 0) {
+            log.info("幂等表过期数据清理完成，删除 [{}] 条，耗时 [{}]s，[{}] 条/秒", rows, String.format("%.1f", seconds), String.format("%.1f", lastRowsPerSecond));
+        }
+        return rows;
+    }
+
+    /**
+     * 清理一个保留时长下的过期记录
+     */
+    private long purge(Duration ttl, long deadline) {
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - ttl.toMillis());
+        Long cursor = cursors.get(ttl);
+        if (cursor == null) {
+            Long minId = jdbcTemplate.queryForObject(minIdSql, Long.class);
+            if (minId == null) {
+                return 0L;
+            }
+            cursor = minId - 1;
+        }
+        long rows = 0L;
+        while (running && System.nanoTime() < deadline) {
+            this.awaitReplication(deadline);
+            List<ScannedRow> scanned = jdbcTemplate.query(scanSql, (rs, rowNum) -> new ScannedRow(
+                    rs.getLong("id"), rs.getString("app_code"), rs.getTimestamp("created")), cursor, properties.getBatchSize());
+            List<Long> expired = new ArrayList<>(scanned.size());
+            boolean reachedCutoff = false;
+            for (ScannedRow row : scanned) {
+                //主键与创建时间同序 遇到未过期的记录后面都不会过期
+                if (!row.created.before(cutoff)) {
+                    reachedCutoff = true;
+                    break;
+                }
+                cursor = row.id;
+                if (ttl.equals(properties.getTtl().getOrDefault(row.appCode, properties.getDefaultTtl()))) {
+                    expired.add(row.id);
+                }
+            }
+            if (!expired.isEmpty()) {
+                rows += this.delete(expired);
+            }
+            cursors.put(ttl, cursor);
+            if (reachedCutoff || scanned.size() < properties.getBatchSize()) {
+                break;
+            }
+            this.sleep(properties.getPause().toMillis());
+        }
+        return rows;
+    }
+
+    /**
+     * 按主键归档并删除 归档使用insert ignore，中断后重跑不会重复
+     */
+    private long delete(List<Long> ids) {
+        String in = placeholders(ids.size());
+        Object[] args = ids.toArray();
+        if (properties.isArchive()) {
+            jdbcTemplate.update("insert ignore into " + properties.getArchiveBodyTable()
+                    + " select * from " + bodyTable + " where idempotent_id in (" + in + ")", args);
+            jdbcTemplate.update("insert ignore into " + properties.getArchiveTable()
+                    + " select * from " + table + " where id in (" + in + ")", args);
+        }
+        int bodies = jdbcTemplate.update("delete from " + bodyTable + " where idempotent_id in (" + in + ")", args);
+        int rows = jdbcTemplate.update("delete from " + table + " where id in (" + in + ")", args);
+        purged.add(rows);
+        purgedBodies.add(bodies);
+        idempotentMetrics.purged(table, rows);
+        idempotentMetrics.purged(bodyTable, bodies);
+        return rows;
+    }
+
+    /**
+     * 从库延迟超过阈值时等待 直到恢复或本次执行超时
+     */
+    private void awaitReplication(long deadline) {
+        long maxLag = properties.getMaxReplicationLag().toMillis();
+        while (running && System.nanoTime() < deadline) {
+            long lag = replicationLagProbe.lagMillis();
+            lastLagMillis = lag;
+            idempotentMetrics.replicationLag(lag);
+            if (lag <= maxLag) {
+                return;
+            }
+            log.warn("从库复制延迟 [{}]ms 超过 [{}]ms，暂停清理", lag, maxLag);
+            this.sleep(properties.getLagBackoff().toMillis());
+        }
+    }
+
+    private void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private static String placeholders(int size) {
+        StringBuilder builder = new StringBuilder(size * 2);
+        for (int i = 0; i < size; i++) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        scheduler.shutdownNow();
+    }
+
+    public long getPurged() {
+        return purged.sum();
+    }
+
+    public long getPurgedBodies() {
+        return purgedBodies.sum();
+    }
+
+    public double getLastRowsPerSecond() {
+        return lastRowsPerSecond;
+    }
+
+    public long getLastLagMillis() {
+        return lastLagMillis;
+    }
+
+    private static class ScannedRow {
+
+        private final long id;
+
+        private final String appCode;
+
+        private final Timestamp created;
+
+        private ScannedRow(long id, String appCode, Timestamp created) {
+            this.id = id;
+            this.appCode = appCode;
+            this.created = created;
+        }
+    }
+}
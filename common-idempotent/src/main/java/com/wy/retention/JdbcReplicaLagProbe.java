@@ -0,0 +1,43 @@
+package com.wy.retention;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author wangyong
+ * @Classname JdbcReplicaLagProbe
+ * @Description 通过从库的 show slave status 读取 Seconds_Behind_Master
+ * 需要使用连接从库的数据源，账号需要 REPLICATION CLIENT 权限
+ * @Date 2021/6/25 10:20
+ */
+@Slf4j
+public class JdbcReplicaLagProbe implements ReplicationLagProbe {
+
+    private final JdbcTemplate replicaJdbcTemplate;
+
+    public JdbcReplicaLagProbe(JdbcTemplate replicaJdbcTemplate) {
+        this.replicaJdbcTemplate = replicaJdbcTemplate;
+    }
+
+    @Override
+    public long lagMillis() {
+        List<Long> lags;
+        try {
+            lags = replicaJdbcTemplate.query("show slave status", (rs, rowNum) -> {
+                long seconds = rs.getLong("Seconds_Behind_Master");
+                return rs.wasNull() ? Long.MAX_VALUE : TimeUnit.SECONDS.toMillis(seconds);
+            });
+        } catch (Exception e) {
+            log.error("查询复制延迟失败", e);
+            return Long.MAX_VALUE;
+        }
+        long max = 0L;
+        for (Long lag : lags) {
+            max = Math.max(max, lag);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,20 @@
+package com.wy.retention;
+
+/**
+ * @author wangyong
+ * @Classname ReplicationLagProbe
+ * @Description 从库复制延迟探测 清理任务在延迟过大时暂停删除
+ * @Date 2021/6/25 10:10
+ */
+public interface ReplicationLagProbe {
+
+    /**
+     * 不探测 始终没有延迟
+     */
+    ReplicationLagProbe NONE = () -> 0L;
+
+    /**
+     * @return 复制延迟 单位毫秒，复制中断时返回 {@link Long#MAX_VALUE}
+     */
+    long lagMillis();
+}
@@ -1,6 +1,6 @@
 create table t_idempotent
 (
-    id            bigint(11) auto_increment
+    id            bigint(20) auto_increment
         primary key,
     request_id   varchar(64)                          not null comment '请求编号',
     app_code varchar(64)                          not null comment '业务类型',
@@ -11,20 +11,22 @@ create table t_idempotent
     status    tinyint(1)                           not null comment '状态0 进行中，1 成功，2 失败',
     yn            tinyint(1) default 1                 not null comment '数据有效性:0-无效,1-有效',
     created       datetime   default CURRENT_TIMESTAMP not null comment '创建时间',
-    modified      datetime                             null
+    modified      datetime                             null,
+    unique key uk_request_id_app_code (request_id, app_code)
 )
     comment '幂等表';
 
 create table t_idempotent_body
 (
-    id            bigint(11) auto_increment
+    id            bigint(20) auto_increment
         primary key,
-    idempotent_id   varchar(64)                          not null comment '幂等主键',
+    idempotent_id   bigint(20)                          not null comment '幂等主键',
     request_param       text                           null comment '参数',
-    response_body    blob                            null comment '结果',
+    response_body    mediumblob                            null comment '结果',
     yn            tinyint(1) default 1                 not null comment '数据有效性:0-无效,1-有效',
     created       datetime   default CURRENT_TIMESTAMP not null comment '创建时间',
-    modified      datetime                             null
+    modified      datetime                             null,
+    key idx_idempotent_id (idempotent_id)
 )
     comment '幂等参数表';
 
@@ -0,0 +1,4 @@
+-- 过期数据归档表 开启 common.idempotent.retention.archive 时使用
+create table t_idempotent_archive like t_idempotent;
+
+create table t_idempotent_body_archive like t_idempotent_body;
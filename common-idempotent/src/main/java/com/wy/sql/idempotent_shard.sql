@@ -0,0 +1,9 @@
+-- 分表 使用 ShardedJdbcIdempotentService.ofTables 时按分表数创建 t_idempotent_{0..N-1} 与 t_idempotent_body_{0..N-1}
+-- 分库时每个库中的表结构与 idempotent.sql 一致
+create table t_idempotent_0 like t_idempotent;
+
+create table t_idempotent_body_0 like t_idempotent_body;
+
+create table t_idempotent_1 like t_idempotent;
+
+create table t_idempotent_body_1 like t_idempotent_body;
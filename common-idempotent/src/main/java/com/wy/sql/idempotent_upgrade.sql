@@ -0,0 +1,10 @@
+-- 旧表结构升级 执行前确认 t_idempotent 中 (request_id, app_code) 没有重复数据
+alter table t_idempotent
+    modify id bigint(20) auto_increment,
+    add unique key uk_request_id_app_code (request_id, app_code);
+
+alter table t_idempotent_body
+    modify id bigint(20) auto_increment,
+    modify idempotent_id bigint(20) not null comment '幂等主键',
+    modify response_body mediumblob null comment '结果',
+    add key idx_idempotent_id (idempotent_id);
@@ -0,0 +1,192 @@
+package com.wy.store;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBatch;
+import org.redisson.api.RFuture;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.ByteArrayCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author wangyong
+ * @Classname HashBucketResultStore
+ * @Description 分桶hash存储 按key的hash把结果放进固定数量的hash中，field为requestId:appCode
+ * 小hash使用listpack(ziplist)编码，省去每个顶层key的对象头、过期字典等开销
+ * 桶按时间窗口轮换，窗口长度等于结果保存时间，过期时间设置在整个桶上，结果实际保存 ttl ~ 2*ttl
+ * 读取时同时检查当前和上一个窗口，不同保存时间的结果使用不同的桶
+ * 单个桶的条数和结果大小需要在redis的 hash-max-ziplist-entries / hash-max-ziplist-value 之内才能保持紧凑编码
+ * 桶数按 单个窗口的预估条数 / hash-max-ziplist-entries 计算，redis默认的 hash-max-ziplist-value 为64字节，
+ * 大多数编码后的结果超过该长度，需要在redis中调大后才能省内存，超过的写入会计数并打印告警
+ * @Date 2021/6/28 14:40
+ */
+@Slf4j
+public class HashBucketResultStore implements IdempotentResultStore {
+
+    /**
+     * 先查当前窗口再查上一个窗口
+     */
+    private static final String GET_SCRIPT =
+            "local v = redis.call('hget', KEYS[1], ARGV[1]); " +
+            "if v then return v; end; " +
+            "return redis.call('hget', KEYS[2], ARGV[1]);";
+
+    /**
+     * ARGV[3] 桶的过期时间戳 同一窗口的写入相同
+     */
+    private static final String PUT_SCRIPT =
+            "redis.call('hset', KEYS[1], ARGV[1], ARGV[2]); " +
+            "redis.call('pexpireat', KEYS[1], ARGV[3]); " +
+            "return 1;";
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+    private final RedissonClient redisson;
+
+    private final String keyPrefix;
+
+    private final int buckets;
+
+    /**
+     * redis的 hash-max-ziplist-value
+     */
+    private final int maxValueBytes;
+
+    /**
+     * 超过 hash-max-ziplist-value 的写入条数
+     */
+    private final LongAdder oversized = new LongAdder();
+
+    /**
+     * @param redisson      redisson
+     * @param keyPrefix     key前缀
+     * @param buckets       每个窗口的桶数 见 {@link #bucketsFor}
+     * @param maxValueBytes redis的 hash-max-ziplist-value
+     */
+    public HashBucketResultStore(RedissonClient redisson, String keyPrefix, int buckets, int maxValueBytes) {
+        this.redisson = redisson;
+        this.keyPrefix = keyPrefix;
+        this.buckets = buckets;
+        this.maxValueBytes = maxValueBytes;
+    }
+
+    /**
+     * 按预估条数计算桶数 每个桶的平均条数不超过 hash-max-ziplist-entries 的一半，给hash分布不均留出余量
+     *
+     * @param expectedEntries   单个窗口预估的结果条数
+     * @param maxZiplistEntries redis的 hash-max-ziplist-entries
+     * @return 桶数
+     */
+    public static int bucketsFor(long expectedEntries, int maxZiplistEntries) {
+        long perBucket = Math.max(1, maxZiplistEntries / 2);
+        return (int) Math.max(1L, Math.min(Integer.MAX_VALUE, (expectedEntries + perBucket - 1) / perBucket));
+    }
+
+    /**
+     * 超过 hash-max-ziplist-value 的写入条数
+     */
+    public long oversized() {
+        return oversized.sum();
+    }
+
+    @Override
+    public byte[] get(String key, Duration ttl) {
+        return redisson.getScript(ByteArrayCodec.INSTANCE).eval(RScript.Mode.READ_ONLY, GET_SCRIPT,
+                RScript.ReturnType.VALUE, this.readKeys(key, ttl), this.field(key));
+    }
+
+    /**
+     * 一次batch 集群模式下redisson按slot拆分
+     */
+    @Override
+    public Map<String, byte[]> getAll(List<String> keys, Duration ttl) {
+        RBatch batch = redisson.createBatch();
+        List<RFuture<byte[]>> futures = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            futures.add(batch.getScript(ByteArrayCodec.INSTANCE).evalAsync(RScript.Mode.READ_ONLY, GET_SCRIPT,
+                    RScript.ReturnType.VALUE, this.readKeys(key, ttl), this.field(key)));
+        }
+        batch.execute();
+        Map<String, byte[]> found = new HashMap<>(keys.size() * 2);
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] bytes = futures.get(i).getNow();
+            if (bytes != null) {
+                found.put(keys.get(i), bytes);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void put(String key, byte[] result, Duration ttl) {
+        this.checkSize(result);
+        long window = this.window(ttl);
+        redisson.getScript(ByteArrayCodec.INSTANCE).eval(RScript.Mode.READ_WRITE, PUT_SCRIPT, RScript.ReturnType.INTEGER,
+                Arrays.asList(this.bucketKey(key, ttl, window)), this.field(key), result, this.expireAt(ttl, window));
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> results, Duration ttl) {
+        long window = this.window(ttl);
+        byte[] expireAt = this.expireAt(ttl, window);
+        RBatch batch = redisson.createBatch();
+        for (Map.Entry<String, byte[]> entry : results.entrySet()) {
+            this.checkSize(entry.getValue());
+            batch.getScript(ByteArrayCodec.INSTANCE).evalAsync(RScript.Mode.READ_WRITE, PUT_SCRIPT, RScript.ReturnType.INTEGER,
+                    Arrays.asList(this.bucketKey(entry.getKey(), ttl, window)), this.field(entry.getKey()), entry.getValue(), expireAt);
+        }
+        batch.execute();
+    }
+
+    /**
+     * 结果超过 hash-max-ziplist-value 时所在的桶会转为hashtable编码 按条数间隔打印告警
+     */
+    private void checkSize(byte[] result) {
+        if (result.length <= maxValueBytes) {
+            return;
+        }
+        oversized.increment();
+        if (oversized.sum() % 1000 == 1) {
+            log.warn("结果长度 [{}] 超过 hash-max-ziplist-value [{}]，所在的桶不再使用紧凑编码，累计 [{}] 条",
+                    result.length, maxValueBytes, oversized.sum());
+        }
+    }
+
+    private long window(Duration ttl) {
+        return System.currentTimeMillis() / ttl.toMillis();
+    }
+
+    private List<Object> readKeys(String key, Duration ttl) {
+        long window = this.window(ttl);
+        return Arrays.asList(this.bucketKey(key, ttl, window), this.bucketKey(key, ttl, window - 1));
+    }
+
+    /**
+     * 同一个桶的各个窗口使用相同的hash tag 保证在redis集群的同一个slot
+     */
+    private String bucketKey(String key, Duration ttl, long window) {
+        int bucket = (HASH_FUNCTION.hashString(key, StandardCharsets.UTF_8).asInt() & Integer.MAX_VALUE) % buckets;
+        return keyPrefix + ttl.toMillis() + ":{" + bucket + "}:" + window;
+    }
+
+    private byte[] field(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 窗口结束后再保留一个ttl 窗口内最后写入的结果也能保存完整的ttl
+     */
+    private byte[] expireAt(Duration ttl, long window) {
+        return String.valueOf((window + 2) * ttl.toMillis()).getBytes(StandardCharsets.UTF_8);
+    }
+}
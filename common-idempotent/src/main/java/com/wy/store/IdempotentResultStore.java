@@ -0,0 +1,64 @@
+package com.wy.store;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentResultStore
+ * @Description 成功结果在redis中的存储方式
+ * 读取时同样传入结果保存时间，按时间窗口分桶的实现需要据此定位桶
+ * @Date 2021/6/28 14:20
+ */
+public interface IdempotentResultStore {
+
+    /**
+     * 读取结果
+     *
+     * @param key requestId:appCode
+     * @param ttl 结果保存时间
+     * @return 编码后的结果 没有时返回null
+     */
+    byte[] get(String key, Duration ttl);
+
+    /**
+     * 批量读取结果 默认逐条调用 {@link #get}
+     *
+     * @param keys requestId:appCode
+     * @param ttl  结果保存时间
+     * @return 有结果的key
+     */
+    default Map<String, byte[]> getAll(List<String> keys, Duration ttl) {
+        Map<String, byte[]> found = new HashMap<>(keys.size() * 2);
+        for (String key : keys) {
+            byte[] bytes = this.get(key, ttl);
+            if (bytes != null) {
+                found.put(key, bytes);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 保存结果
+     *
+     * @param key    requestId:appCode
+     * @param result 编码后的结果
+     * @param ttl    结果保存时间
+     */
+    void put(String key, byte[] result, Duration ttl);
+
+    /**
+     * 批量保存结果 默认逐条调用 {@link #put}
+     *
+     * @param results requestId:appCode 与编码后的结果
+     * @param ttl     结果保存时间
+     */
+    default void putAll(Map<String, byte[]> results, Duration ttl) {
+        for (Map.Entry<String, byte[]> entry : results.entrySet()) {
+            this.put(entry.getKey(), entry.getValue(), ttl);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.wy.store;
+
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author wangyong
+ * @Classname StringResultStore
+ * @Description 默认实现 每个结果是一个独立的字符串key requestId:appCode
+ * 结果已经是编码后的字节，使用key为字符串、value为原始字节的模板，与业务RedisTemplate的序列化方式无关
+ * @Date 2021/6/28 14:30
+ */
+public class StringResultStore implements IdempotentResultStore {
+
+    private final RedisTemplate<String, byte[]> redisTemplate;
+
+    public StringResultStore(RedisTemplate<String, byte[]> redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    /**
+     * 创建结果存储使用的模板
+     *
+     * @param connectionFactory redis连接
+     * @return key按字符串、value按原始字节序列化的模板
+     */
+    public static RedisTemplate<String, byte[]> template(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.afterPropertiesSet();
+        return template;
+    }
+
+    @Override
+    public byte[] get(String key, Duration ttl) {
+        return redisTemplate.opsForValue().get(key);
+    }
+
+    /**
+     * 一次MGET
+     */
+    @Override
+    public Map<String, byte[]> getAll(List<String> keys, Duration ttl) {
+        List<byte[]> values = redisTemplate.opsForValue().multiGet(keys);
+        Map<String, byte[]> found = new HashMap<>(keys.size() * 2);
+        for (int i = 0; values != null && i < keys.size(); i++) {
+            if (values.get(i) != null) {
+                found.put(keys.get(i), values.get(i));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void put(String key, byte[] result, Duration ttl) {
+        redisTemplate.opsForValue().set(key, result, ttl);
+    }
+
+    /**
+     * pipeline写入
+     */
+    @Override
+    public void putAll(Map<String, byte[]> results, Duration ttl) {
+        Expiration expiration = Expiration.from(ttl.toMillis(), TimeUnit.MILLISECONDS);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, byte[]> entry : results.entrySet()) {
+                connection.set(RedisSerializer.string().serialize(entry.getKey()), entry.getValue(), expiration,
+                        RedisStringCommands.SetOption.UPSERT);
+            }
+            return null;
+        });
+    }
+}
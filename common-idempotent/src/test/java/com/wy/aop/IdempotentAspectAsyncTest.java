@@ -0,0 +1,168 @@
+package com.wy.aop;
+
+import com.wy.config.IdempotentProperties;
+import com.wy.context.AbstractIdRequest;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.exception.BaseException;
+import com.wy.guard.InMemoryGuard;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.support.AspectHarness;
+import com.wy.support.H2Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentAspectAsyncTest
+ * @Description CompletableFuture和Mono方法在future完成前一直持有执行权，记录的是完成后的值，Mono订阅时才抢占
+ * @Date 2021/7/20 19:00
+ */
+public class IdempotentAspectAsyncTest {
+
+    private static final String APP = "app";
+
+    private ExecutorService executor;
+
+    private InMemoryGuard guard;
+
+    private JdbcIdempotentService idempotentService;
+
+    private AspectHarness harness;
+
+    private final Target target = new Target();
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        guard = new InMemoryGuard(64, 10L, 64);
+        idempotentService = new JdbcIdempotentService(H2Database.create());
+        IdempotentProperties properties = new IdempotentProperties();
+        properties.setMode(IdempotentProperties.GuardMode.IN_MEMORY);
+        harness = new AspectHarness(guard, idempotentService, properties, executor);
+    }
+
+    @After
+    public void tearDown() {
+        target.pending.complete(null);
+        executor.shutdownNow();
+        guard.destroy();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void futureHoldsClaimUntilCompletion() throws Exception {
+        CompletableFuture<Object> first = (CompletableFuture<Object>) harness.invoke(target, "future", request("req-1"));
+        assertTrue(target.entered.await(5L, TimeUnit.SECONDS));
+        //方法已经返回future 但执行权要到future完成后才释放
+        CompletableFuture<Object> concurrent = (CompletableFuture<Object>) harness.invoke(target, "future", request("req-1"));
+        assertRepeat(concurrent);
+        assertFalse(first.isDone());
+
+        target.pending.complete("value");
+        assertEquals("done-req-1", first.get(5L, TimeUnit.SECONDS));
+        //回放的是完成后的值而不是future对象
+        CompletableFuture<Object> replayed = (CompletableFuture<Object>) harness.invoke(target, "future", request("req-1"));
+        assertEquals("done-req-1", replayed.get(5L, TimeUnit.SECONDS));
+        assertEquals(1, target.calls.get());
+        assertEquals(IdempotentStatusEnum.SUCCESS, idempotentService.queryByReqId("req-1", APP).getStatus());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void failedFutureIsRecordedAndRetried() throws Exception {
+        target.pending.completeExceptionally(new IllegalStateException("failed"));
+        CompletableFuture<Object> failed = (CompletableFuture<Object>) harness.invoke(target, "future", request("req-1"));
+        try {
+            failed.join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(IdempotentStatusEnum.FAIL, idempotentService.queryByReqId("req-1", APP).getStatus());
+
+        target.pending = CompletableFuture.completedFuture("value");
+        CompletableFuture<Object> retried = (CompletableFuture<Object>) harness.invoke(target, "future", request("req-1"));
+        assertEquals("done-req-1", retried.get(5L, TimeUnit.SECONDS));
+        assertEquals(2, target.calls.get());
+        assertEquals(IdempotentStatusEnum.SUCCESS, idempotentService.queryByReqId("req-1", APP).getStatus());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void monoClaimsOnSubscribe() throws Exception {
+        Mono<Object> mono = (Mono<Object>) harness.invoke(target, "mono", request("req-1"));
+        //未订阅时不抢占也不执行
+        TimeUnit.MILLISECONDS.sleep(100L);
+        assertEquals(0, target.calls.get());
+
+        CompletableFuture<Object> first = mono.toFuture();
+        assertTrue(target.entered.await(5L, TimeUnit.SECONDS));
+        Mono<Object> concurrent = (Mono<Object>) harness.invoke(target, "mono", request("req-1"));
+        assertRepeat(concurrent.toFuture());
+
+        target.pending.complete("value");
+        assertEquals("done-req-1", first.get(5L, TimeUnit.SECONDS));
+        //再次订阅同一个Mono时回放结果
+        assertEquals("done-req-1", mono.block());
+        assertEquals(1, target.calls.get());
+    }
+
+    private static void assertRepeat(CompletableFuture<Object> future) {
+        try {
+            future.get(5L, TimeUnit.SECONDS);
+            fail();
+        } catch (Exception e) {
+            Throwable cause = e.getCause();
+            assertTrue(String.valueOf(cause), cause instanceof BaseException);
+            assertEquals(Integer.valueOf(5015), ((BaseException) cause).getErrorType().getCode());
+        }
+    }
+
+    private static Request request(String requestId) {
+        Request request = new Request();
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    public static class Request extends AbstractIdRequest {
+    }
+
+    static class Target {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        /**
+         * 业务future 由测试控制完成时机
+         */
+        volatile CompletableFuture<String> pending = new CompletableFuture<>();
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = APP, timeout = 100)
+        CompletableFuture<String> future(Request request) {
+            calls.incrementAndGet();
+            entered.countDown();
+            return pending.thenApply(value -> "done-" + request.getRequestId());
+        }
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = APP, timeout = 100)
+        Mono<String> mono(Request request) {
+            return Mono.fromFuture(this.future(request));
+        }
+    }
+}
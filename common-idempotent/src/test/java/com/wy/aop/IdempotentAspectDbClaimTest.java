@@ -0,0 +1,227 @@
+package com.wy.aop;
+
+import com.wy.IdempotentService;
+import com.wy.config.IdempotentConfiguration;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.AbstractIdRequest;
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.exception.BaseException;
+import com.wy.guard.IdempotentGuard;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.support.AspectHarness;
+import com.wy.support.H2Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentAspectDbClaimTest
+ * @Description DB_CLAIM模式的切面流程 唯一约束抢占、失败重抢、处理中拒绝与超时接管，使用H2且不依赖redis
+ * @Date 2021/7/19 10:30
+ */
+public class IdempotentAspectDbClaimTest {
+
+    private static final String APP = "app";
+
+    private ExecutorService executor;
+
+    private JdbcIdempotentService idempotentService;
+
+    private AspectHarness harness;
+
+    private final Target target = new Target();
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        idempotentService = new JdbcIdempotentService(H2Database.create());
+        harness = new AspectHarness(IdempotentGuard.NONE, idempotentService, properties(), executor).init();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void firstCallExecutesAndRetryReplays() throws Throwable {
+        assertEquals("done-req-1", harness.invoke(target, "sync", request("req-1")));
+        assertEquals("done-req-1", harness.invoke(target, "sync", request("req-1")));
+        assertEquals(1, target.calls.get());
+        assertEquals(IdempotentStatusEnum.SUCCESS, idempotentService.queryByReqId("req-1", APP).getStatus());
+    }
+
+    @Test
+    public void failedRecordIsReclaimedByRetry() throws Throwable {
+        target.failures.set(1);
+        try {
+            harness.invoke(target, "sync", request("req-1"));
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        IdempotentContext failed = idempotentService.queryByReqId("req-1", APP);
+        assertEquals(IdempotentStatusEnum.FAIL, failed.getStatus());
+
+        assertEquals("done-req-1", harness.invoke(target, "sync", request("req-1")));
+        assertEquals(2, target.calls.get());
+        IdempotentContext reclaimed = idempotentService.queryByReqId("req-1", APP);
+        //重新抢占复用原来的记录
+        assertEquals(failed.getId(), reclaimed.getId());
+        assertEquals(IdempotentStatusEnum.SUCCESS, reclaimed.getStatus());
+    }
+
+    @Test
+    public void freshInProcessRecordIsRejected() throws Throwable {
+        idempotentService.claim(record("req-1"));
+        try {
+            harness.invoke(target, "sync", request("req-1"));
+            fail();
+        } catch (BaseException e) {
+            assertEquals(Integer.valueOf(5016), e.getErrorType().getCode());
+        }
+        assertEquals(0, target.calls.get());
+    }
+
+    @Test
+    public void staleInProcessRecordIsTakenOver() throws Throwable {
+        Long id = idempotentService.claim(record("req-1"));
+        //执行者超过keeps仍未完成 视为已经崩溃
+        TimeUnit.MILLISECONDS.sleep(1100L);
+        assertEquals("done-req-1", harness.invoke(target, "shortKeeps", request("req-1")));
+        IdempotentContext record = idempotentService.queryByReqId("req-1", APP);
+        assertEquals(id, record.getId());
+        assertEquals(IdempotentStatusEnum.SUCCESS, record.getStatus());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void asyncClaimExecutesOnceAndReplays() throws Throwable {
+        CompletableFuture<Object> first = (CompletableFuture<Object>) harness.invoke(target, "async", request("req-1"));
+        assertEquals("done-req-1", first.get(5, TimeUnit.SECONDS));
+        CompletableFuture<Object> second = (CompletableFuture<Object>) harness.invoke(target, "async", request("req-1"));
+        assertEquals("done-req-1", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, target.calls.get());
+
+        target.failures.set(1);
+        CompletableFuture<Object> failed = (CompletableFuture<Object>) harness.invoke(target, "async", request("req-2"));
+        try {
+            failed.join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(IdempotentStatusEnum.FAIL, idempotentService.queryByReqId("req-2", APP).getStatus());
+        CompletableFuture<Object> retried = (CompletableFuture<Object>) harness.invoke(target, "async", request("req-2"));
+        assertEquals("done-req-2", retried.get(5, TimeUnit.SECONDS));
+        assertEquals(IdempotentStatusEnum.SUCCESS, idempotentService.queryByReqId("req-2", APP).getStatus());
+    }
+
+    @Test
+    public void serviceWithoutClaimFailsAtStartup() {
+        try {
+            new AspectHarness(IdempotentGuard.NONE, new QueryOnlyService(), properties(), executor).init();
+            fail();
+        } catch (BaseException e) {
+            assertEquals(Integer.valueOf(1099), e.getErrorType().getCode());
+        }
+        //其他模式不检查
+        IdempotentProperties properties = properties();
+        properties.setMode(IdempotentProperties.GuardMode.IN_MEMORY);
+        new AspectHarness(IdempotentGuard.NONE, new QueryOnlyService(), properties, executor).init();
+    }
+
+    @Test
+    public void guardBeanDoesNotNeedRedis() {
+        //没有redisson和连接工厂
+        assertSame(IdempotentGuard.NONE, new IdempotentConfiguration().idempotentGuard(properties(), null, null, null));
+    }
+
+    private static IdempotentProperties properties() {
+        IdempotentProperties properties = new IdempotentProperties();
+        properties.setMode(IdempotentProperties.GuardMode.DB_CLAIM);
+        return properties;
+    }
+
+    private static Request request(String requestId) {
+        Request request = new Request();
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    private static IdempotentContext record(String requestId) {
+        return IdempotentContext.builder().requestId(requestId).appCode(APP).status(IdempotentStatusEnum.ING).build();
+    }
+
+    public static class Request extends AbstractIdRequest {
+    }
+
+    static class Target {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final AtomicInteger failures = new AtomicInteger();
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = APP)
+        String sync(Request request) {
+            calls.incrementAndGet();
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("failed " + request.getRequestId());
+            }
+            return "done-" + request.getRequestId();
+        }
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = APP, keeps = 1000)
+        String shortKeeps(Request request) {
+            return this.sync(request);
+        }
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = APP)
+        CompletableFuture<String> async(Request request) {
+            return CompletableFuture.supplyAsync(() -> this.sync(request));
+        }
+    }
+
+    /**
+     * 只实现必需方法 没有claim/reclaim
+     */
+    private static class QueryOnlyService implements IdempotentService {
+
+        @Override
+        public Long insert(IdempotentContext model) {
+            return null;
+        }
+
+        @Override
+        public void insertBody(IdempotentBodyContext model) {
+        }
+
+        @Override
+        public void updateInfo(IdempotentContext model) {
+        }
+
+        @Override
+        public IdempotentContext queryByReqId(String requestId, String appCode) {
+            return null;
+        }
+
+        @Override
+        public IdempotentBodyContext getLatestRecordByIdeKey(Long idempotentId) {
+            return null;
+        }
+    }
+}
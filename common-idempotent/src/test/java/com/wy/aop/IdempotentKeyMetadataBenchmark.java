@@ -0,0 +1,79 @@
+package com.wy.aop;
+
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentKeyMetadataBenchmark
+ * @Description 单次调用解析注解值的耗时 原来每次新建解析器和上下文并解析表达式，与预编译的 {@link IdempotentKeyMetadata} 对比
+ * 每次调用取requestId、appCode、businessNo三个值 不在单元测试中执行，通过main运行
+ * @Date 2021/7/15 15:00
+ */
+public class IdempotentKeyMetadataBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Object[][] calls = new Object[1024][];
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new Object[]{new IdempotentKeyMetadataTest.Request("req-" + i)};
+        }
+        IdempotentKeyMetadata expression = IdempotentKeyMetadataTest.metadata("expression");
+        IdempotentKeyMetadata parameter = IdempotentKeyMetadataTest.metadata("parameter");
+        for (int round = 0; round < 2; round++) {
+            //第一轮预热
+            boolean report = round == 1;
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += legacy(calls[i & 1023][0], "#request.requestId", "app", "#request.count");
+            }
+            print(report, "expression  per-call SpEL", iterations, start, sink);
+            sink = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                IdempotentKeyMetadata.Evaluation evaluation = expression.evaluate(calls[i & 1023]);
+                sink += evaluation.requestId().length() + evaluation.appCode().length() + evaluation.businessNo().length();
+            }
+            print(report, "expression  metadata     ", iterations, start, sink);
+            sink = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += legacy(i, "#request", "app", "");
+            }
+            print(report, "parameter   per-call SpEL", iterations, start, sink);
+            sink = 0;
+            start = System.nanoTime();
+            Object[] arg = new Object[1];
+            for (int i = 0; i < iterations; i++) {
+                arg[0] = i;
+                IdempotentKeyMetadata.Evaluation evaluation = parameter.evaluate(arg);
+                sink += evaluation.requestId().length() + evaluation.appCode().length() + evaluation.businessNo().length();
+            }
+            print(report, "parameter   metadata     ", iterations, start, sink);
+        }
+    }
+
+    /**
+     * 与原来的切面一致 每次调用新建上下文和解析器，每个值单独解析
+     */
+    private static long legacy(Object arg, String... values) {
+        EvaluationContext context = new StandardEvaluationContext();
+        ExpressionParser parser = new SpelExpressionParser();
+        context.setVariable("request", arg);
+        long length = 0;
+        for (String value : values) {
+            String resolved = value.startsWith("#") ? parser.parseExpression(value).getValue(context, String.class) : value;
+            length += resolved.length();
+        }
+        return length;
+    }
+
+    private static void print(boolean report, String name, int iterations, long start, long sink) {
+        if (report) {
+            System.out.printf("%s ns/call %8.1f  (%d)%n", name, (System.nanoTime() - start) / (double) iterations, sink);
+        }
+    }
+}
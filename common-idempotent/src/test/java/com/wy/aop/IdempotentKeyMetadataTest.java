@@ -0,0 +1,113 @@
+package com.wy.aop;
+
+import org.junit.Test;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentKeyMetadataTest
+ * @Description 预编译的取值与原来每次 getValue(context, String.class) 的结果一致
+ * @Date 2021/7/15 14:00
+ */
+public class IdempotentKeyMetadataTest {
+
+    private static final String[] NAMES = {"request"};
+
+    @Test
+    public void parameterValuesConvertLikeSpel() {
+        Object[] values = {"req-1", 42L, 7, new BigDecimal("1.50"), 'x', true, TimeUnit.SECONDS, Level.HIGH,
+                UUID.fromString("1b4e28ba-2fa1-11d2-883f-0016d3cca427"), new int[]{1, 2, 3}, new String[]{"a", "b"},
+                Arrays.asList("a", "b"), Collections.emptyList(), null};
+        IdempotentKeyMetadata metadata = metadata("parameter");
+        for (Object value : values) {
+            assertEquals(String.valueOf(value), legacyValue("#request", value), metadata.evaluate(new Object[]{value}).requestId());
+        }
+        //枚举按name而不是toString
+        assertEquals("HIGH", metadata.evaluate(new Object[]{Level.HIGH}).requestId());
+        assertEquals("1,2,3", metadata.evaluate(new Object[]{new int[]{1, 2, 3}}).requestId());
+    }
+
+    @Test
+    public void plainObjectsConvertLikeSpel() {
+        Object value = new Request("req-1");
+        assertEquals(legacyValue("#request", value), metadata("parameter").evaluate(new Object[]{value}).requestId());
+    }
+
+    @Test
+    public void expressionsAndLiterals() {
+        Object[] args = {new Request("req-1")};
+        IdempotentKeyMetadata.Evaluation evaluation = metadata("expression").evaluate(args);
+        assertEquals(legacyValue("#request.requestId", args[0]), evaluation.requestId());
+        assertEquals("app", evaluation.appCode());
+        assertEquals(legacyValue("#request.count", args[0]), evaluation.businessNo());
+        assertEquals("", metadata("expression").evaluate(new Object[0]).requestId());
+    }
+
+    static IdempotentKeyMetadata metadata(String method) {
+        try {
+            java.lang.reflect.Method target = IdempotentKeyMetadataTest.class.getDeclaredMethod(method, Object.class);
+            return new IdempotentKeyMetadata(target, target.getAnnotation(IdempoentKey.class), NAMES);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 原来的实现 每次调用新建解析器和上下文
+     */
+    static String legacyValue(String el, Object arg) {
+        EvaluationContext context = new StandardEvaluationContext();
+        context.setVariable(NAMES[0], arg);
+        return new SpelExpressionParser().parseExpression(el).getValue(context, String.class);
+    }
+
+    @IdempoentKey(requestId = "#request", appCode = "app")
+    void parameter(Object request) {
+    }
+
+    @IdempoentKey(requestId = "#request.requestId", appCode = "app", businessNo = "#request.count")
+    void expression(Object request) {
+    }
+
+    public enum Level {
+
+        HIGH;
+
+        @Override
+        public String toString() {
+            return "level-high";
+        }
+    }
+
+    public static class Request {
+
+        private final String requestId;
+
+        public Request(String requestId) {
+            this.requestId = requestId;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public int getCount() {
+            return 3;
+        }
+
+        @Override
+        public String toString() {
+            return "Request(" + requestId + ")";
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.wy.aop;
+
+import com.wy.config.IdempotentProperties;
+import com.wy.context.AbstractIdRequest;
+import com.wy.context.IdempotentContext;
+import com.wy.exception.BaseException;
+import com.wy.guard.InMemoryGuard;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.support.AspectHarness;
+import com.wy.support.H2Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author wangyong
+ * @Classname RequestFingerprintTest
+ * @Description 指纹与属性和map的顺序无关，HASH模式下相同requestId参数不同的请求在redis和库表回放时都被拒绝
+ * @Date 2021/7/20 21:00
+ */
+public class RequestFingerprintTest {
+
+    private static final String APP = "app";
+
+    private ExecutorService executor;
+
+    private InMemoryGuard guard;
+
+    private JdbcIdempotentService idempotentService;
+
+    private IdempotentProperties properties;
+
+    private final Target target = new Target();
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        guard = new InMemoryGuard(64, 10L, 64);
+        idempotentService = new JdbcIdempotentService(H2Database.create());
+        properties = new IdempotentProperties();
+        properties.setMode(IdempotentProperties.GuardMode.IN_MEMORY);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        guard.destroy();
+    }
+
+    @Test
+    public void fingerprintIgnoresMapOrder() {
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("a", 1);
+        first.put("b", "x");
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("b", "x");
+        second.put("a", 1);
+        assertArrayEquals(RequestFingerprint.of(new Object[]{first}), RequestFingerprint.of(new Object[]{second}));
+        second.put("a", 2);
+        assertFalse(RequestFingerprint.conflicts(RequestFingerprint.toParam(RequestFingerprint.of(new Object[]{first})),
+                RequestFingerprint.of(new Object[]{first})));
+        assertTrue(RequestFingerprint.conflicts(RequestFingerprint.toParam(RequestFingerprint.of(new Object[]{first})),
+                RequestFingerprint.of(new Object[]{second})));
+        //记录的是完整json时不判断
+        assertFalse(RequestFingerprint.conflicts("{\"a\":1}", RequestFingerprint.of(new Object[]{second})));
+        assertEquals(RequestFingerprint.LENGTH, RequestFingerprint.of(new Object[]{first}).length);
+    }
+
+    @Test
+    public void hashCaptureStoresFingerprintOnly() throws Exception {
+        harness(guard).invoke(target, "hashed", request("req-1", 100));
+        IdempotentContext record = idempotentService.queryByReqId("req-1", APP);
+        String param = idempotentService.getLatestRecordByIdeKey(record.getId()).getRequestParam();
+        assertEquals(RequestFingerprint.toParam(RequestFingerprint.of(new Object[]{request("req-1", 100)})), param);
+
+        harness(guard).invoke(target, "full", request("req-2", 100));
+        record = idempotentService.queryByReqId("req-2", APP);
+        assertTrue(idempotentService.getLatestRecordByIdeKey(record.getId()).getRequestParam().contains("\"amount\":100"));
+    }
+
+    @Test
+    public void mismatchedReplayFromGuardIsRejected() throws Exception {
+        assertEquals("done-req-1-100", harness(guard).invoke(target, "hashed", request("req-1", 100)));
+        assertEquals("done-req-1-100", harness(guard).invoke(target, "hashed", request("req-1", 100)));
+        assertMismatch(guard, request("req-1", 200));
+        assertEquals(1, target.calls.get());
+    }
+
+    @Test
+    public void mismatchedReplayFromTableIsRejected() throws Exception {
+        harness(guard).invoke(target, "hashed", request("req-1", 100));
+        //新的guard中没有结果 从库表回放时比较参数表中的指纹
+        InMemoryGuard empty = new InMemoryGuard(64, 10L, 64);
+        try {
+            assertMismatch(empty, request("req-1", 200));
+            assertEquals("done-req-1-100", harness(empty).invoke(target, "hashed", request("req-1", 100)));
+        } finally {
+            empty.destroy();
+        }
+        assertEquals(1, target.calls.get());
+    }
+
+    @Test
+    public void fullCaptureDoesNotCompareParameters() throws Exception {
+        harness(guard).invoke(target, "full", request("req-1", 100));
+        assertEquals("done-req-1-100", harness(guard).invoke(target, "full", request("req-1", 200)));
+        assertEquals(1, target.calls.get());
+    }
+
+    private void assertMismatch(InMemoryGuard guard, Request request) throws Exception {
+        try {
+            harness(guard).invoke(target, "hashed", request);
+            fail();
+        } catch (BaseException e) {
+            assertEquals(Integer.valueOf(5017), e.getErrorType().getCode());
+        }
+    }
+
+    private AspectHarness harness(InMemoryGuard guard) {
+        return new AspectHarness(guard, idempotentService, properties, executor);
+    }
+
+    private static Request request(String requestId, long amount) {
+        Request request = new Request();
+        request.setRequestId(requestId);
+        request.setAmount(amount);
+        return request;
+    }
+
+    public static class Request extends AbstractIdRequest {
+
+        private long amount;
+
+        public long getAmount() {
+            return amount;
+        }
+
+        public void setAmount(long amount) {
+            this.amount = amount;
+        }
+    }
+
+    static class Target {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = APP, capture = RequestCapture.HASH)
+        String hashed(Request request) {
+            calls.incrementAndGet();
+            return "done-" + request.getRequestId() + "-" + request.getAmount();
+        }
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = APP)
+        String full(Request request) {
+            return this.hashed(request);
+        }
+    }
+}
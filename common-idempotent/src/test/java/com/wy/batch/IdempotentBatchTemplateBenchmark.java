@@ -0,0 +1,146 @@
+package com.wy.batch;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.codec.HessianResultCodec;
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.guard.IdempotentClaim;
+import com.wy.guard.InMemoryGuard;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.support.H2Database;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentBatchTemplateBenchmark
+ * @Description {@link IdempotentBatchTemplate} 与逐条抢占、查询、落库的对比 1k和10k条一批
+ * 分别统计首次执行、结果仍在guard中的回放、结果只在库表中的回放，使用进程内guard和内存H2
+ * 不在单元测试中执行，通过main运行
+ * @Date 2021/7/13 15:00
+ */
+public class IdempotentBatchTemplateBenchmark {
+
+    private static final String APP = "import";
+
+    private static final Duration RESULT_TTL = Duration.ofMinutes(60L);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        IdempoentKey key = IdempotentBatchTemplateBenchmark.class.getDeclaredMethod("annotated").getAnnotation(IdempoentKey.class);
+        try {
+            for (int round = 0; round < 2; round++) {
+                //第一轮预热
+                for (int size : new int[]{1000, 10000}) {
+                    run(size, key, executor, round == 1);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void run(int size, IdempoentKey key, ExecutorService executor, boolean report) throws Exception {
+        Function<List<IdempotentBatchTemplateTest.Request>, List<String>> action = list -> {
+            List<String> outputs = new ArrayList<>(list.size());
+            for (IdempotentBatchTemplateTest.Request request : list) {
+                outputs.add("done-" + request.getRequestId());
+            }
+            return outputs;
+        };
+        List<IdempotentBatchTemplateTest.Request> requests = IdempotentBatchTemplateTest.requests(ids("batch-", size));
+        List<IdempotentBatchTemplateTest.Request> single = IdempotentBatchTemplateTest.requests(ids("single-", size));
+        JdbcIdempotentService idempotentService = new JdbcIdempotentService(H2Database.create());
+        InMemoryGuard guard = new InMemoryGuard(size * 2, 10L, 64);
+        InMemoryGuard fresh = new InMemoryGuard(size * 2, 10L, 64);
+        try {
+            IdempotentBatchTemplate template = IdempotentBatchTemplateTest.template(guard, idempotentService, executor);
+            long start = System.nanoTime();
+            template.execute(APP, requests, action);
+            print(report, size, "batch first execution   ", start);
+
+            start = System.nanoTime();
+            template.execute(APP, requests, action);
+            print(report, size, "batch replay from guard ", start);
+
+            start = System.nanoTime();
+            IdempotentBatchTemplateTest.template(fresh, idempotentService, executor).execute(APP, requests, action);
+            print(report, size, "batch replay from db    ", start);
+
+            HessianResultCodec codec = new HessianResultCodec();
+            start = System.nanoTime();
+            for (IdempotentBatchTemplateTest.Request request : single) {
+                one(guard, idempotentService, codec, key, request, action);
+            }
+            print(report, size, "per-item first execution", start);
+
+            start = System.nanoTime();
+            for (IdempotentBatchTemplateTest.Request request : single) {
+                one(guard, idempotentService, codec, key, request, action);
+            }
+            print(report, size, "per-item replay         ", start);
+        } finally {
+            guard.destroy();
+            fresh.destroy();
+        }
+    }
+
+    /**
+     * 与切面处理单个请求的步骤一致 抢占、查询记录、执行、写结果、落库
+     */
+    private static void one(InMemoryGuard guard, JdbcIdempotentService idempotentService, HessianResultCodec codec, IdempoentKey key,
+                            IdempotentBatchTemplateTest.Request request, Function<List<IdempotentBatchTemplateTest.Request>, List<String>> action) throws Exception {
+        IdempotentClaim claim = guard.claim(request.getRequestId() + ":" + APP, key);
+        try {
+            if (claim.getStatus() == IdempotentClaim.Status.RESULT) {
+                codec.decode(claim.getResult());
+                return;
+            }
+            IdempotentContext context = idempotentService.queryByReqId(request.getRequestId(), APP);
+            if (context != null && context.getStatus() == IdempotentStatusEnum.SUCCESS) {
+                codec.decode(idempotentService.getLatestRecordByIdeKey(context.getId()).getResponseBody());
+                return;
+            }
+            List<IdempotentBatchTemplateTest.Request> list = new ArrayList<>(1);
+            list.add(request);
+            byte[] bytes = codec.encode(action.apply(list).get(0));
+            guard.complete(claim, bytes, RESULT_TTL);
+            Long id = idempotentService.insert(IdempotentContext.builder()
+                    .requestId(request.getRequestId())
+                    .appCode(APP)
+                    .status(IdempotentStatusEnum.SUCCESS)
+                    .build());
+            idempotentService.insertBody(IdempotentBodyContext.builder()
+                    .idempotentId(id)
+                    .responseBody(bytes)
+                    .build());
+        } finally {
+            guard.release(claim);
+        }
+    }
+
+    private static String[] ids(String prefix, int size) {
+        String[] ids = new String[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = prefix + i;
+        }
+        return ids;
+    }
+
+    private static void print(boolean report, int size, String name, long start) {
+        if (report) {
+            double micros = (System.nanoTime() - start) / 1e3;
+            System.out.printf("%6d items %s total ms %8.1f  us/item %7.2f%n", size, name, micros / 1000, micros / size);
+        }
+    }
+
+    @IdempoentKey(requestId = "#id", appCode = APP, timeout = 0, keeps = 60 * 1000)
+    private static void annotated() {
+    }
+}
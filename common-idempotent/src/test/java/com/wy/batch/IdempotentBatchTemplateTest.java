@@ -0,0 +1,187 @@
+package com.wy.batch;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.codec.HessianResultCodec;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.AbstractIdRequest;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.guard.IdempotentClaim;
+import com.wy.guard.InMemoryGuard;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.metrics.IdempotentMetrics;
+import com.wy.support.H2Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentBatchTemplateTest
+ * @Description 批量幂等的批内去重、结果顺序与部分回放 使用进程内guard和H2
+ * @Date 2021/7/13 14:00
+ */
+public class IdempotentBatchTemplateTest {
+
+    private static final String APP = "import";
+
+    private ExecutorService executor;
+
+    private JdbcIdempotentService idempotentService;
+
+    private InMemoryGuard guard;
+
+    private IdempotentBatchTemplate template;
+
+    private final List<List<String>> executed = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        idempotentService = new JdbcIdempotentService(H2Database.create());
+        guard = new InMemoryGuard(1024, 10L, 64);
+        template = template(guard, idempotentService, executor);
+    }
+
+    @After
+    public void tearDown() {
+        guard.destroy();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void duplicatesInOneBatchExecuteOnce() {
+        List<IdempotentBatchResult<String>> results = template.execute(APP, requests("a", "b", "a"), this.action());
+        assertEquals(1, executed.size());
+        assertEquals(Arrays.asList("a", "b"), executed.get(0));
+        assertStatus(results, IdempotentBatchResult.Status.EXECUTED, IdempotentBatchResult.Status.EXECUTED, IdempotentBatchResult.Status.EXECUTED);
+        assertEquals("done-a", results.get(0).getResult());
+        assertEquals("done-a", results.get(2).getResult());
+    }
+
+    @Test
+    public void resultsFollowRequestOrder() {
+        template.execute(APP, requests("b", "d"), this.action());
+        List<IdempotentBatchResult<String>> results = template.execute(APP, requests("e", "d", "c", "b", "a"), this.action());
+        for (IdempotentBatchResult<String> result : results) {
+            assertEquals("done-" + result.getRequestId(), result.getResult());
+        }
+        assertEquals(Arrays.asList("e", "c", "a"), executed.get(1));
+        assertStatus(results, IdempotentBatchResult.Status.EXECUTED, IdempotentBatchResult.Status.REPLAYED,
+                IdempotentBatchResult.Status.EXECUTED, IdempotentBatchResult.Status.REPLAYED, IdempotentBatchResult.Status.EXECUTED);
+    }
+
+    @Test
+    public void partialReplayFromStoredResults() {
+        template.execute(APP, requests("a", "b"), this.action());
+        List<IdempotentBatchResult<String>> results = template.execute(APP, requests("a", "b", "c"), this.action());
+        assertEquals(Arrays.asList("c"), executed.get(1));
+        assertStatus(results, IdempotentBatchResult.Status.REPLAYED, IdempotentBatchResult.Status.REPLAYED, IdempotentBatchResult.Status.EXECUTED);
+        assertEquals(IdempotentStatusEnum.SUCCESS, idempotentService.queryByReqId("c", APP).getStatus());
+    }
+
+    @Test
+    public void partialReplayFromDatabaseAfterResultsExpire() {
+        template.execute(APP, requests("a", "b"), this.action());
+        //新的guard相当于redis中的结果已经过期 只能从库表回放
+        InMemoryGuard fresh = new InMemoryGuard(1024, 10L, 64);
+        try {
+            List<IdempotentBatchResult<String>> results = template(fresh, idempotentService, executor)
+                    .execute(APP, requests("c", "a", "b"), this.action());
+            assertEquals(Arrays.asList("c"), executed.get(1));
+            assertStatus(results, IdempotentBatchResult.Status.EXECUTED, IdempotentBatchResult.Status.REPLAYED, IdempotentBatchResult.Status.REPLAYED);
+            assertEquals("done-a", results.get(1).getResult());
+            assertEquals("done-b", results.get(2).getResult());
+        } finally {
+            fresh.destroy();
+        }
+    }
+
+    @Test
+    public void heldKeysAreReportedAsRepeat() throws Exception {
+        IdempoentKey key = IdempotentBatchTemplateTest.class.getDeclaredMethod("annotated").getAnnotation(IdempoentKey.class);
+        IdempotentClaim held = guard.claim("b:" + APP, key);
+        try {
+            List<IdempotentBatchResult<String>> results = template.execute(APP, requests("a", "b"), this.action());
+            assertEquals(Arrays.asList("a"), executed.get(0));
+            assertStatus(results, IdempotentBatchResult.Status.EXECUTED, IdempotentBatchResult.Status.REPEAT);
+            assertNull(results.get(1).getResult());
+        } finally {
+            guard.release(held);
+        }
+    }
+
+    @Test
+    public void failedBatchCanBeRetried() {
+        try {
+            template.execute(APP, requests("a", "b"), list -> {
+                throw new IllegalStateException("boom");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        assertEquals(IdempotentStatusEnum.FAIL, idempotentService.queryByReqId("a", APP).getStatus());
+        List<IdempotentBatchResult<String>> results = template.execute(APP, requests("a", "b"), this.action());
+        assertStatus(results, IdempotentBatchResult.Status.EXECUTED, IdempotentBatchResult.Status.EXECUTED);
+        assertEquals(IdempotentStatusEnum.SUCCESS, idempotentService.queryByReqId("a", APP).getStatus());
+        assertTrue(idempotentService.getLatestRecordByIdeKey(idempotentService.queryByReqId("a", APP).getId()).getResponseBody().length > 0);
+    }
+
+    static IdempotentBatchTemplate template(InMemoryGuard guard, JdbcIdempotentService idempotentService, ExecutorService executor) {
+        IdempotentProperties properties = new IdempotentProperties();
+        properties.setMode(IdempotentProperties.GuardMode.IN_MEMORY);
+        IdempotentBatchTemplate template = new IdempotentBatchTemplate(guard, idempotentService, new HessianResultCodec(),
+                properties, IdempotentMetrics.NOOP);
+        template.setIdempotentExecutor(executor);
+        return template;
+    }
+
+    static List<Request> requests(String... requestIds) {
+        List<Request> requests = new ArrayList<>(requestIds.length);
+        for (String requestId : requestIds) {
+            Request request = new Request();
+            request.setRequestId(requestId);
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    private Function<List<Request>, List<String>> action() {
+        return list -> {
+            List<String> ids = new ArrayList<>(list.size());
+            List<String> outputs = new ArrayList<>(list.size());
+            for (Request request : list) {
+                ids.add(request.getRequestId());
+                outputs.add("done-" + request.getRequestId());
+            }
+            executed.add(ids);
+            return outputs;
+        };
+    }
+
+    private static void assertStatus(List<IdempotentBatchResult<String>> results, IdempotentBatchResult.Status... expected) {
+        assertEquals(expected.length, results.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("index " + i, expected[i], results.get(i).getStatus());
+        }
+    }
+
+    @IdempoentKey(requestId = "#id", appCode = APP, timeout = 0, keeps = 10 * 1000)
+    private void annotated() {
+    }
+
+    public static class Request extends AbstractIdRequest {
+    }
+}
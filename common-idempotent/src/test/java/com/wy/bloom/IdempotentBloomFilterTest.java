@@ -0,0 +1,170 @@
+package com.wy.bloom;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.AbstractIdRequest;
+import com.wy.context.IdempotentContext;
+import com.wy.guard.InMemoryGuard;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.support.AspectHarness;
+import com.wy.support.EmbeddedRedis;
+import com.wy.support.H2Database;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentBloomFilterTest
+ * @Description 覆盖时长不足时无法判断，之后未出现过的requestId跳过queryByReqId，记入过的在覆盖时长内一定会被查询
+ * @Date 2021/7/20 18:00
+ */
+public class IdempotentBloomFilterTest {
+
+    private static final Duration WINDOW = Duration.ofMillis(1000L);
+
+    private static EmbeddedRedis redis;
+
+    @BeforeClass
+    public static void start() {
+        redis = EmbeddedRedis.start();
+    }
+
+    @AfterClass
+    public static void stop() {
+        if (redis != null) {
+            redis.stop();
+        }
+    }
+
+    @Test
+    public void unknownUntilCoverageIsComplete() throws InterruptedException {
+        IdempotentBloomFilter filter = filter(1);
+        assertEquals(IdempotentBloomFilter.Verdict.UNKNOWN, filter.check("app", "req-1"));
+        assertEquals(1, filter.getWarmingUp());
+        awaitCoverage(filter);
+        long skipped = filter.getSkipped();
+        assertEquals(IdempotentBloomFilter.Verdict.ABSENT, filter.check("app", "req-1"));
+        assertEquals(skipped + 1, filter.getSkipped());
+    }
+
+    @Test
+    public void putRequestIdsAreFoundWithinCoverage() throws InterruptedException {
+        IdempotentBloomFilter filter = filter(4);
+        awaitCoverage(filter);
+        for (int i = 0; i < 100; i++) {
+            filter.put("app", "req-" + i);
+        }
+        //进入下一个窗口 上一个窗口的位仍然在查询范围内
+        long now = System.currentTimeMillis();
+        TimeUnit.MILLISECONDS.sleep((now / WINDOW.toMillis() + 1) * WINDOW.toMillis() - now + 20L);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(IdempotentBloomFilter.Verdict.MIGHT_CONTAIN, filter.check("app", "req-" + i));
+        }
+        //其他appCode互不影响
+        assertEquals(IdempotentBloomFilter.Verdict.UNKNOWN, filter.check("other", "req-0"));
+        int absent = 0;
+        for (int i = 100; i < 200; i++) {
+            if (filter.check("app", "req-" + i) == IdempotentBloomFilter.Verdict.ABSENT) {
+                absent++;
+            }
+        }
+        assertTrue(absent > 95);
+    }
+
+    @Test
+    public void freshRequestSkipsQueryAndSeenRequestIsQueried() throws Exception {
+        IdempotentBloomFilter filter = filter(1);
+        awaitCoverage(filter);
+        CountingService service = new CountingService();
+        IdempotentProperties properties = new IdempotentProperties();
+        properties.setMode(IdempotentProperties.GuardMode.IN_MEMORY);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        InMemoryGuard guard = new InMemoryGuard(64, 10L, 64);
+        InMemoryGuard empty = new InMemoryGuard(64, 10L, 64);
+        Target target = new Target();
+        try {
+            //新的requestId不查库直接执行
+            new AspectHarness(guard, service, properties, executor).with("idempotentBloomFilter", filter)
+                    .invoke(target, "call", request("req-1"));
+            assertEquals(0, service.queries.get());
+            assertEquals(1, target.calls.get());
+
+            //guard中没有结果时 过滤器判断可能存在 查库回放
+            Object replayed = new AspectHarness(empty, service, properties, executor).with("idempotentBloomFilter", filter)
+                    .invoke(target, "call", request("req-1"));
+            assertEquals("done-req-1", replayed);
+            assertEquals(1, service.queries.get());
+            assertEquals(1, target.calls.get());
+            assertEquals(0, filter.getFalsePositive());
+        } finally {
+            executor.shutdownNow();
+            guard.destroy();
+            empty.destroy();
+        }
+    }
+
+    private static IdempotentBloomFilter filter(int shards) {
+        return new IdempotentBloomFilter(redis.redisson(), "test:bloom:" + UUID.randomUUID() + ":", 1000L, 0.001,
+                WINDOW, 2, shards);
+    }
+
+    /**
+     * 等待过滤器覆盖完整的时长
+     */
+    private static void awaitCoverage(IdempotentBloomFilter filter) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+        while (filter.check("app", "probe") == IdempotentBloomFilter.Verdict.UNKNOWN && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20L);
+        }
+        assertTrue(filter.check("app", "probe") != IdempotentBloomFilter.Verdict.UNKNOWN);
+    }
+
+    private static Request request(String requestId) {
+        Request request = new Request();
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    public static class Request extends AbstractIdRequest {
+    }
+
+    static class Target {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = "app")
+        String call(Request request) {
+            calls.incrementAndGet();
+            return "done-" + request.getRequestId();
+        }
+    }
+
+    /**
+     * 统计queryByReqId的次数
+     */
+    private static class CountingService extends JdbcIdempotentService {
+
+        private final AtomicInteger queries = new AtomicInteger();
+
+        private CountingService() {
+            super(H2Database.create());
+        }
+
+        @Override
+        public IdempotentContext queryByReqId(String requestId, String appCode) {
+            queries.incrementAndGet();
+            return super.queryByReqId(requestId, appCode);
+        }
+    }
+}
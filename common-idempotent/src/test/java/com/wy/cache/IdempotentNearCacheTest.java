@@ -0,0 +1,133 @@
+package com.wy.cache;
+
+import com.wy.IdempotentService;
+import com.wy.aop.IdempoentKey;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.AbstractIdRequest;
+import com.wy.guard.InMemoryGuard;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.support.AspectHarness;
+import com.wy.support.H2Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentNearCacheTest
+ * @Description 本地缓存的过期时间不晚于注解或全局的结果过期时间，回放写入的缓存同样遵守注解的resultTtl
+ * @Date 2021/7/20 17:00
+ */
+public class IdempotentNearCacheTest {
+
+    private static final byte[] BYTES = {1, 2, 3};
+
+    private ExecutorService executor;
+
+    private IdempotentService service;
+
+    private IdempotentProperties properties;
+
+    private InMemoryGuard guard;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        service = new JdbcIdempotentService(H2Database.create());
+        properties = new IdempotentProperties();
+        properties.setMode(IdempotentProperties.GuardMode.IN_MEMORY);
+        guard = new InMemoryGuard(64, 10L, 64);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        guard.destroy();
+    }
+
+    @Test
+    public void entriesExpireAtShorterOfLocalAndResultTtl() throws InterruptedException {
+        IdempotentNearCache cache = new IdempotentNearCache(16, Duration.ofMillis(200L), Duration.ofMinutes(1L));
+        cache.putWritten("written", BYTES, Duration.ofMillis(50L));
+        cache.putLoaded("loaded", BYTES, Duration.ofMillis(50L));
+        cache.putLoaded("local", BYTES, Duration.ofMinutes(10L));
+        assertArrayEquals(BYTES, cache.get("written"));
+        assertArrayEquals(BYTES, cache.get("loaded"));
+
+        TimeUnit.MILLISECONDS.sleep(100L);
+        assertNull(cache.get("written"));
+        assertNull(cache.get("loaded"));
+        //结果过期时间更长时按本地过期时间
+        assertArrayEquals(BYTES, cache.get("local"));
+        TimeUnit.MILLISECONDS.sleep(150L);
+        assertNull(cache.get("local"));
+    }
+
+    @Test
+    public void replayedResultHonoursAnnotationTtl() throws Exception {
+        Target target = new Target();
+        new AspectHarness(guard, service, properties, executor).invoke(target, "shortTtl", request("req-1"));
+
+        //guard中的结果被回放 写入本地缓存
+        IdempotentNearCache cache = new IdempotentNearCache(16, Duration.ofMinutes(1L), Duration.ofMinutes(1L));
+        AspectHarness cached = new AspectHarness(guard, service, properties, executor).with("idempotentNearCache", cache);
+        assertEquals("done-req-1", cached.invoke(target, "shortTtl", request("req-1")));
+        assertEquals(1, target.calls.get());
+        assertNotNull(cache.get("req-1:app"));
+        TimeUnit.MILLISECONDS.sleep(Target.RESULT_TTL + 100L);
+        assertNull(cache.get("req-1:app"));
+    }
+
+    @Test
+    public void resultLoadedFromTableHonoursAnnotationTtl() throws Exception {
+        Target target = new Target();
+        new AspectHarness(guard, service, properties, executor).invoke(target, "shortTtl", request("req-1"));
+
+        //新的guard中没有结果 从库表回放
+        InMemoryGuard empty = new InMemoryGuard(64, 10L, 64);
+        try {
+            IdempotentNearCache cache = new IdempotentNearCache(16, Duration.ofMinutes(1L), Duration.ofMinutes(1L));
+            AspectHarness cached = new AspectHarness(empty, service, properties, executor).with("idempotentNearCache", cache);
+            assertEquals("done-req-1", cached.invoke(target, "shortTtl", request("req-1")));
+            assertEquals(1, target.calls.get());
+            assertNotNull(cache.get("req-1:app"));
+            TimeUnit.MILLISECONDS.sleep(Target.RESULT_TTL + 100L);
+            assertNull(cache.get("req-1:app"));
+        } finally {
+            empty.destroy();
+        }
+    }
+
+    private static Request request(String requestId) {
+        Request request = new Request();
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    public static class Request extends AbstractIdRequest {
+    }
+
+    static class Target {
+
+        static final long RESULT_TTL = 200L;
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = "app", resultTtl = RESULT_TTL)
+        String shortTtl(Request request) {
+            calls.incrementAndGet();
+            return "done-" + request.getRequestId();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.wy.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author wangyong
+ * @Classname CompressingResultCodecTest
+ * @Description 未压缩、压缩和空值都能还原，带偏移量解码同样识别标记位，空的或损坏的数据抛出IOException
+ * @Date 2021/7/20 16:00
+ */
+public class CompressingResultCodecTest {
+
+    private final CompressingResultCodec codec = new CompressingResultCodec(new HessianResultCodec(), 256);
+
+    @Test
+    public void smallValueIsStoredRaw() throws IOException {
+        byte[] bytes = codec.encode("small");
+        assertEquals(0, bytes[0]);
+        assertEquals("small", codec.decode(bytes));
+    }
+
+    @Test
+    public void largeValueIsDeflated() throws IOException {
+        String large = repeat("compressible-", 200);
+        byte[] bytes = codec.encode(large);
+        assertEquals(1, bytes[0]);
+        assertTrue(bytes.length < large.length());
+        assertEquals(large, codec.decode(bytes));
+    }
+
+    @Test
+    public void emptyValuesRoundTrip() throws IOException {
+        assertNull(codec.decode(codec.encode(null)));
+        assertEquals("", codec.decode(codec.encode("")));
+    }
+
+    @Test
+    public void offsetDecodeHonoursFlag() throws IOException {
+        String large = repeat("compressible-", 200);
+        for (Object value : new Object[]{"small", large}) {
+            byte[] bytes = codec.encode(value);
+            //前后带有其他数据 如从更大的缓冲区中截取
+            byte[] padded = new byte[bytes.length + 5];
+            Arrays.fill(padded, (byte) 7);
+            System.arraycopy(bytes, 0, padded, 3, bytes.length);
+            assertEquals(value, codec.decode(padded, 3, bytes.length));
+        }
+    }
+
+    @Test
+    public void emptyInputIsRejected() {
+        assertCorrupt(new byte[0]);
+        try {
+            codec.decode(new byte[]{0, 1}, 1, 0);
+            fail();
+        } catch (IOException e) {
+            //缺少标记位
+        }
+    }
+
+    @Test
+    public void corruptInputIsRejected() throws IOException {
+        //无法识别的标记位
+        assertCorrupt(new byte[]{9, 1, 2, 3});
+        //压缩数据被截断
+        byte[] deflated = codec.encode(repeat("compressible-", 200));
+        assertCorrupt(Arrays.copyOf(deflated, deflated.length / 2));
+        //压缩数据损坏
+        byte[] garbage = {1, 0x7f, 0x7f, 0x7f, 0x7f};
+        assertCorrupt(garbage);
+    }
+
+    private void assertCorrupt(byte[] bytes) {
+        try {
+            codec.decode(bytes);
+            fail();
+        } catch (IOException e) {
+            //期望的异常
+        }
+    }
+
+    private static String repeat(String value, int times) {
+        StringBuilder builder = new StringBuilder(value.length() * times);
+        for (int i = 0; i < times; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,118 @@
+package com.wy.embedded;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author wangyong
+ * @Classname LogSegmentTest
+ * @Description 日志段崩溃恢复 重放顺序与不完整记录的截断
+ * @Date 2021/7/12 10:00
+ */
+public class LogSegmentTest {
+
+    private static final int CAPACITY = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoverReplaysRecordsInOrder() throws IOException {
+        File directory = folder.getRoot();
+        LogSegment segment = LogSegment.open(directory, 0L, CAPACITY);
+        segment.append((byte) 1, 100L, bytes("first"));
+        segment.append((byte) 2, 200L, bytes("second"));
+        segment.close();
+
+        LogSegment reopened = LogSegment.open(directory, 0L, CAPACITY);
+        List<LogRecord> records = recover(reopened);
+        assertEquals(2, records.size());
+        assertEquals(1, records.get(0).getType());
+        assertEquals(100L, records.get(0).getTimestamp());
+        assertArrayEquals(bytes("first"), records.get(0).getPayload());
+        assertArrayEquals(bytes("second"), records.get(1).getPayload());
+        assertEquals(200L, reopened.getMaxTimestamp());
+
+        //恢复后从最后一条记录之后继续追加
+        int offset = reopened.append((byte) 1, 300L, bytes("third"));
+        assertEquals(2 * LogSegment.HEADER_SIZE + "first".length() + "second".length(), offset);
+        reopened.close();
+    }
+
+    @Test
+    public void recoverTruncatesCorruptedTail() throws IOException {
+        File directory = folder.getRoot();
+        LogSegment segment = LogSegment.open(directory, 0L, CAPACITY);
+        segment.append((byte) 1, 100L, bytes("kept"));
+        int torn = segment.append((byte) 1, 200L, bytes("torn-record"));
+        segment.close();
+        //长度已写入但内容只写了一半 crc不匹配
+        try (RandomAccessFile raf = new RandomAccessFile(new File(directory, LogSegment.fileName(0L)), "rw")) {
+            raf.seek(torn + LogSegment.HEADER_SIZE + 4);
+            raf.write(bytes("xxxx"));
+        }
+
+        LogSegment reopened = LogSegment.open(directory, 0L, CAPACITY);
+        List<LogRecord> records = recover(reopened);
+        assertEquals(1, records.size());
+        assertArrayEquals(bytes("kept"), records.get(0).getPayload());
+        assertEquals(torn, reopened.getPosition());
+        //残留的半条记录已清零
+        try (RandomAccessFile raf = new RandomAccessFile(new File(directory, LogSegment.fileName(0L)), "r")) {
+            raf.seek(torn);
+            byte[] tail = new byte[LogSegment.HEADER_SIZE + "torn-record".length()];
+            raf.readFully(tail);
+            assertArrayEquals(new byte[tail.length], tail);
+        }
+
+        assertEquals(torn, reopened.append((byte) 1, 300L, bytes("next")));
+        reopened.close();
+        List<LogRecord> replayed = recover(LogSegment.open(directory, 0L, CAPACITY));
+        assertEquals(2, replayed.size());
+        assertArrayEquals(bytes("next"), replayed.get(1).getPayload());
+    }
+
+    @Test
+    public void recoverStopsBeforeRecordWithoutLength() throws IOException {
+        File directory = folder.getRoot();
+        LogSegment segment = LogSegment.open(directory, 0L, CAPACITY);
+        segment.append((byte) 1, 100L, bytes("kept"));
+        int torn = segment.append((byte) 1, 200L, bytes("a-much-longer-record-body"));
+        segment.close();
+        //长度最后写入 崩溃在写长度之前时内容已经落盘
+        try (RandomAccessFile raf = new RandomAccessFile(new File(directory, LogSegment.fileName(0L)), "rw")) {
+            raf.seek(torn);
+            raf.writeInt(0);
+        }
+
+        LogSegment reopened = LogSegment.open(directory, 0L, CAPACITY);
+        assertEquals(1, recover(reopened).size());
+        //较短的新记录覆盖残留内容的前半段 之后的残留不会被当作有效记录
+        reopened.append((byte) 1, 300L, bytes("short"));
+        reopened.close();
+        List<LogRecord> replayed = recover(LogSegment.open(directory, 0L, CAPACITY));
+        assertEquals(2, replayed.size());
+        assertArrayEquals(bytes("short"), replayed.get(1).getPayload());
+    }
+
+    private static List<LogRecord> recover(LogSegment segment) {
+        List<LogRecord> records = new ArrayList<>();
+        segment.recover(records::add);
+        return records;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
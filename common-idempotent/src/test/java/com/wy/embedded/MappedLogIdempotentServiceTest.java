@@ -0,0 +1,150 @@
+package com.wy.embedded;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.IdempotentContext;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.guard.IdempotentClaim;
+import com.wy.guard.InMemoryGuard;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname MappedLogIdempotentServiceTest
+ * @Description 内嵌日志存储重启后的数据恢复 以及作为 {@link InMemoryGuard} 结果存储时的幂等
+ * @Date 2021/7/12 10:30
+ */
+public class MappedLogIdempotentServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IdempotentProperties.Embedded properties;
+
+    @Before
+    public void setUp() throws IOException {
+        properties = new IdempotentProperties.Embedded();
+        properties.setDirectory(folder.newFolder("log").getAbsolutePath());
+        properties.setSegmentSize(64 * 1024);
+        properties.setInitialIndexCapacity(1024);
+        properties.setMaintenanceInterval(Duration.ofHours(1L));
+    }
+
+    @Test
+    public void recoversRecordsAfterRestart() throws IOException {
+        MappedLogIdempotentService service = new MappedLogIdempotentService(properties);
+        Long id = service.insert(context("req-1", IdempotentStatusEnum.ING));
+        service.updateInfo(IdempotentContext.builder().id(id).status(IdempotentStatusEnum.SUCCESS).build());
+        service.put("req-1:app", bytes("result"), Duration.ofMinutes(1L));
+        service.destroy();
+
+        MappedLogIdempotentService restarted = new MappedLogIdempotentService(properties);
+        try {
+            IdempotentContext recovered = restarted.queryByReqId("req-1", "app");
+            assertNotNull(recovered);
+            assertEquals(id, recovered.getId());
+            assertEquals(IdempotentStatusEnum.SUCCESS, recovered.getStatus());
+            assertArrayEquals(bytes("result"), restarted.get("req-1:app", Duration.ofMinutes(1L)));
+            //主键从重放的最大值继续分配
+            assertTrue(restarted.insert(context("req-2", IdempotentStatusEnum.ING)) > id);
+        } finally {
+            restarted.destroy();
+        }
+    }
+
+    @Test(expected = DuplicateKeyException.class)
+    public void rejectsDuplicateAfterRestart() throws IOException {
+        MappedLogIdempotentService service = new MappedLogIdempotentService(properties);
+        service.insert(context("req-1", IdempotentStatusEnum.ING));
+        service.destroy();
+
+        MappedLogIdempotentService restarted = new MappedLogIdempotentService(properties);
+        try {
+            restarted.insert(context("req-1", IdempotentStatusEnum.ING));
+        } finally {
+            restarted.destroy();
+        }
+    }
+
+    @Test
+    public void dropsTornTailOnRestart() throws IOException {
+        MappedLogIdempotentService service = new MappedLogIdempotentService(properties);
+        service.insert(context("req-1", IdempotentStatusEnum.SUCCESS));
+        service.insert(context("req-2", IdempotentStatusEnum.SUCCESS));
+        service.destroy();
+        //第二条记录的内容损坏 模拟写入中途崩溃
+        File segment = new File(properties.getDirectory(), LogSegment.fileName(0L));
+        int second;
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            second = LogSegment.HEADER_SIZE + raf.readInt();
+            raf.seek(second + LogSegment.HEADER_SIZE);
+            raf.write(new byte[]{1, 2, 3, 4});
+        }
+
+        MappedLogIdempotentService restarted = new MappedLogIdempotentService(properties);
+        try {
+            assertNotNull(restarted.queryByReqId("req-1", "app"));
+            assertNull(restarted.queryByReqId("req-2", "app"));
+            //截断处可以重新写入
+            assertNotNull(restarted.insert(context("req-2", IdempotentStatusEnum.ING)));
+            assertEquals(IdempotentStatusEnum.ING, restarted.queryByReqId("req-2", "app").getStatus());
+        } finally {
+            restarted.destroy();
+        }
+    }
+
+    @Test
+    public void inMemoryGuardReplaysStoredResultAfterRestart() throws Exception {
+        IdempoentKey idempoentKey = Sample.class.getMethod("handle").getAnnotation(IdempoentKey.class);
+        MappedLogIdempotentService service = new MappedLogIdempotentService(properties);
+        InMemoryGuard guard = new InMemoryGuard(16, 10L, 64, service, Duration.ofMinutes(1L));
+        IdempotentClaim claim = guard.claim("req-1:app", idempoentKey);
+        assertEquals(IdempotentClaim.Status.ACQUIRED, claim.getStatus());
+        guard.complete(claim, bytes("result"), Duration.ofMinutes(1L));
+        guard.destroy();
+        service.destroy();
+
+        MappedLogIdempotentService restarted = new MappedLogIdempotentService(properties);
+        InMemoryGuard restartedGuard = new InMemoryGuard(16, 10L, 64, restarted, Duration.ofMinutes(1L));
+        try {
+            IdempotentClaim replay = restartedGuard.claim("req-1:app", idempoentKey);
+            assertEquals(IdempotentClaim.Status.RESULT, replay.getStatus());
+            assertArrayEquals(bytes("result"), replay.getResult());
+            assertEquals(0, restartedGuard.size());
+        } finally {
+            restartedGuard.destroy();
+            restarted.destroy();
+        }
+    }
+
+    private static IdempotentContext context(String requestId, IdempotentStatusEnum status) {
+        return IdempotentContext.builder().requestId(requestId).appCode("app").status(status).build();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Sample {
+
+        @IdempoentKey(requestId = "#id", appCode = "app", timeout = 0)
+        public void handle() {
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.wy.guard;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname HierarchicalTimingWheelTest
+ * @Description 时间轮的多层降级与取消 10ms * 8槽，第一层80ms，第二层640ms，第三层5120ms
+ * @Date 2021/7/14 10:00
+ */
+public class HierarchicalTimingWheelTest {
+
+    private static final long TICK = 10L;
+
+    /**
+     * 到期时间按槽取整 最多提前一个槽触发，触发延迟受调度影响放宽
+     */
+    private static final long LATE = 300L;
+
+    private HierarchicalTimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new HierarchicalTimingWheel(TICK, 8, "timing-wheel-test");
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void tasksCascadeThroughLevelsAndFireOnTime() throws Exception {
+        long[] delays = {30L, 200L, 700L, 1500L};
+        ConcurrentHashMap<Long, Long> fired = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(delays.length);
+        long start = System.currentTimeMillis();
+        for (long delay : delays) {
+            wheel.schedule(delay, () -> {
+                fired.put(delay, System.currentTimeMillis() - start);
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (long delay : delays) {
+            long elapsed = fired.get(delay);
+            assertTrue("delay " + delay + " fired at " + elapsed, elapsed >= delay - TICK && elapsed <= delay + LATE);
+        }
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    public void tasksInOneUpperSlotAreSpreadOverLowerSlots() throws Exception {
+        //同一个第二层槽内的任务降级后按各自的到期时间先后触发
+        int count = 32;
+        List<Long> order = new ArrayList<>(count);
+        CountDownLatch latch = new CountDownLatch(count);
+        for (int i = count - 1; i >= 0; i--) {
+            long delay = 700L + i * 15L;
+            wheel.schedule(delay, () -> {
+                synchronized (order) {
+                    order.add(delay);
+                }
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < count; i++) {
+            assertTrue(order.toString(), order.get(i) > order.get(i - 1));
+        }
+    }
+
+    @Test
+    public void cancelledTasksDoNotRunOnAnyLevel() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        List<HierarchicalTimingWheel.Timeout> timeouts = new ArrayList<>();
+        for (long delay : new long[]{30L, 200L, 700L, 1500L}) {
+            timeouts.add(wheel.schedule(delay, runs::incrementAndGet));
+        }
+        CountDownLatch marker = new CountDownLatch(1);
+        wheel.schedule(1600L, marker::countDown);
+        timeouts.forEach(HierarchicalTimingWheel.Timeout::cancel);
+        assertTrue(marker.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    public void cancelAfterCascadingToLowerLevel() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        //1500ms在第三层 槽跨度640ms，槽最晚在860ms到期，1000ms时已经降到下层
+        HierarchicalTimingWheel.Timeout timeout = wheel.schedule(1500L, runs::incrementAndGet);
+        Thread.sleep(1000L);
+        assertEquals(0, runs.get());
+        timeout.cancel();
+        CountDownLatch marker = new CountDownLatch(1);
+        wheel.schedule(700L, marker::countDown);
+        assertTrue(marker.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void expiredTasksRunOnTheCallingThread() throws Exception {
+        //空闲超过一个槽后 时间轮的当前时间落后于实际时间
+        Thread.sleep(3 * TICK);
+        Thread caller = Thread.currentThread();
+        Thread[] ranOn = new Thread[1];
+        wheel.schedule(0L, () -> ranOn[0] = Thread.currentThread());
+        assertSame(caller, ranOn[0]);
+        boolean[] ran = new boolean[1];
+        HierarchicalTimingWheel.Timeout timeout = wheel.schedule(-5L, () -> ran[0] = true);
+        timeout.cancel();
+        assertTrue(ran[0]);
+    }
+}
@@ -0,0 +1,162 @@
+package com.wy.guard;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.support.EmbeddedRedis;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentCompletionNotifierTest
+ * @Description lua模式下被占用的请求由完成或放弃通知唤醒，而不是等到租约过期，被中断时立即返回
+ * @Date 2021/7/20 10:00
+ */
+public class IdempotentCompletionNotifierTest {
+
+    private static final String CHANNEL = "test:idempotent:completed";
+
+    private static final Duration TTL = Duration.ofMinutes(1L);
+
+    private static EmbeddedRedis redis;
+
+    private static IdempoentKey idempoentKey;
+
+    private ExecutorService waiters;
+
+    private IdempotentCompletionNotifier notifier;
+
+    private LuaScriptGuard guard;
+
+    @BeforeClass
+    public static void start() throws NoSuchMethodException {
+        redis = EmbeddedRedis.start();
+        idempoentKey = IdempotentCompletionNotifierTest.class.getDeclaredMethod("annotated").getAnnotation(IdempoentKey.class);
+    }
+
+    @AfterClass
+    public static void stop() {
+        if (redis != null) {
+            redis.stop();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        waiters = Executors.newCachedThreadPool();
+        notifier = new IdempotentCompletionNotifier(redis.redisson(), CHANNEL);
+        guard = new LuaScriptGuard(redis.redisson(), notifier);
+    }
+
+    @After
+    public void tearDown() {
+        waiters.shutdownNow();
+        guard.destroy();
+        notifier.destroy();
+    }
+
+    @Test
+    public void publishedKeyCompletesSignal() {
+        String key = newKey();
+        CompletableFuture<Void> signal = notifier.register(key);
+        //同一jvm内等待同一个key的请求共用一个信号
+        assertSame(signal, notifier.register(key));
+        redis.redisson().getTopic(CHANNEL, StringCodec.INSTANCE).publish(key);
+        assertTrue(notifier.await(key, signal, 5000L));
+        //已通知的信号被移除 下次登记是新的信号
+        assertNotSame(signal, notifier.register(key));
+    }
+
+    @Test
+    public void awaitTimesOutAndUnregisters() {
+        String key = newKey();
+        CompletableFuture<Void> signal = notifier.register(key);
+        assertFalse(notifier.await(key, signal, 50L));
+        assertNotSame(signal, notifier.register(key));
+    }
+
+    @Test
+    public void completionWakesWaiterBeforeLeaseExpires() throws Exception {
+        String key = newKey();
+        IdempotentClaim claim = guard.claim(key, idempoentKey);
+        assertEquals(IdempotentClaim.Status.ACQUIRED, claim.getStatus());
+        Future<Long> waiter = waiters.submit(() -> {
+            IdempotentClaim replay = guard.claim(key, idempoentKey);
+            assertEquals(IdempotentClaim.Status.RESULT, replay.getStatus());
+            assertArrayEquals(bytes("result"), replay.getResult());
+            return System.nanoTime();
+        });
+        TimeUnit.MILLISECONDS.sleep(300L);
+        long completed = System.nanoTime();
+        guard.complete(claim, bytes("result"), TTL);
+        guard.release(claim);
+        //租约10秒 等待时间5秒，没有通知时只能超时返回BUSY
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(waiter.get(5L, TimeUnit.SECONDS) - completed) < 1000L);
+    }
+
+    @Test
+    public void releaseWakesWaiterToClaim() throws Exception {
+        String key = newKey();
+        IdempotentClaim claim = guard.claim(key, idempoentKey);
+        Future<IdempotentClaim> waiter = waiters.submit(() -> guard.claim(key, idempoentKey));
+        TimeUnit.MILLISECONDS.sleep(300L);
+        long released = System.nanoTime();
+        guard.release(claim);
+        IdempotentClaim next = waiter.get(5L, TimeUnit.SECONDS);
+        assertEquals(IdempotentClaim.Status.ACQUIRED, next.getStatus());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - released) < 1000L);
+        guard.release(next);
+    }
+
+    @Test
+    public void interruptedWaiterReturnsBusy() throws Exception {
+        String key = newKey();
+        IdempotentClaim claim = guard.claim(key, idempoentKey);
+        CompletableFuture<Thread> started = new CompletableFuture<>();
+        Future<Boolean> waiter = waiters.submit(() -> {
+            started.complete(Thread.currentThread());
+            IdempotentClaim busy = guard.claim(key, idempoentKey);
+            assertEquals(IdempotentClaim.Status.BUSY, busy.getStatus());
+            //中断标记保留给调用方
+            return Thread.currentThread().isInterrupted();
+        });
+        Thread thread = started.get(5L, TimeUnit.SECONDS);
+        TimeUnit.MILLISECONDS.sleep(300L);
+        long interrupted = System.nanoTime();
+        thread.interrupt();
+        assertTrue(waiter.get(5L, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - interrupted) < 1000L);
+        guard.release(claim);
+    }
+
+    private static String newKey() {
+        return UUID.randomUUID().toString() + ":app";
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @IdempoentKey(requestId = "#id", appCode = "app", timeout = 5 * 1000, keeps = 10 * 1000)
+    private void annotated() {
+    }
+}
@@ -0,0 +1,95 @@
+package com.wy.guard;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.store.StringResultStore;
+import com.wy.support.EmbeddedRedis;
+import org.HdrHistogram.Histogram;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentGuardBenchmark
+ * @Description 本地redis上 redisson锁 + 字符串结果（原流程 加锁、读取、解锁）与lua脚本单次往返的延迟对比
+ * 不在单元测试中执行 通过main运行
+ * @Date 2021/7/12 16:00
+ */
+public class IdempotentGuardBenchmark {
+
+    private static final Duration TTL = Duration.ofMinutes(10L);
+
+    private static final byte[] RESULT = new byte[256];
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        EmbeddedRedis redis = EmbeddedRedis.start();
+        IdempoentKey idempoentKey = IdempotentGuardBenchmark.class.getDeclaredMethod("annotated").getAnnotation(IdempoentKey.class);
+        IdempotentGuard redisson = new RedissonLockGuard(redis.redisson(), StringResultStore.template(redis.connectionFactory()));
+        LuaScriptGuard lua = new LuaScriptGuard(redis.redisson());
+        try {
+            for (int round = 0; round < 2; round++) {
+                //第一轮预热
+                boolean report = round == 1;
+                run("redisson first call", report, iterations, key -> firstCall(redisson, key, idempoentKey));
+                run("lua      first call", report, iterations, key -> firstCall(lua, key, idempoentKey));
+                String replayKey = UUID.randomUUID() + ":app";
+                firstCall(redisson, replayKey, idempoentKey);
+                run("redisson replay    ", report, iterations, key -> replay(redisson, replayKey, idempoentKey));
+                String luaReplayKey = UUID.randomUUID() + ":app";
+                firstCall(lua, luaReplayKey, idempoentKey);
+                run("lua      replay    ", report, iterations, key -> replay(lua, luaReplayKey, idempoentKey));
+            }
+        } finally {
+            lua.destroy();
+            redis.stop();
+        }
+    }
+
+    private static void firstCall(IdempotentGuard guard, String key, IdempoentKey idempoentKey) {
+        IdempotentClaim claim = guard.claim(key, idempoentKey);
+        try {
+            guard.complete(claim, RESULT, TTL);
+        } finally {
+            guard.release(claim);
+        }
+    }
+
+    private static void replay(IdempotentGuard guard, String key, IdempoentKey idempoentKey) {
+        IdempotentClaim claim = guard.claim(key, idempoentKey);
+        guard.release(claim);
+        if (claim.getStatus() != IdempotentClaim.Status.RESULT) {
+            throw new IllegalStateException("expected a stored result for " + key);
+        }
+    }
+
+    private static void run(String name, boolean report, int iterations, Consumer<String> call) {
+        Histogram histogram = new Histogram(3);
+        String prefix = UUID.randomUUID().toString();
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            call.accept(prefix + i + ":app");
+            histogram.recordValue((System.nanoTime() - start) / 1000L);
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (report) {
+            System.out.printf("%s ops/s %8.0f  mean %6.1fus  p50 %5dus  p99 %5dus  p99.9 %5dus%n", name,
+                    iterations * 1e9 / elapsed, histogram.getMean(), histogram.getValueAtPercentile(50),
+                    histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9));
+        }
+    }
+
+    @IdempoentKey(requestId = "#id", appCode = "app", timeout = 0, keeps = 10 * 1000)
+    private void annotated() {
+    }
+
+    static {
+        byte[] text = "benchmark-result".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < RESULT.length; i++) {
+            RESULT[i] = text[i % text.length];
+        }
+    }
+}
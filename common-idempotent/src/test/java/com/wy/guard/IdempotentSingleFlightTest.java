@@ -0,0 +1,124 @@
+package com.wy.guard;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.AbstractIdRequest;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.support.AspectHarness;
+import com.wy.support.H2Database;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentSingleFlightTest
+ * @Description 同一jvm内相同key的并发请求只执行一次，等待者拿到同样的结果或异常
+ * @Date 2021/7/20 10:30
+ */
+public class IdempotentSingleFlightTest {
+
+    @Test
+    public void followersReceiveLeaderResult() throws Exception {
+        IdempotentSingleFlight singleFlight = new IdempotentSingleFlight();
+        IdempotentSingleFlight.Flight leader = singleFlight.join("a:app");
+        IdempotentSingleFlight.Flight follower = singleFlight.join("a:app");
+        assertTrue(leader.isLeader());
+        assertFalse(follower.isLeader());
+        assertTrue(singleFlight.join("b:app").isLeader());
+        assertEquals(2, singleFlight.size());
+
+        singleFlight.land(leader, new byte[]{1, 2});
+        assertArrayEquals(new byte[]{1, 2}, follower.getFuture().get());
+        //结束后的请求重新成为执行者
+        assertTrue(singleFlight.join("a:app").isLeader());
+    }
+
+    @Test
+    public void followersReceiveLeaderFailure() throws InterruptedException {
+        IdempotentSingleFlight singleFlight = new IdempotentSingleFlight();
+        IdempotentSingleFlight.Flight leader = singleFlight.join("a:app");
+        IdempotentSingleFlight.Flight follower = singleFlight.join("a:app");
+        IllegalStateException failure = new IllegalStateException("failed");
+        singleFlight.crash(leader, failure);
+        try {
+            follower.getFuture().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    public void concurrentCallsThroughAspectExecuteOnce() throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        InMemoryGuard guard = new InMemoryGuard(64, 10L, 64);
+        IdempotentSingleFlight singleFlight = new IdempotentSingleFlight();
+        IdempotentProperties properties = new IdempotentProperties();
+        properties.setMode(IdempotentProperties.GuardMode.IN_MEMORY);
+        AspectHarness harness = new AspectHarness(guard, new JdbcIdempotentService(H2Database.create()), properties, executor)
+                .with("idempotentSingleFlight", singleFlight);
+        Target target = new Target();
+        try {
+            List<Future<Object>> results = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> harness.invoke(target, "slow", request("req-1"))));
+            }
+            assertTrue(target.entered.await(5L, TimeUnit.SECONDS));
+            //其余请求已经加入同一个flight
+            TimeUnit.MILLISECONDS.sleep(300L);
+            target.release.countDown();
+            for (Future<Object> result : results) {
+                assertEquals("done-req-1", result.get(5L, TimeUnit.SECONDS));
+            }
+            assertEquals(1, target.calls.get());
+            assertEquals(0, singleFlight.size());
+        } finally {
+            executor.shutdownNow();
+            guard.destroy();
+        }
+    }
+
+    private static Request request(String requestId) {
+        Request request = new Request();
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    public static class Request extends AbstractIdRequest {
+    }
+
+    static class Target {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = "app")
+        String slow(Request request) throws InterruptedException {
+            calls.incrementAndGet();
+            entered.countDown();
+            release.await();
+            return "done-" + request.getRequestId();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.wy.guard;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.store.StringResultStore;
+import com.wy.support.EmbeddedRedis;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author wangyong
+ * @Classname InMemoryGuardBenchmark
+ * @Description 多线程吞吐 进程内guard与本地redis上的redisson锁、lua脚本对比，首次执行（抢占、写结果、释放）与回放
+ * 另外对比时间轮与ScheduledThreadPoolExecutor的添加+取消，即每次抢占为租约登记和撤销过期任务的开销
+ * 不在单元测试中执行 通过main运行
+ * @Date 2021/7/14 14:00
+ */
+public class InMemoryGuardBenchmark {
+
+    private static final Duration TTL = Duration.ofMinutes(10L);
+
+    private static final byte[] RESULT = new byte[256];
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        IdempoentKey idempoentKey = InMemoryGuardTest.key("noWait");
+        EmbeddedRedis redis = EmbeddedRedis.start();
+        InMemoryGuard inMemory = new InMemoryGuard(1 << 20, 10L, 512);
+        IdempotentGuard redisson = new RedissonLockGuard(redis.redisson(), StringResultStore.template(redis.connectionFactory()));
+        LuaScriptGuard lua = new LuaScriptGuard(redis.redisson());
+        try {
+            for (int round = 0; round < 2; round++) {
+                //第一轮预热
+                boolean report = round == 1;
+                for (Object[] guard : new Object[][]{{"in-memory", inMemory}, {"redisson ", redisson}, {"lua      ", lua}}) {
+                    IdempotentGuard target = (IdempotentGuard) guard[1];
+                    String prefix = UUID.randomUUID().toString();
+                    run(guard[0] + " first call", report, threads, perThread, (t, i) -> firstCall(target, prefix + t + "-" + i + ":app", idempoentKey));
+                    String replayKey = UUID.randomUUID() + ":app";
+                    firstCall(target, replayKey, idempoentKey);
+                    run(guard[0] + " replay    ", report, threads, perThread, (t, i) -> replay(target, replayKey, idempoentKey));
+                }
+                HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(10L, 512, "benchmark-wheel");
+                run("timing wheel  schedule+cancel", report, threads, perThread * 10,
+                        (t, i) -> wheel.schedule(10000L, InMemoryGuardBenchmark::noop).cancel());
+                wheel.stop();
+                ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+                scheduler.setRemoveOnCancelPolicy(true);
+                run("scheduled pool schedule+cancel", report, threads, perThread * 10, (t, i) -> {
+                    ScheduledFuture<?> future = scheduler.schedule(InMemoryGuardBenchmark::noop, 10000L, TimeUnit.MILLISECONDS);
+                    future.cancel(false);
+                });
+                scheduler.shutdownNow();
+            }
+        } finally {
+            inMemory.destroy();
+            lua.destroy();
+            redis.stop();
+        }
+    }
+
+    private static void firstCall(IdempotentGuard guard, String key, IdempoentKey idempoentKey) {
+        IdempotentClaim claim = guard.claim(key, idempoentKey);
+        try {
+            guard.complete(claim, RESULT, TTL);
+        } finally {
+            guard.release(claim);
+        }
+    }
+
+    private static void replay(IdempotentGuard guard, String key, IdempoentKey idempoentKey) {
+        IdempotentClaim claim = guard.claim(key, idempoentKey);
+        guard.release(claim);
+        if (claim.getStatus() == IdempotentClaim.Status.ACQUIRED) {
+            throw new IllegalStateException("expected a stored result for " + key);
+        }
+    }
+
+    private static void run(String name, boolean report, int threads, int perThread, Call call) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicLong errors = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    for (int i = 0; i < perThread; i++) {
+                        call.accept(thread, i);
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        go.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        if (report) {
+            System.out.printf("%-32s threads %2d  ops/s %12.0f  errors %d%n", name, threads,
+                    (double) threads * perThread * 1e9 / elapsed, errors.get());
+        }
+    }
+
+    private static void noop() {
+    }
+
+    private interface Call {
+
+        void accept(int thread, int index);
+    }
+
+    static {
+        for (int i = 0; i < RESULT.length; i++) {
+            RESULT[i] = (byte) ('a' + i % 26);
+        }
+    }
+}
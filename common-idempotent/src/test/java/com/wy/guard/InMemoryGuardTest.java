@@ -0,0 +1,130 @@
+package com.wy.guard;
+
+import com.wy.aop.IdempoentKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname InMemoryGuardTest
+ * @Description 进程内guard的租约过期、等待唤醒与异步抢占
+ * @Date 2021/7/14 11:00
+ */
+public class InMemoryGuardTest {
+
+    private static final byte[] RESULT = "result".getBytes(StandardCharsets.UTF_8);
+
+    private ExecutorService executor;
+
+    private InMemoryGuard guard;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        guard = new InMemoryGuard(64, 10L, 8);
+    }
+
+    @After
+    public void tearDown() {
+        guard.destroy();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void asyncClaimWithZeroTimeoutAcquiresFreeKeys() {
+        List<IdempotentClaim> claims = guard.claimAll(Arrays.asList("a:app", "b:app", "c:app"), key("noWait"), executor);
+        for (IdempotentClaim claim : claims) {
+            assertEquals(IdempotentClaim.Status.ACQUIRED, claim.getStatus());
+        }
+        assertEquals(IdempotentClaim.Status.BUSY, guard.claimAsync("a:app", key("noWait"), executor).join().getStatus());
+        claims.forEach(guard::releaseAsync);
+    }
+
+    @Test
+    public void leaseExpiresAfterKeeps() throws Exception {
+        IdempotentClaim first = guard.claim("a:app", key("shortKeeps"));
+        assertEquals(IdempotentClaim.Status.ACQUIRED, first.getStatus());
+        assertEquals(IdempotentClaim.Status.BUSY, guard.claim("a:app", key("shortKeeps")).getStatus());
+        Thread.sleep(400L);
+        assertEquals(0, guard.size());
+        IdempotentClaim second = guard.claim("a:app", key("shortKeeps"));
+        assertEquals(IdempotentClaim.Status.ACQUIRED, second.getStatus());
+        guard.release(first);
+        //过期的租约释放时不影响新的租约
+        assertEquals(IdempotentClaim.Status.BUSY, guard.claim("a:app", key("shortKeeps")).getStatus());
+        guard.release(second);
+    }
+
+    @Test
+    public void waitersAreWokenByCompleteAndTimeOutOnTheWheel() {
+        IdempotentClaim owner = guard.claim("a:app", key("noWait"));
+        CompletableFuture<IdempotentClaim> waiter = guard.claimAsync("a:app", key("waitFor"), executor);
+        CompletableFuture<IdempotentClaim> impatient = guard.claimAsync("a:app", key("shortWait"), executor);
+        assertEquals(IdempotentClaim.Status.BUSY, impatient.join().getStatus());
+        assertFalse(waiter.isDone());
+        guard.complete(owner, RESULT, Duration.ofMinutes(1L));
+        IdempotentClaim claim = waiter.join();
+        assertEquals(IdempotentClaim.Status.RESULT, claim.getStatus());
+        assertArrayEquals(RESULT, claim.getResult());
+        assertTrue(claim.getWaitNanos() < TimeUnit.SECONDS.toNanos(5L));
+    }
+
+    @Test
+    public void completedResultIsNotRemovedByTheCancelledLeaseExpiry() throws Exception {
+        IdempotentClaim claim = guard.claim("a:app", key("shortKeeps"));
+        guard.complete(claim, RESULT, Duration.ofMinutes(1L));
+        Thread.sleep(400L);
+        assertEquals(IdempotentClaim.Status.RESULT, guard.claim("a:app", key("shortKeeps")).getStatus());
+    }
+
+    @Test
+    public void resultExpiresAfterTtl() throws Exception {
+        IdempotentClaim claim = guard.claim("a:app", key("noWait"));
+        guard.complete(claim, RESULT, Duration.ofMillis(200L));
+        assertEquals(IdempotentClaim.Status.RESULT, guard.claim("a:app", key("noWait")).getStatus());
+        Thread.sleep(500L);
+        assertEquals(0, guard.size());
+        IdempotentClaim again = guard.claim("a:app", key("noWait"));
+        assertEquals(IdempotentClaim.Status.ACQUIRED, again.getStatus());
+        guard.release(again);
+    }
+
+    static IdempoentKey key(String method) {
+        try {
+            return InMemoryGuardTest.class.getDeclaredMethod(method).getAnnotation(IdempoentKey.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @IdempoentKey(requestId = "#id", appCode = "app", timeout = 0, keeps = 10 * 1000)
+    private void noWait() {
+    }
+
+    @IdempoentKey(requestId = "#id", appCode = "app", timeout = 5000, keeps = 10 * 1000)
+    private void waitFor() {
+    }
+
+    @IdempoentKey(requestId = "#id", appCode = "app", timeout = 100, keeps = 10 * 1000)
+    private void shortWait() {
+    }
+
+    @IdempoentKey(requestId = "#id", appCode = "app", timeout = 0, keeps = 200)
+    private void shortKeeps() {
+    }
+}
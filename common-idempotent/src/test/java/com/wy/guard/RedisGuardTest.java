@@ -0,0 +1,170 @@
+package com.wy.guard;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.store.StringResultStore;
+import com.wy.support.EmbeddedRedis;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author wangyong
+ * @Classname RedisGuardTest
+ * @Description lua脚本与redisson锁两种抢占方式在本地redis上的行为一致
+ * @Date 2021/7/12 15:10
+ */
+public class RedisGuardTest {
+
+    private static final Duration TTL = Duration.ofMinutes(1L);
+
+    private static EmbeddedRedis redis;
+
+    private static ExecutorService other;
+
+    private static IdempoentKey idempoentKey;
+
+    @BeforeClass
+    public static void start() throws NoSuchMethodException {
+        redis = EmbeddedRedis.start();
+        other = Executors.newSingleThreadExecutor();
+        idempoentKey = RedisGuardTest.class.getDeclaredMethod("annotated").getAnnotation(IdempoentKey.class);
+    }
+
+    @AfterClass
+    public static void stop() {
+        if (redis != null) {
+            redis.stop();
+        }
+        if (other != null) {
+            other.shutdownNow();
+        }
+    }
+
+    @Test
+    public void luaGuardClaimsCompletesAndReplays() throws Exception {
+        this.claimCompleteReplay(new LuaScriptGuard(redis.redisson()));
+    }
+
+    @Test
+    public void redissonLockGuardClaimsCompletesAndReplays() throws Exception {
+        this.claimCompleteReplay(new RedissonLockGuard(redis.redisson(), StringResultStore.template(redis.connectionFactory())));
+    }
+
+    @Test
+    public void luaGuardReleaseLetsNextCallerClaim() throws Exception {
+        this.releaseThenReclaim(new LuaScriptGuard(redis.redisson()));
+    }
+
+    @Test
+    public void redissonLockGuardReleaseLetsNextCallerClaim() throws Exception {
+        this.releaseThenReclaim(new RedissonLockGuard(redis.redisson(), StringResultStore.template(redis.connectionFactory())));
+    }
+
+    @Test
+    public void luaGuardKeysShareOneHashTag() {
+        //单机redis不支持CLUSTER KEYSLOT 比较hash tag，集群按tag内的部分计算slot
+        String key = "req-1:app";
+        assertEquals("{req-1:app}", hashTag(LuaScriptGuard.resultKey(key)));
+        assertEquals("{req-1:app}", hashTag(LuaScriptGuard.leaseKey(key)));
+    }
+
+    @Test
+    public void redissonLockGuardKeepsLockAndResultApart() throws Exception {
+        String key = newKey();
+        IdempotentGuard guard = new RedissonLockGuard(redis.redisson(), StringResultStore.template(redis.connectionFactory()));
+        IdempotentClaim claim = guard.claim(key, idempoentKey);
+        assertEquals(true, redis.redisson().getLock(RedissonLockGuard.lockKey(key)).isLocked());
+        assertEquals(0L, redis.redisson().getKeys().countExists(key));
+        guard.complete(claim, bytes("result"), TTL);
+        guard.release(claim);
+        assertEquals(false, redis.redisson().getLock(RedissonLockGuard.lockKey(key)).isLocked());
+    }
+
+    @Test
+    public void stringResultStoreRoundTripsRawBytes() {
+        RedisTemplate<String, byte[]> template = StringResultStore.template(redis.connectionFactory());
+        StringResultStore store = new StringResultStore(template);
+        Map<String, byte[]> results = new LinkedHashMap<>();
+        results.put(newKey(), new byte[]{0, 1, 2, (byte) 0xff});
+        results.put(newKey(), bytes("result"));
+        store.putAll(results, TTL);
+        String missing = newKey();
+        Map<String, byte[]> found = store.getAll(Arrays.asList(missing, (String) results.keySet().toArray()[0],
+                (String) results.keySet().toArray()[1]), TTL);
+        assertEquals(2, found.size());
+        results.forEach((key, value) -> assertArrayEquals(value, found.get(key)));
+        assertFalse(found.containsKey(missing));
+        //pipeline写入同样带有过期时间
+        long ttl = template.getExpire((String) results.keySet().toArray()[0]);
+        assertEquals(true, ttl > 0 && ttl <= TTL.getSeconds());
+    }
+
+    private void claimCompleteReplay(IdempotentGuard guard) throws Exception {
+        String key = newKey();
+        IdempotentClaim claim = guard.claim(key, idempoentKey);
+        assertEquals(IdempotentClaim.Status.ACQUIRED, claim.getStatus());
+        //其他线程在持有期间不能抢占
+        assertEquals(IdempotentClaim.Status.BUSY, this.claimInOtherThread(guard, key).getStatus());
+        guard.complete(claim, bytes("result"), TTL);
+        //与切面一致 完成后在finally中释放
+        guard.release(claim);
+        IdempotentClaim replay = this.claimInOtherThread(guard, key);
+        assertEquals(IdempotentClaim.Status.RESULT, replay.getStatus());
+        assertArrayEquals(bytes("result"), replay.getResult());
+        assertArrayEquals(bytes("result"), guard.getAll(Arrays.asList(key, newKey()), idempoentKey).get(key));
+    }
+
+    private void releaseThenReclaim(IdempotentGuard guard) throws Exception {
+        String key = newKey();
+        IdempotentClaim claim = guard.claim(key, idempoentKey);
+        assertEquals(IdempotentClaim.Status.ACQUIRED, claim.getStatus());
+        guard.release(claim);
+        IdempotentClaim next = this.claimInOtherThread(guard, key);
+        assertEquals(IdempotentClaim.Status.ACQUIRED, next.getStatus());
+        guard.release(next);
+    }
+
+    private IdempotentClaim claimInOtherThread(IdempotentGuard guard, String key) throws Exception {
+        Future<IdempotentClaim> future = other.submit(() -> {
+            IdempotentClaim claim = guard.claim(key, idempoentKey);
+            //redisson锁与线程绑定 在本线程释放
+            if (claim.getStatus() == IdempotentClaim.Status.ACQUIRED && guard instanceof RedissonLockGuard) {
+                guard.release(claim);
+                return new IdempotentClaim(key, IdempotentClaim.Status.ACQUIRED, null, null);
+            }
+            return claim;
+        });
+        return future.get();
+    }
+
+    private static String hashTag(String key) {
+        return key.substring(key.indexOf('{'), key.indexOf('}') + 1);
+    }
+
+    private static String newKey() {
+        return UUID.randomUUID().toString() + ":app";
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @IdempoentKey(requestId = "#id", appCode = "app", timeout = 0, keeps = 10 * 1000)
+    private void annotated() {
+    }
+}
@@ -0,0 +1,92 @@
+package com.wy.jdbc;
+
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.support.H2Database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author wangyong
+ * @Classname JdbcIdempotentServiceBenchmark
+ * @Description {@link JdbcIdempotentService} 在内存H2上的吞吐 逐条与批量写入、单条与IN查询对比
+ * 只反映语句组织方式的差异，不代表mysql上的绝对值 不在单元测试中执行，通过main运行
+ * @Date 2021/7/13 11:00
+ */
+public class JdbcIdempotentServiceBenchmark {
+
+    private static final int BATCH = 200;
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        for (int round = 0; round < 2; round++) {
+            //第一轮预热
+            run(rows, round == 1);
+        }
+    }
+
+    private static void run(int rows, boolean report) {
+        JdbcIdempotentService service = new JdbcIdempotentService(H2Database.create());
+        List<Long> ids = new ArrayList<>(rows * 2);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            Long id = service.insert(JdbcIdempotentServiceTest.context("single-" + i, IdempotentStatusEnum.SUCCESS));
+            service.insertBody(JdbcIdempotentServiceTest.body(id, "result-" + i));
+            ids.add(id);
+        }
+        print(report, "insert + insertBody      ", rows, start);
+
+        start = System.nanoTime();
+        for (int from = 0; from < rows; from += BATCH) {
+            List<IdempotentContext> contexts = new ArrayList<>(BATCH);
+            for (int i = from; i < Math.min(from + BATCH, rows); i++) {
+                contexts.add(JdbcIdempotentServiceTest.context("batch-" + i, IdempotentStatusEnum.SUCCESS));
+            }
+            List<Long> batchIds = service.insertBatch(contexts);
+            List<IdempotentBodyContext> bodies = new ArrayList<>(batchIds.size());
+            for (int i = 0; i < batchIds.size(); i++) {
+                bodies.add(JdbcIdempotentServiceTest.body(batchIds.get(i), "result-" + i));
+            }
+            service.insertBodyBatch(bodies);
+        }
+        print(report, "insertBatch(" + BATCH + ") + bodies", rows, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            service.queryByReqId("single-" + i, "app");
+        }
+        print(report, "queryByReqId             ", rows, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            service.getLatestRecordByIdeKey(ids.get(i));
+        }
+        print(report, "getLatestRecordByIdeKey  ", rows, start);
+
+        start = System.nanoTime();
+        for (int from = 0; from < rows; from += 1000) {
+            List<String> requestIds = new ArrayList<>(1000);
+            for (int i = from; i < Math.min(from + 1000, rows); i++) {
+                requestIds.add("batch-" + i);
+            }
+            service.queryByReqIds(requestIds, "app");
+        }
+        print(report, "queryByReqIds(1000)      ", rows, start);
+
+        start = System.nanoTime();
+        for (int from = 0; from < rows; from += 1000) {
+            service.getLatestRecordByIdeKeys(ids.subList(from, Math.min(from + 1000, rows)));
+        }
+        print(report, "getLatestRecordByIdeKeys ", rows, start);
+    }
+
+    private static void print(boolean report, String name, int rows, long start) {
+        if (report) {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s rows/s %10.0f%n", name, rows / seconds);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.wy.jdbc;
+
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.support.H2Database;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname JdbcIdempotentServiceTest
+ * @Description {@link JdbcIdempotentService} 在MySQL模式的H2上按发布的建表脚本运行
+ * @Date 2021/7/13 10:10
+ */
+public class JdbcIdempotentServiceTest {
+
+    private JdbcIdempotentService service;
+
+    @Before
+    public void setUp() {
+        service = new JdbcIdempotentService(H2Database.create());
+    }
+
+    @Test
+    public void insertAndQueryByRequestId() {
+        Long id = service.insert(context("req-1", IdempotentStatusEnum.ING));
+        assertNotNull(id);
+        IdempotentContext found = service.queryByReqId("req-1", "app");
+        assertEquals(id, found.getId());
+        assertEquals("biz-req-1", found.getBusinessNo());
+        assertEquals(IdempotentStatusEnum.ING, found.getStatus());
+        assertNull(service.queryByReqId("req-1", "other"));
+
+        found.setStatus(IdempotentStatusEnum.SUCCESS);
+        service.updateInfo(found);
+        assertEquals(IdempotentStatusEnum.SUCCESS, service.queryByReqId("req-1", "app").getStatus());
+    }
+
+    @Test(expected = DuplicateKeyException.class)
+    public void insertRejectsDuplicateKey() {
+        service.insert(context("req-1", IdempotentStatusEnum.ING));
+        service.insert(context("req-1", IdempotentStatusEnum.ING));
+    }
+
+    @Test
+    public void claimReturnsNullForExistingKey() {
+        Long id = service.claim(context("req-1", IdempotentStatusEnum.ING));
+        assertNotNull(id);
+        assertNull(service.claim(context("req-1", IdempotentStatusEnum.ING)));
+        //不同appCode不冲突
+        assertNotNull(service.claim(IdempotentContext.builder().requestId("req-1").appCode("other")
+                .status(IdempotentStatusEnum.ING).build()));
+    }
+
+    @Test
+    public void reclaimFailedOrStaleRecordsOnly() {
+        Long failed = service.insert(context("failed", IdempotentStatusEnum.FAIL));
+        Long running = service.insert(context("running", IdempotentStatusEnum.ING));
+        Long success = service.insert(context("success", IdempotentStatusEnum.SUCCESS));
+        long now = System.currentTimeMillis();
+
+        assertTrue(service.reclaim(failed, now - 60000L));
+        assertEquals(IdempotentStatusEnum.ING, service.queryByReqId("failed", "app").getStatus());
+        //重新抢占后是进行中 不能再被同一个staleBefore抢占
+        assertFalse(service.reclaim(failed, now - 60000L));
+
+        assertFalse(service.reclaim(running, now - 60000L));
+        assertTrue(service.reclaim(running, now + 60000L));
+
+        assertFalse(service.reclaim(success, now + 60000L));
+    }
+
+    @Test
+    public void insertBatchReturnsIdsInOrder() {
+        List<IdempotentContext> models = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            models.add(context("batch-" + i, IdempotentStatusEnum.SUCCESS));
+        }
+        List<Long> ids = service.insertBatch(models);
+        assertEquals(50, ids.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(ids.get(i), service.queryByReqId("batch-" + i, "app").getId());
+        }
+    }
+
+    @Test
+    public void latestBodyIsReturned() {
+        Long id = service.insert(context("req-1", IdempotentStatusEnum.SUCCESS));
+        service.insertBody(body(id, "first"));
+        service.insertBody(body(id, "second"));
+        IdempotentBodyContext latest = service.getLatestRecordByIdeKey(id);
+        assertEquals(id, latest.getIdempotentId());
+        assertArrayEquals(bytes("second"), latest.getResponseBody());
+        assertNotNull(latest.getCreateTime());
+        assertNull(service.getLatestRecordByIdeKey(id + 1000));
+    }
+
+    @Test
+    public void batchQueriesSpanMultipleInChunks() {
+        //超过两个500的IN分片
+        int size = 1201;
+        List<IdempotentContext> models = new ArrayList<>(size);
+        List<String> requestIds = new ArrayList<>(size + 1);
+        for (int i = 0; i < size; i++) {
+            models.add(context("chunk-" + i, IdempotentStatusEnum.SUCCESS));
+            requestIds.add("chunk-" + i);
+        }
+        requestIds.add("missing");
+        List<Long> ids = service.insertBatch(models);
+        List<IdempotentBodyContext> bodies = new ArrayList<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            bodies.add(body(ids.get(i), "old-" + i));
+            bodies.add(body(ids.get(i), "new-" + i));
+        }
+        service.insertBodyBatch(bodies);
+
+        List<IdempotentContext> found = service.queryByReqIds(requestIds, "app");
+        assertEquals(size, found.size());
+        Set<String> foundIds = new HashSet<>();
+        found.forEach(context -> foundIds.add(context.getRequestId()));
+        assertEquals(size, foundIds.size());
+        assertFalse(foundIds.contains("missing"));
+
+        Map<Long, IdempotentBodyContext> latest = service.getLatestRecordByIdeKeys(ids);
+        assertEquals(size, latest.size());
+        for (int i = 0; i < size; i++) {
+            assertArrayEquals(bytes("new-" + i), latest.get(ids.get(i)).getResponseBody());
+        }
+    }
+
+    static IdempotentContext context(String requestId, IdempotentStatusEnum status) {
+        return IdempotentContext.builder().requestId(requestId).appCode("app").businessNo("biz-" + requestId)
+                .status(status).build();
+    }
+
+    static IdempotentBodyContext body(Long idempotentId, String result) {
+        return IdempotentBodyContext.builder().idempotentId(idempotentId).requestParam("{}").responseBody(bytes(result)).build();
+    }
+
+    static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
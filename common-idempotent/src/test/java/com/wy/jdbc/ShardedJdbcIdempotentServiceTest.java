@@ -0,0 +1,165 @@
+package com.wy.jdbc;
+
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.exception.BaseException;
+import com.wy.support.H2Database;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.wy.jdbc.JdbcIdempotentServiceTest.body;
+import static com.wy.jdbc.JdbcIdempotentServiceTest.bytes;
+import static com.wy.jdbc.JdbcIdempotentServiceTest.context;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author wangyong
+ * @Classname ShardedJdbcIdempotentServiceTest
+ * @Description 每个分片一个H2库，记录与参数记录路由到同一分片，主键携带分片下标，扩容迁移期间仍能查到原分片的记录
+ * @Date 2021/7/20 23:00
+ */
+public class ShardedJdbcIdempotentServiceTest {
+
+    private List<JdbcIdempotentService> shards;
+
+    @Before
+    public void setUp() {
+        shards = new ArrayList<>(4);
+        for (int i = 0; i < 4; i++) {
+            shards.add(new JdbcIdempotentService(H2Database.create()));
+        }
+    }
+
+    @Test
+    public void recordsAndBodiesShareShard() {
+        ShardedJdbcIdempotentService service = new ShardedJdbcIdempotentService(shards, ShardedJdbcIdempotentService.Routing.REQUEST_ID);
+        Set<Long> usedShards = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            String requestId = "req-" + i;
+            Long id = service.insert(context(requestId, IdempotentStatusEnum.ING));
+            usedShards.add(id & 1023);
+            service.insertBody(body(id, "result-" + i));
+
+            IdempotentContext found = service.queryByReqId(requestId, "app");
+            assertEquals(id, found.getId());
+            IdempotentBodyContext latest = service.getLatestRecordByIdeKey(id);
+            assertEquals(id, latest.getIdempotentId());
+            assertArrayEquals(bytes("result-" + i), latest.getResponseBody());
+            //只写入一个分片
+            int hits = 0;
+            for (JdbcIdempotentService shard : shards) {
+                hits += shard.queryByReqId(requestId, "app") == null ? 0 : 1;
+            }
+            assertEquals(1, hits);
+        }
+        assertEquals(4, usedShards.size());
+    }
+
+    @Test
+    public void batchOperationsKeepOrder() {
+        ShardedJdbcIdempotentService service = new ShardedJdbcIdempotentService(shards, ShardedJdbcIdempotentService.Routing.REQUEST_ID);
+        List<IdempotentContext> models = new ArrayList<>();
+        List<String> requestIds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            requestIds.add("req-" + i);
+            models.add(context("req-" + i, IdempotentStatusEnum.SUCCESS));
+        }
+        List<Long> ids = service.insertBatch(models);
+        List<IdempotentBodyContext> bodies = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(ids.get(i), service.queryByReqId("req-" + i, "app").getId());
+            bodies.add(body(ids.get(i), "result-" + i));
+        }
+        service.insertBodyBatch(bodies);
+
+        List<IdempotentContext> found = service.queryByReqIds(requestIds, "app");
+        assertEquals(20, found.size());
+        Map<Long, IdempotentBodyContext> latest = service.getLatestRecordByIdeKeys(ids);
+        for (int i = 0; i < ids.size(); i++) {
+            assertArrayEquals(bytes("result-" + i), latest.get(ids.get(i)).getResponseBody());
+        }
+    }
+
+    @Test
+    public void appCodeRoutingKeepsAppOnOneShard() {
+        ShardedJdbcIdempotentService service = new ShardedJdbcIdempotentService(shards, ShardedJdbcIdempotentService.Routing.APP_CODE);
+        Set<Long> usedShards = new HashSet<>();
+        for (int i = 0; i < 50; i++) {
+            usedShards.add(service.insert(context("req-" + i, IdempotentStatusEnum.ING)) & 1023);
+        }
+        assertEquals(1, usedShards.size());
+    }
+
+    @Test
+    public void claimUpdateAndReclaimUseGlobalId() {
+        ShardedJdbcIdempotentService service = new ShardedJdbcIdempotentService(shards, ShardedJdbcIdempotentService.Routing.REQUEST_ID);
+        Long id = service.claim(context("req-1", IdempotentStatusEnum.ING));
+        assertNotNull(id);
+        assertNull(service.claim(context("req-1", IdempotentStatusEnum.ING)));
+
+        service.updateInfo(IdempotentContext.builder().id(id).status(IdempotentStatusEnum.FAIL).build());
+        assertEquals(IdempotentStatusEnum.FAIL, service.queryByReqId("req-1", "app").getStatus());
+        assertTrue(service.reclaim(id, System.currentTimeMillis() - 60000L));
+        assertEquals(IdempotentStatusEnum.ING, service.queryByReqId("req-1", "app").getStatus());
+    }
+
+    @Test
+    public void resizedServiceReadsThroughPreviousRouting() {
+        ShardedJdbcIdempotentService before = new ShardedJdbcIdempotentService(shards.subList(0, 2), ShardedJdbcIdempotentService.Routing.REQUEST_ID);
+        List<String> requestIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            requestIds.add("req-" + i);
+            Long id = before.insert(context("req-" + i, IdempotentStatusEnum.SUCCESS));
+            before.insertBody(body(id, "result-" + i));
+        }
+
+        ShardedJdbcIdempotentService resizing = new ShardedJdbcIdempotentService(shards, ShardedJdbcIdempotentService.Routing.REQUEST_ID, 2);
+        ShardedJdbcIdempotentService migrated = new ShardedJdbcIdempotentService(shards, ShardedJdbcIdempotentService.Routing.REQUEST_ID);
+        int moved = 0;
+        for (int i = 0; i < 100; i++) {
+            String requestId = "req-" + i;
+            IdempotentContext found = resizing.queryByReqId(requestId, "app");
+            assertNotNull(requestId, found);
+            //扩容前返回的主键仍然指向原分片
+            assertArrayEquals(bytes("result-" + i), resizing.getLatestRecordByIdeKey(found.getId()).getResponseBody());
+            //原分片已有记录 不会在新分片重复抢占
+            assertNull(resizing.claim(context(requestId, IdempotentStatusEnum.ING)));
+            if (migrated.queryByReqId(requestId, "app") == null) {
+                moved++;
+            }
+        }
+        //约一半的requestId路由到新分片
+        assertTrue(String.valueOf(moved), moved > 30 && moved < 70);
+        assertEquals(100, resizing.queryByReqIds(requestIds, "app").size());
+        assertNotNull(resizing.claim(context("fresh", IdempotentStatusEnum.ING)));
+    }
+
+    @Test
+    public void invalidShardCountsAreRejected() {
+        try {
+            new ShardedJdbcIdempotentService(Collections.emptyList(), ShardedJdbcIdempotentService.Routing.REQUEST_ID);
+            fail();
+        } catch (BaseException e) {
+            assertEquals(Integer.valueOf(1099), e.getErrorType().getCode());
+        }
+        try {
+            new ShardedJdbcIdempotentService(shards, ShardedJdbcIdempotentService.Routing.REQUEST_ID, 5);
+            fail();
+        } catch (BaseException e) {
+            assertEquals(Integer.valueOf(1099), e.getErrorType().getCode());
+        }
+    }
+}
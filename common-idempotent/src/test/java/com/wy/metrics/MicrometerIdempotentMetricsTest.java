@@ -0,0 +1,133 @@
+package com.wy.metrics;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.AbstractIdRequest;
+import com.wy.guard.InMemoryGuard;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.support.AspectHarness;
+import com.wy.support.H2Database;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author wangyong
+ * @Classname MicrometerIdempotentMetricsTest
+ * @Description 分阶段耗时以百分位gauge注册，切面的处理结果计入事件计数，清理行数和复制延迟同样可见
+ * @Date 2021/7/20 20:00
+ */
+public class MicrometerIdempotentMetricsTest {
+
+    private SimpleMeterRegistry registry;
+
+    private MicrometerIdempotentMetrics metrics;
+
+    @Before
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        IdempotentProperties.Metrics properties = new IdempotentProperties.Metrics();
+        properties.setRefreshInterval(Duration.ofMillis(50L));
+        metrics = new MicrometerIdempotentMetrics(registry, properties);
+    }
+
+    @After
+    public void tearDown() {
+        metrics.destroy();
+    }
+
+    @Test
+    public void phaseLatencyIsExposedAsQuantiles() throws InterruptedException {
+        for (long millis = 1; millis <= 100; millis++) {
+            metrics.record(IdempotentMetrics.Phase.QUERY, "app", TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        TimeUnit.MILLISECONDS.sleep(100L);
+
+        assertEquals(100.0, registry.get("common.idempotent.latency.count").tag("phase", "query").tag("appCode", "app")
+                .functionCounter().count(), 0.0);
+        double p50 = registry.get("common.idempotent.latency").tag("phase", "query").tag("quantile", "0.5").gauge().value();
+        double p99 = registry.get("common.idempotent.latency").tag("phase", "query").tag("quantile", "0.99").gauge().value();
+        assertEquals(0.05, p50, 0.002);
+        assertEquals(0.099, p99, 0.002);
+        assertEquals(0.1, registry.get("common.idempotent.latency.max").tag("phase", "query").gauge().value(), 0.002);
+        //超过上限的样本按上限记录
+        metrics.record(IdempotentMetrics.Phase.QUERY, "app", TimeUnit.HOURS.toNanos(1L));
+        TimeUnit.MILLISECONDS.sleep(100L);
+        assertEquals(60.0, registry.get("common.idempotent.latency.max").tag("phase", "query").gauge().value(), 1.0);
+    }
+
+    @Test
+    public void purgeAndReplicationLagAreRecorded() {
+        metrics.purged("t_idempotent", 10L);
+        metrics.purged("t_idempotent", 5L);
+        metrics.replicationLag(1500L);
+        assertEquals(15.0, registry.get("common.idempotent.purge.rows").tag("table", "t_idempotent").counter().count(), 0.0);
+        assertEquals(1.5, registry.get("common.idempotent.replication.lag").gauge().value(), 0.0);
+    }
+
+    @Test
+    public void aspectOutcomesAreCounted() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        InMemoryGuard guard = new InMemoryGuard(64, 10L, 64);
+        IdempotentProperties properties = new IdempotentProperties();
+        properties.setMode(IdempotentProperties.GuardMode.IN_MEMORY);
+        AspectHarness harness = new AspectHarness(guard, new JdbcIdempotentService(H2Database.create()), properties, executor)
+                .with("idempotentMetrics", metrics);
+        Target target = new Target();
+        try {
+            harness.invoke(target, "call", request("req-1"));
+            harness.invoke(target, "call", request("req-1"));
+            try {
+                harness.invoke(target, "call", request("fail"));
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            TimeUnit.MILLISECONDS.sleep(100L);
+
+            assertEquals(2.0, count("executed"), 0.0);
+            assertEquals(1.0, count("replayed"), 0.0);
+            assertEquals(1.0, count("failed"), 0.0);
+            assertEquals(2.0, registry.get("common.idempotent.latency.count").tag("phase", "proceed").tag("appCode", "app")
+                    .functionCounter().count(), 0.0);
+            assertTrue(registry.get("common.idempotent.latency.count").tag("phase", "lock_wait")
+                    .functionCounter().count() >= 3.0);
+        } finally {
+            executor.shutdownNow();
+            guard.destroy();
+        }
+    }
+
+    private double count(String event) {
+        return registry.get("common.idempotent.events").tag("event", event).tag("appCode", "app").counter().count();
+    }
+
+    private static Request request(String requestId) {
+        Request request = new Request();
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    public static class Request extends AbstractIdRequest {
+    }
+
+    static class Target {
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = "app")
+        String call(Request request) {
+            if ("fail".equals(request.getRequestId())) {
+                throw new IllegalStateException("failed");
+            }
+            return "done-" + request.getRequestId();
+        }
+    }
+}
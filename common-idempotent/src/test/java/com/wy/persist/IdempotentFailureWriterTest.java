@@ -0,0 +1,174 @@
+package com.wy.persist;
+
+import com.wy.aop.IdempoentKey;
+import com.wy.codec.HessianResultCodec;
+import com.wy.config.IdempotentProperties;
+import com.wy.context.AbstractIdRequest;
+import com.wy.context.IdempotentContext;
+import com.wy.context.IdempotentFailure;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.exception.BaseException;
+import com.wy.guard.InMemoryGuard;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.support.AspectHarness;
+import com.wy.support.H2Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentFailureWriterTest
+ * @Description 失败记录只保存错误码、截断的信息和异常类型，异步写入时队列满直接丢弃，关闭时写完已提交的记录
+ * @Date 2021/7/21 10:00
+ */
+public class IdempotentFailureWriterTest {
+
+    private static final String APP = "app";
+
+    private ExecutorService executor;
+
+    private InMemoryGuard guard;
+
+    private JdbcIdempotentService idempotentService;
+
+    private IdempotentProperties properties;
+
+    private final Target target = new Target();
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        guard = new InMemoryGuard(64, 10L, 64);
+        idempotentService = new JdbcIdempotentService(H2Database.create());
+        properties = new IdempotentProperties();
+        properties.setMode(IdempotentProperties.GuardMode.IN_MEMORY);
+        properties.getFailure().setMaxMessageLength(10);
+        properties.getFailure().setStackTraceSampleRate(0);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        guard.destroy();
+    }
+
+    @Test
+    public void fullQueueDropsWrites() throws InterruptedException {
+        properties.getFailure().setWriterThreads(1);
+        properties.getFailure().setQueueCapacity(2);
+        IdempotentFailureWriter writer = new IdempotentFailureWriter(properties.getFailure());
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger written = new AtomicInteger();
+        Runnable blocking = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.incrementAndGet();
+        };
+        for (int i = 0; i < 5; i++) {
+            writer.submit(blocking);
+        }
+        //一条在执行 两条排队 其余丢弃
+        assertEquals(3, writer.getSubmitted());
+        assertEquals(2, writer.getDropped());
+        assertEquals(2, writer.getQueued());
+
+        release.countDown();
+        writer.destroy();
+        assertEquals(3, written.get());
+    }
+
+    @Test
+    public void compactFailureIsStored() throws Exception {
+        invokeFailing(harness(), "plain");
+        IdempotentFailure failure = failure("plain");
+        assertNull(failure.getCode());
+        assertEquals("failed-123", failure.getMessage());
+        assertEquals(IllegalStateException.class.getName(), failure.getExceptionClass());
+        assertNull(failure.getStackTrace());
+
+        //BaseException记录错误码 按比例采样堆栈
+        properties.getFailure().setStackTraceSampleRate(1);
+        invokeFailing(harness(), "coded");
+        failure = failure("coded");
+        assertEquals(Integer.valueOf(4001), failure.getCode());
+        assertTrue(failure.getStackTrace().contains(Target.class.getName()));
+    }
+
+    @Test
+    public void asyncWriterStoresFailureAndRetrySucceeds() throws Exception {
+        properties.getFailure().setAsync(true);
+        IdempotentFailureWriter writer = new IdempotentFailureWriter(properties.getFailure());
+        AspectHarness harness = harness().with("idempotentFailureWriter", writer);
+        invokeFailing(harness, "plain");
+        //幂等记录在持有执行权时同步写入
+        assertEquals(IdempotentStatusEnum.FAIL, idempotentService.queryByReqId("plain", APP).getStatus());
+        writer.destroy();
+        assertEquals(1, writer.getSubmitted());
+        assertEquals("failed-123", failure("plain").getMessage());
+
+        target.succeed = true;
+        assertEquals("done-plain", harness.invoke(target, "call", request("plain")));
+        assertEquals(IdempotentStatusEnum.SUCCESS, idempotentService.queryByReqId("plain", APP).getStatus());
+    }
+
+    private AspectHarness harness() {
+        return new AspectHarness(guard, idempotentService, properties, executor);
+    }
+
+    private void invokeFailing(AspectHarness harness, String requestId) throws Exception {
+        try {
+            harness.invoke(target, "call", request(requestId));
+            fail();
+        } catch (IllegalStateException | BaseException expected) {
+        }
+    }
+
+    private IdempotentFailure failure(String requestId) throws IOException {
+        IdempotentContext record = idempotentService.queryByReqId(requestId, APP);
+        assertNotNull(record);
+        Object decoded = new HessianResultCodec().decode(idempotentService.getLatestRecordByIdeKey(record.getId()).getResponseBody());
+        assertTrue(String.valueOf(decoded), decoded instanceof IdempotentFailure);
+        return (IdempotentFailure) decoded;
+    }
+
+    private static Request request(String requestId) {
+        Request request = new Request();
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    public static class Request extends AbstractIdRequest {
+    }
+
+    static class Target {
+
+        volatile boolean succeed;
+
+        @IdempoentKey(requestId = "#request.requestId", appCode = APP)
+        String call(Request request) {
+            if (succeed) {
+                return "done-" + request.getRequestId();
+            }
+            if ("coded".equals(request.getRequestId())) {
+                throw BaseException.definedException(4001, "downstream unavailable");
+            }
+            throw new IllegalStateException("failed-1234567890");
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.wy.persist;
+
+import com.wy.config.IdempotentProperties;
+import com.wy.context.IdempotentBodyContext;
+import com.wy.context.IdempotentContext;
+import com.wy.enums.IdempotentStatusEnum;
+import com.wy.jdbc.JdbcIdempotentService;
+import com.wy.metrics.MicrometerIdempotentMetrics;
+import com.wy.support.H2Database;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentWriteBehindQueueTest
+ * @Description 异步落库在H2上按批写入，队列满时由调用线程同步落库，关闭时写完队列中剩余的记录
+ * @Date 2021/7/20 15:00
+ */
+public class IdempotentWriteBehindQueueTest {
+
+    private BlockingService service;
+
+    private IdempotentProperties.WriteBehind properties;
+
+    private IdempotentWriteBehindQueue queue;
+
+    @Before
+    public void setUp() {
+        service = new BlockingService();
+        properties = new IdempotentProperties.WriteBehind();
+        properties.setBatchSize(10);
+        properties.setFlushInterval(10L);
+        properties.setEnqueueTimeout(10L);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        service.release.countDown();
+        if (queue != null) {
+            queue.destroy();
+        }
+    }
+
+    @Test
+    public void queuedRecordsAreGroupedByBatchSize() throws InterruptedException {
+        queue = new IdempotentWriteBehindQueue(service, properties);
+        queue.submit(context("req-0"), body());
+        assertTrue(service.entered.await(5L, TimeUnit.SECONDS));
+        //第一批阻塞期间积压的记录按batchSize分批
+        for (int i = 1; i < 25; i++) {
+            queue.submit(context("req-" + i), body());
+        }
+        service.release.countDown();
+        awaitFlushed(25);
+
+        assertEquals(4, service.batches.size());
+        assertEquals(1, (int) service.batches.get(0));
+        assertEquals(10, (int) service.batches.get(1));
+        assertEquals(10, (int) service.batches.get(2));
+        assertEquals(4, (int) service.batches.get(3));
+        assertEquals(25, queue.getEnqueued());
+        assertEquals(0, queue.getRejected());
+        for (int i = 0; i < 25; i++) {
+            assertPersisted("req-" + i);
+        }
+    }
+
+    @Test
+    public void fullQueueFallsBackToCallerThread() throws InterruptedException {
+        properties.setQueueCapacity(2);
+        queue = new IdempotentWriteBehindQueue(service, properties);
+        queue.submit(context("req-0"), body());
+        assertTrue(service.entered.await(5L, TimeUnit.SECONDS));
+        queue.submit(context("req-1"), body());
+        queue.submit(context("req-2"), body());
+        assertEquals(2, queue.getQueueSize());
+
+        //队列已满 等待enqueueTimeout后在调用线程逐条写入
+        queue.submit(context("req-3"), body());
+        assertEquals(1, queue.getRejected());
+        assertEquals(3, queue.getEnqueued());
+        assertPersisted("req-3");
+
+        service.release.countDown();
+        awaitFlushed(4);
+        assertPersisted("req-2");
+    }
+
+    @Test
+    public void destroyDrainsQueuedRecords() throws InterruptedException {
+        properties.setShutdownTimeout(5000L);
+        queue = new IdempotentWriteBehindQueue(service, properties);
+        queue.submit(context("req-0"), body());
+        assertTrue(service.entered.await(5L, TimeUnit.SECONDS));
+        for (int i = 1; i < 15; i++) {
+            queue.submit(context("req-" + i), body());
+        }
+        Thread releaser = new Thread(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(200L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            service.release.countDown();
+        });
+        releaser.start();
+        //关闭时等待积压的记录写完
+        queue.destroy();
+        assertEquals(0, queue.getQueueSize());
+        assertEquals(15, queue.getFlushed());
+        for (int i = 0; i < 15; i++) {
+            assertPersisted("req-" + i);
+        }
+
+        //关闭后提交的记录同步落库
+        queue.submit(context("late"), body());
+        assertEquals(1, queue.getRejected());
+        assertPersisted("late");
+    }
+
+    @Test
+    public void flushLatencyIsRegisteredAsMeters() throws InterruptedException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerIdempotentMetrics metrics = new MicrometerIdempotentMetrics(registry, new IdempotentProperties.Metrics());
+        service.release.countDown();
+        queue = new IdempotentWriteBehindQueue(service, properties, null, metrics);
+        for (int i = 0; i < 5; i++) {
+            queue.submit(context("req-" + i), body());
+        }
+        awaitFlushed(5);
+
+        Timer flush = registry.get("common.idempotent.writebehind.flush").timer();
+        Timer lag = registry.get("common.idempotent.writebehind.lag").timer();
+        assertEquals(service.batches.size(), flush.count());
+        assertEquals(flush.count(), lag.count());
+        assertTrue(lag.max(TimeUnit.NANOSECONDS) > 0);
+        assertEquals(5.0, registry.get("common.idempotent.writebehind.records").tag("result", "enqueued")
+                .functionCounter().count(), 0.0);
+        assertEquals(5.0, registry.get("common.idempotent.writebehind.records").tag("result", "flushed")
+                .functionCounter().count(), 0.0);
+        assertEquals(0.0, registry.get("common.idempotent.writebehind.queue").gauge().value(), 0.0);
+        metrics.destroy();
+    }
+
+    private void awaitFlushed(long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+        while (queue.getFlushed() < expected && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10L);
+        }
+        assertEquals(expected, queue.getFlushed());
+    }
+
+    private void assertPersisted(String requestId) {
+        IdempotentContext found = service.queryByReqId(requestId, "app");
+        assertNotNull(requestId, found);
+        assertArrayEquals(bytes("result"), service.getLatestRecordByIdeKey(found.getId()).getResponseBody());
+    }
+
+    private static IdempotentContext context(String requestId) {
+        return IdempotentContext.builder().requestId(requestId).appCode("app").businessNo("biz-" + requestId)
+                .status(IdempotentStatusEnum.SUCCESS).build();
+    }
+
+    private static IdempotentBodyContext body() {
+        return IdempotentBodyContext.builder().requestParam("{}").responseBody(bytes("result")).build();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 第一次批量写入阻塞到release 记录每批的条数
+     */
+    private static class BlockingService extends JdbcIdempotentService {
+
+        private final CountDownLatch entered = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private final List<Integer> batches = new CopyOnWriteArrayList<>();
+
+        private BlockingService() {
+            super(H2Database.create());
+        }
+
+        @Override
+        public List<Long> insertBatch(List<IdempotentContext> models) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batches.add(models.size());
+            return super.insertBatch(models);
+        }
+    }
+}
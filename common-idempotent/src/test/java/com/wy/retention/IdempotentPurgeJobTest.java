@@ -0,0 +1,197 @@
+package com.wy.retention;
+
+import com.wy.config.IdempotentProperties;
+import com.wy.metrics.IdempotentMetrics;
+import com.wy.support.H2Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author wangyong
+ * @Classname IdempotentPurgeJobTest
+ * @Description 按appCode的保留时长分批删除过期记录和参数记录，可选归档，从库延迟过大时不删除
+ * @Date 2021/7/20 22:00
+ */
+public class IdempotentPurgeJobTest {
+
+    private static final long HOUR = Duration.ofHours(1L).toMillis();
+
+    private JdbcTemplate jdbcTemplate;
+
+    private IdempotentProperties.Retention properties;
+
+    private final RecordingMetrics metrics = new RecordingMetrics();
+
+    private IdempotentPurgeJob job;
+
+    @Before
+    public void setUp() {
+        jdbcTemplate = new JdbcTemplate(H2Database.create());
+        properties = new IdempotentProperties.Retention();
+        properties.setDefaultTtl(Duration.ofDays(1L));
+        properties.getTtl().put("short", Duration.ofHours(1L));
+        //只通过runOnce执行
+        properties.setInterval(Duration.ofHours(1L));
+        properties.setPause(Duration.ZERO);
+    }
+
+    @After
+    public void tearDown() {
+        if (job != null) {
+            job.destroy();
+        }
+    }
+
+    @Test
+    public void expiredRowsArePurgedPerAppCodeTtl() {
+        long now = System.currentTimeMillis();
+        insert("a", "default", now - 48 * HOUR);
+        insert("b", "short", now - 2 * HOUR);
+        long defaultKept = insert("c", "default", now - 2 * HOUR);
+        long shortKept = insert("d", "short", now);
+        job = job(ReplicationLagProbe.NONE);
+
+        assertEquals(2L, job.runOnce());
+        assertEquals(listOf(defaultKept, shortKept), ids("t_idempotent"));
+        //参数记录随幂等记录一起删除
+        assertEquals(2L, jdbcTemplate.queryForObject("select count(*) from t_idempotent_body", Long.class).longValue());
+        assertEquals(2L, job.getPurgedBodies());
+        assertEquals(2L, metrics.purged.get("t_idempotent").get());
+        assertEquals(2L, metrics.purged.get("t_idempotent_body").get());
+        //再次执行没有可删除的记录
+        assertEquals(0L, job.runOnce());
+    }
+
+    @Test
+    public void largeBacklogIsDeletedInBatches() {
+        properties.setBatchSize(3);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            insert("old-" + i, "default", now - 48 * HOUR);
+        }
+        long kept = insert("new", "default", now);
+        job = job(ReplicationLagProbe.NONE);
+
+        assertEquals(10L, job.runOnce());
+        assertEquals(listOf(kept), ids("t_idempotent"));
+        assertEquals(10L, job.getPurged());
+    }
+
+    @Test
+    public void archivedRowsAreCopiedBeforeDelete() throws IOException {
+        createArchiveTables();
+        properties.setArchive(true);
+        long now = System.currentTimeMillis();
+        long expired = insert("a", "default", now - 48 * HOUR);
+        insert("b", "default", now);
+        job = job(ReplicationLagProbe.NONE);
+
+        assertEquals(1L, job.runOnce());
+        assertEquals(listOf(expired), ids("t_idempotent_archive"));
+        assertEquals(1L, jdbcTemplate.queryForObject("select count(*) from t_idempotent_body_archive where idempotent_id = ?",
+                Long.class, expired).longValue());
+    }
+
+    @Test
+    public void replicationLagPausesPurge() {
+        properties.setMaxReplicationLag(Duration.ofSeconds(1L));
+        properties.setLagBackoff(Duration.ofMillis(20L));
+        properties.setMaxRunTime(Duration.ofMillis(200L));
+        long now = System.currentTimeMillis();
+        insert("a", "default", now - 48 * HOUR);
+        AtomicLong lag = new AtomicLong(5000L);
+        job = job(lag::get);
+
+        //延迟超过阈值 本次执行到超时都不删除
+        assertEquals(0L, job.runOnce());
+        assertEquals(5000L, job.getLastLagMillis());
+        assertEquals(5000L, metrics.lag.get());
+        assertEquals(1, ids("t_idempotent").size());
+
+        lag.set(100L);
+        assertEquals(1L, job.runOnce());
+        assertEquals(100L, metrics.lag.get());
+    }
+
+    private IdempotentPurgeJob job(ReplicationLagProbe probe) {
+        return new IdempotentPurgeJob(jdbcTemplate, "t_idempotent", "t_idempotent_body", properties, probe, metrics, null);
+    }
+
+    /**
+     * 插入幂等记录和一条参数记录 主键与创建时间同序
+     */
+    private long insert(String requestId, String appCode, long created) {
+        Timestamp timestamp = new Timestamp(created);
+        jdbcTemplate.update("insert into t_idempotent (request_id, app_code, status, created) values (?, ?, 1, ?)",
+                requestId, appCode, timestamp);
+        long id = jdbcTemplate.queryForObject("select id from t_idempotent where request_id = ? and app_code = ?",
+                Long.class, requestId, appCode);
+        jdbcTemplate.update("insert into t_idempotent_body (idempotent_id, request_param, created) values (?, '{}', ?)",
+                id, timestamp);
+        return id;
+    }
+
+    private List<Long> ids(String table) {
+        return jdbcTemplate.queryForList("select id from " + table + " order by id", Long.class);
+    }
+
+    private static List<Long> listOf(Long... ids) {
+        return Arrays.asList(ids);
+    }
+
+    /**
+     * 归档表与原表结构相同
+     */
+    private void createArchiveTables() throws IOException {
+        String schema = new String(Files.readAllBytes(Paths.get("src/main/java/com/wy/sql/idempotent.sql")), StandardCharsets.UTF_8)
+                .replace("t_idempotent_body", "t_idempotent_body_archive")
+                .replace("t_idempotent\n", "t_idempotent_archive\n")
+                .replace("uk_request_id_app_code", "uk_archive_request_id_app_code")
+                .replace("idx_idempotent_id", "idx_archive_idempotent_id");
+        new ResourceDatabasePopulator(new ByteArrayResource(schema.getBytes(StandardCharsets.UTF_8)))
+                .execute(jdbcTemplate.getDataSource());
+    }
+
+    private static class RecordingMetrics implements IdempotentMetrics {
+
+        private final ConcurrentMap<String, AtomicLong> purged = new ConcurrentHashMap<>();
+
+        private final AtomicLong lag = new AtomicLong(-1L);
+
+        @Override
+        public void record(Phase phase, String appCode, long nanos) {
+        }
+
+        @Override
+        public void count(Event event, String appCode) {
+        }
+
+        @Override
+        public void purged(String table, long rows) {
+            purged.computeIfAbsent(table, t -> new AtomicLong()).addAndGet(rows);
+        }
+
+        @Override
+        public void replicationLag(long millis) {
+            lag.set(millis);
+        }
+    }
+}
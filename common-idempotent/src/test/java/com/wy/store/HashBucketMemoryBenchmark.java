@@ -0,0 +1,82 @@
+package com.wy.store;
+
+import com.wy.support.EmbeddedRedis;
+import org.springframework.data.redis.connection.RedisConnection;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * @author wangyong
+ * @Classname HashBucketMemoryBenchmark
+ * @Description 本地redis上 字符串存储与分桶hash存储每条结果占用的内存，按 INFO memory 的 used_memory 差值计算
+ * 分桶按窗口整体过期，结果保存 1~2 倍ttl，稳定状态下同时存在的条数平均是字符串的1.5倍，最多2倍，输出中按这两个倍数折算
+ * 不在单元测试中执行 通过main运行，参数为条数
+ * @Date 2021/7/19 16:00
+ */
+public class HashBucketMemoryBenchmark {
+
+    private static final Duration TTL = Duration.ofMinutes(10L);
+
+    private static final int MAX_ZIPLIST_ENTRIES = 128;
+
+    private static final int MAX_ZIPLIST_VALUE = 1024;
+
+    private static final int CHUNK = 1000;
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        EmbeddedRedis redis = EmbeddedRedis.start("hash-max-ziplist-entries " + MAX_ZIPLIST_ENTRIES,
+                "hash-max-ziplist-value " + MAX_ZIPLIST_VALUE);
+        StringResultStore string = new StringResultStore(StringResultStore.template(redis.connectionFactory()));
+        HashBucketResultStore hash = new HashBucketResultStore(redis.redisson(), "bench:result:",
+                HashBucketResultStore.bucketsFor(entries, MAX_ZIPLIST_ENTRIES), MAX_ZIPLIST_VALUE);
+        try {
+            System.out.printf("%d entries, hash-max-ziplist-entries %d, hash-max-ziplist-value %d%n",
+                    entries, MAX_ZIPLIST_ENTRIES, MAX_ZIPLIST_VALUE);
+            System.out.printf("%-8s %14s %14s %10s %12s %12s%n",
+                    "value", "string B/entry", "hash B/entry", "hash/str", "x1.5 ttl", "x2 ttl");
+            for (int valueBytes : new int[]{48, 256, 900}) {
+                double stringPerEntry = measure(redis, string, entries, valueBytes);
+                double hashPerEntry = measure(redis, hash, entries, valueBytes);
+                double ratio = hashPerEntry / stringPerEntry;
+                System.out.printf("%-8d %14.1f %14.1f %10.2f %12.2f %12.2f%n",
+                        valueBytes, stringPerEntry, hashPerEntry, ratio, ratio * 1.5, ratio * 2);
+            }
+        } finally {
+            redis.stop();
+        }
+    }
+
+    /**
+     * 清空后写入entries条结果 返回每条增加的used_memory
+     */
+    private static double measure(EmbeddedRedis redis, IdempotentResultStore store, int entries, int valueBytes) {
+        redis.redisson().getKeys().flushall();
+        Random random = new Random(valueBytes);
+        long before = usedMemory(redis);
+        Map<String, byte[]> chunk = new HashMap<>(CHUNK * 2);
+        for (int i = 0; i < entries; i++) {
+            byte[] value = new byte[valueBytes];
+            random.nextBytes(value);
+            chunk.put(UUID.randomUUID() + ":app", value);
+            if (chunk.size() == CHUNK || i == entries - 1) {
+                store.putAll(chunk, TTL);
+                chunk.clear();
+            }
+        }
+        return (usedMemory(redis) - before) / (double) entries;
+    }
+
+    private static long usedMemory(EmbeddedRedis redis) {
+        RedisConnection connection = redis.connectionFactory().getConnection();
+        try {
+            return Long.parseLong(connection.info("memory").getProperty("used_memory"));
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.wy.support;
+
+import com.wy.IdempotentService;
+import com.wy.aop.IdempotentAspect;
+import com.wy.codec.HessianResultCodec;
+import com.wy.config.IdempotentProperties;
+import com.wy.guard.IdempotentGuard;
+import com.wy.metrics.IdempotentMetrics;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executor;
+
+/**
+ * @author wangyong
+ * @Classname AspectHarness
+ * @Description 不启动spring容器直接调用 {@link IdempotentAspect#around}，字段按名称注入，切入点由代理模拟
+ * @Date 2021/7/19 10:00
+ */
+public class AspectHarness {
+
+    private static final String[] PARAMETER_NAMES = {"request"};
+
+    private final IdempotentAspect aspect = new IdempotentAspect();
+
+    public AspectHarness(IdempotentGuard guard, IdempotentService service, IdempotentProperties properties, Executor executor) {
+        this.with("idempotentGuard", guard)
+                .with("idempotentService", service)
+                .with("idempotentProperties", properties)
+                .with("idempotentExecutor", executor)
+                .with("idempotentResultCodec", new HessianResultCodec())
+                .with("idempotentMetrics", IdempotentMetrics.NOOP);
+    }
+
+    /**
+     * 注入可选组件 如nearCache、singleFlight
+     *
+     * @param field 切面中的字段名
+     * @param value 组件
+     */
+    public AspectHarness with(String field, Object value) {
+        try {
+            Field target = IdempotentAspect.class.getDeclaredField(field);
+            target.setAccessible(true);
+            target.set(aspect, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    /**
+     * 执行启动检查
+     */
+    public AspectHarness init() {
+        aspect.init();
+        return this;
+    }
+
+    /**
+     * 通过切面调用target上的注解方法 方法只有一个名为request的参数
+     *
+     * @param target  业务对象
+     * @param method  方法名
+     * @param request 参数
+     * @return 切面返回值
+     */
+    public Object invoke(Object target, String method, Object request) throws Exception {
+        Method targetMethod = find(target.getClass(), method);
+        targetMethod.setAccessible(true);
+        Object[] args = {request};
+        MethodSignature signature = (MethodSignature) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{MethodSignature.class}, (proxy, m, a) -> {
+                    switch (m.getName()) {
+                        case "getMethod":
+                            return targetMethod;
+                        case "getParameterNames":
+                            return PARAMETER_NAMES;
+                        case "getName":
+                            return targetMethod.getName();
+                        case "getReturnType":
+                            return targetMethod.getReturnType();
+                        case "getDeclaringType":
+                            return targetMethod.getDeclaringClass();
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == a[0];
+                        default:
+                            throw new UnsupportedOperationException(m.getName());
+                    }
+                });
+        ProceedingJoinPoint point = (ProceedingJoinPoint) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ProceedingJoinPoint.class}, (proxy, m, a) -> {
+                    switch (m.getName()) {
+                        case "getSignature":
+                            return signature;
+                        case "getArgs":
+                            return args.clone();
+                        case "getTarget":
+                        case "getThis":
+                            return target;
+                        case "proceed":
+                            try {
+                                return targetMethod.invoke(target, a == null ? args : (Object[]) a[0]);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == a[0];
+                        default:
+                            throw new UnsupportedOperationException(m.getName());
+                    }
+                });
+        try {
+            return aspect.around(point);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Method find(Class<?> type, String name) {
+        for (Method method : type.getDeclaredMethods()) {
+            if (method.getName().equals(name)) {
+                return method;
+            }
+        }
+        throw new IllegalArgumentException(type.getName() + "#" + name);
+    }
+}
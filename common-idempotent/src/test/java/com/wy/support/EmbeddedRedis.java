@@ -0,0 +1,80 @@
+package com.wy.support;
+
+import org.junit.Assume;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import org.redisson.spring.data.connection.RedissonConnectionFactory;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import redis.embedded.RedisServer;
+import redis.embedded.RedisServerBuilder;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * @author wangyong
+ * @Classname EmbeddedRedis
+ * @Description 测试用的本地redis 随机端口启动，当前平台无法启动时跳过测试
+ * @Date 2021/7/12 15:00
+ */
+public class EmbeddedRedis {
+
+    private final RedisServer server;
+
+    private final RedissonClient redisson;
+
+    private final RedisConnectionFactory connectionFactory;
+
+    private EmbeddedRedis(RedisServer server, int port) {
+        this.server = server;
+        Config config = new Config();
+        config.useSingleServer().setAddress("redis://127.0.0.1:" + port);
+        this.redisson = Redisson.create(config);
+        this.connectionFactory = new RedissonConnectionFactory(redisson);
+    }
+
+    /**
+     * 启动 失败时通过 {@link Assume} 跳过调用方的测试
+     *
+     * @param settings redis配置项 例如 hash-max-ziplist-value 1024
+     */
+    public static EmbeddedRedis start(String... settings) {
+        RedisServer server = null;
+        try {
+            int port = freePort();
+            RedisServerBuilder builder = RedisServer.builder().port(port).setting("bind 127.0.0.1").setting("save \"\"");
+            for (String setting : settings) {
+                builder.setting(setting);
+            }
+            server = builder.build();
+            server.start();
+            return new EmbeddedRedis(server, port);
+        } catch (Exception e) {
+            if (server != null) {
+                server.stop();
+            }
+            Assume.assumeNoException("本地redis无法启动", e);
+            return null;
+        }
+    }
+
+    public RedissonClient redisson() {
+        return redisson;
+    }
+
+    public RedisConnectionFactory connectionFactory() {
+        return connectionFactory;
+    }
+
+    public void stop() {
+        redisson.shutdown();
+        server.stop();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.wy.support;
+
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.util.UUID;
+
+/**
+ * @author wangyong
+ * @Classname H2Database
+ * @Description 测试用的MySQL模式内存数据库 按发布的建表脚本建表
+ * @Date 2021/7/13 10:00
+ */
+public class H2Database {
+
+    /**
+     * 建表脚本与源码放在一起 测试在模块目录下执行
+     */
+    private static final String SCHEMA = "src/main/java/com/wy/sql/idempotent.sql";
+
+    private H2Database() {
+    }
+
+    /**
+     * 每次调用创建一个独立的库 复用一个连接，相当于连接池中取连接，不计建连的开销
+     */
+    public static DataSource create() {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", true);
+        new ResourceDatabasePopulator(new FileSystemResource(SCHEMA)).execute(dataSource);
+        return dataSource;
+    }
+}
@@ -0,0 +1,90 @@
+package com.wy.redis.hotkey;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @author wangyong
+ * @Classname CountMinSketch
+ * @Description 计数草图 固定内存估计每个key的出现次数，只会高估不会低估
+ * depth行计数器，估计值取各行的最小值
+ * 各行下标由64位hash的高低两半按 Kirsch-Mitzenmacher 双重hash派生 g(i) = h1 + i * h2，行之间相互独立
+ * 计数器无锁递增，并发下的少量误差对热点判断没有影响
+ * @Date 2021/7/2 10:10
+ */
+public class CountMinSketch {
+
+    private static final int MAX_DEPTH = 8;
+
+    private final int depth;
+
+    private final int mask;
+
+    private final AtomicIntegerArray counters;
+
+    /**
+     * @param width 每行的计数器数 向上取2的幂
+     * @param depth 行数 最多8行
+     */
+    public CountMinSketch(int width, int depth) {
+        if (width <= 0 || depth <= 0 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("width must be positive and depth must be between 1 and " + MAX_DEPTH);
+        }
+        int size = Integer.highestOneBit(width - 1) << 1;
+        this.mask = Math.max(size, 2) - 1;
+        this.depth = depth;
+        this.counters = new AtomicIntegerArray(depth * (mask + 1));
+    }
+
+    /**
+     * 计数加一
+     *
+     * @param hash key的64位hash 例如murmur3
+     * @return 加一后的估计值
+     */
+    public int increment(long hash) {
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = this.index(row, hash);
+            int value = counters.incrementAndGet(index);
+            //溢出前不再增加
+            if (value == Integer.MAX_VALUE) {
+                counters.decrementAndGet(index);
+            }
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    /**
+     * @param hash key的64位hash 例如murmur3
+     * @return 估计值
+     */
+    public int estimate(long hash) {
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters.get(this.index(row, hash)));
+        }
+        return min;
+    }
+
+    /**
+     * 全部计数减半 让旧的访问逐渐失去权重
+     */
+    public void halve() {
+        for (int i = 0; i < counters.length(); i++) {
+            int value;
+            do {
+                value = counters.get(i);
+            } while (value != 0 && !counters.compareAndSet(i, value, value >>> 1));
+        }
+    }
+
+    /**
+     * 宽度是2的幂 步长h2取奇数，保证同一个key在不同行的下标各不相同
+     */
+    private int index(int row, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return row * (mask + 1) + ((h1 + row * h2) & mask);
+    }
+}
@@ -0,0 +1,32 @@
+package com.wy.redis.hotkey;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * @author wangyong
+ * @Classname HotKey
+ * @Description 当前的热点key 供运维查看
+ * @Date 2021/7/2 10:20
+ */
+@Data
+@AllArgsConstructor
+public class HotKey {
+
+    /**
+     * 来源 lock或idempotent
+     */
+    private String scope;
+
+    private String key;
+
+    /**
+     * 衰减后的估计访问次数
+     */
+    private long count;
+
+    /**
+     * 成为热点的时间
+     */
+    private long since;
+}
@@ -0,0 +1,25 @@
+package com.wy.redis.hotkey;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * @author wangyong
+ * @Classname HotKeyConfiguration
+ * @Description 热点key探测配置 开启后锁和幂等切面共用同一个 {@link HotKeyDetector}
+ * @Date 2021/7/2 11:20
+ */
+@Configuration
+@EnableConfigurationProperties(HotKeyProperties.class)
+@ConditionalOnProperty(prefix = HotKeyProperties.PREFIX, name = "enabled", havingValue = "true")
+public class HotKeyConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public HotKeyDetector hotKeyDetector(HotKeyProperties properties) {
+        return new HotKeyDetector(properties);
+    }
+}
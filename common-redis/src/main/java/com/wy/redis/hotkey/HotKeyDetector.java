@@ -0,0 +1,260 @@
+package com.wy.redis.hotkey;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author wangyong
+ * @Classname HotKeyDetector
+ * @Description 热点key探测 锁和幂等的key共用一个实例，按scope区分
+ * 每次访问在计数草图中计数，估计值达到阈值的key进入最多topK个的热点集合，集合满时替换次数最少的
+ * 计数按周期减半，热点集合在衰减后按新的估计值重新判断，访问停止的key几个周期后自然退出
+ * 非热点key的一次访问只有草图的几次原子递增，不分配对象
+ * @Date 2021/7/2 10:30
+ */
+@Slf4j
+public class HotKeyDetector implements DisposableBean {
+
+    public static final String SCOPE_LOCK = "lock";
+
+    public static final String SCOPE_IDEMPOTENT = "idempotent";
+
+    private final CountMinSketch sketch;
+
+    private final int threshold;
+
+    private final int topK;
+
+    private final Map<Id, Entry> hotKeys = new ConcurrentHashMap<>(64);
+
+    private final ScheduledExecutorService decayExecutor;
+
+    public HotKeyDetector(HotKeyProperties properties) {
+        this.sketch = new CountMinSketch(properties.getSketchWidth(), properties.getSketchDepth());
+        this.threshold = properties.getThreshold();
+        this.topK = properties.getTopK();
+        this.decayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hot-key-decay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = properties.getDecayInterval().toMillis();
+        decayExecutor.scheduleWithFixedDelay(this::decay, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @param scope 来源
+     * @param key   key
+     * @return 是否为热点
+     */
+    public boolean record(String scope, String key) {
+        int count = sketch.increment(hash(scope, key));
+        if (count < threshold) {
+            return false;
+        }
+        Id id = new Id(scope, key);
+        Entry entry = hotKeys.get(id);
+        if (entry != null) {
+            entry.count = count;
+            return true;
+        }
+        return this.promote(id, count);
+    }
+
+    /**
+     * 只判断不计数
+     */
+    public boolean isHot(String scope, String key) {
+        return !hotKeys.isEmpty() && hotKeys.containsKey(new Id(scope, key));
+    }
+
+    /**
+     * @return 当前的热点key 按次数从多到少
+     */
+    public List<HotKey> hotKeys() {
+        List<HotKey> snapshot = new ArrayList<>(hotKeys.size());
+        hotKeys.forEach((id, entry) -> snapshot.add(new HotKey(id.scope, id.key, entry.count, entry.since)));
+        snapshot.sort(Comparator.comparingLong(HotKey::getCount).reversed());
+        return snapshot;
+    }
+
+    /**
+     * 集合满时替换次数最少且少于当前次数的key 加锁只发生在key刚达到阈值时
+     */
+    private synchronized boolean promote(Id id, int count) {
+        if (hotKeys.containsKey(id)) {
+            return true;
+        }
+        if (hotKeys.size() >= topK) {
+            Map.Entry<Id, Entry> coldest = null;
+            for (Map.Entry<Id, Entry> candidate : hotKeys.entrySet()) {
+                if (coldest == null || candidate.getValue().count < coldest.getValue().count) {
+                    coldest = candidate;
+                }
+            }
+            if (coldest == null || coldest.getValue().count >= count) {
+                return false;
+            }
+            hotKeys.remove(coldest.getKey());
+            log.info("热点key [{}] [{}] 被替换出热点集合", coldest.getKey().scope, coldest.getKey().key);
+        }
+        hotKeys.put(id, new Entry(count, System.currentTimeMillis()));
+        log.info("key [{}] [{}] 访问次数达到 [{}]，成为热点", id.scope, id.key, count);
+        return true;
+    }
+
+    private void decay() {
+        try {
+            sketch.halve();
+            synchronized (this) {
+                hotKeys.entrySet().removeIf(e -> {
+                    Id id = e.getKey();
+                    int count = sketch.estimate(hash(id.scope, id.key));
+                    e.getValue().count = count;
+                    if (count < threshold) {
+                        log.info("热点key [{}] [{}] 访问减少，退出热点", id.scope, id.key);
+                        return true;
+                    }
+                    return false;
+                });
+            }
+        } catch (Exception e) {
+            log.error("热点key衰减异常", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        decayExecutor.shutdownNow();
+    }
+
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * murmur3 x64 128位hash的前64位 输入为 scope + '\0' + key 的UTF-16字符，与guava的
+     * {@code Hashing.murmur3_128().hashUnencodedChars(...).asLong()} 结果相同
+     * 不拼接字符串也不创建Hasher，每次访问不分配对象
+     */
+    static long hash(String scope, String key) {
+        int length = scope.length() + 1 + key.length();
+        long h1 = 0L;
+        long h2 = 0L;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h1 ^= mixK1(block(scope, key, i, 4));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(block(scope, key, i + 4, 4));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        int remaining = length - i;
+        if (remaining > 0) {
+            h1 ^= mixK1(block(scope, key, i, Math.min(remaining, 4)));
+            if (remaining > 4) {
+                h2 ^= mixK2(block(scope, key, i + 4, remaining - 4));
+            }
+        }
+        //murmur3按字节计算长度
+        h1 ^= length * 2L;
+        h2 ^= length * 2L;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        return h1 + h2;
+    }
+
+    /**
+     * 从第from个字符起取count个字符 小端拼成一个long
+     */
+    private static long block(String scope, String key, int from, int count) {
+        long k = 0L;
+        for (int j = 0; j < count; j++) {
+            int index = from + j;
+            char c = index < scope.length() ? scope.charAt(index)
+                    : index == scope.length() ? '\0' : key.charAt(index - scope.length() - 1);
+            k |= (long) c << (16 * j);
+        }
+        return k;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static final class Id {
+
+        private final String scope;
+
+        private final String key;
+
+        private Id(String scope, String key) {
+            this.scope = scope;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Id)) {
+                return false;
+            }
+            Id other = (Id) o;
+            return scope.equals(other.scope) && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return scope.hashCode() * 31 + key.hashCode();
+        }
+    }
+
+    private static final class Entry {
+
+        private volatile long count;
+
+        private final long since;
+
+        private Entry(long count, long since) {
+            this.count = count;
+            this.since = since;
+        }
+    }
+}
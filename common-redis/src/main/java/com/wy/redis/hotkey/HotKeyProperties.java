@@ -0,0 +1,46 @@
+package com.wy.redis.hotkey;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * @author wangyong
+ * @Classname HotKeyProperties
+ * @Description 热点key探测配置
+ * @Date 2021/7/2 10:25
+ */
+@Data
+@ConfigurationProperties(prefix = HotKeyProperties.PREFIX)
+public class HotKeyProperties {
+
+    public static final String PREFIX = "common.redis.hot-key";
+
+    private boolean enabled = false;
+
+    /**
+     * 一个衰减周期内的估计次数达到该值时成为热点
+     */
+    private int threshold = 64;
+
+    /**
+     * 最多保留的热点key数 超出时淘汰次数最少的
+     */
+    private int topK = 32;
+
+    /**
+     * 衰减周期 每个周期全部计数减半
+     */
+    private Duration decayInterval = Duration.ofSeconds(1);
+
+    /**
+     * 计数草图每行的计数器数
+     */
+    private int sketchWidth = 4096;
+
+    /**
+     * 计数草图的行数
+     */
+    private int sketchDepth = 4;
+}
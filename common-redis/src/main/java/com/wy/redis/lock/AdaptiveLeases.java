@@ -0,0 +1,316 @@
+package com.wy.redis.lock;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.redisson.Redisson;
+import org.redisson.api.RLock;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.LongCodec;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author wangyong
+ * @Classname AdaptiveLeases
+ * @Description 自适应租期 按加锁方法统计持锁时间，租期取近期的百分位乘以倍数
+ * 租期只决定持有者进程崩溃后锁多久自动释放，执行时间超过租期时由后台续期，续期只在持有线程存活且未超过maxHold时进行
+ * 续期脚本与redisson看门狗一致 只有锁仍由本线程持有时才延长，锁已过期被他人获得时停止
+ * 持锁时间记录在 {@link Recorder} 中，记录无锁，每个统计周期取一次区间直方图更新租期
+ * 作为 {@link MeterBinder} 由spring boot绑定到micrometer，每个加锁方法注册持锁时间的百分位、最大值和当前租期
+ * @Date 2021/7/6 10:30
+ */
+@Slf4j
+public class AdaptiveLeases implements DisposableBean, MeterBinder {
+
+    private static final String HOLD = "common.redis.lock.hold";
+
+    private static final String LEASE = "common.redis.lock.lease";
+
+    private static final String RENEW_SCRIPT =
+            "if (redis.call('hexists', KEYS[1], ARGV[2]) == 1) then " +
+                    "redis.call('pexpire', KEYS[1], ARGV[1]); " +
+                    "return 1; " +
+                    "end; " +
+                    "return 0;";
+
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final RedissonClient redisson;
+
+    private final LockProperties.AdaptiveLease properties;
+
+    /**
+     * 与redisson锁字段一致的客户端id
+     */
+    private final String clientId;
+
+    private final ConcurrentHashMap<String, HoldTimes> holdTimes = new ConcurrentHashMap<>(64);
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile MeterRegistry registry;
+
+    public AdaptiveLeases(RedissonClient redisson, LockProperties.AdaptiveLease properties) {
+        this.redisson = redisson;
+        this.properties = properties;
+        this.clientId = redisson instanceof Redisson
+                ? ((Redisson) redisson).getConnectionManager().getId().toString() : UUID.randomUUID().toString();
+        this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "lock-lease-renewal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return 是否使用自适应租期
+     */
+    public boolean isAdaptive(LeaseMode mode) {
+        return mode == LeaseMode.ADAPTIVE || (mode == LeaseMode.DEFAULT && properties.isEnabled());
+    }
+
+    /**
+     * 当前租期
+     *
+     * @param name     加锁方法
+     * @param fallback 样本不足时的租期
+     * @return 毫秒
+     */
+    public long leaseTime(String name, long fallback) {
+        HoldTimes times = holdTimes.get(name);
+        return times == null || times.lease < 0 ? fallback : times.lease;
+    }
+
+    /**
+     * 开始为当前线程持有的锁续期
+     *
+     * @param lock      已获得的锁
+     * @param leaseTime 加锁时的租期 毫秒
+     * @return 持有结束时调用 {@link Renewal#stop()}
+     */
+    public Renewal renew(RLock lock, long leaseTime) {
+        Renewal renewal = new Renewal(lock.getName(), clientId + ":" + Thread.currentThread().getId(),
+                Thread.currentThread(), leaseTime);
+        long period = Math.max(10L, leaseTime / 3);
+        renewal.future = scheduler.scheduleAtFixedRate(renewal::renew, period, period, TimeUnit.MILLISECONDS);
+        return renewal;
+    }
+
+    /**
+     * 记录一次持锁时间
+     *
+     * @param name   加锁方法
+     * @param millis 毫秒
+     */
+    public void record(String name, long millis) {
+        HoldTimes times = holdTimes.get(name);
+        if (times == null) {
+            times = holdTimes.computeIfAbsent(name, HoldTimes::new);
+            MeterRegistry meterRegistry = registry;
+            if (meterRegistry != null) {
+                times.bindTo(meterRegistry);
+            }
+            if (refreshing.compareAndSet(false, true)) {
+                long interval = properties.getRefreshInterval().toMillis();
+                scheduler.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+        times.recorder.recordValue(Math.min(Math.max(millis, 0L), times.highestTrackable));
+    }
+
+    /**
+     * @return 各加锁方法的持锁时间
+     */
+    public List<LockHoldTime> holdTimes() {
+        List<LockHoldTime> snapshot = new ArrayList<>(holdTimes.size());
+        holdTimes.forEach((name, times) -> snapshot.add(times.snapshot()));
+        snapshot.sort(Comparator.comparing(LockHoldTime::getName));
+        return snapshot;
+    }
+
+    /**
+     * 方法在首次加锁时才注册 绑定之前已有的方法在这里补注册
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        this.registry = registry;
+        holdTimes.values().forEach(times -> times.bindTo(registry));
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    private void refresh() {
+        for (HoldTimes times : holdTimes.values()) {
+            try {
+                times.refresh();
+            } catch (Exception e) {
+                log.error("持锁时间统计更新异常 {}", times.name, e);
+            }
+        }
+    }
+
+    /**
+     * 单个加锁方法的持锁时间
+     */
+    private class HoldTimes {
+
+        private final String name;
+
+        private final long highestTrackable;
+
+        private final Recorder recorder;
+
+        private final Histogram total;
+
+        private Histogram interval;
+
+        private volatile long lease = -1L;
+
+        private volatile long p50;
+
+        private volatile long p99;
+
+        private HoldTimes(String name) {
+            this.name = name;
+            this.highestTrackable = Math.max(2L, properties.getMaxHold().toMillis());
+            this.recorder = new Recorder(highestTrackable, SIGNIFICANT_DIGITS);
+            this.total = new Histogram(highestTrackable, SIGNIFICANT_DIGITS);
+        }
+
+        /**
+         * 只在调度线程中执行
+         */
+        private void refresh() {
+            interval = recorder.getIntervalHistogram(interval);
+            synchronized (total) {
+                total.add(interval);
+            }
+            if (interval.getTotalCount() < properties.getMinSamples()) {
+                return;
+            }
+            p50 = interval.getValueAtPercentile(50.0);
+            p99 = interval.getValueAtPercentile(99.0);
+            long percentile = interval.getValueAtPercentile(properties.getPercentile());
+            long computed = (long) (percentile * properties.getMultiplier());
+            lease = Math.min(Math.max(computed, properties.getMinLease().toMillis()), properties.getMaxLease().toMillis());
+            log.debug("lock [{}] 持锁时间p{} {}ms，租期调整为 {}ms", name, properties.getPercentile(), percentile, lease);
+        }
+
+        private LockHoldTime snapshot() {
+            synchronized (total) {
+                return new LockHoldTime(name, total.getTotalCount(), p50, p99, total.getMaxValue(), lease);
+            }
+        }
+
+        /**
+         * 与 {@link #snapshot()} 相同的值 百分位是最近一个统计周期的，次数和最大值是累计的，重复注册时micrometer返回已有的meter
+         */
+        private void bindTo(MeterRegistry registry) {
+            Tags tags = Tags.of("name", name);
+            Gauge.builder(HOLD, this, t -> seconds(t.p50)).tags(tags.and("quantile", "0.5")).baseUnit("seconds").register(registry);
+            Gauge.builder(HOLD, this, t -> seconds(t.p99)).tags(tags.and("quantile", "0.99")).baseUnit("seconds").register(registry);
+            Gauge.builder(HOLD + ".max", this, t -> seconds(t.snapshot().getMax())).tags(tags).baseUnit("seconds").register(registry);
+            FunctionCounter.builder(HOLD + ".count", this, t -> t.snapshot().getCount()).tags(tags).register(registry);
+            //样本不足时没有自适应租期
+            Gauge.builder(LEASE, this, t -> t.lease < 0 ? Double.NaN : seconds(t.lease)).tags(tags).baseUnit("seconds").register(registry);
+        }
+
+        private double seconds(long millis) {
+            return millis / (double) TimeUnit.SECONDS.toMillis(1);
+        }
+    }
+
+    /**
+     * 一次持有的续期
+     */
+    public class Renewal {
+
+        private final String key;
+
+        private final String field;
+
+        private final Thread holder;
+
+        private final long leaseTime;
+
+        private final long deadline;
+
+        private volatile ScheduledFuture<?> future;
+
+        private volatile boolean stopped;
+
+        private Renewal(String key, String field, Thread holder, long leaseTime) {
+            this.key = key;
+            this.field = field;
+            this.holder = holder;
+            this.leaseTime = leaseTime;
+            this.deadline = System.currentTimeMillis() + properties.getMaxHold().toMillis();
+        }
+
+        /**
+         * 持有结束 在解锁之前调用
+         */
+        public void stop() {
+            stopped = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * @return 是否已停止续期 持有结束、持有线程退出、超过maxHold或锁已不由本线程持有
+         */
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        private void renew() {
+            if (stopped) {
+                return;
+            }
+            if (!holder.isAlive()) {
+                log.warn("lock [{}] 的持有线程已结束，停止续期", key);
+                this.stop();
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                log.warn("lock [{}] 持有时间超过 {}，停止续期", key, properties.getMaxHold());
+                this.stop();
+                return;
+            }
+            redisson.getScript(LongCodec.INSTANCE).<Boolean>evalAsync(key, RScript.Mode.READ_WRITE, RENEW_SCRIPT,
+                    RScript.ReturnType.BOOLEAN, Collections.singletonList(key), leaseTime, field)
+                    .onComplete((renewed, e) -> {
+                        if (e != null) {
+                            log.error("lock [{}] 续期失败", key, e);
+                        } else if (!Boolean.TRUE.equals(renewed)) {
+                            log.warn("lock [{}] 已不由当前线程持有，停止续期", key);
+                            this.stop();
+                        }
+                    });
+        }
+    }
+}
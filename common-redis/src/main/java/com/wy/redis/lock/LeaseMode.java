@@ -0,0 +1,27 @@
+package com.wy.redis.lock;
+
+/**
+ * @author wangyong
+ * @Classname LeaseMode
+ * @Description {@link Lockable} 的持锁时间方式
+ * @Date 2021/7/6 10:00
+ */
+public enum LeaseMode {
+
+    /**
+     * 开启 common.redis.lock.adaptive-lease.enabled 时为自适应，否则为固定
+     */
+    DEFAULT,
+
+    /**
+     * 固定使用 {@link Lockable#keeps()} 不续期
+     */
+    FIXED,
+
+    /**
+     * 按该方法近期的持锁时间百分位设置租期，持有期间后台续期
+     * 同样需要开启 common.redis.lock.adaptive-lease.enabled，未开启时没有统计组件，按固定处理
+     */
+    ADAPTIVE,
+    ;
+}
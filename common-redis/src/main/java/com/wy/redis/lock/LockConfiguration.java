@@ -0,0 +1,26 @@
+package com.wy.redis.lock;
+
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * @author wangyong
+ * @Classname LockConfiguration
+ * @Description 锁组件的共享bean {@link LockableAspect} 和 {@link RedisLockUtil} 共用
+ * @Date 2021/7/6 11:30
+ */
+@Configuration
+@EnableConfigurationProperties(LockProperties.class)
+public class LockConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = LockProperties.PREFIX + ".adaptive-lease", name = "enabled", havingValue = "true")
+    public AdaptiveLeases adaptiveLeases(RedissonClient redissonClient, LockProperties properties) {
+        return new AdaptiveLeases(redissonClient, properties.getAdaptiveLease());
+    }
+}
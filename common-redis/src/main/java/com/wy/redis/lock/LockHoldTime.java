@@ -0,0 +1,45 @@
+package com.wy.redis.lock;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * @author wangyong
+ * @Classname LockHoldTime
+ * @Description 单个加锁方法的持锁时间 供调整租期参考，单位毫秒
+ * @Date 2021/7/6 10:10
+ */
+@Data
+@AllArgsConstructor
+public class LockHoldTime {
+
+    /**
+     * 类名#方法名 或调用方指定的名称
+     */
+    private String name;
+
+    /**
+     * 累计次数
+     */
+    private long count;
+
+    /**
+     * 最近一个统计周期的p50
+     */
+    private long p50;
+
+    /**
+     * 最近一个统计周期的p99
+     */
+    private long p99;
+
+    /**
+     * 累计的最大值
+     */
+    private long max;
+
+    /**
+     * 当前的自适应租期 样本不足时为-1
+     */
+    private long lease;
+}
@@ -0,0 +1,369 @@
+package com.wy.redis.lock;
+
+import com.wy.exception.BaseException;
+import com.wy.exception.RedisLockException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.expression.PropertyAccessor;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelEvaluationException;
+import org.springframework.expression.spel.SpelMessage;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.ReflectivePropertyAccessor;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author wangyong
+ * @Classname LockKeyPlan
+ * @Description 单个 {@link Lockable} 方法的锁key计划，方法首次调用时构建，之后每次调用只做求值
+ * 参数下标预先解析，el表达式以IMMEDIATE模式编译为字节码，全部为常量时key只拼接一次
+ * 拼写规则与原来一致 每一段后追加分隔符
+ * @Date 2021/7/3 10:00
+ */
+@Slf4j
+public class LockKeyPlan {
+
+    /**
+     * 注解参数分隔符
+     */
+    private static final char SEPARATOR = ':';
+
+    /**
+     * spring el表达式开始字符
+     */
+    private static final String EL_START_CHAR = "#";
+
+    /**
+     * spring el表达式分割字符
+     */
+    private static final char EL_SPLIT_CHAR = '.';
+
+    private static final Integer COMMON_LOCK_CODE = 5098;
+
+    /**
+     * 动态段预估的长度 用于预分配拼接的容量
+     */
+    private static final int DYNAMIC_SEGMENT_LENGTH = 16;
+
+    /**
+     * 共享的属性访问器 ReflectivePropertyAccessor内部缓存了getter
+     */
+    private static final List<PropertyAccessor> PROPERTY_ACCESSORS =
+            Collections.singletonList(new ReflectivePropertyAccessor());
+
+    /**
+     * 每个线程复用一个上下文 求值前放入变量，求值后移除，避免每次调用创建上下文
+     */
+    private static final ThreadLocal<StandardEvaluationContext> CONTEXT = ThreadLocal.withInitial(() -> {
+        StandardEvaluationContext context = new StandardEvaluationContext();
+        context.setPropertyAccessors(PROPERTY_ACCESSORS);
+        return context;
+    });
+
+    /**
+     * 类名#方法名 用于统计持锁时间
+     */
+    private final String name;
+
+    private final Lockable lockable;
+
+    private final Segment[] segments;
+
+    /**
+     * 多key加锁时 {@link Lockable#keys()} 的每个元素
+     */
+    private final Segment[] keySegments;
+
+    /**
+     * 全部为常量时预先拼好的key
+     */
+    private final String constantKey;
+
+    /**
+     * 方法没有参数时原来的实现不生成key
+     */
+    private final boolean hasParameters;
+
+    private final int capacity;
+
+    public LockKeyPlan(Method method, Lockable lockable, String[] parameterNames) {
+        this.lockable = lockable;
+        this.name = method.getDeclaringClass().getName() + "#" + method.getName();
+        this.hasParameters = parameterNames != null && parameterNames.length > 0;
+        if (!hasParameters && lockable.keys().length == 0) {
+            this.segments = new Segment[0];
+            this.keySegments = new Segment[0];
+            this.constantKey = null;
+            this.capacity = 0;
+            return;
+        }
+        if (parameterNames == null) {
+            parameterNames = new String[0];
+        }
+        SpelExpressionParser parser = new SpelExpressionParser(
+                new SpelParserConfiguration(SpelCompilerMode.IMMEDIATE, method.getDeclaringClass().getClassLoader()));
+        String[] value = lockable.value();
+        this.segments = new Segment[value.length];
+        boolean constant = true;
+        int length = 0;
+        for (int i = 0; i < value.length; i++) {
+            segments[i] = this.compile(value[i], parameterNames, parser);
+            if (segments[i] instanceof LiteralSegment) {
+                length += ((LiteralSegment) segments[i]).value.length() + 1;
+            } else {
+                constant = false;
+                length += DYNAMIC_SEGMENT_LENGTH + 1;
+            }
+        }
+        this.capacity = length;
+        this.constantKey = constant ? this.build(null) : null;
+        String[] keys = lockable.keys();
+        this.keySegments = new Segment[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keySegments[i] = this.compile(keys[i], parameterNames, parser);
+        }
+    }
+
+    public Lockable getLockable() {
+        return lockable;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 生成锁key
+     *
+     * @param args 方法参数
+     * @return 锁key 方法没有参数时为空
+     */
+    public String key(Object[] args) {
+        if (!hasParameters || args == null || args.length == 0) {
+            return null;
+        }
+        if (constantKey != null) {
+            return constantKey;
+        }
+        return this.build(args);
+    }
+
+    /**
+     * @return 是否为多key加锁
+     */
+    public boolean isMultiKey() {
+        return keySegments.length > 0;
+    }
+
+    /**
+     * 生成多key加锁的全部key 集合或数组展开为多个key
+     *
+     * @param args 方法参数
+     * @return 带前缀的key 未排序
+     */
+    public List<String> keys(Object[] args) {
+        String prefix = constantKey != null ? constantKey : this.build(args);
+        List<String> keys = new ArrayList<>(keySegments.length * 2);
+        for (Segment segment : keySegments) {
+            Object value = segment.value(args);
+            if (value instanceof Collection) {
+                for (Object element : (Collection<?>) value) {
+                    keys.add(prefix + text(element));
+                }
+            } else if (value.getClass().isArray()) {
+                for (int i = 0; i < Array.getLength(value); i++) {
+                    keys.add(prefix + text(Array.get(value, i)));
+                }
+            } else {
+                keys.add(prefix + value);
+            }
+        }
+        return keys;
+    }
+
+    private static String text(Object element) {
+        if (element == null) {
+            throw RedisLockException.PARAM_LOCK_VALUE_CAN_NOT_NULL.get();
+        }
+        return element.toString();
+    }
+
+    private String build(Object[] args) {
+        StringBuilder builder = new StringBuilder(capacity);
+        for (Segment segment : segments) {
+            builder.append(segment.resolve(args)).append(SEPARATOR);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 非#开头的作为常量，#参数名 直接按下标取参数，其余的编译为spring el表达式
+     */
+    private Segment compile(String value, String[] parameterNames, SpelExpressionParser parser) {
+        if (StringUtils.isEmpty(value)) {
+            throw RedisLockException.PLEASE_FILL_IN_VALID_KEY.get();
+        }
+        if (!value.startsWith(EL_START_CHAR)) {
+            return new LiteralSegment(value);
+        }
+        int index = value.indexOf(EL_SPLIT_CHAR);
+        String variableName = index == -1 ? value.substring(1) : value.substring(1, index);
+        int parameterIndex = -1;
+        for (int i = 0; i < parameterNames.length; i++) {
+            if (parameterNames[i].equals(variableName)) {
+                parameterIndex = i;
+                break;
+            }
+        }
+        if (parameterIndex == -1) {
+            throw RedisLockException.SPRING_EL_CAN_MATCHING_PARAM.get();
+        }
+        if (index == -1) {
+            return new ParameterSegment(parameterIndex);
+        }
+        return new ExpressionSegment(value, variableName, parameterIndex, (SpelExpression) parser.parseExpression(value));
+    }
+
+    private static Object argument(Object[] args, int index) {
+        Object arg = args[index];
+        if (arg == null) {
+            throw RedisLockException.PARAM_LOCK_VALUE_CAN_NOT_NULL.get();
+        }
+        return arg;
+    }
+
+    /**
+     * 锁key中的一段
+     */
+    private interface Segment {
+
+        /**
+         * 解析值
+         *
+         * @param args 方法参数 预拼常量key时为空
+         * @return 值
+         */
+        String resolve(Object[] args);
+
+        /**
+         * 解析原始值 多key加锁时用于展开集合
+         *
+         * @param args 方法参数
+         * @return 值 不为空
+         */
+        Object value(Object[] args);
+    }
+
+    private static class LiteralSegment implements Segment {
+
+        private final String value;
+
+        private LiteralSegment(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String resolve(Object[] args) {
+            return value;
+        }
+
+        @Override
+        public Object value(Object[] args) {
+            return value;
+        }
+    }
+
+    private static class ParameterSegment implements Segment {
+
+        private final int index;
+
+        private ParameterSegment(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String resolve(Object[] args) {
+            return argument(args, index).toString();
+        }
+
+        @Override
+        public Object value(Object[] args) {
+            return argument(args, index);
+        }
+    }
+
+    private static class ExpressionSegment implements Segment {
+
+        private final String source;
+
+        private final String variableName;
+
+        private final int index;
+
+        private final SpelExpression expression;
+
+        private ExpressionSegment(String source, String variableName, int index, SpelExpression expression) {
+            this.source = source;
+            this.variableName = variableName;
+            this.index = index;
+            this.expression = expression;
+        }
+
+        @Override
+        public String resolve(Object[] args) {
+            Object value = this.resolveValue(args);
+            //与原来的实现一致 表达式结果为空时使用表达式本身
+            return value == null ? source : value.toString();
+        }
+
+        @Override
+        public Object value(Object[] args) {
+            Object value = this.resolveValue(args);
+            if (value == null) {
+                throw RedisLockException.PARAM_LOCK_VALUE_CAN_NOT_NULL.get();
+            }
+            return value;
+        }
+
+        private Object resolveValue(Object[] args) {
+            Object arg = argument(args, index);
+            if (log.isDebugEnabled()) {
+                log.debug("spring el,el:{},arg:{},variableName:{},argIndex:{}", source, arg, variableName, index);
+            }
+            StandardEvaluationContext context = CONTEXT.get();
+            context.setVariable(variableName, arg);
+            try {
+                return this.evaluate(context);
+            } catch (SpelEvaluationException ex) {
+                log.error("spring el evaluate fail,el:{}", source, ex);
+                throw BaseException.definedException(COMMON_LOCK_CODE, ex.getMessage());
+            } finally {
+                context.setVariable(variableName, null);
+            }
+        }
+
+        /**
+         * 参数类型变化时编译后的字节码无法执行 退回解释执行，之后再次编译
+         */
+        private Object evaluate(StandardEvaluationContext context) {
+            try {
+                return expression.getValue(context);
+            } catch (SpelEvaluationException ex) {
+                if (ex.getMessageCode() != SpelMessage.EXCEPTION_RUNNING_COMPILED_EXPRESSION) {
+                    throw ex;
+                }
+                expression.revertToInterpreted();
+                return expression.getValue(context);
+            }
+        }
+    }
+}
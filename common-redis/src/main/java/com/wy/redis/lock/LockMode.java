@@ -0,0 +1,26 @@
+package com.wy.redis.lock;
+
+/**
+ * @author wangyong
+ * @Classname LockMode
+ * @Description {@link Lockable} 的加锁方式
+ * @Date 2021/7/5 10:00
+ */
+public enum LockMode {
+
+    /**
+     * 互斥锁 {@link org.redisson.api.RLock}
+     */
+    EXCLUSIVE,
+
+    /**
+     * 读锁 同一key的读锁之间可以并行，与写锁互斥 {@link org.redisson.api.RReadWriteLock#readLock()}
+     */
+    READ,
+
+    /**
+     * 写锁 与同一key的读锁和写锁都互斥 {@link org.redisson.api.RReadWriteLock#writeLock()}
+     */
+    WRITE,
+    ;
+}
@@ -0,0 +1,89 @@
+package com.wy.redis.lock;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * @author wangyong
+ * @Classname LockProperties
+ * @Description {@link Lockable} 的配置
+ * @Date 2021/7/3 14:40
+ */
+@Data
+@ConfigurationProperties(prefix = LockProperties.PREFIX)
+public class LockProperties {
+
+    public static final String PREFIX = "common.redis.lock";
+
+    private TwoTier twoTier = new TwoTier();
+
+    private MultiKey multiKey = new MultiKey();
+
+    private AdaptiveLease adaptiveLease = new AdaptiveLease();
+
+    @Data
+    public static class TwoTier {
+
+        /**
+         * 是否对全部key开启本地锁加redis锁的两级锁 未开启时只有热点key使用，使用自适应租期的方法除外
+         */
+        private boolean enabled = false;
+
+        /**
+         * redis锁剩余租期不少于 持锁时间*该比例 时才交接给本地的下一个线程
+         */
+        private double handoverRatio = 0.5;
+    }
+
+    @Data
+    public static class AdaptiveLease {
+
+        /**
+         * 是否开启自适应租期 开启后才创建 {@link AdaptiveLeases}，{@link LeaseMode#DEFAULT} 的方法同样使用自适应租期
+         * 不能与 two-tier.enabled 同时开启，两级锁不续期，启动时报错
+         * 各加锁方法的持锁时间百分位和当前租期注册为micrometer的gauge common.redis.lock.hold
+         */
+        private boolean enabled = false;
+
+        /**
+         * 按持锁时间的该百分位计算租期
+         */
+        private double percentile = 99.0;
+
+        /**
+         * 租期 = 百分位 * 该倍数
+         */
+        private double multiplier = 2.0;
+
+        private Duration minLease = Duration.ofSeconds(1L);
+
+        private Duration maxLease = Duration.ofSeconds(60L);
+
+        /**
+         * 一个统计周期内的样本数不少于该值时才更新租期 之前使用 {@link Lockable#keeps()}
+         */
+        private int minSamples = 20;
+
+        /**
+         * 统计周期
+         */
+        private Duration refreshInterval = Duration.ofSeconds(30L);
+
+        /**
+         * 续期的上限 持有者卡住时最多阻塞其他节点这么久
+         */
+        private Duration maxHold = Duration.ofMinutes(10L);
+    }
+
+    @Data
+    public static class MultiKey {
+
+        /**
+         * 多key加锁默认的hash tag 为空时集群模式下使用 {@link org.redisson.RedissonMultiLock}
+         * 设置后多key锁的名称变为 {hashTag}key，单key锁不受该配置影响，锁同一资源时需要使用 {@link MultiKeyLocks#lockName}
+         */
+        private String hashTag = "";
+    }
+}
@@ -36,4 +36,33 @@ public @interface Lockable {
      */
     String message() default "Lock failed.";
 
+    /**
+     * 加锁方式 默认互斥
+     * 读写锁的key与互斥锁的key不要混用，两级锁和多key加锁只支持互斥锁
+     */
+    LockMode mode() default LockMode.EXCLUSIVE;
+
+    /**
+     * 持锁时间方式 自适应时 {@link #keeps()} 只在样本不足时使用
+     * 只对单key的互斥锁生效，显式指定 {@link LeaseMode#ADAPTIVE} 时与多key、读写锁或开启两级锁同时使用会在首次调用时报错
+     * 开启热点探测时被识别为热点的key不再转为两级锁，仍使用自适应租期和续期
+     * 需要开启 common.redis.lock.adaptive-lease.enabled，未开启时按 {@link LeaseMode#FIXED} 处理
+     */
+    LeaseMode lease() default LeaseMode.DEFAULT;
+
+    /**
+     * 多key加锁 每个元素为常量、#参数名或el表达式，结果为集合或数组时展开为多个key
+     * 完整名称为 value拼出的前缀 + key，不为空时排序去重后一次性全部加锁
+     * 多key加锁没有看门狗续期 {@link #keeps()} 必须大于0
+     */
+    String[] keys() default {};
+
+    /**
+     * 多key加锁时的hash tag 为空时使用 common.redis.lock.multi-key.hash-tag
+     * 集群模式下指定后全部key落在同一个slot，可以用一次脚本加锁
+     * 实际加锁的名称为 {hashTag}key，单key加锁不会添加hash tag，与多key锁同一资源时单key的名称需要写成
+     * {@link MultiKeyLocks#lockName} 的结果，否则两者锁的是不同的key，互不排斥
+     */
+    String hashTag() default "";
+
 }
@@ -1,9 +1,8 @@
 package com.wy.redis.lock;
 
 import com.wy.exception.BaseException;
-import com.wy.exception.RedisLockException;
+import com.wy.redis.hotkey.HotKeyDetector;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang.StringUtils;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
@@ -15,20 +14,17 @@ import org.redisson.api.RedissonClient;
 import org.redisson.client.RedisException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.expression.EvaluationContext;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.spel.SpelEvaluationException;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
-import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.session.data.redis.config.ConfigureRedisAction;
 
+import javax.annotation.PostConstruct;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -41,30 +37,39 @@ import java.util.concurrent.TimeUnit;
 @Configuration
 @ComponentScan(value = "org.redisson")
 @ConditionalOnClass(value = {ConfigureRedisAction.class, Redisson.class})
+@EnableConfigurationProperties(LockProperties.class)
 @Aspect
 public class LockableAspect {
 
-    /**
-     * 注解参数分隔符
-     */
-    private static final String SEPARATOR = ":";
+    private static final Integer COMMON_LOCK_CODE = 5098;
 
-    /**
-     * spring el表达式开始字符
-     */
-    private static final String EL_START_CHAR = "#";
+    private static final Integer COMMON_LOCK_TIME_OUT_CODE = 5099;
+
+    private static final Integer COMMON_LOCK_CONFIG_CODE = 5097;
+
+    @Autowired
+    private RedissonClient redisson;
+
+    @Autowired
+    private LockProperties lockProperties;
 
     /**
-     * spring el表达式分割字符
+     * 开启热点探测时注入 热点key使用两级锁
      */
-    private static final String EL_SPLIT_CHAR = ".";
+    @Autowired(required = false)
+    private HotKeyDetector hotKeyDetector;
 
-    private static final Integer COMMON_LOCK_CODE = 5098;
+    private TwoTierLocks twoTierLocks;
 
-    private static final Integer COMMON_LOCK_TIME_OUT_CODE = 5099;
+    private MultiKeyLocks multiKeyLocks;
 
-    @Autowired
-    private RedissonClient redisson;
+    @Autowired(required = false)
+    private AdaptiveLeases adaptiveLeases;
+
+    /**
+     * 锁key计划缓存
+     */
+    private final ConcurrentMap<Method, LockKeyPlan> plans = new ConcurrentHashMap<>(64);
 
     /**
      * 获取注解类型
@@ -86,6 +91,16 @@ public class LockableAspect {
         return null;
     }
 
+    @PostConstruct
+    public void init() {
+        //两级锁的redis锁在本地线程之间交接 不按线程续期，全部key使用两级锁时自适应租期不会生效
+        if (adaptiveLeases != null && lockProperties.getTwoTier().isEnabled()) {
+            throw BaseException.definedException(COMMON_LOCK_CONFIG_CODE, "自适应租期不能与全局两级锁同时开启");
+        }
+        this.twoTierLocks = new TwoTierLocks(redisson, lockProperties.getTwoTier().getHandoverRatio());
+        this.multiKeyLocks = new MultiKeyLocks(redisson, lockProperties.getMultiKey().getHashTag());
+    }
+
     @Bean(value = "configureRedisAction")
     public ConfigureRedisAction configureRedisAction() {
         return ConfigureRedisAction.NO_OP;
@@ -109,16 +124,44 @@ public class LockableAspect {
     public Object around(ProceedingJoinPoint point) throws Throwable {
         MethodSignature methodSignature = (MethodSignature) point.getSignature();
         Method method = methodSignature.getMethod();
-        Lockable lockable = method.getAnnotation(Lockable.class);
+        LockKeyPlan plan = this.plan(methodSignature);
+        Lockable lockable = plan.getLockable();
         boolean lockStatus = false;
         RLock lock = null;
+        TwoTierLocks.Holder holder = null;
+        MultiKeyLocks.Acquired acquired = null;
+        AdaptiveLeases.Renewal renewal = null;
         try {
-            String key = this.getLockKey(point, lockable);
-            log.info("####redis lock key:{}", key);
-            lock = this.redisson.getLock(key);
-            lockStatus = lock.tryLock(lockable.timeout(), lockable.keeps(), TimeUnit.MILLISECONDS);
+            //多key加锁 排序后一次性全部获得
+            if (plan.isMultiKey()) {
+                acquired = multiKeyLocks.tryLock(plan.keys(point.getArgs()), lockable.hashTag(), lockable.timeout(), lockable.keeps());
+                if (acquired != null) {
+                    log.debug("####redis multi lock keys:{}", acquired.getNames());
+                    return this.proceed(point, plan, false);
+                }
+                throw BaseException.definedException(COMMON_LOCK_CODE, lockable.message());
+            }
+            String key = plan.key(point.getArgs());
+            log.debug("####redis lock key:{}", key);
+            boolean hot = hotKeyDetector != null && key != null && hotKeyDetector.record(HotKeyDetector.SCOPE_LOCK, key);
+            //自适应租期 按近期的持锁时间设置，执行时间更长时后台续期
+            boolean adaptive = adaptiveLeases != null && lockable.mode() == LockMode.EXCLUSIVE && adaptiveLeases.isAdaptive(lockable.lease());
+            //两级锁 同一jvm内只有本地的胜出者访问redis，两级锁不续期，自适应租期的热点key仍使用单独的redis锁
+            if (key != null && lockable.mode() == LockMode.EXCLUSIVE && ((hot && !adaptive) || lockProperties.getTwoTier().isEnabled())) {
+                holder = twoTierLocks.tryLock(key, lockable.timeout(), lockable.keeps());
+                if (holder != null) {
+                    return this.proceed(point, plan, false);
+                }
+                throw BaseException.definedException(COMMON_LOCK_CODE, lockable.message());
+            }
+            lock = lockOf(this.redisson, key, lockable.mode());
+            long leaseTime = adaptive ? adaptiveLeases.leaseTime(plan.getName(), lockable.keeps()) : lockable.keeps();
+            lockStatus = lock.tryLock(lockable.timeout(), leaseTime, TimeUnit.MILLISECONDS);
             if (lockStatus) {
-                return point.proceed();
+                if (adaptive) {
+                    renewal = adaptiveLeases.renew(lock, leaseTime);
+                }
+                return this.proceed(point, plan, adaptive);
             }
             throw BaseException.definedException(COMMON_LOCK_CODE, lockable.message());
         } catch (BaseException ex) {
@@ -128,9 +171,56 @@ public class LockableAspect {
             log.error(message,e);
             throw BaseException.definedException(COMMON_LOCK_TIME_OUT_CODE, lockable.message());
         } finally {
+            if (renewal != null) {
+                renewal.stop();
+            }
             if (lockStatus == Boolean.TRUE && lock != null) {
                 this.unlock(lock);
             }
+            if (holder != null) {
+                twoTierLocks.unlock(holder);
+            }
+            if (acquired != null) {
+                this.unlock(acquired);
+            }
+        }
+    }
+
+    /**
+     * 执行方法 使用自适应租期时记录持锁时间
+     */
+    private Object proceed(ProceedingJoinPoint point, LockKeyPlan plan, boolean adaptive) throws Throwable {
+        if (!adaptive) {
+            return point.proceed();
+        }
+        long start = System.nanoTime();
+        try {
+            return point.proceed();
+        } finally {
+            adaptiveLeases.record(plan.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * 按加锁方式获取锁 读写锁的读锁之间不互斥
+     */
+    static RLock lockOf(RedissonClient redisson, String key, LockMode mode) {
+        switch (mode) {
+            case READ:
+                return redisson.getReadWriteLock(key).readLock();
+            case WRITE:
+                return redisson.getReadWriteLock(key).writeLock();
+            default:
+                return redisson.getLock(key);
+        }
+    }
+
+    private void unlock(MultiKeyLocks.Acquired acquired) {
+        try {
+            multiKeyLocks.unlock(acquired);
+        } catch (RedisException | IllegalMonitorStateException ex) {
+            String message = String.format("unlock fail and keys %s", acquired.getNames());
+            log.error(message,ex);
         }
     }
 
@@ -144,83 +234,34 @@ public class LockableAspect {
     }
 
     /**
-     * 获取包括方法参数上的key
-     * redis key的拼写规则为 "DistLock+" + lockKey + @DistLockKey<br/>
-     *
-     * @param point
-     * @param lockable
-     * @return
+     * 获取方法对应的锁key计划 每个方法只解析一次注解和el表达式
      */
-    private String getLockKey(ProceedingJoinPoint point, Lockable lockable) {
-        String name = null;
-        StringBuffer keyBuffer = new StringBuffer();
-        Object[] args = point.getArgs();
-        if (args != null && args.length > 0) {
-            MethodSignature methodSignature = (MethodSignature) point.getSignature();
-            String[] parameterNames = methodSignature.getParameterNames();
-            String[] value = lockable.value();
-            EvaluationContext context = new StandardEvaluationContext();
-            ExpressionParser parser = new SpelExpressionParser();
-            for (String key : value) {
-                Optional.ofNullable(key)
-                        .filter(StringUtils::isNotEmpty)
-                        .orElseThrow(RedisLockException.PLEASE_FILL_IN_VALID_KEY.get());
-                key = Optional.of(key)
-                        .filter(el -> el.startsWith(EL_START_CHAR))
-                        .map(el -> {
-                            int index = el.indexOf(EL_SPLIT_CHAR);
-                            if (index == -1) {
-                                String variableName = el.substring(1);
-                                Integer ind = this.matching(parameterNames, variableName);
-                                Optional.ofNullable(ind)
-                                        .filter(Objects::nonNull)
-                                        .orElseThrow(RedisLockException.SPRING_EL_CAN_MATCHING_PARAM.get());
-                                Object arg = args[ind];
-                                Optional.ofNullable(arg)
-                                        .filter(Objects::nonNull)
-                                        .orElseThrow(RedisLockException.PARAM_LOCK_VALUE_CAN_NOT_NULL.get());
-                                return arg.toString();
-                            }
-                            String variableName = el.substring(1, index);
-                            Integer ind = this.matching(parameterNames, variableName);
-                            Optional.ofNullable(ind)
-                                    .filter(Objects::nonNull)
-                                    .orElseThrow(RedisLockException.SPRING_EL_CAN_MATCHING_PARAM.get());
-                            Object arg = args[ind];
-                            Optional.ofNullable(arg)
-                                    .filter(Objects::nonNull)
-                                    .orElseThrow(RedisLockException.PARAM_LOCK_VALUE_CAN_NOT_NULL.get());
-                            context.setVariable(variableName, arg);
-                            try {
-                                log.info("spring el,el:{},arg:{},variableName:{},argIndex:{}", el, arg.toString(), variableName, ind);
-                                return parser.parseExpression(el).getValue(context, Object.class);
-                            } catch (SpelEvaluationException ex) {
-                                ex.printStackTrace();
-                                throw BaseException.definedException(COMMON_LOCK_CODE, ex.getMessage());
-                            }
-                        })
-                        .map(Object::toString)
-                        .orElse(key);
-                keyBuffer.append(key).append(SEPARATOR);
-            }
-            name = keyBuffer.toString();
+    private LockKeyPlan plan(MethodSignature methodSignature) {
+        Method method = methodSignature.getMethod();
+        LockKeyPlan plan = plans.get(method);
+        if (plan != null) {
+            return plan;
         }
-        return name;
+        return plans.computeIfAbsent(method, m -> {
+            Lockable lockable = m.getAnnotation(Lockable.class);
+            this.checkLease(m, lockable);
+            return new LockKeyPlan(m, lockable, methodSignature.getParameterNames());
+        });
     }
 
     /**
-     * @param parameterNames
-     * @param el
-     * @return 参数名与el表达式匹配
+     * 显式指定自适应租期时 加锁方式需要支持续期，否则直接报错而不是静默使用keeps
      */
-    private Integer matching(String[] parameterNames, String el) {
-        for (int i = 0; i < parameterNames.length; i++) {
-            String parameterName = parameterNames[i];
-            if (parameterName.equals(el)) {
-                return i;
-            }
+    private void checkLease(Method method, Lockable lockable) {
+        if (lockable.lease() != LeaseMode.ADAPTIVE) {
+            return;
+        }
+        boolean supported = lockable.keys().length == 0 && lockable.mode() == LockMode.EXCLUSIVE
+                && !lockProperties.getTwoTier().isEnabled();
+        if (!supported) {
+            throw BaseException.definedException(COMMON_LOCK_CONFIG_CODE,
+                    String.format("方法 %s 的自适应租期只支持单key互斥锁，不能与多key、读写锁或两级锁一起使用", method.getName()));
         }
-        return null;
     }
 
 }
@@ -0,0 +1,226 @@
+package com.wy.redis.lock;
+
+import com.wy.exception.AssertEx;
+import com.wy.exception.BaseException;
+import com.wy.exception.RedisLockException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+import org.redisson.Redisson;
+import org.redisson.RedissonMultiLock;
+import org.redisson.api.RLock;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.LongCodec;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author wangyong
+ * @Classname MultiKeyLocks
+ * @Description 多key加锁 key排序去重后一次性全部获得或全部不获得，不需要嵌套加锁，也不会因加锁顺序不同而死锁
+ * 单机、哨兵模式或指定了hash tag时用一次lua脚本完成，锁的格式与redisson的RLock一致(hash 字段为 客户端id:线程id)，可以与单key的锁互斥和重入
+ * 集群模式下没有hash tag的key不在同一个slot，退回 {@link RedissonMultiLock} 逐个获取
+ * hash tag会改变key的名称 同一资源的单key加锁需要通过 {@link #lockName} 使用相同的名称，否则两者互不排斥
+ * @Date 2021/7/4 10:00
+ */
+@Slf4j
+public class MultiKeyLocks {
+
+    /**
+     * 任意一个key被其他持有者占用时返回它的剩余时间 否则全部加锁
+     */
+    private static final String LOCK_SCRIPT =
+            "for i, key in ipairs(KEYS) do " +
+                    "if (redis.call('exists', key) == 1) and (redis.call('hexists', key, ARGV[2]) == 0) then " +
+                    "return redis.call('pttl', key); " +
+                    "end; " +
+                    "end; " +
+                    "for i, key in ipairs(KEYS) do " +
+                    "redis.call('hincrby', key, ARGV[2], 1); " +
+                    "redis.call('pexpire', key, ARGV[1]); " +
+                    "end; " +
+                    "return nil;";
+
+    /**
+     * 与redisson解锁一致 重入次数减到0时删除并通知等待者
+     */
+    private static final String UNLOCK_SCRIPT =
+            "local released = 0; " +
+                    "for i, key in ipairs(KEYS) do " +
+                    "if (redis.call('hexists', key, ARGV[1]) == 1) then " +
+                    "local counter = redis.call('hincrby', key, ARGV[1], -1); " +
+                    "if (counter > 0) then " +
+                    "redis.call('pexpire', key, ARGV[2]); " +
+                    "else " +
+                    "redis.call('del', key); " +
+                    "redis.call('publish', ARGV[3 + i], ARGV[3]); " +
+                    "released = released + 1; " +
+                    "end; " +
+                    "end; " +
+                    "end; " +
+                    "return released;";
+
+    /**
+     * redisson锁的通知频道前缀和解锁消息
+     */
+    private static final String CHANNEL_PREFIX = "redisson_lock__channel";
+
+    private static final long UNLOCK_MESSAGE = 0L;
+
+    /**
+     * 被占用时的最长重试间隔 毫秒
+     */
+    private static final long RETRY_INTERVAL = 50L;
+
+    private final RedissonClient redisson;
+
+    private final String defaultHashTag;
+
+    private final boolean cluster;
+
+    /**
+     * 与redisson锁字段一致的客户端id
+     */
+    private final String clientId;
+
+    /**
+     * @param redisson       客户端
+     * @param defaultHashTag 默认的hash tag 为空时不使用
+     */
+    public MultiKeyLocks(RedissonClient redisson, String defaultHashTag) {
+        this.redisson = redisson;
+        this.defaultHashTag = defaultHashTag;
+        this.cluster = redisson.getConfig().isClusterConfig();
+        this.clientId = redisson instanceof Redisson
+                ? ((Redisson) redisson).getConnectionManager().getId().toString() : UUID.randomUUID().toString();
+    }
+
+    /**
+     * 全部加锁
+     *
+     * @param keys      锁key 顺序和重复不影响结果
+     * @param hashTag   hash tag 为空时使用默认值
+     * @param waitTime  等待时间 毫秒
+     * @param leaseTime 持锁时间 毫秒，必须大于0，lua脚本加锁没有redisson的看门狗续期
+     * @return 获得的锁 超时返回null
+     * @throws InterruptedException 等待时被中断
+     */
+    public Acquired tryLock(Collection<String> keys, String hashTag, long waitTime, long leaseTime) throws InterruptedException {
+        //-1在redisson中表示看门狗续期 直接用于pexpire会使key立即过期
+        AssertEx.isTrue(leaseTime > 0, BaseException.definedException(7879, "多key加锁不支持看门狗续期，持锁时间需要大于0"));
+        List<String> names = this.names(keys, StringUtils.isEmpty(hashTag) ? defaultHashTag : hashTag);
+        long threadId = Thread.currentThread().getId();
+        if (cluster && StringUtils.isEmpty(hashTag) && StringUtils.isEmpty(defaultHashTag)) {
+            RLock[] locks = new RLock[names.size()];
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = redisson.getLock(names.get(i));
+            }
+            RedissonMultiLock multiLock = new RedissonMultiLock(locks);
+            if (!multiLock.tryLock(waitTime, leaseTime, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+            return new Acquired(names, leaseTime, threadId, multiLock);
+        }
+        String field = clientId + ":" + threadId;
+        List<Object> lockKeys = new ArrayList<>(names);
+        long deadline = System.currentTimeMillis() + waitTime;
+        while (true) {
+            Long ttl = redisson.getScript(LongCodec.INSTANCE).eval(names.get(0), RScript.Mode.READ_WRITE, LOCK_SCRIPT,
+                    RScript.ReturnType.INTEGER, lockKeys, leaseTime, field);
+            if (ttl == null) {
+                return new Acquired(names, leaseTime, threadId, null);
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(remaining, ttl < 0 ? RETRY_INTERVAL : Math.min(ttl, RETRY_INTERVAL)));
+        }
+    }
+
+    /**
+     * 全部解锁 需要在加锁的线程中调用
+     *
+     * @param acquired {@link #tryLock} 返回的锁
+     */
+    public void unlock(Acquired acquired) {
+        if (acquired.multiLock != null) {
+            acquired.multiLock.unlock();
+            return;
+        }
+        List<Object> args = new ArrayList<>(acquired.names.size() + 3);
+        args.add(clientId + ":" + acquired.threadId);
+        args.add(acquired.leaseTime);
+        args.add(UNLOCK_MESSAGE);
+        for (String name : acquired.names) {
+            args.add(name.contains("{") ? CHANNEL_PREFIX + ":" + name : CHANNEL_PREFIX + ":{" + name + "}");
+        }
+        Long released = redisson.getScript(LongCodec.INSTANCE).eval(acquired.names.get(0), RScript.Mode.READ_WRITE, UNLOCK_SCRIPT,
+                RScript.ReturnType.INTEGER, new ArrayList<>(acquired.names), args.toArray());
+        if (released == null || released < acquired.names.size()) {
+            log.debug("multi lock {} 部分key仍被重入持有或已过期，释放数 {}", acquired.names, released);
+        }
+    }
+
+    /**
+     * 去重并按字典序排序 指定hash tag时全部key落在同一个slot
+     */
+    private List<String> names(Collection<String> keys, String hashTag) {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String key : keys) {
+            if (StringUtils.isEmpty(key)) {
+                throw RedisLockException.PLEASE_FILL_IN_VALID_KEY.get();
+            }
+            sorted.add(lockName(key, hashTag));
+        }
+        if (sorted.isEmpty()) {
+            throw RedisLockException.PLEASE_FILL_IN_VALID_KEY.get();
+        }
+        return Collections.unmodifiableList(new ArrayList<>(sorted));
+    }
+
+    /**
+     * 多key加锁实际使用的名称 单key的 {@link Lockable} 或 {@link RedisLockUtil} 锁同一资源时需要使用该名称才能互斥
+     *
+     * @param key     锁key
+     * @param hashTag hash tag 为空时不变
+     * @return {hashTag}key
+     */
+    public static String lockName(String key, String hashTag) {
+        return StringUtils.isEmpty(hashTag) ? key : "{" + hashTag + "}" + key;
+    }
+
+    /**
+     * 已获得的一组锁
+     */
+    public static final class Acquired {
+
+        private final List<String> names;
+
+        private final long leaseTime;
+
+        private final long threadId;
+
+        private final RedissonMultiLock multiLock;
+
+        private Acquired(List<String> names, long leaseTime, long threadId, RedissonMultiLock multiLock) {
+            this.names = names;
+            this.leaseTime = leaseTime;
+            this.threadId = threadId;
+            this.multiLock = multiLock;
+        }
+
+        /**
+         * @return 实际加锁的key 排序后，包含hash tag
+         */
+        public List<String> getNames() {
+            return names;
+        }
+    }
+}
@@ -10,6 +10,8 @@ import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -26,6 +28,20 @@ public class RedisLockUtil {
     @Autowired
     private RedissonClient redisson;
 
+    @Autowired(required = false)
+    private LockProperties lockProperties;
+
+    private MultiKeyLocks multiKeyLocks;
+
+    @Autowired(required = false)
+    private AdaptiveLeases adaptiveLeases;
+
+    @PostConstruct
+    public void init() {
+        String hashTag = lockProperties == null ? "" : lockProperties.getMultiKey().getHashTag();
+        this.multiKeyLocks = new MultiKeyLocks(redisson, hashTag);
+    }
+
     /**
      *
      * 根据自定义key进行加锁 并返回当前锁对象
@@ -53,6 +69,124 @@ public class RedisLockUtil {
         return lock;
     }
 
+    /**
+     * 根据自定义key加读锁 同一key的读锁之间可以并行，与写锁互斥
+     *
+     * @param lockKey 加锁的key值
+     * @param waitTime 未获得锁对象等待的最大时间 建议设置为 0
+     * @param leaseTime 持有锁的时间
+     * @param unit 单位
+     * @param errorType 加锁失败返回的枚举值
+     * @return 读锁 通过 {@link #tryUnLock(RLock)} 释放
+     */
+    public RLock tryReadLock(String lockKey, long waitTime, long leaseTime, TimeUnit unit, IErrorType errorType) {
+        AssertEx.isTrue(StringUtils.isNotEmpty(lockKey), BaseException.definedException(7877,"加锁的key不能为空"));
+        return this.tryLock(redisson.getReadWriteLock(lockKey).readLock(), waitTime, leaseTime, unit, errorType);
+    }
+
+    /**
+     * 根据自定义key加写锁 与同一key的读锁和写锁都互斥
+     *
+     * @param lockKey 加锁的key值
+     * @param waitTime 未获得锁对象等待的最大时间 建议设置为 0
+     * @param leaseTime 持有锁的时间
+     * @param unit 单位
+     * @param errorType 加锁失败返回的枚举值
+     * @return 写锁 通过 {@link #tryUnLock(RLock)} 释放
+     */
+    public RLock tryWriteLock(String lockKey, long waitTime, long leaseTime, TimeUnit unit, IErrorType errorType) {
+        AssertEx.isTrue(StringUtils.isNotEmpty(lockKey), BaseException.definedException(7877,"加锁的key不能为空"));
+        return this.tryLock(redisson.getReadWriteLock(lockKey).writeLock(), waitTime, leaseTime, unit, errorType);
+    }
+
+    private RLock tryLock(RLock lock, long waitTime, long leaseTime, TimeUnit unit, IErrorType errorType) {
+        log.info("start try lock and lock key {},waitTime {},leaseTime {}",lock.getName(),waitTime,leaseTime);
+        try {
+            boolean result = lock.tryLock(waitTime, leaseTime, unit);
+            AssertEx.isTrue(result,errorType.get());
+        }catch (Exception e){
+            //抛出自定义异常
+            log.error("lock fail ",e);
+            throw errorType.get();
+        }
+        return lock;
+    }
+
+    /**
+     * 多个key一次性全部加锁 key排序去重，不需要嵌套加锁
+     *
+     * @param lockKeys 加锁的key值
+     * @param hashTag 集群模式下使全部key落在同一个slot的hash tag 为空时使用全局配置
+     * @param waitTime 未获得锁对象等待的最大时间 建议设置为 0
+     * @param leaseTime 持有锁的时间 必须大于0，不支持-1的看门狗续期
+     * @param unit 单位
+     * @param errorType 加锁失败返回的枚举值
+     * @return 获得的锁 通过 {@link #tryUnLock(MultiKeyLocks.Acquired)} 释放
+     */
+    public MultiKeyLocks.Acquired tryLock(Collection<String> lockKeys, String hashTag, long waitTime, long leaseTime, TimeUnit unit, IErrorType errorType) {
+        AssertEx.isTrue(lockKeys != null && !lockKeys.isEmpty(), BaseException.definedException(7877,"加锁的key不能为空"));
+        AssertEx.isTrue(leaseTime > 0, BaseException.definedException(7879,"多key加锁不支持看门狗续期，持锁时间需要大于0"));
+        log.info("start try lock and lock keys {},waitTime {},leaseTime {}",lockKeys,waitTime,leaseTime);
+        MultiKeyLocks.Acquired acquired;
+        try {
+            acquired = multiKeyLocks.tryLock(lockKeys, hashTag, unit.toMillis(waitTime), unit.toMillis(leaseTime));
+        }catch (Exception e){
+            //抛出自定义异常
+            log.error("lock fail ",e);
+            throw errorType.get();
+        }
+        AssertEx.isTrue(acquired != null,errorType.get());
+        return acquired;
+    }
+
+    /**
+     * 释放多key锁
+     *
+     * @param acquired 锁对象
+     */
+    public void tryUnLock(MultiKeyLocks.Acquired acquired){
+        if(acquired != null){
+            try {
+                multiKeyLocks.unlock(acquired);
+            }catch (Exception e){
+                String message = String.format("un lock fail and lock keys %s . error detail message  ", acquired.getNames());
+                log.error(message,e);
+            }
+        }
+    }
+
+    /**
+     * 自适应租期加锁 租期按name近期的持锁时间设置，持有期间后台续期
+     *
+     * @param name 统计持锁时间的名称 同一类业务使用同一个名称，不要使用每次不同的key
+     * @param lockKey 加锁的key值
+     * @param waitTime 未获得锁对象等待的最大时间 建议设置为 0
+     * @param fallbackLeaseTime 样本不足时的持锁时间
+     * @param unit 单位
+     * @param errorType 加锁失败返回的枚举值
+     * @return 获得的锁 通过 {@link #tryUnLock(AdaptiveLock)} 释放
+     */
+    public AdaptiveLock tryLockAdaptive(String name, String lockKey, long waitTime, long fallbackLeaseTime, TimeUnit unit, IErrorType errorType) {
+        AssertEx.isTrue(StringUtils.isNotEmpty(lockKey), BaseException.definedException(7877,"加锁的key不能为空"));
+        AssertEx.isTrue(adaptiveLeases != null, BaseException.definedException(7878,"未配置自适应租期"));
+        long leaseTime = adaptiveLeases.leaseTime(name, unit.toMillis(fallbackLeaseTime));
+        RLock lock = this.tryLock(redisson.getLock(lockKey), unit.toMillis(waitTime), leaseTime, TimeUnit.MILLISECONDS, errorType);
+        return new AdaptiveLock(name, lock, adaptiveLeases.renew(lock, leaseTime));
+    }
+
+    /**
+     * 释放自适应租期的锁 并记录持锁时间
+     *
+     * @param adaptiveLock 锁对象
+     */
+    public void tryUnLock(AdaptiveLock adaptiveLock){
+        if(adaptiveLock != null){
+            adaptiveLock.renewal.stop();
+            adaptiveLeases.record(adaptiveLock.name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - adaptiveLock.start));
+            this.tryUnLock(adaptiveLock.lock);
+        }
+    }
+
     /**
      * 释放锁
      *
@@ -68,4 +202,28 @@ public class RedisLockUtil {
             }
         }
     }
+
+    /**
+     * 自适应租期的锁
+     */
+    public static final class AdaptiveLock {
+
+        private final String name;
+
+        private final RLock lock;
+
+        private final AdaptiveLeases.Renewal renewal;
+
+        private final long start = System.nanoTime();
+
+        private AdaptiveLock(String name, RLock lock, AdaptiveLeases.Renewal renewal) {
+            this.name = name;
+            this.lock = lock;
+            this.renewal = renewal;
+        }
+
+        public RLock getLock() {
+            return lock;
+        }
+    }
 }
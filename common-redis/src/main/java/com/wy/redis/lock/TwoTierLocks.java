@@ -0,0 +1,220 @@
+package com.wy.redis.lock;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author wangyong
+ * @Classname TwoTierLocks
+ * @Description 本地锁加redis锁的两级锁 同一jvm内争抢同一个key的线程先在本地排队，只有本地的胜出者访问redis
+ * redis锁不按线程持有，而是以每个key一个的虚拟持有者id持有，因此可以在本地线程之间交接
+ * 释放时本地还有等待者且redis锁剩余的租期足够时，不释放redis锁，直接交给下一个本地线程
+ * 这样竞争时redis的访问量与节点数相关而不是线程数
+ * @Date 2021/7/3 14:00
+ */
+@Slf4j
+public class TwoTierLocks {
+
+    /**
+     * 虚拟持有者id取负数 不会与redisson使用的线程id冲突
+     */
+    private static final AtomicLong OWNER_SEQUENCE = new AtomicLong();
+
+    private final RedissonClient redisson;
+
+    /**
+     * 交接时redis锁剩余租期占持锁时间的最小比例
+     */
+    private final double handoverRatio;
+
+    private final ConcurrentHashMap<String, Holder> holders = new ConcurrentHashMap<>(64);
+
+    /**
+     * @param redisson      客户端
+     * @param handoverRatio 剩余租期不少于 持锁时间*该比例 时才交接，为0时只要没过期就交接
+     */
+    public TwoTierLocks(RedissonClient redisson, double handoverRatio) {
+        this.redisson = redisson;
+        this.handoverRatio = handoverRatio;
+    }
+
+    /**
+     * 加锁
+     *
+     * @param key       锁key
+     * @param timeout   等待时间 毫秒，包含本地排队的时间
+     * @param leaseTime 持锁时间 毫秒
+     * @return 获得的锁 超时返回null
+     * @throws InterruptedException 等待时被中断
+     */
+    public Holder tryLock(String key, long timeout, long leaseTime) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Holder holder = holders.compute(key, (k, existing) -> {
+            Holder h = existing == null ? new Holder(k, redisson.getLock(k)) : existing;
+            h.refs++;
+            return h;
+        });
+        boolean locked = false;
+        try {
+            if (!holder.local.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+            locked = true;
+            //本线程重入 redis锁已经由本组持有
+            if (holder.local.getHoldCount() > 1) {
+                return holder;
+            }
+            long now = System.currentTimeMillis();
+            if (holder.redisHeld) {
+                long leaseRemaining = holder.leaseDeadline - now;
+                if (leaseRemaining > 0 && leaseRemaining >= leaseTime * handoverRatio) {
+                    log.debug("redis lock [{}] 由本地上一个持有者交接", key);
+                    return holder;
+                }
+                if (leaseRemaining > 0) {
+                    //剩余租期不够本次使用 释放后重新获取
+                    this.releaseRedis(holder);
+                } else {
+                    //租期已过 redis中的锁可能已被其他节点获得
+                    holder.redisHeld = false;
+                }
+            }
+            long remaining = Math.max(0L, timeout - (now - start));
+            boolean acquired = holder.lock.tryLockAsync(remaining, leaseTime, TimeUnit.MILLISECONDS, holder.ownerId).sync().getNow();
+            if (!acquired) {
+                return null;
+            }
+            holder.redisHeld = true;
+            holder.leaseTime = leaseTime;
+            holder.leaseDeadline = now + leaseTime;
+            return holder;
+        } catch (InterruptedException | RuntimeException e) {
+            if (locked) {
+                holder.local.unlock();
+                locked = false;
+            }
+            throw e;
+        } finally {
+            if (!locked) {
+                this.dereference(holder);
+            } else if (!holder.redisHeld) {
+                holder.local.unlock();
+                this.dereference(holder);
+            }
+        }
+    }
+
+    /**
+     * 释放锁 本地有等待者且租期足够时交接redis锁
+     *
+     * @param holder {@link #tryLock} 返回的锁
+     */
+    public void unlock(Holder holder) {
+        try {
+            if (holder.local.getHoldCount() > 1) {
+                return;
+            }
+            long remaining = holder.leaseDeadline - System.currentTimeMillis();
+            if (holder.local.hasQueuedThreads() && remaining > 0 && remaining >= holder.leaseTime * handoverRatio) {
+                holder.local.unlock();
+                //被唤醒的等待者在获得锁之前仍在队列中 队列为空说明等待者都已超时放弃，收回并释放redis锁
+                if (holder.local.hasQueuedThreads() || !holder.local.tryLock()) {
+                    return;
+                }
+            }
+            this.releaseRedis(holder);
+        } finally {
+            if (holder.local.isHeldByCurrentThread()) {
+                holder.local.unlock();
+            }
+            this.dereference(holder);
+        }
+    }
+
+    /**
+     * 当前有锁或等待者的key数
+     */
+    public int size() {
+        return holders.size();
+    }
+
+    private void releaseRedis(Holder holder) {
+        holder.redisHeld = false;
+        try {
+            holder.lock.unlockAsync(holder.ownerId).sync();
+        } catch (IllegalMonitorStateException e) {
+            log.error("unlock fail and key {}", holder.key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 最后一个引用释放时 交接出去的redis锁可能因为等待者超时放弃而无人持有，此时由最后一个线程释放
+     */
+    private void dereference(Holder holder) {
+        boolean[] last = new boolean[1];
+        holders.computeIfPresent(holder.key, (k, existing) -> {
+            if (--existing.refs > 0) {
+                return existing;
+            }
+            last[0] = true;
+            return null;
+        });
+        //已从map移除 不会再有线程拿到这个holder，本地锁只用于读取redisHeld
+        if (last[0] && holder.local.tryLock()) {
+            try {
+                if (holder.redisHeld && holder.leaseDeadline > System.currentTimeMillis()) {
+                    log.debug("redis lock [{}] 交接后无人接收，释放", holder.key);
+                    this.releaseRedis(holder);
+                }
+                holder.redisHeld = false;
+            } finally {
+                holder.local.unlock();
+            }
+        }
+    }
+
+    public static final class Holder {
+
+        private final String key;
+
+        private final RLock lock;
+
+        private final long ownerId = -OWNER_SEQUENCE.incrementAndGet();
+
+        /**
+         * 非公平 新到达的线程同样可以使用交接的redis锁
+         */
+        private final ReentrantLock local = new ReentrantLock();
+
+        /**
+         * 只在compute中修改
+         */
+        private int refs;
+
+        /**
+         * 以下字段只在持有本地锁时读写
+         */
+        private boolean redisHeld;
+
+        private long leaseTime;
+
+        private long leaseDeadline;
+
+        private Holder(String key, RLock lock) {
+            this.key = key;
+            this.lock = lock;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+}
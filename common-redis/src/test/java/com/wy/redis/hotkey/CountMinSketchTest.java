@@ -0,0 +1,96 @@
+package com.wy.redis.hotkey;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname CountMinSketchTest
+ * @Description 计数草图的hash与估计误差
+ * @Date 2021/7/12 14:00
+ */
+public class CountMinSketchTest {
+
+    @Test
+    public void hashMatchesGuavaMurmur3() {
+        String[] keys = {"", "a", "order:1", "12345678", "a-key-longer-than-one-block", "中文key"};
+        for (String scope : new String[]{HotKeyDetector.SCOPE_LOCK, HotKeyDetector.SCOPE_IDEMPOTENT}) {
+            for (String key : keys) {
+                long expected = Hashing.murmur3_128().hashUnencodedChars(scope + '\0' + key).asLong();
+                assertEquals(scope + "/" + key, expected, HotKeyDetector.hash(scope, key));
+            }
+        }
+    }
+
+    @Test
+    public void separatesKeysWithSameStringHashCode() {
+        //"Aa"与"BB"的String.hashCode相同 只用32位hashCode派生时每一行都会冲突
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertNotEquals(HotKeyDetector.hash("lock", "Aa"), HotKeyDetector.hash("lock", "BB"));
+        CountMinSketch sketch = new CountMinSketch(1024, 4);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(HotKeyDetector.hash("lock", "Aa"));
+        }
+        assertEquals(0, sketch.estimate(HotKeyDetector.hash("lock", "BB")));
+    }
+
+    @Test
+    public void otherKeysRarelyCollideOnEveryRow() {
+        int width = 1024;
+        CountMinSketch sketch = new CountMinSketch(width, 4);
+        sketch.increment(HotKeyDetector.hash("lock", "key"));
+        //双重hash下两个key在每一行都冲突需要h1和h2同时冲突 概率约为 1 / (width * width / 2)
+        Set<Long> others = new HashSet<>();
+        int collisions = 0;
+        for (int i = 0; others.size() < 100000; i++) {
+            long hash = HotKeyDetector.hash("lock", "other-" + i);
+            if (others.add(hash) && sketch.estimate(hash) > 0) {
+                collisions++;
+            }
+        }
+        assertTrue("collisions " + collisions, collisions < 3);
+    }
+
+    @Test
+    public void estimateNeverUnderestimatesAndStaysClose() {
+        int width = 1024;
+        CountMinSketch sketch = new CountMinSketch(width, 4);
+        int keys = 5000;
+        for (int i = 0; i < keys; i++) {
+            int times = i % 10 == 0 ? 50 : 1;
+            for (int j = 0; j < times; j++) {
+                sketch.increment(HotKeyDetector.hash("idempotent", "key-" + i));
+            }
+        }
+        long total = keys / 10 * 50L + keys - keys / 10;
+        int over = 0;
+        for (int i = 0; i < keys; i++) {
+            int actual = i % 10 == 0 ? 50 : 1;
+            int estimate = sketch.estimate(HotKeyDetector.hash("idempotent", "key-" + i));
+            assertTrue(estimate >= actual);
+            //误差上界 e / width * total 以 1 - e^-depth 的概率成立
+            if (estimate - actual > Math.E / width * total) {
+                over++;
+            }
+        }
+        assertTrue("over " + over, over < keys * 0.05);
+    }
+
+    @Test
+    public void halveDecaysCounts() {
+        CountMinSketch sketch = new CountMinSketch(64, 4);
+        long hash = HotKeyDetector.hash("lock", "key");
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(hash);
+        }
+        sketch.halve();
+        assertEquals(5, sketch.estimate(hash));
+    }
+}
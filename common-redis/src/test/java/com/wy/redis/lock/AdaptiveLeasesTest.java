@@ -0,0 +1,136 @@
+package com.wy.redis.lock;
+
+import com.wy.redis.support.EmbeddedRedis;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname AdaptiveLeasesTest
+ * @Description 续期使持有时间超过租期时其他节点仍无法获得锁，锁被他人获得或超过maxHold时停止续期
+ * @Date 2021/7/19 17:00
+ */
+public class AdaptiveLeasesTest {
+
+    private static final long LEASE = 300L;
+
+    private static EmbeddedRedis redis;
+
+    private static RedissonClient redisson;
+
+    private static RedissonClient other;
+
+    private LockProperties.AdaptiveLease properties;
+
+    private AdaptiveLeases leases;
+
+    @BeforeClass
+    public static void start() {
+        redis = EmbeddedRedis.start();
+        redisson = redis.newClient();
+        other = redis.newClient();
+    }
+
+    @AfterClass
+    public static void stop() {
+        if (redis != null) {
+            redis.stop();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        redisson.getKeys().flushall();
+        properties = new LockProperties.AdaptiveLease();
+        leases = new AdaptiveLeases(redisson, properties);
+    }
+
+    @After
+    public void tearDown() {
+        leases.destroy();
+    }
+
+    @Test
+    public void renewalKeepsLockPastLease() throws InterruptedException {
+        RLock lock = redisson.getLock("renew");
+        assertTrue(lock.tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+        AdaptiveLeases.Renewal renewal = leases.renew(lock, LEASE);
+        //持有时间是租期的数倍
+        TimeUnit.MILLISECONDS.sleep(LEASE * 4);
+        assertFalse(renewal.isStopped());
+        assertTrue(lock.isHeldByCurrentThread());
+        assertFalse(other.getLock("renew").tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+        renewal.stop();
+        lock.unlock();
+        assertTrue(other.getLock("renew").tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void renewalStopsWhenOwnershipIsLost() throws InterruptedException {
+        RLock lock = redisson.getLock("lost");
+        assertTrue(lock.tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+        AdaptiveLeases.Renewal renewal = leases.renew(lock, LEASE);
+        //模拟租期已过 锁被另一个节点获得
+        lock.forceUnlock();
+        RLock taken = other.getLock("lost");
+        assertTrue(taken.tryLock(0L, 1000L, TimeUnit.MILLISECONDS));
+        TimeUnit.MILLISECONDS.sleep(LEASE);
+        assertTrue(renewal.isStopped());
+        //不会延长他人的锁
+        TimeUnit.MILLISECONDS.sleep(800L);
+        assertFalse(taken.isLocked());
+    }
+
+    @Test
+    public void renewalStopsAtMaxHold() throws InterruptedException {
+        properties.setMaxHold(Duration.ofMillis(600L));
+        RLock lock = redisson.getLock("max-hold");
+        assertTrue(lock.tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+        AdaptiveLeases.Renewal renewal = leases.renew(lock, LEASE);
+        TimeUnit.MILLISECONDS.sleep(400L);
+        assertTrue(lock.isLocked());
+        //超过maxHold后不再续期 最后一次续期的租期结束后锁自动释放
+        TimeUnit.MILLISECONDS.sleep(600L + LEASE);
+        assertTrue(renewal.isStopped());
+        assertFalse(lock.isLocked());
+        assertTrue(other.getLock("max-hold").tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void holdTimesAreRegisteredAsMeters() throws InterruptedException {
+        properties.setMinSamples(10);
+        properties.setRefreshInterval(Duration.ofMillis(50L));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        leases.record("early", 5L);
+        leases.bindTo(registry);
+        for (long millis = 1; millis <= 100; millis++) {
+            leases.record("Service#method", millis);
+        }
+        TimeUnit.MILLISECONDS.sleep(300L);
+
+        //绑定前已有的方法同样注册
+        assertEquals(1.0, registry.get("common.redis.lock.hold.count").tag("name", "early").functionCounter().count(), 0.0);
+        assertTrue(Double.isNaN(registry.get("common.redis.lock.lease").tag("name", "early").gauge().value()));
+
+        assertEquals(100.0, registry.get("common.redis.lock.hold.count").tag("name", "Service#method").functionCounter().count(), 0.0);
+        double p99 = registry.get("common.redis.lock.hold").tag("name", "Service#method").tag("quantile", "0.99").gauge().value();
+        assertEquals(0.099, p99, 0.002);
+        assertEquals(0.1, registry.get("common.redis.lock.hold.max").tag("name", "Service#method").gauge().value(), 0.002);
+        //租期 = p99 * 2，不低于minLease
+        double lease = registry.get("common.redis.lock.lease").tag("name", "Service#method").gauge().value();
+        assertEquals(properties.getMinLease().toMillis() / 1000.0, lease, 0.0);
+    }
+}
@@ -0,0 +1,47 @@
+package com.wy.redis.lock;
+
+import java.util.Collections;
+
+/**
+ * @author wangyong
+ * @Classname LockKeyPlanBenchmark
+ * @Description 单次生成锁key的耗时 原来每次调用解析el表达式与缓存的 {@link LockKeyPlan} 对比
+ * 不在单元测试中执行 通过main运行
+ * @Date 2021/7/14 17:00
+ */
+public class LockKeyPlanBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Object[][] calls = new Object[1024][];
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new Object[]{(long) i, new LockKeyPlanTest.User("user-" + i, i), Collections.emptyList()};
+        }
+        for (String method : new String[]{"mixed", "literal"}) {
+            String[] value = LockKeyPlanTest.lockable(method).value();
+            LockKeyPlan plan = LockKeyPlanTest.plan(method);
+            for (int round = 0; round < 2; round++) {
+                //第一轮预热
+                boolean report = round == 1;
+                long sink = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    sink += LockKeyPlanTest.legacyKey(value, new String[]{"id", "user", "items"}, calls[i & 1023]).length();
+                }
+                print(report, method + " per-call SpEL", iterations, start, sink);
+                sink = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    sink += plan.key(calls[i & 1023]).length();
+                }
+                print(report, method + " LockKeyPlan  ", iterations, start, sink);
+            }
+        }
+    }
+
+    private static void print(boolean report, String name, int iterations, long start, long sink) {
+        if (report) {
+            System.out.printf("%-22s ns/key %8.1f  (%d)%n", name, (System.nanoTime() - start) / (double) iterations, sink);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.wy.redis.lock;
+
+import com.wy.exception.BaseException;
+import com.wy.exception.RedisLockException;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.SpelEvaluationException;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * @author wangyong
+ * @Classname LockKeyPlanTest
+ * @Description {@link LockKeyPlan} 生成的key与原来每次解析el表达式的实现一致
+ * @Date 2021/7/14 16:00
+ */
+public class LockKeyPlanTest {
+
+    private static final String[] NAMES = {"id", "user", "items"};
+
+    @Test
+    public void literalParameterAndExpression() {
+        assertSameKey("mixed", 42L, new User("bob", 7), Arrays.asList("x", "y"));
+    }
+
+    @Test
+    public void indexedAndMethodExpressions() {
+        assertSameKey("indexed", 42L, new User("bob", 7, "x", "y"), Collections.emptyList());
+        assertSameKey("indexed", 1, new User("alice", -1, "z"), Collections.emptyList());
+    }
+
+    @Test
+    public void nullExpressionValueKeepsTheExpression() {
+        assertSameKey("mixed", 42L, new User(null, 7), Collections.emptyList());
+    }
+
+    @Test
+    public void literalOnlyKeyIsBuiltOnce() {
+        LockKeyPlan plan = plan("literal");
+        Object[] args = {1L, new User("bob", 1), Collections.emptyList()};
+        assertEquals(legacyKey(lockable("literal").value(), NAMES, args), plan.key(args));
+        assertEquals("stock:sku:", plan.key(args));
+    }
+
+    @Test
+    public void compiledExpressionSurvivesArgumentTypeChange() {
+        LockKeyPlan plan = plan("mixed");
+        for (int i = 0; i < 3; i++) {
+            //编译后的字节码按User生成 换成其他类型时退回解释执行
+            Object[] users = {i, new User("u" + i, i), Collections.emptyList()};
+            Object[] admins = {i, new Admin("a" + i), Collections.emptyList()};
+            assertEquals(legacyKey(lockable("mixed").value(), NAMES, users), plan.key(users));
+            assertEquals(legacyKey(lockable("mixed").value(), NAMES, admins), plan.key(admins));
+        }
+    }
+
+    @Test
+    public void noArgumentsGiveNoKey() {
+        assertNull(new LockKeyPlan(method("mixed"), lockable("mixed"), new String[0]).key(new Object[0]));
+        assertNull(legacyKey(lockable("mixed").value(), new String[0], new Object[0]));
+    }
+
+    @Test
+    public void sameErrorCodes() {
+        //#后没有.的整体作为参数名 与原来一致不支持#items[0]
+        Object[] indexed = {1L, new User("bob", 1), Collections.singletonList("x")};
+        assertEquals(6003, code(() -> legacyKey(new String[]{"#items[0]"}, NAMES, indexed)));
+        Object[] nullUser = {1L, null, Collections.emptyList()};
+        assertEquals(6002, code(() -> legacyKey(lockable("mixed").value(), NAMES, nullUser)));
+        assertEquals(6002, code(() -> plan("mixed").key(nullUser)));
+        Object[] args = {1L, new User("bob", 1), Collections.emptyList()};
+        assertEquals(6003, code(() -> legacyKey(lockable("unknown").value(), NAMES, args)));
+        assertEquals(6003, code(() -> plan("unknown")));
+        assertEquals(6004, code(() -> legacyKey(lockable("empty").value(), NAMES, args)));
+        assertEquals(6004, code(() -> plan("empty")));
+    }
+
+    private static void assertSameKey(String method, Object... args) {
+        assertEquals(legacyKey(lockable(method).value(), NAMES, args), plan(method).key(args));
+    }
+
+    private static int code(Runnable call) {
+        try {
+            call.run();
+        } catch (BaseException e) {
+            return e.getErrorType().getCode();
+        }
+        fail("expected BaseException");
+        return -1;
+    }
+
+    static LockKeyPlan plan(String method) {
+        return new LockKeyPlan(method(method), lockable(method), NAMES);
+    }
+
+    static Lockable lockable(String method) {
+        return method(method).getAnnotation(Lockable.class);
+    }
+
+    private static java.lang.reflect.Method method(String name) {
+        for (java.lang.reflect.Method method : LockKeyPlanTest.class.getDeclaredMethods()) {
+            if (method.getName().equals(name)) {
+                return method;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    /**
+     * 原 LockableAspect#getLockKey 的实现 每次调用创建解析器和上下文
+     */
+    static String legacyKey(String[] value, String[] parameterNames, Object[] args) {
+        String name = null;
+        StringBuffer keyBuffer = new StringBuffer();
+        if (args != null && args.length > 0) {
+            EvaluationContext context = new StandardEvaluationContext();
+            ExpressionParser parser = new SpelExpressionParser();
+            for (String key : value) {
+                Optional.ofNullable(key)
+                        .filter(StringUtils::isNotEmpty)
+                        .orElseThrow(RedisLockException.PLEASE_FILL_IN_VALID_KEY.get());
+                key = Optional.of(key)
+                        .filter(el -> el.startsWith("#"))
+                        .map(el -> {
+                            int index = el.indexOf(".");
+                            if (index == -1) {
+                                String variableName = el.substring(1);
+                                Integer ind = matching(parameterNames, variableName);
+                                Optional.ofNullable(ind)
+                                        .filter(Objects::nonNull)
+                                        .orElseThrow(RedisLockException.SPRING_EL_CAN_MATCHING_PARAM.get());
+                                Object arg = args[ind];
+                                Optional.ofNullable(arg)
+                                        .filter(Objects::nonNull)
+                                        .orElseThrow(RedisLockException.PARAM_LOCK_VALUE_CAN_NOT_NULL.get());
+                                return arg.toString();
+                            }
+                            String variableName = el.substring(1, index);
+                            Integer ind = matching(parameterNames, variableName);
+                            Optional.ofNullable(ind)
+                                    .filter(Objects::nonNull)
+                                    .orElseThrow(RedisLockException.SPRING_EL_CAN_MATCHING_PARAM.get());
+                            Object arg = args[ind];
+                            Optional.ofNullable(arg)
+                                    .filter(Objects::nonNull)
+                                    .orElseThrow(RedisLockException.PARAM_LOCK_VALUE_CAN_NOT_NULL.get());
+                            context.setVariable(variableName, arg);
+                            try {
+                                return parser.parseExpression(el).getValue(context, Object.class);
+                            } catch (SpelEvaluationException ex) {
+                                throw BaseException.definedException(5098, ex.getMessage());
+                            }
+                        })
+                        .map(Object::toString)
+                        .orElse(key);
+                keyBuffer.append(key).append(":");
+            }
+            name = keyBuffer.toString();
+        }
+        return name;
+    }
+
+    private static Integer matching(String[] parameterNames, String el) {
+        for (int i = 0; i < parameterNames.length; i++) {
+            if (parameterNames[i].equals(el)) {
+                return i;
+            }
+        }
+        return null;
+    }
+
+    @Lockable({"order", "#id", "#user.name", "#user.level"})
+    void mixed(Object id, Object user, Object items) {
+    }
+
+    @Lockable({"order", "#user.tags[0]", "#user.name.length()", "#user.level * 2", "#id"})
+    void indexed(Object id, Object user, Object items) {
+    }
+
+    @Lockable({"stock", "sku"})
+    void literal(Object id, Object user, Object items) {
+    }
+
+    @Lockable({"order", "#missing.name"})
+    void unknown(Object id, Object user, Object items) {
+    }
+
+    @Lockable({"order", ""})
+    void empty(Object id, Object user, Object items) {
+    }
+
+    public static class User {
+
+        private final String name;
+
+        private final int level;
+
+        private final List<String> tags;
+
+        public User(String name, int level, String... tags) {
+            this.name = name;
+            this.level = level;
+            this.tags = Arrays.asList(tags);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public List<String> getTags() {
+            return tags;
+        }
+    }
+
+    public static class Admin {
+
+        private final String name;
+
+        public Admin(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLevel() {
+            return Long.MAX_VALUE;
+        }
+    }
+}
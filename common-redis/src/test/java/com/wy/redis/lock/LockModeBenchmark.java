@@ -0,0 +1,101 @@
+package com.wy.redis.lock;
+
+import org.HdrHistogram.Histogram;
+import org.redisson.Redisson;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import redis.embedded.RedisServer;
+
+import java.net.ServerSocket;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author wangyong
+ * @Classname LockModeBenchmark
+ * @Description 本地redis上同一个key的读写竞争 {@link LockableAspect#lockOf} 读写锁与全部使用互斥锁在不同读写比例下的吞吐和等锁时间
+ * 每次加锁后持有1ms模拟业务执行 不在单元测试中执行，通过main运行
+ * @Date 2021/7/15 10:00
+ */
+public class LockModeBenchmark {
+
+    private static final int[] READ_PERCENTS = {100, 95, 80, 50, 0};
+
+    private static final long HIGHEST_WAIT_MICROS = TimeUnit.SECONDS.toMicros(30L);
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        RedisServer server = RedisServer.builder().port(port).setting("bind 127.0.0.1").setting("save \"\"").build();
+        server.start();
+        Config config = new Config();
+        config.useSingleServer().setAddress("redis://127.0.0.1:" + port);
+        RedissonClient redisson = Redisson.create(config);
+        try {
+            for (int round = 0; round < 2; round++) {
+                //第一轮预热
+                boolean report = round == 1;
+                for (int readPercent : READ_PERCENTS) {
+                    run(redisson, "read/write", readPercent, true, threads, perThread, report);
+                    run(redisson, "exclusive ", readPercent, false, threads, perThread, report);
+                }
+            }
+        } finally {
+            redisson.shutdown();
+            server.stop();
+        }
+    }
+
+    private static void run(RedissonClient redisson, String name, int readPercent, boolean readWrite, int threads, int perThread,
+                            boolean report) throws InterruptedException {
+        String key = "bench:" + UUID.randomUUID() + ":";
+        Histogram waits = new Histogram(HIGHEST_WAIT_MICROS, 3);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                Histogram local = new Histogram(HIGHEST_WAIT_MICROS, 3);
+                try {
+                    go.await();
+                    for (int i = 0; i < perThread; i++) {
+                        boolean read = ThreadLocalRandom.current().nextInt(100) < readPercent;
+                        LockMode mode = !readWrite ? LockMode.EXCLUSIVE : read ? LockMode.READ : LockMode.WRITE;
+                        RLock lock = LockableAspect.lockOf(redisson, key, mode);
+                        long start = System.nanoTime();
+                        if (!lock.tryLock(30000L, 5000L, TimeUnit.MILLISECONDS)) {
+                            throw new IllegalStateException("lock timeout " + key);
+                        }
+                        local.recordValue(Math.min(HIGHEST_WAIT_MICROS, (System.nanoTime() - start) / 1000L));
+                        try {
+                            Thread.sleep(1L);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    synchronized (waits) {
+                        waits.add(local);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        go.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        if (report) {
+            System.out.printf("%s read %3d%%  ops/s %7.0f  wait p50 %6dus  p99 %7dus%n", name, readPercent,
+                    (double) threads * perThread * 1e9 / elapsed, waits.getValueAtPercentile(50), waits.getValueAtPercentile(99));
+        }
+    }
+}
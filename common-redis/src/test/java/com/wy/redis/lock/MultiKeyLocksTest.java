@@ -0,0 +1,165 @@
+package com.wy.redis.lock;
+
+import com.wy.redis.support.EmbeddedRedis;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname MultiKeyLocksTest
+ * @Description 脚本加锁与redisson的RLock互斥、重入和解锁通知，另一个客户端相当于另一个节点
+ * @Date 2021/7/19 14:10
+ */
+public class MultiKeyLocksTest {
+
+    private static final long LEASE = 30 * 1000L;
+
+    private static EmbeddedRedis redis;
+
+    private static RedissonClient redisson;
+
+    private static RedissonClient other;
+
+    private MultiKeyLocks locks;
+
+    @BeforeClass
+    public static void start() {
+        redis = EmbeddedRedis.start();
+        redisson = redis.newClient();
+        other = redis.newClient();
+    }
+
+    @AfterClass
+    public static void stop() {
+        if (redis != null) {
+            redis.stop();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        redisson.getKeys().flushall();
+        locks = new MultiKeyLocks(redisson, "");
+    }
+
+    @Test
+    public void partialConflictLeavesOtherKeysUntouched() throws InterruptedException {
+        RLock held = other.getLock("b");
+        held.lock(LEASE, TimeUnit.MILLISECONDS);
+        assertNull(locks.tryLock(Arrays.asList("c", "b", "a"), null, 100L, LEASE));
+        assertFalse(exists("a", "c"));
+        //占用者的锁不受影响
+        assertTrue(held.isHeldByCurrentThread());
+        assertEquals(1, held.getHoldCount());
+        held.unlock();
+
+        MultiKeyLocks.Acquired acquired = locks.tryLock(Arrays.asList("c", "b", "a"), null, 0L, LEASE);
+        assertNotNull(acquired);
+        assertEquals(Arrays.asList("a", "b", "c"), acquired.getNames());
+        locks.unlock(acquired);
+        assertFalse(exists("a", "b", "c"));
+    }
+
+    @Test
+    public void heldKeysExcludeRLock() throws InterruptedException {
+        MultiKeyLocks.Acquired acquired = locks.tryLock(Arrays.asList("a", "b"), null, 0L, LEASE);
+        assertNotNull(acquired);
+        RLock lock = other.getLock("b");
+        assertFalse(lock.tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+        assertTrue(lock.isLocked());
+        locks.unlock(acquired);
+        assertTrue(lock.tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+        lock.unlock();
+    }
+
+    @Test
+    public void reentersLocksHeldBySameThread() throws InterruptedException {
+        RLock single = redisson.getLock("a");
+        single.lock(LEASE, TimeUnit.MILLISECONDS);
+        MultiKeyLocks.Acquired acquired = locks.tryLock(Arrays.asList("a", "b"), null, 0L, LEASE);
+        assertNotNull(acquired);
+        assertEquals(2, single.getHoldCount());
+        MultiKeyLocks.Acquired nested = locks.tryLock(Collections.singletonList("b"), null, 0L, LEASE);
+        assertNotNull(nested);
+        assertEquals(2, redisson.getLock("b").getHoldCount());
+
+        locks.unlock(nested);
+        locks.unlock(acquired);
+        //单key锁仍然持有一次 多key锁加的已经全部释放
+        assertTrue(single.isHeldByCurrentThread());
+        assertEquals(1, single.getHoldCount());
+        assertFalse(redisson.getLock("b").isLocked());
+        single.unlock();
+        assertFalse(single.isLocked());
+    }
+
+    @Test
+    public void unlockWakesRLockWaiter() throws Exception {
+        MultiKeyLocks.Acquired acquired = locks.tryLock(Arrays.asList("a", "b"), null, 0L, LEASE);
+        assertNotNull(acquired);
+        CompletableFuture<Long> waiter = CompletableFuture.supplyAsync(() -> {
+            RLock lock = other.getLock("a");
+            try {
+                if (!lock.tryLock(10L, 1L, TimeUnit.SECONDS)) {
+                    return -1L;
+                }
+                lock.unlock();
+                return System.nanoTime();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1L;
+            }
+        });
+        //等待者已经订阅并开始等待
+        TimeUnit.MILLISECONDS.sleep(300L);
+        long released = System.nanoTime();
+        locks.unlock(acquired);
+        long acquiredAt = waiter.get(15L, TimeUnit.SECONDS);
+        assertTrue(acquiredAt > 0);
+        //没有通知时等待者要等到持锁时间结束，远大于这里的1秒
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(acquiredAt - released) < 1000L);
+    }
+
+    @Test
+    public void hashTagChangesLockName() throws InterruptedException {
+        MultiKeyLocks.Acquired acquired = locks.tryLock(Collections.singletonList("a"), "t", 0L, LEASE);
+        assertNotNull(acquired);
+        assertEquals(Collections.singletonList("{t}a"), acquired.getNames());
+        //没有hash tag的单key锁是另一个key 不互斥
+        RLock plain = other.getLock("a");
+        assertTrue(plain.tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+        plain.unlock();
+        RLock tagged = other.getLock(MultiKeyLocks.lockName("a", "t"));
+        assertFalse(tagged.tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+        locks.unlock(acquired);
+        assertTrue(tagged.tryLock(0L, LEASE, TimeUnit.MILLISECONDS));
+        tagged.unlock();
+    }
+
+    /**
+     * 本地redis版本较低 exists不支持多个key
+     */
+    private static boolean exists(String... keys) {
+        for (String key : keys) {
+            if (redisson.getBucket(key).isExists()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
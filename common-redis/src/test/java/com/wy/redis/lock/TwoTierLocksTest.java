@@ -0,0 +1,183 @@
+package com.wy.redis.lock;
+
+import com.wy.redis.support.EmbeddedRedis;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author wangyong
+ * @Classname TwoTierLocksTest
+ * @Description 本地排队的线程共用一次redis加锁，只在租期足够时交接，租期过后本地线程不会绕过其他节点的锁
+ * @Date 2021/7/20 14:00
+ */
+public class TwoTierLocksTest {
+
+    private static EmbeddedRedis redis;
+
+    private static RedissonClient redisson;
+
+    private static RedissonClient other;
+
+    private final AtomicInteger redisAcquisitions = new AtomicInteger();
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void start() {
+        redis = EmbeddedRedis.start();
+        redisson = redis.newClient();
+        other = redis.newClient();
+    }
+
+    @AfterClass
+    public static void stop() {
+        if (redis != null) {
+            redis.stop();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        redisson.getKeys().flushall();
+        redisAcquisitions.set(0);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void queuedThreadsShareOneRedisAcquisition() throws Exception {
+        TwoTierLocks locks = new TwoTierLocks(this.counting(), 0.5);
+        int threads = 8;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger maxInside = new AtomicInteger();
+        List<Future<Boolean>> results = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(() -> {
+                barrier.await();
+                TwoTierLocks.Holder holder = locks.tryLock("shared", 10000L, 10000L);
+                if (holder == null) {
+                    return false;
+                }
+                try {
+                    maxInside.accumulateAndGet(inside.incrementAndGet(), Math::max);
+                    TimeUnit.MILLISECONDS.sleep(30L);
+                    inside.decrementAndGet();
+                } finally {
+                    locks.unlock(holder);
+                }
+                return true;
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get(10L, TimeUnit.SECONDS));
+        }
+        assertEquals(1, maxInside.get());
+        //全部线程在第一个持有者释放前已经排队 redis锁一直在本地交接
+        assertEquals(1, redisAcquisitions.get());
+        assertEquals(0, locks.size());
+        assertTrue(!redisson.getLock("shared").isLocked());
+    }
+
+    @Test
+    public void shortRemainingLeaseIsNotHandedOver() throws Exception {
+        TwoTierLocks locks = new TwoTierLocks(this.counting(), 0.5);
+        TwoTierLocks.Holder first = locks.tryLock("short", 1000L, 400L);
+        assertNotNull(first);
+        CountDownLatch queued = new CountDownLatch(1);
+        Future<Boolean> next = executor.submit(() -> {
+            queued.countDown();
+            TwoTierLocks.Holder holder = locks.tryLock("short", 5000L, 400L);
+            if (holder == null) {
+                return false;
+            }
+            locks.unlock(holder);
+            return true;
+        });
+        queued.await();
+        //剩余租期不足 400*0.5 时释放redis锁，下一个线程重新获取
+        TimeUnit.MILLISECONDS.sleep(300L);
+        locks.unlock(first);
+        assertTrue(next.get(5L, TimeUnit.SECONDS));
+        assertEquals(2, redisAcquisitions.get());
+    }
+
+    @Test
+    public void localThreadDoesNotProceedAfterLeaseExpires() throws Exception {
+        TwoTierLocks locks = new TwoTierLocks(this.counting(), 0.0);
+        TwoTierLocks.Holder first = locks.tryLock("expired", 1000L, 200L);
+        assertNotNull(first);
+        CountDownLatch queued = new CountDownLatch(1);
+        Future<TwoTierLocks.Holder> next = executor.submit(() -> {
+            queued.countDown();
+            return locks.tryLock("expired", 1500L, 200L);
+        });
+        queued.await();
+        //持有者超过租期 另一个节点在租期过后获得redis锁
+        RLock remote = other.getLock("expired");
+        assertTrue(remote.tryLock(1000L, 5000L, TimeUnit.MILLISECONDS));
+        TimeUnit.MILLISECONDS.sleep(100L);
+        //本地的等待者不能通过交接绕过另一个节点
+        locks.unlock(first);
+        assertNull(next.get(5L, TimeUnit.SECONDS));
+        assertTrue(remote.isHeldByCurrentThread());
+        remote.unlock();
+        TwoTierLocks.Holder after = locks.tryLock("expired", 1000L, 200L);
+        assertNotNull(after);
+        locks.unlock(after);
+    }
+
+    /**
+     * 统计对redis锁的加锁调用
+     */
+    private RedissonClient counting() {
+        return (RedissonClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{RedissonClient.class},
+                (proxy, method, args) -> {
+                    Object value = invoke(redisson, method, args);
+                    if (!"getLock".equals(method.getName())) {
+                        return value;
+                    }
+                    RLock lock = (RLock) value;
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{RLock.class}, (p, m, a) -> {
+                        if (m.getName().startsWith("tryLock")) {
+                            redisAcquisitions.incrementAndGet();
+                        }
+                        return invoke(lock, m, a);
+                    });
+                });
+    }
+
+    private static Object invoke(Object target, java.lang.reflect.Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
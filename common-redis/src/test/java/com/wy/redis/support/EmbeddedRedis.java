@@ -0,0 +1,73 @@
+package com.wy.redis.support;
+
+import org.junit.Assume;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author wangyong
+ * @Classname EmbeddedRedis
+ * @Description 测试用的本地redis 随机端口启动，当前平台无法启动时跳过测试
+ * @Date 2021/7/19 14:00
+ */
+public class EmbeddedRedis {
+
+    private final RedisServer server;
+
+    private final int port;
+
+    private final List<RedissonClient> clients = new ArrayList<>();
+
+    private EmbeddedRedis(RedisServer server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    /**
+     * 启动 失败时通过 {@link Assume} 跳过调用方的测试
+     */
+    public static EmbeddedRedis start() {
+        RedisServer server = null;
+        try {
+            int port = freePort();
+            server = RedisServer.builder().port(port).setting("bind 127.0.0.1").setting("save \"\"").build();
+            server.start();
+            return new EmbeddedRedis(server, port);
+        } catch (Exception e) {
+            if (server != null) {
+                server.stop();
+            }
+            Assume.assumeNoException("本地redis无法启动", e);
+            return null;
+        }
+    }
+
+    /**
+     * 新建一个客户端 每个客户端有自己的id，相当于另一个节点
+     */
+    public RedissonClient newClient() {
+        Config config = new Config();
+        config.useSingleServer().setAddress("redis://127.0.0.1:" + port);
+        RedissonClient client = Redisson.create(config);
+        clients.add(client);
+        return client;
+    }
+
+    public void stop() {
+        clients.forEach(RedissonClient::shutdown);
+        server.stop();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}